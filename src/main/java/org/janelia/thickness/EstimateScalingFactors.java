@@ -1,5 +1,7 @@
 package org.janelia.thickness;
 
+import org.janelia.thickness.inference.SparseSimilarities;
+
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
@@ -19,6 +21,11 @@ import net.imglib2.view.Views;
 public class EstimateScalingFactors
 {
 
+	/**
+	 * @param pairwiseWeights
+	 *            in the same order as {@code correlations}, constant if
+	 *            {@code null}
+	 */
 	public static < T extends RealType< T >, W extends RealType< W > > void estimateQuadraticFromMatrix(
 			final RandomAccessibleInterval< T > correlations,
 			final double[] scalingFactors,
@@ -33,7 +40,8 @@ public class EstimateScalingFactors
 		final double inverseRegularizerWeight = 1 - regularizerWeight;
 
 		final RandomAccess< T > corrAccess = correlations.randomAccess();
-		final RandomAccess< W > wAccess = pairwiseWeights.randomAccess();
+		// constant weights cancel
+		final RandomAccess< W > wAccess = pairwiseWeights == null ? null : pairwiseWeights.randomAccess();
 
 		for ( int iter = 0; iter < nIterations; ++iter )
 		{
@@ -48,7 +56,8 @@ public class EstimateScalingFactors
 				final double[] oldScalingFactors = scalingFactors.clone();
 
 				corrAccess.setPosition( n, 0 );
-				wAccess.setPosition( n, 0 );
+				if ( wAccess != null )
+					wAccess.setPosition( n, 0 );
 
 				final double[] lf = fitCursor.next();
 				final RealRandomAccessible< DoubleType > interpolatedFit = Views.interpolate( Views.extendValue( ArrayImgs.doubles( lf, lf.length ), new DoubleType( Double.NaN ) ), new NLinearInterpolatorFactory< DoubleType >() );
@@ -62,7 +71,8 @@ public class EstimateScalingFactors
 					if ( i == n )
 						continue;
 					corrAccess.setPosition( i, 1 );
-					wAccess.setPosition( i, 1 );
+					if ( wAccess != null )
+						wAccess.setPosition( i, 1 );
 					ra.setPosition( Math.abs( coordinates[ i ] - coordinates[ n ] ), 0 );
 					// fits are negative because LUTRealtransform requires
 					// increasing function
@@ -70,7 +80,7 @@ public class EstimateScalingFactors
 					final double measure = corrAccess.get().getRealDouble();
 					if ( Double.isNaN( fitVal ) || Double.isNaN( measure ) || measure <= 0.0 )
 						continue;
-					final double w = wAccess.get().getRealDouble();
+					final double w = wAccess == null ? 1.0 : wAccess.get().getRealDouble();
 					final double prod = oldScalingFactors[ i ] * measure;
 					final double h = w * prod;
 
@@ -85,4 +95,74 @@ public class EstimateScalingFactors
 		}
 	}
 
+	/**
+	 * Same as
+	 * {@link #estimateQuadraticFromMatrix(RandomAccessibleInterval, double[], double[], RandomAccessibleInterval, double, int, int, RandomAccessibleInterval)}
+	 * but visit only the stored pairs of {@code correlations}, which must be
+	 * in the same (sorted) order as {@code coordinates} and
+	 * {@code scalingFactors}. Pairs beyond the extent of the local fit do not
+	 * contribute.
+	 */
+	public static void estimateQuadraticFromSparse(
+			final SparseSimilarities correlations,
+			final double[] scalingFactors,
+			final double[] coordinates,
+			final RandomAccessibleInterval< double[] > localFits,
+			final double regularizerWeight,
+			final int nIterations )
+	{
+
+		final double inverseRegularizerWeight = 1 - regularizerWeight;
+		final int[] rowOffsets = correlations.getRowOffsets();
+		final int[] columns = correlations.getColumns();
+		final double[] values = correlations.getValues();
+		final double[] weights = correlations.getWeights();
+
+		for ( int iter = 0; iter < nIterations; ++iter )
+		{
+
+			final Cursor< double[] > fitCursor = Views.iterable( localFits ).cursor();
+
+			for ( int n = 0; fitCursor.hasNext(); ++n )
+			{
+				// updates are visible to subsequent sections within the same
+				// iteration, as for the copy of scaling factors per section
+				// in estimateQuadraticFromMatrix
+				final double[] lf = fitCursor.next();
+				double enumeratorSum = 0.0;
+				double denominatorSum = 0.0;
+				for ( int e = rowOffsets[ n ]; e < rowOffsets[ n + 1 ]; ++e )
+				{
+					final int i = columns[ e ];
+					// fits are negative because LUTRealtransform requires
+					// increasing function
+					final double fitVal = -interpolate( lf, Math.abs( coordinates[ i ] - coordinates[ n ] ) );
+					final double measure = values[ e ];
+					if ( Double.isNaN( fitVal ) || Double.isNaN( measure ) || measure <= 0.0 )
+						continue;
+					final double prod = scalingFactors[ i ] * measure;
+					final double h = weights[ e ] * prod;
+
+					enumeratorSum += h * fitVal;
+					denominatorSum += h * prod;
+				}
+				final double result = enumeratorSum / denominatorSum * inverseRegularizerWeight + regularizerWeight * scalingFactors[ n ];
+				if ( !Double.isNaN( result ) )
+					scalingFactors[ n ] = result;
+			}
+
+		}
+	}
+
+	private static double interpolate( final double[] fit, final double x )
+	{
+		final int floor = ( int ) x;
+		if ( x < 0 || floor >= fit.length )
+			return Double.NaN;
+		final double dx = x - floor;
+		if ( dx == 0.0 )
+			return fit[ floor ];
+		return floor + 1 < fit.length ? ( 1.0 - dx ) * fit[ floor ] + dx * fit[ floor + 1 ] : Double.NaN;
+	}
+
 }
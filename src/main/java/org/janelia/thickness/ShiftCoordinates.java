@@ -1,7 +1,9 @@
 package org.janelia.thickness;
 
 import org.janelia.thickness.inference.Options;
-import org.janelia.thickness.lut.LUTRealTransform;
+import org.janelia.thickness.inference.ShiftSamples;
+import org.janelia.thickness.inference.SparseSimilarities;
+import org.janelia.thickness.lut.LUTCursor;
 
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
@@ -27,11 +29,59 @@ public class ShiftCoordinates
 			final double[] shiftWeights,
 			final Options options )
 	{
+		collectShiftsFromMatrix( coordinates, correlations, multipliers, localFits, shiftsArray, weightSums, shiftWeights, ( RandomAccessibleInterval< T > ) null, options );
+	}
+
+	/**
+	 * Same as
+	 * {@link #collectShiftsFromMatrix(double[], RandomAccessibleInterval, double[], RandomAccessibleInterval, double[], double[], double[], Options)}
+	 * but additionally weight the shift of each pair by {@code pairWeights}.
+	 *
+	 * @param pairWeights
+	 *            in the same layout and order as {@code correlations},
+	 *            constant if {@code null}
+	 */
+	public static < T extends RealType< T >, W extends RealType< W > > void collectShiftsFromMatrix(
+			final double[] coordinates,
+			final RandomAccessibleInterval< T > correlations,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > localFits,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final double[] shiftWeights,
+			final RandomAccessibleInterval< W > pairWeights,
+			final Options options )
+	{
+		collectShiftsFromMatrix( coordinates, correlations, multipliers, localFits, shiftsArray, weightSums, shiftWeights, pairWeights, null, options );
+	}
+
+	/**
+	 * Same as
+	 * {@link #collectShiftsFromMatrix(double[], RandomAccessibleInterval, double[], RandomAccessibleInterval, double[], double[], double[], RandomAccessibleInterval, Options)}
+	 * but additionally record each shift and its weight in {@code samples}
+	 * for robust mediation.
+	 *
+	 * @param samples
+	 *            cleared by the caller, ignored if {@code null}
+	 */
+	public static < T extends RealType< T >, W extends RealType< W > > void collectShiftsFromMatrix(
+			final double[] coordinates,
+			final RandomAccessibleInterval< T > correlations,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > localFits,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final double[] shiftWeights,
+			final RandomAccessibleInterval< W > pairWeights,
+			final ShiftSamples samples,
+			final Options options )
+	{
 
 		final int stride = 2 * options.comparisonRange;
 
 		final RandomAccess< T > corrAccess1 = correlations.randomAccess();
 		final RandomAccess< T > corrAccess2 = correlations.randomAccess();
+		final RandomAccess< W > wAccess = pairWeights == null ? null : pairWeights.randomAccess();
 
 		final double[] reference = new double[ 1 ];
 
@@ -46,7 +96,9 @@ public class ShiftCoordinates
 			corrAccess1.setPosition( i, 1 );
 			corrAccess2.setPosition( i, 1 );
 			final double[] localFit = cursor.next();
-			final LUTRealTransform lut = new LUTRealTransform( localFit, 1, 1 );
+			// -measurement increases with distance for both directions
+			final LUTCursor lut1 = new LUTCursor( localFit );
+			final LUTCursor lut2 = new LUTCursor( localFit );
 
 			double minMeasurement1 = Double.MAX_VALUE;
 			double minMeasurement2 = Double.MAX_VALUE;
@@ -76,7 +128,7 @@ public class ShiftCoordinates
 						 */
 						reference[ 0 ] = -measurement;
 
-						lut.applyInverse( reference, reference );
+						reference[ 0 ] = lut1.applyInverseChecked( reference[ 0 ] );
 
 						// reference[0] > halfRange || ??
 						if ( Double.isFinite( reference[ 0 ] ) && !( reference[ 0 ] == Double.MAX_VALUE || reference[ 0 ] == -Double.MAX_VALUE ) )
@@ -88,8 +140,11 @@ public class ShiftCoordinates
 
 							/* current location */
 							final double shift = up < i ? rel - reference[ 0 ] : rel + reference[ 0 ];
-							shiftsArray[ up ] += shift * w;
-							weightSums[ up ] += w;
+							final double pw = pairWeight( wAccess, up, i );
+							shiftsArray[ up ] += shift * w * pw;
+							weightSums[ up ] += w * pw;
+							if ( samples != null )
+								samples.add( up, shift, w * pw );
 						}
 					}
 				}
@@ -113,7 +168,7 @@ public class ShiftCoordinates
 						 */
 						reference[ 0 ] = -measurement;
 
-						lut.applyInverse( reference, reference );
+						reference[ 0 ] = lut2.applyInverseChecked( reference[ 0 ] );
 
 						// reference[0] > halfRange || ??
 						if ( !( reference[ 0 ] == Double.MAX_VALUE || reference[ 0 ] == -Double.MAX_VALUE ) )
@@ -124,8 +179,11 @@ public class ShiftCoordinates
 							final double rel = coordinates[ i ] - coordinates[ down ];
 							/* current location */
 							final double shift = down < i ? rel - reference[ 0 ] : rel + reference[ 0 ];
-							shiftsArray[ down ] += shift;
-							weightSums[ down ] += w;
+							final double pw = pairWeight( wAccess, down, i );
+							shiftsArray[ down ] += shift * w * pw;
+							weightSums[ down ] += w * pw;
+							if ( samples != null )
+								samples.add( down, shift, w * pw );
 						}
 					}
 				}
@@ -133,4 +191,131 @@ public class ShiftCoordinates
 		}
 	}
 
+	private static < W extends RealType< W > > double pairWeight( final RandomAccess< W > access, final int x, final int y )
+	{
+		if ( access == null )
+			return 1.0;
+		access.setPosition( x, 0 );
+		access.setPosition( y, 1 );
+		return access.get().getRealDouble();
+	}
+
+	/**
+	 * Same as
+	 * {@link #collectShiftsFromMatrix(double[], RandomAccessibleInterval, double[], RandomAccessibleInterval, double[], double[], double[], Options)}
+	 * but visit only the stored pairs of {@code correlations}, which must be
+	 * in the same (sorted) order as {@code coordinates}. Similarities are
+	 * scaled by {@code multipliers} on the fly. Shifts in both directions are
+	 * weighted by {@code shiftWeights} of the reference section and the
+	 * weight of the pair.
+	 */
+	public static void collectShiftsFromSparse(
+			final double[] coordinates,
+			final SparseSimilarities correlations,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > localFits,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final double[] shiftWeights,
+			final Options options )
+	{
+		collectShiftsFromSparse( coordinates, correlations, multipliers, localFits, shiftsArray, weightSums, shiftWeights, null, options );
+	}
+
+	/**
+	 * Same as
+	 * {@link #collectShiftsFromSparse(double[], SparseSimilarities, double[], RandomAccessibleInterval, double[], double[], double[], Options)}
+	 * but additionally record each shift and its weight in {@code samples}
+	 * for robust mediation.
+	 *
+	 * @param samples
+	 *            cleared by the caller, ignored if {@code null}
+	 */
+	public static void collectShiftsFromSparse(
+			final double[] coordinates,
+			final SparseSimilarities correlations,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > localFits,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final double[] shiftWeights,
+			final ShiftSamples samples,
+			final Options options )
+	{
+		final int[] rowOffsets = correlations.getRowOffsets();
+		final int[] columns = correlations.getColumns();
+		final double[] values = correlations.getValues();
+		final double[] weights = correlations.getWeights();
+
+		final Cursor< double[] > cursor = Views.iterable( localFits ).cursor();
+
+		// i is reference index, k is comparison index
+		for ( int i = 0; i < coordinates.length; ++i )
+		{
+			final double[] localFit = cursor.next();
+			final int start = rowOffsets[ i ];
+			final int stop = rowOffsets[ i + 1 ];
+			final double w = shiftWeights[ i ];
+			final double m = multipliers[ i ];
+			int diagonal = start;
+			while ( diagonal < stop && columns[ diagonal ] < i )
+				++diagonal;
+
+			// -measurement increases with distance for both directions
+			final LUTCursor lut1 = new LUTCursor( localFit );
+			double minMeasurement = Double.MAX_VALUE;
+			for ( int e = diagonal; e < stop; ++e )
+			{
+				final int k = columns[ e ];
+				minMeasurement = addShift( coordinates, i, k, values[ e ] * m * multipliers[ k ], lut1, minMeasurement, w * weights[ e ], shiftsArray, weightSums, samples, options );
+			}
+
+			final LUTCursor lut2 = new LUTCursor( localFit );
+			minMeasurement = Double.MAX_VALUE;
+			for ( int e = diagonal - 1; e >= start; --e )
+			{
+				final int k = columns[ e ];
+				minMeasurement = addShift( coordinates, i, k, values[ e ] * m * multipliers[ k ], lut2, minMeasurement, w * weights[ e ], shiftsArray, weightSums, samples, options );
+			}
+		}
+	}
+
+	/**
+	 * @return updated minimum of accepted measurements
+	 */
+	private static double addShift(
+			final double[] coordinates,
+			final int i,
+			final int k,
+			final double measurement,
+			final LUTCursor lut,
+			final double minMeasurement,
+			final double w,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final ShiftSamples samples,
+			final Options options )
+	{
+		if ( Double.isNaN( measurement ) || measurement <= options.minimumCorrelationValue || options.forceMonotonicity && measurement >= minMeasurement )
+			return minMeasurement;
+
+		/*
+		 * TODO inverts because LUTRealTransform can only increasing
+		 */
+		final double reference = lut.applyInverseChecked( -measurement );
+
+		if ( Double.isFinite( reference ) && !( reference == Double.MAX_VALUE || reference == -Double.MAX_VALUE ) )
+		{
+			// rel: negative coordinates of k wrt to local coordinate system
+			// of i
+			final double rel = coordinates[ i ] - coordinates[ k ];
+			final double shift = k < i ? rel - reference : rel + reference;
+			shiftsArray[ k ] += shift * w;
+			weightSums[ k ] += w;
+			if ( samples != null )
+				samples.add( k, shift, w );
+		}
+		return measurement;
+	}
+
 }
@@ -0,0 +1,234 @@
+package org.janelia.thickness.inference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.janelia.utility.io.ArrayStreams;
+
+/**
+ * State of {@link InferFromMatrix#estimateZCoordinates} after a completed
+ * iteration, sufficient to continue the optimization bit-identically with
+ * {@link InferFromMatrix#resumeZCoordinates}. The correlation fit is
+ * re-estimated from the scaled strip in every iteration and, thus, not
+ * stored; only state that the fit carries across iterations (e.g. the
+ * regularizer of
+ * {@link org.janelia.thickness.inference.fits.GlobalCorrelationFitAverageRegularized})
+ * is, as is the history of the {@link InferFromMatrix.Accelerator} of
+ * {@link Options#accelerationType}.
+ *
+ * Checkpoints are written to a temporary file in the target directory first
+ * and then atomically moved to the target path, so a crash never leaves a
+ * partially written checkpoint behind.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class Checkpoint
+{
+
+	public static final int MAGIC = 0x5A534350; // ZSCP
+
+	public static final int VERSION = 3;
+
+	/**
+	 * next iteration
+	 */
+	final int iteration;
+
+	/**
+	 * total number of iterations of the solve, i.e.
+	 * {@link Options#coarseToFineIterations} at the finest level of a
+	 * coarse-to-fine solve
+	 */
+	final int nIterations;
+
+	final int range;
+
+	final double[] startingCoordinates;
+
+	final double[] lut;
+
+	final double[] permutedLut;
+
+	final int[] permutation;
+
+	final int[] inverse;
+
+	/**
+	 * in permuted order
+	 */
+	final double[] scalingFactors;
+
+	final double[] scaledStrip;
+
+	/**
+	 * {@code null} if fit does not carry state
+	 */
+	final double[] fitState;
+
+	/**
+	 * {@code null} if solve is not accelerated
+	 */
+	final double[] accelerationState;
+
+	Checkpoint(
+			final int iteration,
+			final int nIterations,
+			final int range,
+			final double[] startingCoordinates,
+			final double[] lut,
+			final double[] permutedLut,
+			final int[] permutation,
+			final int[] inverse,
+			final double[] scalingFactors,
+			final double[] scaledStrip,
+			final double[] fitState,
+			final double[] accelerationState )
+	{
+		super();
+		this.iteration = iteration;
+		this.nIterations = nIterations;
+		this.range = range;
+		this.startingCoordinates = startingCoordinates;
+		this.lut = lut;
+		this.permutedLut = permutedLut;
+		this.permutation = permutation;
+		this.inverse = inverse;
+		this.scalingFactors = scalingFactors;
+		this.scaledStrip = scaledStrip;
+		this.fitState = fitState;
+		this.accelerationState = accelerationState;
+	}
+
+	/**
+	 * @return number of completed iterations
+	 */
+	public int getIteration()
+	{
+		return iteration;
+	}
+
+	/**
+	 * @return number of iterations after which the solve completes
+	 */
+	public int getNumberOfIterations()
+	{
+		return nIterations;
+	}
+
+	public int getSize()
+	{
+		return lut.length;
+	}
+
+	public int getRange()
+	{
+		return range;
+	}
+
+	/**
+	 * @return copy of the coordinates after {@link #getIteration()}
+	 *         iterations.
+	 */
+	public double[] getCoordinates()
+	{
+		return lut.clone();
+	}
+
+	public void write( final String path ) throws IOException
+	{
+		write( path, iteration, nIterations, range, startingCoordinates, lut, permutedLut, permutation, inverse, scalingFactors, scaledStrip, fitState, accelerationState );
+	}
+
+	/**
+	 * Write checkpoint without creating a {@link Checkpoint} object, i.e.
+	 * without copying the solver state.
+	 */
+	static void write(
+			final String path,
+			final int iteration,
+			final int nIterations,
+			final int range,
+			final double[] startingCoordinates,
+			final double[] lut,
+			final double[] permutedLut,
+			final int[] permutation,
+			final int[] inverse,
+			final double[] scalingFactors,
+			final double[] scaledStrip,
+			final double[] fitState,
+			final double[] accelerationState ) throws IOException
+	{
+		final Path target = Paths.get( path ).toAbsolutePath();
+		final Path tmp = Files.createTempFile( target.getParent(), target.getFileName().toString(), ".tmp" );
+		try
+		{
+			try (final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ), 1 << 16 ) ))
+			{
+				final ByteBuffer buffer = ArrayStreams.createBuffer();
+				out.writeInt( MAGIC );
+				out.writeInt( VERSION );
+				out.writeInt( iteration );
+				out.writeInt( nIterations );
+				out.writeInt( range );
+				out.writeInt( lut.length );
+				ArrayStreams.write( out, buffer, startingCoordinates );
+				ArrayStreams.write( out, buffer, lut );
+				ArrayStreams.write( out, buffer, permutedLut );
+				ArrayStreams.write( out, buffer, permutation );
+				ArrayStreams.write( out, buffer, inverse );
+				ArrayStreams.write( out, buffer, scalingFactors );
+				ArrayStreams.write( out, buffer, scaledStrip );
+				out.writeInt( fitState == null ? -1 : fitState.length );
+				if ( fitState != null )
+					ArrayStreams.write( out, buffer, fitState );
+				out.writeInt( accelerationState == null ? -1 : accelerationState.length );
+				if ( accelerationState != null )
+					ArrayStreams.write( out, buffer, accelerationState );
+			}
+			Files.move( tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp );
+		}
+	}
+
+	public static Checkpoint read( final String path ) throws IOException
+	{
+		try (final DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( Paths.get( path ) ), 1 << 16 ) ))
+		{
+			if ( in.readInt() != MAGIC )
+				throw new IOException( path + " is not a checkpoint." );
+			final int version = in.readInt();
+			if ( version != VERSION )
+				throw new IOException( "Unsupported checkpoint version: " + version );
+			final ByteBuffer buffer = ArrayStreams.createBuffer();
+			final int iteration = in.readInt();
+			final int nIterations = in.readInt();
+			final int range = in.readInt();
+			final int n = in.readInt();
+			final double[] startingCoordinates = ArrayStreams.readDoubles( in, buffer, n );
+			final double[] lut = ArrayStreams.readDoubles( in, buffer, n );
+			final double[] permutedLut = ArrayStreams.readDoubles( in, buffer, n );
+			final int[] permutation = ArrayStreams.readInts( in, buffer, n );
+			final int[] inverse = ArrayStreams.readInts( in, buffer, n );
+			final double[] scalingFactors = ArrayStreams.readDoubles( in, buffer, n );
+			final double[] scaledStrip = ArrayStreams.readDoubles( in, buffer, ( 2 * range + 1 ) * n );
+			final int fitStateLength = in.readInt();
+			final double[] fitState = fitStateLength < 0 ? null : ArrayStreams.readDoubles( in, buffer, fitStateLength );
+			final int accelerationStateLength = in.readInt();
+			final double[] accelerationState = accelerationStateLength < 0 ? null : ArrayStreams.readDoubles( in, buffer, accelerationStateLength );
+			return new Checkpoint( iteration, nIterations, range, startingCoordinates, lut, permutedLut, permutation, inverse, scalingFactors, scaledStrip, fitState, accelerationState );
+		}
+	}
+
+}
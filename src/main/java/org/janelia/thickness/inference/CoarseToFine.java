@@ -0,0 +1,188 @@
+package org.janelia.thickness.inference;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Restriction and prolongation between levels of the coarse-to-fine solve in
+ * {@link InferFromMatrix}. A coarse level combines pairs of adjacent
+ * sections {@code 2k, 2k + 1} into section {@code k} (the last section stays
+ * on its own for an odd number of sections). Coarse coordinates are the
+ * averaged fine coordinates divided by two, i.e. the section spacing is
+ * preserved.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class CoarseToFine
+{
+
+	public static int coarseSize( final int n )
+	{
+		return ( n + 1 ) / 2;
+	}
+
+	/**
+	 * Coarse range such that all coarse pairs overlap with fine pairs within
+	 * {@code range}.
+	 */
+	public static int coarseRange( final int range )
+	{
+		return ( range + 1 ) / 2;
+	}
+
+	/**
+	 * Coarse levels need at least two sections and a range of at least two
+	 * to carry information beyond nearest neighbors.
+	 */
+	public static boolean canCoarsen( final int n, final int range )
+	{
+		return n >= 4 && coarseRange( range ) >= 2;
+	}
+
+	/**
+	 * Downsample {@code matrix} into a strip of width
+	 * {@code 2 * coarseRange( range ) + 1}. Coarse entry {@code (i, j)} is
+	 * the average over all finite fine entries {@code (a, b)} with
+	 * {@code |a - b| <= range}, {@code a} in group {@code i}, and {@code b} in
+	 * group {@code j}. For {@code i == j} only the diagonal entries are
+	 * averaged. Entries without any finite fine entry are {@code NaN}.
+	 */
+	public static < T extends RealType< T > > ArrayImg< DoubleType, DoubleArray > downsampleStrip(
+			final RandomAccessibleInterval< T > matrix,
+			final int range )
+	{
+		final int n = ( int ) matrix.dimension( 0 );
+		final int cn = coarseSize( n );
+		final int cr = coarseRange( range );
+		final int width = 2 * cr + 1;
+		final double[] data = new double[ width * cn ];
+		final RandomAccess< T > access = matrix.randomAccess();
+		for ( int j = 0, index = 0; j < cn; ++j )
+		{
+			final int bMin = 2 * j;
+			final int bMax = Math.min( bMin + 1, n - 1 );
+			for ( int x = 0; x < width; ++x, ++index )
+			{
+				final int i = j + x - cr;
+				if ( i < 0 || i >= cn )
+				{
+					data[ index ] = Double.NaN;
+					continue;
+				}
+				final int aMin = 2 * i;
+				final int aMax = Math.min( aMin + 1, n - 1 );
+				double sum = 0.0;
+				int count = 0;
+				for ( int b = bMin; b <= bMax; ++b )
+				{
+					access.setPosition( b, 1 );
+					for ( int a = aMin; a <= aMax; ++a )
+					{
+						if ( i == j ? a != b : Math.abs( a - b ) > range )
+							continue;
+						access.setPosition( a, 0 );
+						final double value = access.get().getRealDouble();
+						if ( !Double.isNaN( value ) && !Double.isInfinite( value ) )
+						{
+							sum += value;
+							++count;
+						}
+					}
+				}
+				data[ index ] = count > 0 ? sum / count : Double.NaN;
+			}
+		}
+		return ArrayImgs.doubles( data, width, cn );
+	}
+
+	/**
+	 * @return pairwise averages of {@code values}
+	 */
+	public static double[] downsample( final double[] values )
+	{
+		final double[] result = new double[ coarseSize( values.length ) ];
+		for ( int k = 0; k < result.length; ++k )
+		{
+			final int a = 2 * k;
+			final int b = Math.min( a + 1, values.length - 1 );
+			result[ k ] = 0.5 * ( values[ a ] + values[ b ] );
+		}
+		return result;
+	}
+
+	/**
+	 * @return coarse coordinates for fine {@code coordinates}
+	 */
+	public static double[] restrictCoordinates( final double[] coordinates )
+	{
+		final double[] result = downsample( coordinates );
+		for ( int k = 0; k < result.length; ++k )
+			result[ k ] *= 0.5;
+		return result;
+	}
+
+	/**
+	 * Apply the correction of the coarse solve to the fine starting
+	 * coordinates: The displacement {@code 2 * ( coarseSolution -
+	 * coarseStart )} of each coarse section is assigned to the center of its
+	 * group of fine sections and linearly interpolated in between (constant
+	 * beyond the first and last center). Relative positions of fine sections
+	 * are, thus, preserved locally.
+	 */
+	public static double[] prolongate(
+			final double[] fineStart,
+			final double[] coarseStart,
+			final double[] coarseSolution )
+	{
+		final int n = fineStart.length;
+		final int cn = coarseStart.length;
+		final double[] displacements = new double[ cn ];
+		final double[] centers = new double[ cn ];
+		for ( int k = 0; k < cn; ++k )
+		{
+			displacements[ k ] = 2.0 * ( coarseSolution[ k ] - coarseStart[ k ] );
+			centers[ k ] = 0.5 * ( 2 * k + Math.min( 2 * k + 1, n - 1 ) );
+		}
+
+		final double[] result = new double[ n ];
+		for ( int z = 0, k = 0; z < n; ++z )
+		{
+			while ( k < cn - 1 && centers[ k + 1 ] <= z )
+				++k;
+			final double displacement;
+			if ( z <= centers[ 0 ] )
+				displacement = displacements[ 0 ];
+			else if ( k == cn - 1 )
+				displacement = displacements[ cn - 1 ];
+			else
+			{
+				final double w = ( z - centers[ k ] ) / ( centers[ k + 1 ] - centers[ k ] );
+				displacement = ( 1.0 - w ) * displacements[ k ] + w * displacements[ k + 1 ];
+			}
+			result[ z ] = fineStart[ z ] + displacement;
+		}
+		return result;
+	}
+
+	/**
+	 * Options for the next coarser level: halved comparison range and window
+	 * radius, no checkpoints, one level less.
+	 */
+	public static Options coarseOptions( final Options options )
+	{
+		final Options result = options.clone();
+		result.comparisonRange = coarseRange( options.comparisonRange );
+		if ( options.estimateWindowRadius > 0 )
+			result.estimateWindowRadius = Math.max( options.estimateWindowRadius / 2, 1 );
+		result.checkpointInterval = 0;
+		result.coarseToFineLevels = options.coarseToFineLevels - 1;
+		return result;
+	}
+
+}
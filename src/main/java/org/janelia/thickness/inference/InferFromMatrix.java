@@ -13,6 +13,12 @@ import org.janelia.utility.MatrixStripConversion;
 import org.janelia.utility.arrays.ArraySortedIndices;
 import org.janelia.utility.arrays.ReplaceNaNs;
 
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.QRDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularMatrixException;
+
 import mpicbg.models.AffineModel1D;
 import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.Model;
@@ -20,14 +26,17 @@ import mpicbg.models.NotEnoughDataPointsException;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealDoubleConverter;
+import net.imglib2.img.array.ArrayCursor;
 import net.imglib2.img.array.ArrayImg;
-import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
-import net.imglib2.util.ConstantUtils;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.TransformView;
@@ -50,6 +59,26 @@ public class InferFromMatrix
 		BORDER
 	}
 
+	public enum AccelerationType
+	{
+		NONE,
+		ANDERSON,
+		NESTEROV
+	}
+
+	/**
+	 * Estimate of the shift of a section from the shifts suggested by its
+	 * neighbors: weighted mean, Huber or Tukey M-estimate, or weighted
+	 * median (see {@link ShiftSamples}).
+	 */
+	public enum MediationType
+	{
+		MEAN,
+		HUBER,
+		TUKEY,
+		MEDIAN
+	}
+
 	public interface Regularizer
 	{
 		void regularize(double[] coordinates, Options options) throws Exception;
@@ -149,6 +178,280 @@ public class InferFromMatrix
 		}
 	}
 
+	/**
+	 * Accelerate the damped fixed-point iteration {@code x_{k+1} = G( x_k )}
+	 * of the coordinates. Coordinates are passed in section order, so the
+	 * history is not affected by reordering.
+	 */
+	public interface Accelerator
+	{
+		/**
+		 * @param previous
+		 *            {@code x_k}
+		 * @param update
+		 *            {@code G( x_k )}, overwritten with {@code x_{k+1}}
+		 */
+		void accelerate( double[] previous, double[] update );
+
+		/**
+		 * @return copy of the history carried from one iteration to the
+		 *         next, e.g. for {@link Checkpoint}
+		 */
+		double[] getState();
+
+		/**
+		 * Restore history returned by {@link #getState()}.
+		 */
+		void setState( double[] state );
+	}
+
+	/**
+	 * Anderson mixing (type II) over the last {@code depth} iterates:
+	 * {@code x_{k+1} = G( x_k ) - dG * gamma} with {@code gamma} minimizing
+	 * {@code | f_k - dF * gamma |}, where {@code f = G( x ) - x} and
+	 * {@code dF}, {@code dG} hold differences of consecutive residuals and
+	 * updates. The history is dropped whenever the residual grows, the least
+	 * squares problem is rank deficient, or the mixed iterate is not finite.
+	 */
+	public static class AndersonAcceleration implements Accelerator
+	{
+		private final int depth;
+
+		private final double[][] dF;
+
+		private final double[][] dG;
+
+		private final double[] f;
+
+		private final double[] fPrevious;
+
+		private final double[] gPrevious;
+
+		private final double[] mixed;
+
+		private int size = 0;
+
+		private int next = 0;
+
+		private double previousResidualNorm = Double.POSITIVE_INFINITY;
+
+		private boolean hasPrevious = false;
+
+		public AndersonAcceleration( final int n, final int depth )
+		{
+			this.depth = depth;
+			this.dF = new double[ depth ][ n ];
+			this.dG = new double[ depth ][ n ];
+			this.f = new double[ n ];
+			this.fPrevious = new double[ n ];
+			this.gPrevious = new double[ n ];
+			this.mixed = new double[ n ];
+		}
+
+		@Override
+		public void accelerate( final double[] previous, final double[] update )
+		{
+			final int n = update.length;
+			double residualNorm = 0.0;
+			for ( int i = 0; i < n; ++i )
+			{
+				f[ i ] = update[ i ] - previous[ i ];
+				residualNorm += f[ i ] * f[ i ];
+			}
+
+			if ( !( residualNorm < previousResidualNorm ) )
+				restart();
+			else if ( hasPrevious )
+			{
+				final double[] dFColumn = dF[ next ];
+				final double[] dGColumn = dG[ next ];
+				for ( int i = 0; i < n; ++i )
+				{
+					dFColumn[ i ] = f[ i ] - fPrevious[ i ];
+					dGColumn[ i ] = update[ i ] - gPrevious[ i ];
+				}
+				next = ( next + 1 ) % depth;
+				size = Math.min( size + 1, depth );
+			}
+			previousResidualNorm = residualNorm;
+			hasPrevious = true;
+			System.arraycopy( f, 0, fPrevious, 0, n );
+			System.arraycopy( update, 0, gPrevious, 0, n );
+
+			if ( size == 0 )
+				return;
+
+			final RealMatrix A = new Array2DRowRealMatrix( n, size );
+			for ( int c = 0; c < size; ++c )
+				for ( int i = 0; i < n; ++i )
+					A.setEntry( i, c, dF[ c ][ i ] );
+			final double[] gamma;
+			try
+			{
+				gamma = new QRDecomposition( A, 1e-12 ).getSolver().solve( new ArrayRealVector( f, false ) ).toArray();
+			}
+			catch ( final SingularMatrixException e )
+			{
+				restart();
+				return;
+			}
+
+			for ( int i = 0; i < n; ++i )
+			{
+				double value = update[ i ];
+				for ( int c = 0; c < size; ++c )
+					value -= gamma[ c ] * dG[ c ][ i ];
+				if ( !Double.isFinite( value ) )
+				{
+					restart();
+					return;
+				}
+				mixed[ i ] = value;
+			}
+			System.arraycopy( mixed, 0, update, 0, n );
+		}
+
+		// history is read from columns 0 ... size - 1
+		private void restart()
+		{
+			size = 0;
+			next = 0;
+		}
+
+		/**
+		 * Position in history, residual norm, and previous residual and
+		 * update are followed by the difference columns {@code dF} and
+		 * {@code dG}.
+		 */
+		@Override
+		public double[] getState()
+		{
+			final int n = f.length;
+			final double[] state = new double[ 4 + ( 2 + 2 * depth ) * n ];
+			state[ 0 ] = size;
+			state[ 1 ] = next;
+			state[ 2 ] = previousResidualNorm;
+			state[ 3 ] = hasPrevious ? 1.0 : 0.0;
+			int offset = 4;
+			System.arraycopy( fPrevious, 0, state, offset, n );
+			offset += n;
+			System.arraycopy( gPrevious, 0, state, offset, n );
+			offset += n;
+			for ( int c = 0; c < depth; ++c, offset += 2 * n )
+			{
+				System.arraycopy( dF[ c ], 0, state, offset, n );
+				System.arraycopy( dG[ c ], 0, state, offset + n, n );
+			}
+			return state;
+		}
+
+		@Override
+		public void setState( final double[] state )
+		{
+			final int n = f.length;
+			if ( state.length != 4 + ( 2 + 2 * depth ) * n )
+				throw new IllegalArgumentException( "State of length " + state.length + " not compatible with Anderson acceleration of size " + n + " and depth " + depth + "." );
+			size = ( int ) state[ 0 ];
+			next = ( int ) state[ 1 ];
+			previousResidualNorm = state[ 2 ];
+			hasPrevious = state[ 3 ] != 0.0;
+			int offset = 4;
+			System.arraycopy( state, offset, fPrevious, 0, n );
+			offset += n;
+			System.arraycopy( state, offset, gPrevious, 0, n );
+			offset += n;
+			for ( int c = 0; c < depth; ++c, offset += 2 * n )
+			{
+				System.arraycopy( state, offset, dF[ c ], 0, n );
+				System.arraycopy( state, offset + n, dG[ c ], 0, n );
+			}
+		}
+	}
+
+	/**
+	 * Nesterov momentum {@code x_{k+1} = y_{k+1} + beta_k ( y_{k+1} - y_k )}
+	 * with {@code y_{k+1} = G( x_k )} and the usual {@code beta_k = ( t_k - 1
+	 * ) / t_{k+1}}. Momentum is restarted ({@code t = 1}) whenever the
+	 * residual {@code | G( x_k ) - x_k |} grows.
+	 */
+	public static class NesterovAcceleration implements Accelerator
+	{
+		private final double[] yPrevious;
+
+		private double t = 1.0;
+
+		private double previousResidualNorm = Double.POSITIVE_INFINITY;
+
+		private boolean hasPrevious = false;
+
+		public NesterovAcceleration( final int n )
+		{
+			this.yPrevious = new double[ n ];
+		}
+
+		@Override
+		public void accelerate( final double[] previous, final double[] update )
+		{
+			final int n = update.length;
+			double residualNorm = 0.0;
+			for ( int i = 0; i < n; ++i )
+			{
+				final double diff = update[ i ] - previous[ i ];
+				residualNorm += diff * diff;
+			}
+
+			final boolean restart = !hasPrevious || !( residualNorm < previousResidualNorm );
+			previousResidualNorm = residualNorm;
+			hasPrevious = true;
+
+			if ( restart )
+			{
+				t = 1.0;
+				System.arraycopy( update, 0, yPrevious, 0, n );
+				return;
+			}
+
+			final double tNext = 0.5 * ( 1.0 + Math.sqrt( 1.0 + 4.0 * t * t ) );
+			final double beta = ( t - 1.0 ) / tNext;
+			t = tNext;
+			for ( int i = 0; i < n; ++i )
+			{
+				final double y = update[ i ];
+				final double x = y + beta * ( y - yPrevious[ i ] );
+				yPrevious[ i ] = y;
+				if ( Double.isFinite( x ) )
+					update[ i ] = x;
+			}
+		}
+
+		/**
+		 * {@code t}, residual norm, and {@code y_k}.
+		 */
+		@Override
+		public double[] getState()
+		{
+			final int n = yPrevious.length;
+			final double[] state = new double[ 3 + n ];
+			state[ 0 ] = t;
+			state[ 1 ] = previousResidualNorm;
+			state[ 2 ] = hasPrevious ? 1.0 : 0.0;
+			System.arraycopy( yPrevious, 0, state, 3, n );
+			return state;
+		}
+
+		@Override
+		public void setState( final double[] state )
+		{
+			final int n = yPrevious.length;
+			if ( state.length != 3 + n )
+				throw new IllegalArgumentException( "State of length " + state.length + " not compatible with Nesterov acceleration of size " + n + "." );
+			t = state[ 0 ];
+			previousResidualNorm = state[ 1 ];
+			hasPrevious = state[ 2 ] != 0.0;
+			System.arraycopy( state, 3, yPrevious, 0, n );
+		}
+	}
+
 	public InferFromMatrix( final AbstractCorrelationFit correlationFit )
 	{
 		super();
@@ -156,6 +459,11 @@ public class InferFromMatrix
 		this.correlationFit = correlationFit;
 	}
 
+	public AbstractCorrelationFit getCorrelationFit()
+	{
+		return correlationFit;
+	}
+
 	public < T extends RealType< T > & NativeType< T > > double[] estimateZCoordinates(
 			final RandomAccessibleInterval< T > matrix,
 			final double[] startingCoordinates,
@@ -173,16 +481,33 @@ public class InferFromMatrix
 			final double[] startingCoordinates,
 			final Visitor visitor,
 			final Options options ) throws Exception
+	{
+		return estimateZCoordinates(
+				inputMatrix,
+				startingCoordinates,
+				visitor,
+				options,
+				new Progress() );
+	}
+
+	public < T extends RealType< T > & NativeType< T > > double[] estimateZCoordinates(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final double[] startingCoordinates,
+			final Visitor visitor,
+			final Options options,
+			final Progress progress ) throws Exception
 	{
 		return estimateZCoordinates(
 				inputMatrix,
 				startingCoordinates,
 				new double[ 0 ],
 				Arrays.stream( new double[ startingCoordinates.length ] ).map( d -> 1.0 ).toArray(),
-				ConstantUtils.constantRandomAccessibleInterval( new DoubleType( 1.0 ), inputMatrix.numDimensions(), inputMatrix ),
+				( RandomAccessibleInterval< DoubleType > ) null,
 				Arrays.stream( new double[ startingCoordinates.length ] ).map( d -> 1.0 ).toArray(),
 				visitor,
-				options );
+				options,
+				new Workspace( ( int ) inputMatrix.dimension( 0 ), options.comparisonRange, correlationFit ),
+				progress );
 	}
 
 	public < T extends RealType< T > & NativeType< T >, W extends RealType< W > > double[] estimateZCoordinates(
@@ -195,60 +520,477 @@ public class InferFromMatrix
 			final Visitor visitor,
 			final Options options ) throws Exception
 	{
+		return estimateZCoordinates(
+				inputMatrix,
+				startingCoordinates,
+				functionEstimate,
+				scalingFactors,
+				estimateWeights,
+				shiftWeights,
+				visitor,
+				options,
+				new Workspace( ( int ) inputMatrix.dimension( 0 ), options.comparisonRange, correlationFit ) );
+	}
+
+	/**
+	 * Re-entrant: {@code inputMatrix} is only read and all mutable state is
+	 * kept in {@code workspace} and {@code scalingFactors}, so concurrent
+	 * solves can share {@code inputMatrix} and this {@link InferFromMatrix} as
+	 * long as each uses its own {@link Workspace} and {@code scalingFactors}.
+	 * {@code workspace} may be re-used for subsequent solves, e.g. through a
+	 * {@link Workspace.Pool}.
+	 *
+	 * @param estimateWeights
+	 *            per-pair weights (e.g. pixel count or inverse variance of
+	 *            each similarity) that are used by correlation fit, scaling
+	 *            factor, and shift estimation. Only the band within
+	 *            {@link Options#comparisonRange} is read. Constant weights
+	 *            ({@code null} or equal within the band) do not change the
+	 *            result and are skipped.
+	 */
+	public < T extends RealType< T > & NativeType< T >, W extends RealType< W > > double[] estimateZCoordinates(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final double[] startingCoordinates,
+			final double[] functionEstimate,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< W > estimateWeights,
+			final double[] shiftWeights,
+			final Visitor visitor,
+			final Options options,
+			final Workspace workspace ) throws Exception
+	{
+		return estimateZCoordinates(
+				inputMatrix,
+				startingCoordinates,
+				functionEstimate,
+				scalingFactors,
+				estimateWeights,
+				shiftWeights,
+				visitor,
+				options,
+				workspace,
+				new Progress() );
+	}
+
+	/**
+	 * Same as
+	 * {@link #estimateZCoordinates(RandomAccessibleInterval, double[], double[], double[], RandomAccessibleInterval, double[], Visitor, Options, Workspace)}
+	 * but report iterations to {@code progress} and stop with a
+	 * {@link java.util.concurrent.CancellationException} before the next
+	 * iteration once {@code progress} is cancelled.
+	 */
+	public < T extends RealType< T > & NativeType< T >, W extends RealType< W > > double[] estimateZCoordinates(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final double[] startingCoordinates,
+			final double[] functionEstimate,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< W > estimateWeights,
+			final double[] shiftWeights,
+			final Visitor visitor,
+			final Options options,
+			final Workspace workspace,
+			final Progress progress ) throws Exception
+	{
 
-		final double[] lut = startingCoordinates.clone();
 		final int n = ( int ) inputMatrix.dimension( 0 );
+		if ( !workspace.isCompatible( n, options.comparisonRange, correlationFit ) )
+			throw new IllegalArgumentException( "Workspace not compatible with input of size " + n + " and range " + options.comparisonRange + "." );
+
+		try
+		{
+			if ( options.coarseToFineLevels != null && options.coarseToFineLevels > 0 && CoarseToFine.canCoarsen( n, options.comparisonRange ) )
+				return estimateZCoordinatesCoarseToFine( inputMatrix, startingCoordinates, scalingFactors, estimateWeights, shiftWeights, visitor, options, workspace, progress );
+			return estimateZCoordinatesInWorkspace( inputMatrix, startingCoordinates, startingCoordinates, scalingFactors, estimateWeights, shiftWeights, visitor, options, workspace, progress, null );
+		}
+		finally
+		{
+			workspace.reset();
+		}
+	}
+
+	/**
+	 * Solve on {@link Options#coarseToFineLevels} coarser levels, each
+	 * downsampled by two in z through pairwise averaging of sections (see
+	 * {@link CoarseToFine}), with {@link Options#nIterations} iterations at
+	 * the coarsest level. The solution of each level is prolongated to the
+	 * initial coordinates of the next finer level and refined with
+	 * {@link Options#coarseToFineIterations} iterations. Coordinate updates
+	 * are regularized towards {@code startingCoordinates} (restricted to the
+	 * coarse levels) at all levels (see
+	 * {@link Options#coordinateUpdateRegularizerWeight}). Low frequency drift
+	 * is corrected at the coarse levels, where an iteration costs a quarter
+	 * of an iteration at the next finer level (half the sections, half the
+	 * range). Coarsening stops early if the range would drop below 2. Only
+	 * the finest level reports to {@code visitor}.
+	 */
+	private < T extends RealType< T > & NativeType< T >, W extends RealType< W > > double[] estimateZCoordinatesCoarseToFine(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final double[] startingCoordinates,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< W > estimateWeights,
+			final double[] shiftWeights,
+			final Visitor visitor,
+			final Options options,
+			final Workspace workspace,
+			final Progress progress ) throws Exception
+	{
+		final int coarseSize = CoarseToFine.coarseSize( ( int ) inputMatrix.dimension( 0 ) );
+		final Options coarseOptions = CoarseToFine.coarseOptions( options );
+		final RandomAccessibleInterval< DoubleType > coarseMatrix =
+				MatrixStripConversion.stripToMatrix( CoarseToFine.downsampleStrip( inputMatrix, options.comparisonRange ), new DoubleType( Double.NaN ) );
+		final RandomAccessibleInterval< DoubleType > coarseWeights = estimateWeights == null ? null :
+				MatrixStripConversion.stripToMatrix( CoarseToFine.downsampleStrip( estimateWeights, options.comparisonRange ), new DoubleType( Double.NaN ) );
+		final double[] coarseStart = CoarseToFine.restrictCoordinates( startingCoordinates );
+		final double[] coarseScalingFactors = new double[ coarseSize ];
+		Arrays.fill( coarseScalingFactors, 1.0 );
+		final AbstractCorrelationFit coarseFit = correlationFit.forCoarseLevel( coarseSize, coarseOptions );
+
+		final double[] coarseSolution = new InferFromMatrix( coarseFit ).estimateZCoordinates(
+				coarseMatrix,
+				coarseStart,
+				new double[ 0 ],
+				coarseScalingFactors,
+				coarseWeights,
+				CoarseToFine.downsample( shiftWeights ),
+				new LazyVisitor(),
+				coarseOptions,
+				new Workspace( coarseSize, coarseOptions.comparisonRange, coarseFit ),
+				progress );
+
+		final Options fineOptions = options.clone();
+		fineOptions.nIterations = options.coarseToFineIterations;
+		fineOptions.coarseToFineLevels = 0;
+		return estimateZCoordinatesInWorkspace(
+				inputMatrix,
+				startingCoordinates,
+				CoarseToFine.prolongate( startingCoordinates, coarseStart, coarseSolution ),
+				scalingFactors,
+				estimateWeights,
+				shiftWeights,
+				visitor,
+				fineOptions,
+				workspace,
+				progress,
+				null );
+	}
+
+	public < T extends RealType< T > & NativeType< T > > double[] resumeZCoordinates(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final Checkpoint checkpoint,
+			final Visitor visitor,
+			final Options options ) throws Exception
+	{
+		return resumeZCoordinates(
+				inputMatrix,
+				checkpoint,
+				new double[ checkpoint.getSize() ],
+				( RandomAccessibleInterval< DoubleType > ) null,
+				Arrays.stream( new double[ checkpoint.getSize() ] ).map( d -> 1.0 ).toArray(),
+				visitor,
+				options,
+				new Workspace( ( int ) inputMatrix.dimension( 0 ), options.comparisonRange, correlationFit ),
+				new Progress() );
+	}
+
+	/**
+	 * Continue a solve from {@code checkpoint}, written by a previous call
+	 * with {@link Options#checkpointInterval} &gt; 0, until the number of
+	 * iterations of that solve ({@link Checkpoint#getNumberOfIterations()})
+	 * is reached. Checkpoints of a coarse-to-fine solve are written at the
+	 * finest level only and resume there. With the same
+	 * {@code inputMatrix}, weights, options, and correlation fit, the result
+	 * is bit-identical to that of an uninterrupted solve.
+	 *
+	 * @param scalingFactors
+	 *            output, overwritten with the scaling factors of
+	 *            {@code checkpoint}
+	 */
+	public < T extends RealType< T > & NativeType< T >, W extends RealType< W > > double[] resumeZCoordinates(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final Checkpoint checkpoint,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< W > estimateWeights,
+			final double[] shiftWeights,
+			final Visitor visitor,
+			final Options options,
+			final Workspace workspace,
+			final Progress progress ) throws Exception
+	{
+
+		final int n = ( int ) inputMatrix.dimension( 0 );
+		if ( checkpoint.getSize() != n || checkpoint.getRange() != options.comparisonRange )
+			throw new IllegalArgumentException( "Checkpoint of size " + checkpoint.getSize() + " and range " + checkpoint.getRange() +
+					" not compatible with input of size " + n + " and range " + options.comparisonRange + "." );
+		if ( !workspace.isCompatible( n, options.comparisonRange, correlationFit ) )
+			throw new IllegalArgumentException( "Workspace not compatible with input of size " + n + " and range " + options.comparisonRange + "." );
+
+		try
+		{
+			return estimateZCoordinatesInWorkspace( inputMatrix, checkpoint.startingCoordinates, checkpoint.lut, scalingFactors, estimateWeights, shiftWeights, visitor, options, workspace, progress, checkpoint );
+		}
+		finally
+		{
+			workspace.reset();
+		}
+	}
+
+	public double[] estimateZCoordinates(
+			final SparseSimilarities similarities,
+			final double[] startingCoordinates,
+			final Visitor visitor,
+			final Options options ) throws Exception
+	{
+		return estimateZCoordinates(
+				similarities,
+				startingCoordinates,
+				Arrays.stream( new double[ startingCoordinates.length ] ).map( d -> 1.0 ).toArray(),
+				Arrays.stream( new double[ startingCoordinates.length ] ).map( d -> 1.0 ).toArray(),
+				visitor,
+				options,
+				new Progress() );
+	}
+
+	/**
+	 * Estimate coordinates from sparse pairwise similarities. Correlation
+	 * fit, scaling factors, and shifts are computed only from the stored
+	 * pairs of {@code similarities}, i.e. the cost of an iteration is linear
+	 * in the number of measured pairs. {@link Options#comparisonRange} only
+	 * bounds the distance up to which the correlation fit is estimated and
+	 * can be large without materializing a band. Pair weights of
+	 * {@code similarities} take the role of the estimate weight matrix.
+	 * Coarse-to-fine and checkpoints require dense input and are ignored.
+	 * {@code visitor} receives lazy dense views of the sorted similarities.
+	 *
+	 * @param scalingFactors
+	 *            input/output, in sorted order as for the dense solve
+	 */
+	public double[] estimateZCoordinates(
+			final SparseSimilarities similarities,
+			final double[] startingCoordinates,
+			final double[] scalingFactors,
+			final double[] shiftWeights,
+			final Visitor visitor,
+			final Options options,
+			final Progress progress ) throws Exception
+	{
+		final int n = similarities.getSize();
+		if ( startingCoordinates.length != n )
+			throw new IllegalArgumentException( "Expected " + n + " starting coordinates but got " + startingCoordinates.length + "." );
+		if ( scalingFactors.length != n )
+			throw new IllegalArgumentException( "Expected " + n + " scaling factors but got " + scalingFactors.length + "." );
+		if ( shiftWeights.length != n )
+			throw new IllegalArgumentException( "Expected " + n + " shift weights but got " + shiftWeights.length + "." );
+
+		final double[] lut = startingCoordinates.clone();
+		final double[] permutedLut = lut.clone(); // sorted lut
 		final int[] permutationLut = new int[ n ];
-		final int[] inverse = permutationLut.clone();
+		final int[] inverse = new int[ n ];
+		final double[] scalingFactorsPrevious = new double[ n ];
+		ArraySortedIndices.sort( permutedLut, permutationLut, inverse );
+
+		// pairs in sorted order, updated whenever the order changes
+		final SparseSimilarities sorted = similarities.copy();
+		similarities.permute( permutationLut, inverse, sorted );
+		final RandomAccessibleInterval< DoubleType > matrix = sorted.asMatrix( null );
+		final RandomAccessibleInterval< DoubleType > scaledMatrix = sorted.asMatrix( scalingFactors );
+		@SuppressWarnings( "unchecked" )
+		final RandomAccessibleInterval< double[] >[] correlationFitsStore = ( RandomAccessibleInterval< double[] >[] ) new RandomAccessibleInterval< ? >[ 1 ];
+
+		final AbstractCorrelationFit.Accumulator accumulator = correlationFit.createAccumulator();
+		final Regularizer regularizer = createRegularizer( n, options );
+		final Accelerator accelerator = createAccelerator( n, options );
+		final double[] previousLut = accelerator == null ? null : new double[ n ];
+
+		final double[] shiftsArray = new double[ n ];
+		final double[] weightSums = new double[ n ];
+		final double[] mediatedShifts = new double[ n ];
+		// comparison range does not bound the number of pairs of a section
+		final ShiftSamples shiftSamples = isRobust( options ) ? new ShiftSamples( n, similarities.getMaxRowLength() ) : null;
+
+		progress.start( "Inference", options.nIterations );
+		for ( int iteration = 0; iteration < options.nIterations; ++iteration )
+		{
+
+			progress.checkCancelled();
+			if ( accelerator != null )
+				System.arraycopy( lut, 0, previousLut, 0, n );
+
+			if ( iteration == 0 )
+				visitor.act( iteration, matrix, scaledMatrix, lut, permutationLut, inverse, scalingFactors, correlationFitsStore[ 0 ] );
+
+			Arrays.fill( shiftsArray, 0.0 );
+			Arrays.fill( weightSums, 0.0 );
+
+			final double[] shifts = this.getMediatedShifts(
+					sorted,
+					permutedLut,
+					scalingFactors,
+					correlationFitsStore,
+					shiftsArray,
+					weightSums,
+					shiftWeights,
+					options,
+					accumulator,
+					shiftSamples,
+					mediatedShifts );
+
+			this.applyShifts(
+					permutedLut,
+					shifts,
+					startingCoordinates,
+					new PermutationTransform( inverse, 1, 1 ),
+					options );
+
+			ReplaceNaNs.replace( permutedLut );
+
+			if ( !options.withReorder )
+				preventReorder( permutedLut, options );
+
+			regularizer.regularize( permutedLut, options );
+
+			updateArray( permutedLut, lut, inverse );
+
+			if ( accelerator != null )
+			{
+				accelerator.accelerate( previousLut, lut );
+				for ( int i = 0; i < n; ++i )
+					permutedLut[ i ] = lut[ inverse[ i ] ];
+				ReplaceNaNs.replace( permutedLut );
+				if ( !options.withReorder )
+					preventReorder( permutedLut, options );
+				regularizer.regularize( permutedLut, options );
+				updateArray( permutedLut, lut, inverse );
+			}
+
+			updateArray( scalingFactors, scalingFactorsPrevious, inverse );
+			System.arraycopy( lut, 0, permutedLut, 0, n );
+			ArraySortedIndices.sort( permutedLut, permutationLut, inverse );
+			updateArray( scalingFactorsPrevious, scalingFactors, permutationLut );
+			similarities.permute( permutationLut, inverse, sorted );
+
+			visitor.act( iteration + 1, matrix, scaledMatrix, lut, permutationLut, inverse, scalingFactors, correlationFitsStore[ 0 ] );
+			progress.advance( 1 );
+
+		}
+
+		return lut;
+	}
+
+	/**
+	 * @param startingCoordinates
+	 *            target of the coordinate update regularization
+	 * @param initialCoordinates
+	 *            coordinates of the first iteration
+	 */
+	private < T extends RealType< T > & NativeType< T >, W extends RealType< W > > double[] estimateZCoordinatesInWorkspace(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final double[] startingCoordinates,
+			final double[] initialCoordinates,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< W > estimateWeights,
+			final double[] shiftWeights,
+			final Visitor visitor,
+			final Options options,
+			final Workspace workspace,
+			final Progress progress,
+			final Checkpoint checkpoint ) throws Exception
+	{
+
+		final double[] lut = workspace.lut;
+		System.arraycopy( initialCoordinates, 0, lut, 0, lut.length );
+		final int n = lut.length;
+		final int[] permutationLut = workspace.permutation;
+		final int[] inverse = workspace.inverse;
 		final int nMatrixDim = inputMatrix.numDimensions();
 		@SuppressWarnings( "unchecked" )
-		final RandomAccessibleInterval< double[] >[] correlationFitsStore = new RandomAccessibleInterval[] { null };
+		final RandomAccessibleInterval< double[] >[] correlationFitsStore = ( RandomAccessibleInterval< double[] >[] ) new RandomAccessibleInterval< ? >[ 1 ];
 
-		double[] permutedLut = lut.clone(); // sorted lut
-		final double[] scalingFactorsPrevious = scalingFactors.clone();
+		final double[] permutedLut = workspace.permutedLut; // sorted lut
+		System.arraycopy( lut, 0, permutedLut, 0, n );
+		final double[] scalingFactorsPrevious = workspace.scalingFactorsPrevious;
+		System.arraycopy( scalingFactors, 0, scalingFactorsPrevious, 0, n );
 		ArraySortedIndices.sort( permutedLut, permutationLut, inverse );
 
-		T nanExtension = Util.getTypeFromInterval( inputMatrix ).createVariable();
+		final T nanExtension = Util.getTypeFromInterval( inputMatrix ).createVariable();
 		nanExtension.setReal( Double.NaN );
 
-		final ArrayImg< T, ? > inputScaledStrip = new ArrayImgFactory<>( nanExtension.createVariable() ).create( 2 * options.comparisonRange + 1, n );
-		
-		final RandomAccessibleInterval< T > inputScaledMatrix = MatrixStripConversion.stripToMatrix( inputScaledStrip, nanExtension.copy() );
-		for ( Cursor< T > source = Views.flatIterable( MatrixStripConversion.matrixToStrip( inputMatrix, options.comparisonRange, nanExtension.copy() ) ).cursor(), target = Views.flatIterable( inputScaledStrip ).cursor(); source.hasNext(); )
-			target.next().set( source.next() );
+		// read input only through double view, never write into it
+		final RandomAccessibleInterval< DoubleType > inputMatrixDouble = Converters.convert( inputMatrix, new RealDoubleConverter<>(), new DoubleType() );
+		final ArrayImg< DoubleType, DoubleArray > inputScaledStrip = workspace.scaledStrip;
 
-		final Regularizer regularizer;
-		switch ( options.regularizationType )
-		{
-		case BORDER:
-		{
-			regularizer = new BorderRegularization( new AffineModel1D(), n );
-			break;
-		}
-		case IDENTITY:
+		final RandomAccessibleInterval< DoubleType > inputScaledMatrix = MatrixStripConversion.stripToMatrix( inputScaledStrip, new DoubleType( Double.NaN ) );
+		final Cursor< T > source = Views.flatIterable( MatrixStripConversion.matrixToStrip( inputMatrix, options.comparisonRange, nanExtension.copy() ) ).cursor();
+		for ( final ArrayCursor< DoubleType > target = inputScaledStrip.cursor(); source.hasNext(); )
+			target.next().set( source.next().getRealDouble() );
+
+		// constant weights are neither copied nor interpolated, weights of
+		// missing similarities are never used
+		boolean constantWeights = true;
+		if ( estimateWeights != null )
 		{
-			regularizer = new IdentityRegularization( new AffineModel1D(), n );
-			break;
+			final W weightNanExtension = Util.getTypeFromInterval( estimateWeights ).createVariable();
+			weightNanExtension.setReal( Double.NaN );
+			final Cursor< W > weightSource = Views.flatIterable( MatrixStripConversion.matrixToStrip( estimateWeights, options.comparisonRange, weightNanExtension ) ).cursor();
+			double first = Double.NaN;
+			for ( int i = 0; weightSource.hasNext(); ++i )
+			{
+				final double w = weightSource.next().getRealDouble();
+				workspace.weightStrip[ i ] = w;
+				if ( Double.isNaN( w ) || Double.isNaN( workspace.scaledStripData[ i ] ) )
+					continue;
+				if ( Double.isNaN( first ) )
+					first = w;
+				else if ( w != first )
+					constantWeights = false;
+			}
 		}
-		case NONE:
+		final RandomAccessibleInterval< DoubleType > inputWeightMatrix = constantWeights ? null :
+				MatrixStripConversion.stripToMatrix( ArrayImgs.doubles( workspace.weightStrip, 2 * options.comparisonRange + 1, n ), new DoubleType( Double.NaN ) );
+
+		final int firstIteration;
+		if ( checkpoint == null )
+			firstIteration = 0;
+		else
 		{
-			regularizer = new NoRegularization();
-			break;
+			// scaled strip is only updated within the band of the current
+			// permutation and needs to be restored as a whole
+			firstIteration = checkpoint.iteration;
+			System.arraycopy( checkpoint.lut, 0, lut, 0, n );
+			System.arraycopy( checkpoint.permutedLut, 0, permutedLut, 0, n );
+			System.arraycopy( checkpoint.permutation, 0, permutationLut, 0, n );
+			System.arraycopy( checkpoint.inverse, 0, inverse, 0, n );
+			System.arraycopy( checkpoint.scalingFactors, 0, scalingFactors, 0, n );
+			System.arraycopy( checkpoint.scaledStrip, 0, workspace.scaledStripData, 0, workspace.scaledStripData.length );
+			if ( checkpoint.fitState != null )
+				workspace.fitAccumulator.setState( checkpoint.fitState );
 		}
-		default:
+		final boolean writeCheckpoints = options.checkpointInterval != null && options.checkpointInterval > 0;
+		final int nIterations = checkpoint == null ? options.nIterations : checkpoint.nIterations;
+
+		final Regularizer regularizer = createRegularizer( n, options );
+		final Accelerator accelerator = createAccelerator( n, options );
+		final double[] previousLut = accelerator == null ? null : new double[ n ];
+		if ( checkpoint != null )
 		{
-			regularizer = new NoRegularization();
-			break;
-		}
+			if ( ( accelerator == null ) != ( checkpoint.accelerationState == null ) )
+				throw new IllegalArgumentException( "Acceleration type " + options.accelerationType + " not compatible with checkpoint " +
+						( checkpoint.accelerationState == null ? "without" : "with" ) + " acceleration state." );
+			if ( accelerator != null )
+				accelerator.setState( checkpoint.accelerationState );
 		}
 
-		final double[] shiftsArray = new double[ n ];
-		final double[] weightSums = new double[ n ];
+		final double[] shiftsArray = workspace.shifts;
+		final double[] weightSums = workspace.weightSums;
 
-		for ( int iteration = 0; iteration < options.nIterations; ++iteration )
+		progress.start( "Inference", nIterations );
+		progress.advance( firstIteration );
+		for ( int iteration = firstIteration; iteration < nIterations; ++iteration )
 		{
 
+			progress.checkCancelled();
 			final long t0 = System.nanoTime();
+			if ( accelerator != null )
+				System.arraycopy( lut, 0, previousLut, 0, n );
 			// scaling factors always in permuted order
 
 			final PermutationTransform permutation = new PermutationTransform( inverse, nMatrixDim, nMatrixDim ); // need
@@ -257,8 +999,9 @@ public class InferFromMatrix
 			// Transform
 			// into
 			// source?
-			final IntervalView< T > matrix = Views.interval( new TransformView< >( inputMatrix, permutation ), inputMatrix );
-			final IntervalView< T > scaledMatrix = Views.interval( new TransformView< >( inputScaledMatrix, permutation ), inputScaledMatrix );
+			final IntervalView< DoubleType > matrix = Views.interval( new TransformView< >( inputMatrixDouble, permutation ), inputMatrixDouble );
+			final IntervalView< DoubleType > scaledMatrix = Views.interval( new TransformView< >( inputScaledMatrix, permutation ), inputScaledMatrix );
+			final IntervalView< DoubleType > weightMatrix = inputWeightMatrix == null ? null : Views.interval( new TransformView< >( inputWeightMatrix, permutation ), inputWeightMatrix );
 
 			if ( iteration == 0 )
 				visitor.act( iteration, matrix, scaledMatrix, lut, permutationLut, inverse, scalingFactors, correlationFitsStore[ 0 ] );
@@ -275,9 +1018,10 @@ public class InferFromMatrix
 					correlationFitsStore,
 					shiftsArray,
 					weightSums,
-					estimateWeights,
+					weightMatrix,
 					shiftWeights,
-					options );
+					options,
+					workspace );
 
 			this.applyShifts(
 					permutedLut, // rewrite interface to use view on permuted
@@ -296,8 +1040,22 @@ public class InferFromMatrix
 			regularizer.regularize( permutedLut, options );
 
 			updateArray( permutedLut, lut, inverse );
+
+			if ( accelerator != null )
+			{
+				accelerator.accelerate( previousLut, lut );
+				// safeguard accelerated coordinates like the plain update
+				for ( int i = 0; i < n; ++i )
+					permutedLut[ i ] = lut[ inverse[ i ] ];
+				ReplaceNaNs.replace( permutedLut );
+				if ( !options.withReorder )
+					preventReorder( permutedLut, options );
+				regularizer.regularize( permutedLut, options );
+				updateArray( permutedLut, lut, inverse );
+			}
+
 			updateArray( scalingFactors, scalingFactorsPrevious, inverse );
-			permutedLut = lut.clone();
+			System.arraycopy( lut, 0, permutedLut, 0, n );
 			ArraySortedIndices.sort( permutedLut, permutationLut, inverse );
 			updateArray( scalingFactorsPrevious, scalingFactors, permutationLut );
 			final long t1 = System.nanoTime();
@@ -305,9 +1063,73 @@ public class InferFromMatrix
 
 			visitor.act( iteration + 1, matrix, scaledMatrix, lut, permutationLut, inverse, scalingFactors, correlationFitsStore[ 0 ] );
 
+			if ( writeCheckpoints && ( iteration + 1 ) % options.checkpointInterval == 0 )
+				Checkpoint.write(
+						options.checkpointPath,
+						iteration + 1,
+						nIterations,
+						options.comparisonRange,
+						startingCoordinates,
+						lut,
+						permutedLut,
+						permutationLut,
+						inverse,
+						scalingFactors,
+						workspace.scaledStripData,
+						workspace.fitAccumulator.getState(),
+						accelerator == null ? null : accelerator.getState() );
+			progress.advance( 1 );
+
 		}
 
-		return lut;
+		return lut.clone();
+	}
+
+	private static Regularizer createRegularizer( final int n, final Options options )
+	{
+		switch ( options.regularizationType )
+		{
+		case BORDER:
+		{
+			return new BorderRegularization( new AffineModel1D(), n );
+		}
+		case IDENTITY:
+		{
+			return new IdentityRegularization( new AffineModel1D(), n );
+		}
+		case NONE:
+		{
+			return new NoRegularization();
+		}
+		default:
+		{
+			return new NoRegularization();
+		}
+		}
+	}
+
+	private static Accelerator createAccelerator( final int n, final Options options )
+	{
+		switch ( options.accelerationType == null ? AccelerationType.NONE : options.accelerationType )
+		{
+		case ANDERSON:
+		{
+			return new AndersonAcceleration( n, options.accelerationDepth );
+		}
+		case NESTEROV:
+		{
+			return new NesterovAcceleration( n );
+		}
+		case NONE:
+		{
+			// plain damped update, skip safeguards
+			return null;
+		}
+		default:
+		{
+			return null;
+		}
+		}
 	}
 
 	public < T extends RealType< T >, W extends RealType< W > > double[] getMediatedShifts(
@@ -323,7 +1145,6 @@ public class InferFromMatrix
 			final double[] shiftWeights,
 			final Options options ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
 	{
-
 		final int nMatrixDimensions = scaledMatrix.numDimensions();
 		final LUTRealTransform transform = new LUTRealTransform( lut, nMatrixDimensions, nMatrixDimensions );
 
@@ -332,6 +1153,54 @@ public class InferFromMatrix
 		boolean isIdentity = isIdentity( lut );
 		final RandomAccessibleInterval< double[] > fits =
 				correlationFit.estimateFromMatrix( scaledMatrix, lut, transform, estimateWeightMatrix, options, isIdentity ? new NearestNeighborInterpolatorFactory<>() : new NLinearInterpolatorFactory<>() );
+
+		return getMediatedShifts( matrix, scaledMatrix, lut, scalingFactors, fits, correlationFitsStore, shiftsArray, weightSums, estimateWeightMatrix, shiftWeights, options, createShiftSamples( lut.length, options ), new double[ lut.length ] );
+	}
+
+	/**
+	 * Estimate the correlation fit directly from the scaled strip, weight
+	 * strip, and permutation held by {@code workspace}. {@code scaledMatrix}
+	 * must be the permuted view of {@link Workspace#scaledStrip}.
+	 *
+	 * @param estimateWeightMatrix
+	 *            permuted view of {@link Workspace#weightStrip}, or
+	 *            {@code null} for constant weights
+	 */
+	public < T extends RealType< T >, W extends RealType< W > > double[] getMediatedShifts(
+			final RandomAccessibleInterval< T > matrix,
+			final RandomAccessibleInterval< T > scaledMatrix,
+			final double[] lut,
+			final double[] scalingFactors,
+			final int iteration,
+			final RandomAccessibleInterval< double[] >[] correlationFitsStore,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final RandomAccessibleInterval< W > estimateWeightMatrix,
+			final double[] shiftWeights,
+			final Options options,
+			final Workspace workspace ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final RandomAccessibleInterval< double[] > fits =
+				correlationFit.estimateFromStrip( workspace.scaledStripData, workspace.inverse, lut, estimateWeightMatrix == null ? null : workspace.weightStrip, options, workspace.fitAccumulator );
+
+		return getMediatedShifts( matrix, scaledMatrix, lut, scalingFactors, fits, correlationFitsStore, shiftsArray, weightSums, estimateWeightMatrix, shiftWeights, options, isRobust( options ) ? workspace.getShiftSamples() : null, workspace.mediatedShifts );
+	}
+
+	private < T extends RealType< T >, W extends RealType< W > > double[] getMediatedShifts(
+			final RandomAccessibleInterval< T > matrix,
+			final RandomAccessibleInterval< T > scaledMatrix,
+			final double[] lut,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< double[] > fits,
+			final RandomAccessibleInterval< double[] >[] correlationFitsStore,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final RandomAccessibleInterval< W > estimateWeightMatrix,
+			final double[] shiftWeights,
+			final Options options,
+			final ShiftSamples shiftSamples,
+			final double[] mediatedShifts ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
 		correlationFitsStore[ 0 ] = fits;
 
 		// use original matrix to estimate scaling factors
@@ -364,6 +1233,8 @@ public class InferFromMatrix
 		}
 
 		// use scaled matrix to collect shifts
+		if ( shiftSamples != null )
+			shiftSamples.clear();
 		ShiftCoordinates.collectShiftsFromMatrix(
 				lut,
 				scaledMatrix,
@@ -372,10 +1243,87 @@ public class InferFromMatrix
 				shiftsArray,
 				weightSums,
 				shiftWeights,
+				estimateWeightMatrix,
+				shiftSamples,
 				options );
 
-		final double[] mediatedShifts = new double[ lut.length ];
-		mediateShifts( shiftsArray, weightSums, mediatedShifts );
+		mediateShifts( shiftsArray, weightSums, shiftSamples, options, mediatedShifts );
+
+		return mediatedShifts;
+	}
+
+	/**
+	 * Sparse counterpart of
+	 * {@link #getMediatedShifts(RandomAccessibleInterval, RandomAccessibleInterval, double[], double[], int, RandomAccessibleInterval[], double[], double[], RandomAccessibleInterval, double[], Options)}:
+	 * estimate correlation fit, scaling factors, and shifts only from the
+	 * stored pairs of {@code similarities}, which must be in the same sorted
+	 * order as {@code lut}.
+	 */
+	public double[] getMediatedShifts(
+			final SparseSimilarities similarities,
+			final double[] lut,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< double[] >[] correlationFitsStore,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final double[] shiftWeights,
+			final Options options,
+			final AbstractCorrelationFit.Accumulator accumulator,
+			final double[] mediatedShifts )
+	{
+		final ShiftSamples shiftSamples = isRobust( options ) ? new ShiftSamples( lut.length, similarities.getMaxRowLength() ) : null;
+		return getMediatedShifts( similarities, lut, scalingFactors, correlationFitsStore, shiftsArray, weightSums, shiftWeights, options, accumulator, shiftSamples, mediatedShifts );
+	}
+
+	/**
+	 * Same as
+	 * {@link #getMediatedShifts(SparseSimilarities, double[], double[], RandomAccessibleInterval[], double[], double[], double[], Options, AbstractCorrelationFit.Accumulator, double[])}
+	 * but re-use {@code shiftSamples} for robust mediation.
+	 *
+	 * @param shiftSamples
+	 *            required if {@link Options#mediationType} is not
+	 *            {@link MediationType#MEAN}, ignored otherwise, with capacity
+	 *            of at least {@link SparseSimilarities#getMaxRowLength()}
+	 */
+	public double[] getMediatedShifts(
+			final SparseSimilarities similarities,
+			final double[] lut,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< double[] >[] correlationFitsStore,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final double[] shiftWeights,
+			final Options options,
+			final AbstractCorrelationFit.Accumulator accumulator,
+			final ShiftSamples shiftSamples,
+			final double[] mediatedShifts )
+	{
+		final ShiftSamples samples = isRobust( options ) ? shiftSamples : null;
+		final RandomAccessibleInterval< double[] > fits = correlationFit.estimateFromSparse( similarities, lut, scalingFactors, options, accumulator );
+		correlationFitsStore[ 0 ] = fits;
+
+		EstimateScalingFactors.estimateQuadraticFromSparse(
+				similarities,
+				scalingFactors,
+				lut,
+				fits,
+				options.scalingFactorRegularizerWeight,
+				options.scalingFactorEstimationIterations );
+
+		if ( samples != null )
+			samples.clear();
+		ShiftCoordinates.collectShiftsFromSparse(
+				lut,
+				similarities,
+				scalingFactors,
+				fits,
+				shiftsArray,
+				weightSums,
+				shiftWeights,
+				samples,
+				options );
+
+		mediateShifts( shiftsArray, weightSums, samples, options, mediatedShifts );
 
 		return mediatedShifts;
 	}
@@ -430,6 +1378,34 @@ public class InferFromMatrix
 			mediatedShifts[ i ] = shifts[ i ] / weightSums[ i ];
 	}
 
+	/**
+	 * Weighted mean of shifts if {@code samples} is {@code null}, otherwise
+	 * robust estimate of type {@link Options#mediationType} from
+	 * {@code samples}.
+	 */
+	public static void mediateShifts(
+			final double[] shifts,
+			final double[] weightSums,
+			final ShiftSamples samples,
+			final Options options,
+			final double[] mediatedShifts )
+	{
+		if ( samples == null )
+			mediateShifts( shifts, weightSums, mediatedShifts );
+		else
+			samples.mediate( options.mediationType, options.mediationIterations, mediatedShifts );
+	}
+
+	private static boolean isRobust( final Options options )
+	{
+		return options.mediationType != null && options.mediationType != MediationType.MEAN;
+	}
+
+	private static ShiftSamples createShiftSamples( final int n, final Options options )
+	{
+		return isRobust( options ) ? new ShiftSamples( n, 2 * options.comparisonRange ) : null;
+	}
+
 	public static < T extends RealType< T > > void fillWeightStrip( final RandomAccessibleInterval< T > strip, final double[] weights, final T t )
 	{
 
@@ -3,17 +3,23 @@
  */
 package org.janelia.thickness.inference;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
@@ -42,6 +48,14 @@ public class Options implements Serializable
 		result.forceMonotonicity = false;
 		result.estimateWindowRadius = -1;
 		result.minimumCorrelationValue = 0.0;
+		result.checkpointInterval = 0;
+		result.checkpointPath = "";
+		result.coarseToFineLevels = 0;
+		result.coarseToFineIterations = 10;
+		result.accelerationType = InferFromMatrix.AccelerationType.NONE;
+		result.accelerationDepth = 5;
+		result.mediationType = InferFromMatrix.MediationType.MEAN;
+		result.mediationIterations = 10;
 		return result;
 	}
 
@@ -72,6 +86,22 @@ public class Options implements Serializable
 
 	public Double minimumCorrelationValue;
 
+	public Integer checkpointInterval; // write checkpoint every n iterations, disabled if <= 0
+
+	public String checkpointPath; // file for checkpoints, overwritten at every checkpoint
+
+	public Integer coarseToFineLevels; // number of coarser levels solved first, disabled if <= 0
+
+	public Integer coarseToFineIterations; // iterations at each finer level of coarse-to-fine solve
+
+	public InferFromMatrix.AccelerationType accelerationType;
+
+	public Integer accelerationDepth; // number of iterates for Anderson mixing
+
+	public InferFromMatrix.MediationType mediationType;
+
+	public Integer mediationIterations; // maximum number of reweighting iterations for Huber and Tukey mediation
+
 	public static Options read( final String filename ) throws JsonSyntaxException, JsonIOException, FileNotFoundException
 	{
 		final Gson gson = new Gson();
@@ -79,13 +109,261 @@ public class Options implements Serializable
 		return opt;
 	}
 
+	/**
+	 * Number of fields written by {@link #write(DataOutputStream)}.
+	 */
+	private static final int N_FIELDS = 20;
+
+	/**
+	 * Write all fields in declaration order without reflection, preceded by
+	 * the number of fields. Each field is preceded by a flag that indicates
+	 * if it is set (non-null). New fields must be appended and added to
+	 * {@link #read(DataInputStream)}, which leaves fields beyond the stored
+	 * number of fields unset.
+	 */
+	public void write( final DataOutputStream out ) throws IOException
+	{
+		out.writeShort( N_FIELDS );
+		writeDouble( out, scalingFactorRegularizerWeight );
+		writeDouble( out, coordinateUpdateRegularizerWeight );
+		writeDouble( out, shiftProportion );
+		writeInteger( out, nIterations );
+		writeInteger( out, comparisonRange );
+		writeDouble( out, minimumSectionThickness );
+		out.writeBoolean( regularizationType != null );
+		if ( regularizationType != null )
+			out.writeUTF( regularizationType.name() );
+		writeInteger( out, scalingFactorEstimationIterations );
+		writeBoolean( out, withReorder );
+		writeBoolean( out, forceMonotonicity );
+		writeInteger( out, estimateWindowRadius );
+		writeDouble( out, minimumCorrelationValue );
+		writeInteger( out, checkpointInterval );
+		out.writeBoolean( checkpointPath != null );
+		if ( checkpointPath != null )
+			out.writeUTF( checkpointPath );
+		writeInteger( out, coarseToFineLevels );
+		writeInteger( out, coarseToFineIterations );
+		out.writeBoolean( accelerationType != null );
+		if ( accelerationType != null )
+			out.writeUTF( accelerationType.name() );
+		writeInteger( out, accelerationDepth );
+		out.writeBoolean( mediationType != null );
+		if ( mediationType != null )
+			out.writeUTF( mediationType.name() );
+		writeInteger( out, mediationIterations );
+	}
+
+	public static Options read( final DataInputStream in ) throws IOException
+	{
+		final Options result = new Options();
+		final int nFields = in.readUnsignedShort();
+		if ( nFields > N_FIELDS )
+			throw new IOException( "Options with " + nFields + " fields, expected at most " + N_FIELDS + "." );
+		int field = 0;
+		if ( field++ < nFields )
+			result.scalingFactorRegularizerWeight = readDouble( in );
+		if ( field++ < nFields )
+			result.coordinateUpdateRegularizerWeight = readDouble( in );
+		if ( field++ < nFields )
+			result.shiftProportion = readDouble( in );
+		if ( field++ < nFields )
+			result.nIterations = readInteger( in );
+		if ( field++ < nFields )
+			result.comparisonRange = readInteger( in );
+		if ( field++ < nFields )
+			result.minimumSectionThickness = readDouble( in );
+		if ( field++ < nFields )
+			result.regularizationType = in.readBoolean() ? InferFromMatrix.RegularizationType.valueOf( in.readUTF() ) : null;
+		if ( field++ < nFields )
+			result.scalingFactorEstimationIterations = readInteger( in );
+		if ( field++ < nFields )
+			result.withReorder = readBoolean( in );
+		if ( field++ < nFields )
+			result.forceMonotonicity = readBoolean( in );
+		if ( field++ < nFields )
+			result.estimateWindowRadius = readInteger( in );
+		if ( field++ < nFields )
+			result.minimumCorrelationValue = readDouble( in );
+		if ( field++ < nFields )
+			result.checkpointInterval = readInteger( in );
+		if ( field++ < nFields )
+			result.checkpointPath = in.readBoolean() ? in.readUTF() : null;
+		if ( field++ < nFields )
+			result.coarseToFineLevels = readInteger( in );
+		if ( field++ < nFields )
+			result.coarseToFineIterations = readInteger( in );
+		if ( field++ < nFields )
+			result.accelerationType = in.readBoolean() ? InferFromMatrix.AccelerationType.valueOf( in.readUTF() ) : null;
+		if ( field++ < nFields )
+			result.accelerationDepth = readInteger( in );
+		if ( field++ < nFields )
+			result.mediationType = in.readBoolean() ? InferFromMatrix.MediationType.valueOf( in.readUTF() ) : null;
+		if ( field++ < nFields )
+			result.mediationIterations = readInteger( in );
+		return result;
+	}
+
+	/**
+	 * Write as JSON object with the same member names as {@link #toFile}
+	 * but without reflection. Unset fields are written as {@code null}.
+	 */
+	public void writeJson( final JsonWriter writer ) throws IOException
+	{
+		writer.beginObject();
+		writer.name( "scalingFactorRegularizerWeight" ).value( scalingFactorRegularizerWeight );
+		writer.name( "coordinateUpdateRegularizerWeight" ).value( coordinateUpdateRegularizerWeight );
+		writer.name( "shiftProportion" ).value( shiftProportion );
+		writer.name( "nIterations" ).value( nIterations );
+		writer.name( "comparisonRange" ).value( comparisonRange );
+		writer.name( "minimumSectionThickness" ).value( minimumSectionThickness );
+		writer.name( "regularizationType" ).value( regularizationType == null ? null : regularizationType.name() );
+		writer.name( "scalingFactorEstimationIterations" ).value( scalingFactorEstimationIterations );
+		writer.name( "withReorder" ).value( withReorder );
+		writer.name( "forceMonotonicity" ).value( forceMonotonicity );
+		writer.name( "estimateWindowRadius" ).value( estimateWindowRadius );
+		writer.name( "minimumCorrelationValue" ).value( minimumCorrelationValue );
+		writer.name( "checkpointInterval" ).value( checkpointInterval );
+		writer.name( "checkpointPath" ).value( checkpointPath );
+		writer.name( "coarseToFineLevels" ).value( coarseToFineLevels );
+		writer.name( "coarseToFineIterations" ).value( coarseToFineIterations );
+		writer.name( "accelerationType" ).value( accelerationType == null ? null : accelerationType.name() );
+		writer.name( "accelerationDepth" ).value( accelerationDepth );
+		writer.name( "mediationType" ).value( mediationType == null ? null : mediationType.name() );
+		writer.name( "mediationIterations" ).value( mediationIterations );
+		writer.endObject();
+	}
+
+	/**
+	 * Read JSON object written by {@link #writeJson(JsonWriter)} or
+	 * {@link #toFile(String)}. Unknown members are skipped, missing members
+	 * remain unset.
+	 */
+	public static Options readJson( final JsonReader reader ) throws IOException
+	{
+		final Options result = new Options();
+		reader.beginObject();
+		while ( reader.hasNext() )
+		{
+			final String name = reader.nextName();
+			if ( reader.peek() == JsonToken.NULL )
+			{
+				reader.nextNull();
+				continue;
+			}
+			switch ( name )
+			{
+			case "scalingFactorRegularizerWeight":
+				result.scalingFactorRegularizerWeight = reader.nextDouble();
+				break;
+			case "coordinateUpdateRegularizerWeight":
+				result.coordinateUpdateRegularizerWeight = reader.nextDouble();
+				break;
+			case "shiftProportion":
+				result.shiftProportion = reader.nextDouble();
+				break;
+			case "nIterations":
+				result.nIterations = reader.nextInt();
+				break;
+			case "comparisonRange":
+				result.comparisonRange = reader.nextInt();
+				break;
+			case "minimumSectionThickness":
+				result.minimumSectionThickness = reader.nextDouble();
+				break;
+			case "regularizationType":
+				result.regularizationType = InferFromMatrix.RegularizationType.valueOf( reader.nextString() );
+				break;
+			case "scalingFactorEstimationIterations":
+				result.scalingFactorEstimationIterations = reader.nextInt();
+				break;
+			case "withReorder":
+				result.withReorder = reader.nextBoolean();
+				break;
+			case "forceMonotonicity":
+				result.forceMonotonicity = reader.nextBoolean();
+				break;
+			case "estimateWindowRadius":
+				result.estimateWindowRadius = reader.nextInt();
+				break;
+			case "minimumCorrelationValue":
+				result.minimumCorrelationValue = reader.nextDouble();
+				break;
+			case "checkpointInterval":
+				result.checkpointInterval = reader.nextInt();
+				break;
+			case "checkpointPath":
+				result.checkpointPath = reader.nextString();
+				break;
+			case "coarseToFineLevels":
+				result.coarseToFineLevels = reader.nextInt();
+				break;
+			case "coarseToFineIterations":
+				result.coarseToFineIterations = reader.nextInt();
+				break;
+			case "accelerationType":
+				result.accelerationType = InferFromMatrix.AccelerationType.valueOf( reader.nextString() );
+				break;
+			case "accelerationDepth":
+				result.accelerationDepth = reader.nextInt();
+				break;
+			case "mediationType":
+				result.mediationType = InferFromMatrix.MediationType.valueOf( reader.nextString() );
+				break;
+			case "mediationIterations":
+				result.mediationIterations = reader.nextInt();
+				break;
+			default:
+				reader.skipValue();
+				break;
+			}
+		}
+		reader.endObject();
+		return result;
+	}
+
+	private static void writeDouble( final DataOutputStream out, final Double value ) throws IOException
+	{
+		out.writeBoolean( value != null );
+		if ( value != null )
+			out.writeDouble( value );
+	}
+
+	private static void writeInteger( final DataOutputStream out, final Integer value ) throws IOException
+	{
+		out.writeBoolean( value != null );
+		if ( value != null )
+			out.writeInt( value );
+	}
+
+	private static void writeBoolean( final DataOutputStream out, final Boolean value ) throws IOException
+	{
+		out.writeByte( value == null ? -1 : value ? 1 : 0 );
+	}
+
+	private static Double readDouble( final DataInputStream in ) throws IOException
+	{
+		return in.readBoolean() ? in.readDouble() : null;
+	}
+
+	private static Integer readInteger( final DataInputStream in ) throws IOException
+	{
+		return in.readBoolean() ? in.readInt() : null;
+	}
+
+	private static Boolean readBoolean( final DataInputStream in ) throws IOException
+	{
+		final byte value = in.readByte();
+		return value < 0 ? null : value != 0;
+	}
+
 	@Override
 	public Options clone()
 	{
 		final Options result = new Options();
 		for ( final Field f : this.getClass().getDeclaredFields() )
 		{
-			if ( f.getName().equals( "serialVersionUID" ) )
+			if ( Modifier.isStatic( f.getModifiers() ) )
 				continue;
 			try
 			{
@@ -114,7 +392,7 @@ public class Options implements Serializable
 		sb.append( "]\n" );
 		for ( final Field f : this.getClass().getDeclaredFields() )
 		{
-			if ( f.getName().equals( "serialVersionUID" ) )
+			if ( Modifier.isStatic( f.getModifiers() ) )
 				continue;
 			sb.append( f.getName() );
 			sb.append( "\t" );
@@ -152,7 +430,7 @@ public class Options implements Serializable
 		{
 			for ( final Field f : this.getClass().getDeclaredFields() )
 			{
-				if ( f.getName().equals( "serialVersionUID" ) )
+				if ( Modifier.isStatic( f.getModifiers() ) )
 					continue;
 				try
 				{
@@ -0,0 +1,154 @@
+package org.janelia.thickness.inference;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Progress and cancellation token shared between a long running computation
+ * (similarity matrix, {@link InferFromMatrix#estimateZCoordinates}) and its
+ * caller. The computation reports work with {@link #start(String, long)} and
+ * {@link #advance(long)} and polls {@link #checkCancelled()} per iteration or
+ * batch of sections, which throws a {@link CancellationException} once
+ * {@link #cancel()} was called or the optional cancellation request (e.g.
+ * {@code IJ::escapePressed}) returns {@code true}. All methods are
+ * threadsafe.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class Progress
+{
+
+	public static interface Listener
+	{
+		void update( Progress progress );
+	}
+
+	private final CopyOnWriteArrayList< Listener > listeners = new CopyOnWriteArrayList<>();
+
+	private final AtomicLong done = new AtomicLong();
+
+	private final BooleanSupplier cancellationRequest;
+
+	private volatile boolean cancelled = false;
+
+	private volatile String stage = "";
+
+	private volatile long total = 0;
+
+	private volatile long startTime = System.nanoTime();
+
+	public Progress()
+	{
+		this( () -> false );
+	}
+
+	/**
+	 * @param cancellationRequest
+	 *            polled by {@link #isCancelled()}
+	 */
+	public Progress( final BooleanSupplier cancellationRequest )
+	{
+		super();
+		this.cancellationRequest = cancellationRequest;
+	}
+
+	public void addListener( final Listener listener )
+	{
+		listeners.add( listener );
+	}
+
+	/**
+	 * Start a new stage with {@code total} units of work.
+	 */
+	public void start( final String stage, final long total )
+	{
+		this.stage = stage;
+		this.total = total;
+		this.done.set( 0 );
+		this.startTime = System.nanoTime();
+		notifyListeners();
+	}
+
+	public void advance( final long units )
+	{
+		done.addAndGet( units );
+		notifyListeners();
+	}
+
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	public boolean isCancelled()
+	{
+		if ( !cancelled && cancellationRequest.getAsBoolean() )
+			cancelled = true;
+		return cancelled;
+	}
+
+	/**
+	 * @throws CancellationException
+	 *             if cancelled
+	 */
+	public void checkCancelled() throws CancellationException
+	{
+		if ( isCancelled() )
+			throw new CancellationException( stage + " cancelled." );
+	}
+
+	public String getStage()
+	{
+		return stage;
+	}
+
+	public long getDone()
+	{
+		return done.get();
+	}
+
+	public long getTotal()
+	{
+		return total;
+	}
+
+	/**
+	 * @return fraction of current stage that is done, in [0, 1]
+	 */
+	public double getFraction()
+	{
+		final long total = this.total;
+		return total > 0 ? Math.min( ( double ) done.get() / total, 1.0 ) : 0.0;
+	}
+
+	/**
+	 * @return estimated remaining time of current stage in milliseconds,
+	 *         extrapolated linearly from the elapsed time, or -1 if nothing
+	 *         has been done yet.
+	 */
+	public long getEtaMillis()
+	{
+		final double fraction = getFraction();
+		if ( fraction <= 0.0 )
+			return -1;
+		final double elapsed = ( System.nanoTime() - startTime ) * 1e-6;
+		return Math.round( elapsed * ( 1.0 - fraction ) / fraction );
+	}
+
+	@Override
+	public String toString()
+	{
+		final long eta = getEtaMillis();
+		return stage + ": " + done.get() + "/" + total + ( eta < 0 ? "" : " (" + eta / 1000 + "s remaining)" );
+	}
+
+	private void notifyListeners()
+	{
+		for ( final Listener listener : listeners )
+			listener.update( this );
+	}
+
+}
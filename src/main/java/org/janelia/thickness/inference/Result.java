@@ -0,0 +1,349 @@
+package org.janelia.thickness.inference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.janelia.utility.arrays.ArraySortedIndices;
+import org.janelia.utility.io.ArrayStreams;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.view.Views;
+
+/**
+ * Versioned bundle of the outcome of
+ * {@link InferFromMatrix#estimateZCoordinates}: options, coordinates
+ * ({@code lut}), sorted coordinates, forward and backward permutation,
+ * scaling factors, and the final correlation fit. Bundles are written either
+ * in a compact big endian binary encoding or as JSON, both through
+ * hand-written codecs without reflection. {@link #read(String)} detects the
+ * encoding from the content.
+ *
+ * Permutations are as computed by
+ * {@link ArraySortedIndices#sort(double[], int[], int[])}, i.e.
+ * {@code sortedLut[ i ] == lut[ backward[ i ] ]} and
+ * {@code forward[ backward[ i ] ] == i}.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class Result
+{
+
+	public static final int MAGIC = 0x5A535253; // ZSRS
+
+	public static final int VERSION = 1;
+
+	public final Options options;
+
+	public final double[] lut;
+
+	public final double[] sortedLut;
+
+	public final int[] forward;
+
+	public final int[] backward;
+
+	/**
+	 * in sorted order, i.e. aligned with {@link #sortedLut}, may be empty
+	 */
+	public final double[] scalingFactors;
+
+	/**
+	 * one fit per section in sorted order or, for a global fit, a single fit
+	 * for all sections; may be empty
+	 */
+	public final double[][] fits;
+
+	public Result(
+			final Options options,
+			final double[] lut,
+			final double[] sortedLut,
+			final int[] forward,
+			final int[] backward,
+			final double[] scalingFactors,
+			final double[][] fits )
+	{
+		super();
+		this.options = options;
+		this.lut = lut;
+		this.sortedLut = sortedLut;
+		this.forward = forward;
+		this.backward = backward;
+		this.scalingFactors = scalingFactors;
+		this.fits = fits;
+	}
+
+	/**
+	 * Create bundle and compute sorted coordinates and permutations from
+	 * {@code lut}.
+	 */
+	public static Result create( final Options options, final double[] lut, final double[] scalingFactors, final double[][] fits )
+	{
+		final double[] sortedLut = lut.clone();
+		final int[] forward = new int[ lut.length ];
+		final int[] backward = new int[ lut.length ];
+		ArraySortedIndices.sort( sortedLut, forward, backward );
+		return new Result( options, lut.clone(), sortedLut, forward, backward, scalingFactors, fits );
+	}
+
+	/**
+	 * Copy {@code fits} into an array. If all sections share the same fit,
+	 * as for {@link org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage},
+	 * that fit is stored only once.
+	 */
+	public static double[][] toArray( final RandomAccessibleInterval< double[] > fits )
+	{
+		if ( fits == null )
+			return new double[ 0 ][];
+		final ArrayList< double[] > list = new ArrayList<>();
+		boolean isShared = true;
+		for ( final Cursor< double[] > c = Views.flatIterable( fits ).cursor(); c.hasNext(); )
+		{
+			final double[] fit = c.next();
+			isShared &= list.isEmpty() || fit == list.get( 0 );
+			list.add( fit );
+		}
+		if ( isShared && list.size() > 0 )
+			return new double[][] { list.get( 0 ).clone() };
+		final double[][] result = new double[ list.size() ][];
+		for ( int i = 0; i < result.length; ++i )
+			result[ i ] = list.get( i ).clone();
+		return result;
+	}
+
+	/**
+	 * Write as JSON if {@code path} ends with {@code .json}, binary
+	 * otherwise.
+	 */
+	public void write( final String path ) throws IOException
+	{
+		try (OutputStream os = new BufferedOutputStream( Files.newOutputStream( Paths.get( path ) ), ArrayStreams.DEFAULT_BUFFER_SIZE ))
+		{
+			if ( path.toLowerCase().endsWith( ".json" ) )
+			{
+				final Writer writer = new OutputStreamWriter( os, StandardCharsets.UTF_8 );
+				writeJson( writer );
+				writer.flush();
+			}
+			else
+				writeBinary( os );
+		}
+	}
+
+	public static Result read( final String path ) throws IOException
+	{
+		try (InputStream is = new BufferedInputStream( Files.newInputStream( Paths.get( path ) ), ArrayStreams.DEFAULT_BUFFER_SIZE ))
+		{
+			is.mark( 4 );
+			final int first = is.read();
+			is.reset();
+			if ( first == ( MAGIC >>> 24 ) )
+				return readBinary( is );
+			return readJson( new InputStreamReader( is, StandardCharsets.UTF_8 ) );
+		}
+	}
+
+	public void writeBinary( final OutputStream os ) throws IOException
+	{
+		final DataOutputStream out = new DataOutputStream( os );
+		final ByteBuffer buffer = ArrayStreams.createBuffer();
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		options.write( out );
+		out.writeInt( lut.length );
+		ArrayStreams.write( out, buffer, lut );
+		ArrayStreams.write( out, buffer, sortedLut );
+		ArrayStreams.write( out, buffer, forward );
+		ArrayStreams.write( out, buffer, backward );
+		out.writeInt( scalingFactors.length );
+		ArrayStreams.write( out, buffer, scalingFactors );
+		out.writeInt( fits.length );
+		for ( final double[] fit : fits )
+		{
+			out.writeInt( fit.length );
+			ArrayStreams.write( out, buffer, fit );
+		}
+		out.flush();
+	}
+
+	public static Result readBinary( final InputStream is ) throws IOException
+	{
+		final DataInputStream in = new DataInputStream( is );
+		if ( in.readInt() != MAGIC )
+			throw new IOException( "Not a result bundle." );
+		final int version = in.readInt();
+		if ( version != VERSION )
+			throw new IOException( "Unsupported result bundle version: " + version );
+		final ByteBuffer buffer = ArrayStreams.createBuffer();
+		final Options options = Options.read( in );
+		final int n = in.readInt();
+		final double[] lut = ArrayStreams.readDoubles( in, buffer, n );
+		final double[] sortedLut = ArrayStreams.readDoubles( in, buffer, n );
+		final int[] forward = ArrayStreams.readInts( in, buffer, n );
+		final int[] backward = ArrayStreams.readInts( in, buffer, n );
+		final double[] scalingFactors = ArrayStreams.readDoubles( in, buffer, in.readInt() );
+		final double[][] fits = new double[ in.readInt() ][];
+		for ( int i = 0; i < fits.length; ++i )
+			fits[ i ] = ArrayStreams.readDoubles( in, buffer, in.readInt() );
+		return new Result( options, lut, sortedLut, forward, backward, scalingFactors, fits );
+	}
+
+	/**
+	 * Non-finite values are written as {@code NaN}, {@code Infinity}, and
+	 * {@code -Infinity} (lenient JSON, as accepted by Gson).
+	 */
+	public void writeJson( final Writer w ) throws IOException
+	{
+		final JsonWriter writer = new JsonWriter( w );
+		writer.setLenient( true );
+		writer.beginObject();
+		writer.name( "version" ).value( VERSION );
+		writer.name( "options" );
+		options.writeJson( writer );
+		writeArray( writer.name( "lut" ), lut );
+		writeArray( writer.name( "sortedLut" ), sortedLut );
+		writeArray( writer.name( "forward" ), forward );
+		writeArray( writer.name( "backward" ), backward );
+		writeArray( writer.name( "scalingFactors" ), scalingFactors );
+		writer.name( "fits" ).beginArray();
+		for ( final double[] fit : fits )
+			writeArray( writer, fit );
+		writer.endArray();
+		writer.endObject();
+		writer.flush();
+	}
+
+	public static Result readJson( final Reader r ) throws IOException
+	{
+		final JsonReader reader = new JsonReader( r );
+		reader.setLenient( true );
+		Options options = null;
+		double[] lut = null;
+		double[] sortedLut = null;
+		int[] forward = null;
+		int[] backward = null;
+		double[] scalingFactors = new double[ 0 ];
+		final ArrayList< double[] > fits = new ArrayList<>();
+		reader.beginObject();
+		while ( reader.hasNext() )
+		{
+			final String name = reader.nextName();
+			switch ( name )
+			{
+			case "version":
+				final int version = reader.nextInt();
+				if ( version != VERSION )
+					throw new IOException( "Unsupported result bundle version: " + version );
+				break;
+			case "options":
+				options = Options.readJson( reader );
+				break;
+			case "lut":
+				lut = readDoubles( reader );
+				break;
+			case "sortedLut":
+				sortedLut = readDoubles( reader );
+				break;
+			case "forward":
+				forward = readInts( reader );
+				break;
+			case "backward":
+				backward = readInts( reader );
+				break;
+			case "scalingFactors":
+				scalingFactors = readDoubles( reader );
+				break;
+			case "fits":
+				reader.beginArray();
+				while ( reader.hasNext() )
+					fits.add( readDoubles( reader ) );
+				reader.endArray();
+				break;
+			default:
+				reader.skipValue();
+				break;
+			}
+		}
+		reader.endObject();
+		if ( options == null || lut == null )
+			throw new IOException( "Result bundle requires options and lut." );
+		if ( sortedLut == null || forward == null || backward == null )
+			return create( options, lut, scalingFactors, fits.toArray( new double[ fits.size() ][] ) );
+		return new Result( options, lut, sortedLut, forward, backward, scalingFactors, fits.toArray( new double[ fits.size() ][] ) );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[" + getClass().getName() + "]\n" +
+				"lut\t" + Arrays.toString( lut ) + "\n" +
+				"scalingFactors\t" + Arrays.toString( scalingFactors ) + "\n" +
+				options;
+	}
+
+	private static void writeArray( final JsonWriter writer, final double[] data ) throws IOException
+	{
+		writer.beginArray();
+		for ( final double d : data )
+			writer.value( d );
+		writer.endArray();
+	}
+
+	private static void writeArray( final JsonWriter writer, final int[] data ) throws IOException
+	{
+		writer.beginArray();
+		for ( final int i : data )
+			writer.value( i );
+		writer.endArray();
+	}
+
+	private static double[] readDoubles( final JsonReader reader ) throws IOException
+	{
+		double[] data = new double[ 16 ];
+		int size = 0;
+		reader.beginArray();
+		while ( reader.hasNext() )
+		{
+			if ( size == data.length )
+				data = Arrays.copyOf( data, 2 * size );
+			data[ size++ ] = reader.nextDouble();
+		}
+		reader.endArray();
+		return Arrays.copyOf( data, size );
+	}
+
+	private static int[] readInts( final JsonReader reader ) throws IOException
+	{
+		int[] data = new int[ 16 ];
+		int size = 0;
+		reader.beginArray();
+		while ( reader.hasNext() )
+		{
+			if ( size == data.length )
+				data = Arrays.copyOf( data, 2 * size );
+			data[ size++ ] = reader.nextInt();
+		}
+		reader.endArray();
+		return Arrays.copyOf( data, size );
+	}
+
+}
@@ -0,0 +1,231 @@
+package org.janelia.thickness.inference;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Weighted shift samples of each section, collected alongside the shift
+ * sums of {@link org.janelia.thickness.ShiftCoordinates} for robust
+ * mediation (see {@link InferFromMatrix.MediationType}). Samples are
+ * stored in a preallocated buffer of {@code n * capacity} values and
+ * weights. A section receives at most one shift from each section it is
+ * compared to, i.e. at most {@code 2 * range} samples for dense similarities
+ * and at most the length of the longest row for
+ * {@link SparseSimilarities}.
+ *
+ * Huber and Tukey estimates are computed through iteratively reweighted
+ * least squares, starting from the weighted median with the scale
+ * {@code 1.4826 * MAD} of the samples and the usual tuning constants
+ * {@link #HUBER_K} and {@link #TUKEY_C}. All estimates are computed for
+ * sections in parallel.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ShiftSamples
+{
+
+	public static final double HUBER_K = 1.345;
+
+	public static final double TUKEY_C = 4.685;
+
+	// consistency of MAD for normal distribution
+	private static final double MAD_SCALE = 1.4826;
+
+	private final int n;
+
+	private final int capacity;
+
+	private final double[] values;
+
+	private final double[] weights;
+
+	private final double[] scratchValues;
+
+	private final double[] scratchWeights;
+
+	private final int[] counts;
+
+	/**
+	 * @param capacity
+	 *            maximum number of samples per section
+	 */
+	public ShiftSamples( final int n, final int capacity )
+	{
+		super();
+		this.n = n;
+		this.capacity = capacity;
+		this.values = new double[ n * capacity ];
+		this.weights = new double[ n * capacity ];
+		this.scratchValues = new double[ n * capacity ];
+		this.scratchWeights = new double[ n * capacity ];
+		this.counts = new int[ n ];
+	}
+
+	public int getSize()
+	{
+		return n;
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	public void clear()
+	{
+		Arrays.fill( counts, 0 );
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if {@code section} has {@link #getCapacity()} samples
+	 *             already
+	 */
+	public void add( final int section, final double shift, final double weight )
+	{
+		final int count = counts[ section ];
+		if ( count == capacity )
+			throw new IllegalStateException( "Section " + section + " exceeds capacity of " + capacity + " samples." );
+		values[ section * capacity + count ] = shift;
+		weights[ section * capacity + count ] = weight;
+		counts[ section ] = count + 1;
+	}
+
+	public int getCount( final int section )
+	{
+		return counts[ section ];
+	}
+
+	/**
+	 * Write estimate of each section into {@code mediatedShifts}, {@code NaN}
+	 * for sections without samples (of positive weight). Reorders the
+	 * samples of each section.
+	 *
+	 * @param iterations
+	 *            maximum number of reweighting iterations for
+	 *            {@link InferFromMatrix.MediationType#HUBER} and
+	 *            {@link InferFromMatrix.MediationType#TUKEY}
+	 */
+	public void mediate( final InferFromMatrix.MediationType type, final int iterations, final double[] mediatedShifts )
+	{
+		IntStream.range( 0, n ).parallel().forEach( section -> mediatedShifts[ section ] = mediate( section, type, iterations ) );
+	}
+
+	private double mediate( final int section, final InferFromMatrix.MediationType type, final int iterations )
+	{
+		final int offset = section * capacity;
+		final int count = counts[ section ];
+		switch ( type )
+		{
+		case MEDIAN:
+			return weightedMedian( values, weights, offset, count );
+		case HUBER:
+		case TUKEY:
+			return irls( offset, count, type == InferFromMatrix.MediationType.HUBER, iterations );
+		case MEAN:
+		default:
+		{
+			double sum = 0.0;
+			double weightSum = 0.0;
+			for ( int i = offset; i < offset + count; ++i )
+			{
+				sum += values[ i ] * weights[ i ];
+				weightSum += weights[ i ];
+			}
+			return sum / weightSum;
+		}
+		}
+	}
+
+	private double irls( final int offset, final int count, final boolean isHuber, final int iterations )
+	{
+		double estimate = weightedMedian( values, weights, offset, count );
+		if ( Double.isNaN( estimate ) )
+			return estimate;
+
+		for ( int i = 0; i < count; ++i )
+		{
+			scratchValues[ offset + i ] = Math.abs( values[ offset + i ] - estimate );
+			scratchWeights[ offset + i ] = weights[ offset + i ];
+		}
+		final double scale = MAD_SCALE * weightedMedian( scratchValues, scratchWeights, offset, count );
+		// at least half of the weight agrees on the median
+		if ( !( scale > 0.0 ) )
+			return estimate;
+
+		final double tuning = ( isHuber ? HUBER_K : TUKEY_C ) * scale;
+		for ( int iteration = 0; iteration < iterations; ++iteration )
+		{
+			double sum = 0.0;
+			double weightSum = 0.0;
+			for ( int i = offset; i < offset + count; ++i )
+			{
+				final double residual = Math.abs( values[ i ] - estimate );
+				final double robustWeight;
+				if ( isHuber )
+					robustWeight = residual <= tuning ? 1.0 : tuning / residual;
+				else if ( residual < tuning )
+				{
+					final double u = residual / tuning;
+					robustWeight = ( 1.0 - u * u ) * ( 1.0 - u * u );
+				}
+				else
+					robustWeight = 0.0;
+				final double w = weights[ i ] * robustWeight;
+				sum += w * values[ i ];
+				weightSum += w;
+			}
+			if ( !( weightSum > 0.0 ) )
+				break;
+			final double updated = sum / weightSum;
+			final boolean converged = Math.abs( updated - estimate ) <= 1e-10 * scale;
+			estimate = updated;
+			if ( converged )
+				break;
+		}
+		return estimate;
+	}
+
+	/**
+	 * Weighted median of {@code values[ offset ... offset + count - 1 ]},
+	 * sorts values and weights in place.
+	 *
+	 * @return {@code NaN} if there is no positive weight
+	 */
+	static double weightedMedian( final double[] values, final double[] weights, final int offset, final int count )
+	{
+		// few samples per section: insertion sort
+		double total = 0.0;
+		for ( int i = offset; i < offset + count; ++i )
+		{
+			final double v = values[ i ];
+			final double w = weights[ i ];
+			total += w;
+			int j = i - 1;
+			for ( ; j >= offset && values[ j ] > v; --j )
+			{
+				values[ j + 1 ] = values[ j ];
+				weights[ j + 1 ] = weights[ j ];
+			}
+			values[ j + 1 ] = v;
+			weights[ j + 1 ] = w;
+		}
+		if ( !( total > 0.0 ) )
+			return Double.NaN;
+
+		final double half = 0.5 * total;
+		double cumulative = 0.0;
+		for ( int i = offset; i < offset + count; ++i )
+		{
+			cumulative += weights[ i ];
+			// average at exact split, e.g. even number of equal weights
+			if ( cumulative == half && i + 1 < offset + count )
+				return 0.5 * ( values[ i ] + values[ i + 1 ] );
+			if ( cumulative > half )
+				return values[ i ];
+		}
+		return values[ offset + count - 1 ];
+	}
+
+}
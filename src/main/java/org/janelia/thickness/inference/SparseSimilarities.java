@@ -0,0 +1,336 @@
+package org.janelia.thickness.inference;
+
+import java.util.Arrays;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.position.FunctionRandomAccessible;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Sparse, symmetric pairwise similarities of {@code n} sections in
+ * compressed sparse row (CSR) layout: the entries of row {@code i} are stored
+ * at {@code rowOffsets[ i ] <= e < rowOffsets[ i + 1 ]} with strictly
+ * increasing {@code columns[ e ]}, similarity {@code values[ e ]} and weight
+ * {@code weights[ e ]}. Each pair is stored in both rows. Only finite
+ * measurements are stored, i.e. missing pairs (damaged sections, failed
+ * matches) and pairs beyond the comparison range cost neither memory nor time.
+ * The diagonal is not stored and implicitly {@code 1}.
+ *
+ * Use {@link Builder} to create from a list of pairs or
+ * {@link #fromMatrix(RandomAccessibleInterval, RandomAccessibleInterval, int)}
+ * to convert a dense band.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class SparseSimilarities
+{
+
+	private final int n;
+
+	private final int[] rowOffsets;
+
+	private final int[] columns;
+
+	private final double[] values;
+
+	private final double[] weights;
+
+	private SparseSimilarities( final int n, final int nEntries )
+	{
+		this( n, new int[ n + 1 ], new int[ nEntries ], new double[ nEntries ], new double[ nEntries ] );
+	}
+
+	private SparseSimilarities( final int n, final int[] rowOffsets, final int[] columns, final double[] values, final double[] weights )
+	{
+		super();
+		this.n = n;
+		this.rowOffsets = rowOffsets;
+		this.columns = columns;
+		this.values = values;
+		this.weights = weights;
+	}
+
+	/**
+	 * Collect pairs {@code (i, j, similarity, weight)} in any order. Pairs
+	 * with non-finite similarity or weight and diagonal pairs are ignored.
+	 */
+	public static class Builder
+	{
+
+		private final int n;
+
+		private int[] is = new int[ 16 ];
+
+		private int[] js = new int[ 16 ];
+
+		private double[] similarities = new double[ 16 ];
+
+		private double[] pairWeights = new double[ 16 ];
+
+		private int size = 0;
+
+		public Builder( final int n )
+		{
+			super();
+			this.n = n;
+		}
+
+		public Builder add( final int i, final int j, final double similarity )
+		{
+			return add( i, j, similarity, 1.0 );
+		}
+
+		public Builder add( final int i, final int j, final double similarity, final double weight )
+		{
+			if ( i < 0 || i >= n || j < 0 || j >= n )
+				throw new IndexOutOfBoundsException( "Pair (" + i + ", " + j + ") out of bounds for " + n + " sections." );
+			if ( i == j || !Double.isFinite( similarity ) || !Double.isFinite( weight ) )
+				return this;
+			if ( size == is.length )
+			{
+				is = Arrays.copyOf( is, 2 * size );
+				js = Arrays.copyOf( js, 2 * size );
+				similarities = Arrays.copyOf( similarities, 2 * size );
+				pairWeights = Arrays.copyOf( pairWeights, 2 * size );
+			}
+			is[ size ] = i;
+			js[ size ] = j;
+			similarities[ size ] = similarity;
+			pairWeights[ size ] = weight;
+			++size;
+			return this;
+		}
+
+		/**
+		 * @throws IllegalArgumentException
+		 *             if a pair was added more than once (in either order)
+		 */
+		public SparseSimilarities build()
+		{
+			final SparseSimilarities result = new SparseSimilarities( n, 2 * size );
+			final int[] offsets = result.rowOffsets;
+			for ( int p = 0; p < size; ++p )
+			{
+				++offsets[ is[ p ] + 1 ];
+				++offsets[ js[ p ] + 1 ];
+			}
+			for ( int i = 0; i < n; ++i )
+				offsets[ i + 1 ] += offsets[ i ];
+
+			// sort rows by column through packed (column, pair) keys
+			final long[] keys = new long[ 2 * size ];
+			final int[] next = Arrays.copyOf( offsets, n );
+			for ( int p = 0; p < size; ++p )
+			{
+				keys[ next[ is[ p ] ]++ ] = ( long ) js[ p ] << 32 | p;
+				keys[ next[ js[ p ] ]++ ] = ( long ) is[ p ] << 32 | p;
+			}
+
+			for ( int i = 0; i < n; ++i )
+			{
+				Arrays.sort( keys, offsets[ i ], offsets[ i + 1 ] );
+				for ( int e = offsets[ i ]; e < offsets[ i + 1 ]; ++e )
+				{
+					final int column = ( int ) ( keys[ e ] >>> 32 );
+					final int p = ( int ) keys[ e ];
+					if ( e > offsets[ i ] && column == result.columns[ e - 1 ] )
+						throw new IllegalArgumentException( "Duplicate pair (" + i + ", " + column + ")." );
+					result.set( e, column, similarities[ p ], pairWeights[ p ] );
+				}
+			}
+			return result;
+		}
+
+	}
+
+	/**
+	 * Collect all finite entries of {@code matrix} within {@code range} of
+	 * the diagonal. Similarities are symmetrized by reading only the upper
+	 * triangle.
+	 *
+	 * @param weights
+	 *            pairwise weights of the same size as {@code matrix}
+	 */
+	public static < T extends RealType< T >, W extends RealType< W > > SparseSimilarities fromMatrix(
+			final RandomAccessibleInterval< T > matrix,
+			final RandomAccessibleInterval< W > weights,
+			final int range )
+	{
+		final int n = ( int ) matrix.dimension( 0 );
+		final Builder builder = new Builder( n );
+		final RandomAccess< T > access = matrix.randomAccess();
+		final RandomAccess< W > wAccess = weights.randomAccess();
+		for ( int i = 0; i < n; ++i )
+		{
+			access.setPosition( i, 1 );
+			wAccess.setPosition( i, 1 );
+			final int max = Math.min( n, i + range + 1 );
+			for ( int j = i + 1; j < max; ++j )
+			{
+				access.setPosition( j, 0 );
+				wAccess.setPosition( j, 0 );
+				builder.add( i, j, access.get().getRealDouble(), wAccess.get().getRealDouble() );
+			}
+		}
+		return builder.build();
+	}
+
+	public int getSize()
+	{
+		return n;
+	}
+
+	/**
+	 * @return number of stored pairs, each pair counted once
+	 */
+	public int getNumberOfPairs()
+	{
+		return columns.length / 2;
+	}
+
+	/**
+	 * The following accessors expose the internal arrays for iteration over
+	 * all entries without copies. Do not modify.
+	 */
+	/**
+	 * @return maximum number of pairs of any section, invariant under
+	 *         {@link #permute(int[], int[], SparseSimilarities)}
+	 */
+	public int getMaxRowLength()
+	{
+		int max = 0;
+		for ( int i = 0; i < n; ++i )
+			max = Math.max( max, rowOffsets[ i + 1 ] - rowOffsets[ i ] );
+		return max;
+	}
+
+	public int[] getRowOffsets()
+	{
+		return rowOffsets;
+	}
+
+	public int[] getColumns()
+	{
+		return columns;
+	}
+
+	public double[] getValues()
+	{
+		return values;
+	}
+
+	public double[] getWeights()
+	{
+		return weights;
+	}
+
+	/**
+	 * @return similarity of {@code i} and {@code j}, {@code 1} if
+	 *         {@code i == j}, {@code NaN} if not measured.
+	 */
+	public double get( final int i, final int j )
+	{
+		if ( i == j )
+			return 1.0;
+		final int e = find( i, j );
+		return e < 0 ? Double.NaN : values[ e ];
+	}
+
+	/**
+	 * @return weight of pair {@code i} and {@code j}, {@code NaN} if not
+	 *         measured.
+	 */
+	public double getWeight( final int i, final int j )
+	{
+		final int e = find( i, j );
+		return e < 0 ? Double.NaN : weights[ e ];
+	}
+
+	/**
+	 * Re-index sections into {@code target} such that section {@code i} of
+	 * this becomes section {@code forward[ i ]} of {@code target}.
+	 * {@code target} must have been created through {@link #copy()} of this
+	 * and is overwritten. The rows are re-sorted with insertion sort, which is
+	 * linear in the number of entries for the small changes of order between
+	 * iterations of {@link InferFromMatrix}.
+	 *
+	 * @param forward
+	 *            new index of each section
+	 * @param backward
+	 *            inverse of {@code forward}
+	 */
+	public void permute( final int[] forward, final int[] backward, final SparseSimilarities target )
+	{
+		if ( target.columns.length != columns.length || target.n != n )
+			throw new IllegalArgumentException( "Target not compatible." );
+		for ( int z = 0, t = 0; z < n; ++z )
+		{
+			final int source = backward[ z ];
+			target.rowOffsets[ z ] = t;
+			for ( int e = rowOffsets[ source ]; e < rowOffsets[ source + 1 ]; ++e, ++t )
+				target.set( t, forward[ columns[ e ] ], values[ e ], weights[ e ] );
+			target.rowOffsets[ z + 1 ] = t;
+			target.sortRow( z );
+		}
+	}
+
+	public SparseSimilarities copy()
+	{
+		return new SparseSimilarities( n, rowOffsets.clone(), columns.clone(), values.clone(), weights.clone() );
+	}
+
+	/**
+	 * Dense {@code n x n} view for inspection, e.g. through
+	 * {@link org.janelia.thickness.inference.visitor.Visitor}. Entries are
+	 * looked up lazily by binary search and reflect later changes to this
+	 * (e.g. through {@link #permute(int[], int[], SparseSimilarities)}). Off-diagonal
+	 * entries are multiplied by {@code scalingFactors[ x ] * scalingFactors[ y ]}
+	 * unless {@code scalingFactors} is {@code null}.
+	 */
+	public RandomAccessibleInterval< DoubleType > asMatrix( final double[] scalingFactors )
+	{
+		final FunctionRandomAccessible< DoubleType > function = new FunctionRandomAccessible<>( 2, ( final Localizable l, final DoubleType t ) -> {
+			final int x = l.getIntPosition( 0 );
+			final int y = l.getIntPosition( 1 );
+			final double value = get( x, y );
+			t.set( scalingFactors == null || x == y ? value : value * scalingFactors[ x ] * scalingFactors[ y ] );
+		}, DoubleType::new );
+		return Views.interval( function, new FinalInterval( n, n ) );
+	}
+
+	private int find( final int i, final int j )
+	{
+		final int e = Arrays.binarySearch( columns, rowOffsets[ i ], rowOffsets[ i + 1 ], j );
+		return e < 0 ? -1 : e;
+	}
+
+	private void set( final int e, final int column, final double value, final double weight )
+	{
+		columns[ e ] = column;
+		values[ e ] = value;
+		weights[ e ] = weight;
+	}
+
+	private void sortRow( final int i )
+	{
+		final int start = rowOffsets[ i ];
+		final int stop = rowOffsets[ i + 1 ];
+		for ( int e = start + 1; e < stop; ++e )
+		{
+			final int column = columns[ e ];
+			final double value = values[ e ];
+			final double weight = weights[ e ];
+			int f = e - 1;
+			for ( ; f >= start && columns[ f ] > column; --f )
+				set( f + 1, columns[ f ], values[ f ], weights[ f ] );
+			set( f + 1, column, value, weight );
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.janelia.thickness.inference;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Mutable state of a single
+ * {@link InferFromMatrix#estimateZCoordinates(net.imglib2.RandomAccessibleInterval, double[], double[], double[], net.imglib2.RandomAccessibleInterval, double[], org.janelia.thickness.inference.visitor.Visitor, Options, Workspace)
+ * solve}: scaled similarity and weight strips, coordinate, permutation and
+ * shift buffers, and the correlation fit accumulator. A {@link Workspace}
+ * must not be used by concurrent solves but can be re-used by subsequent
+ * solves of the same size, e.g. through a {@link Pool}.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class Workspace
+{
+
+	/**
+	 * Threadsafe pool of {@link Workspace}s.
+	 */
+	public static class Pool
+	{
+
+		private final ConcurrentLinkedQueue< Workspace > workspaces = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Take a compatible {@link Workspace} from the pool or create a new
+		 * one, if none is available.
+		 */
+		public Workspace acquire( final int n, final int range, final AbstractCorrelationFit fit )
+		{
+			for ( final Iterator< Workspace > it = workspaces.iterator(); it.hasNext(); )
+			{
+				final Workspace workspace = it.next();
+				if ( workspace.isCompatible( n, range, fit ) && workspaces.remove( workspace ) )
+					return workspace;
+			}
+			return new Workspace( n, range, fit );
+		}
+
+		/**
+		 * Return {@code workspace} to the pool. {@code workspace} must not be
+		 * used after release.
+		 */
+		public void release( final Workspace workspace )
+		{
+			workspaces.add( workspace );
+		}
+
+	}
+
+	private final int n;
+
+	private final int range;
+
+	private final AbstractCorrelationFit fit;
+
+	final double[] lut;
+
+	final double[] permutedLut;
+
+	final double[] scalingFactorsPrevious;
+
+	final double[] shifts;
+
+	final double[] weightSums;
+
+	final double[] mediatedShifts;
+
+	final int[] permutation;
+
+	final int[] inverse;
+
+	final double[] scaledStripData;
+
+	final ArrayImg< DoubleType, DoubleArray > scaledStrip;
+
+	final double[] weightStrip;
+
+	AbstractCorrelationFit.Accumulator fitAccumulator;
+
+	// allocated on first use by robust mediation
+	private ShiftSamples shiftSamples;
+
+	public Workspace( final int n, final int range, final AbstractCorrelationFit fit )
+	{
+		super();
+		this.n = n;
+		this.range = range;
+		this.fit = fit;
+		this.lut = new double[ n ];
+		this.permutedLut = new double[ n ];
+		this.scalingFactorsPrevious = new double[ n ];
+		this.shifts = new double[ n ];
+		this.weightSums = new double[ n ];
+		this.mediatedShifts = new double[ n ];
+		this.permutation = new int[ n ];
+		this.inverse = new int[ n ];
+		this.scaledStripData = new double[ ( 2 * range + 1 ) * n ];
+		this.scaledStrip = ArrayImgs.doubles( scaledStripData, 2 * range + 1, n );
+		this.weightStrip = new double[ scaledStripData.length ];
+		reset();
+	}
+
+	/**
+	 * Prepare for a new solve. Only the fit accumulator is re-created because
+	 * it may carry state across iterations, e.g. a regularizer.
+	 */
+	void reset()
+	{
+		this.fitAccumulator = fit.createAccumulator();
+	}
+
+	ShiftSamples getShiftSamples()
+	{
+		if ( shiftSamples == null )
+			shiftSamples = new ShiftSamples( n, 2 * range );
+		return shiftSamples;
+	}
+
+	public int getSize()
+	{
+		return n;
+	}
+
+	public int getRange()
+	{
+		return range;
+	}
+
+	public boolean isCompatible( final int n, final int range, final AbstractCorrelationFit fit )
+	{
+		return this.n == n && this.range == range && this.fit == fit;
+	}
+
+}
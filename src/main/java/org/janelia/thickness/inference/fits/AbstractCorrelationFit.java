@@ -1,7 +1,9 @@
 package org.janelia.thickness.inference.fits;
 
 import org.janelia.thickness.inference.Options;
+import org.janelia.thickness.inference.SparseSimilarities;
 import org.janelia.thickness.lut.AbstractLUTRealTransform;
+import org.janelia.thickness.lut.LUTCursor;
 
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
@@ -21,13 +23,95 @@ import net.imglib2.view.Views;
 public abstract class AbstractCorrelationFit
 {
 
+	/**
+	 * Holds the mutable state of a single fit estimation. Each concurrent
+	 * solve needs its own {@link Accumulator}, created through
+	 * {@link AbstractCorrelationFit#createAccumulator()}, and can reuse it
+	 * across iterations.
+	 */
+	public interface Accumulator
+	{
+		void init( int size );
+
+		void add( int z, int dz, double value, double weight );
+
+		RandomAccessibleInterval< double[] > estimate( int size );
+
+		/**
+		 * @return copy of the state carried from one iteration to the next,
+		 *         e.g. for {@link org.janelia.thickness.inference.Checkpoint},
+		 *         or {@code null} if the accumulator is re-initialized in
+		 *         every iteration.
+		 */
+		default double[] getState()
+		{
+			return null;
+		}
+
+		/**
+		 * Restore state returned by {@link #getState()}.
+		 */
+		default void setState( final double[] state )
+		{
+			// stateless by default
+		}
+	}
+
+	private Accumulator defaultAccumulator = null;
+
+	/**
+	 * Correlation fit for the next coarser level of a coarse-to-fine solve,
+	 * i.e. for {@code n} sections with twice the spacing, and
+	 * {@code options} of that level. The default returns {@code this}.
+	 * Override if the fit depends on the number of sections or on the
+	 * comparison range.
+	 */
+	public AbstractCorrelationFit forCoarseLevel( final int n, final Options options )
+	{
+		return this;
+	}
+
+	/**
+	 * Create a new {@link Accumulator} that does not share mutable state with
+	 * this fit or any other accumulator.
+	 */
+	public abstract Accumulator createAccumulator();
+
+	/**
+	 * Not threadsafe: uses an {@link Accumulator} shared by all calls on this
+	 * instance. Use
+	 * {@link #estimateFromMatrix(RandomAccessibleInterval, double[], AbstractLUTRealTransform, RandomAccessibleInterval, Options, InterpolatorFactory, Accumulator)}
+	 * for concurrent estimates.
+	 */
+	public < T extends RealType< T >, W extends RealType< W > > RandomAccessibleInterval< double[] > estimateFromMatrix(
+			final RandomAccessibleInterval< T > correlations,
+			final double[] coordinates,
+			final AbstractLUTRealTransform transform,
+			final RandomAccessibleInterval< W > estimateWeightMatrix,
+			final Options options,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory )
+	{
+		synchronized ( this )
+		{
+			if ( defaultAccumulator == null )
+				defaultAccumulator = createAccumulator();
+		}
+		return estimateFromMatrix( correlations, coordinates, transform, estimateWeightMatrix, options, interpolatorFactory, defaultAccumulator );
+	}
+
+	/**
+	 * @param estimateWeightMatrix
+	 *            pairwise weights, constant (and not interpolated) if
+	 *            {@code null}
+	 */
 	public < T extends RealType< T >, W extends RealType< W > > RandomAccessibleInterval< double[] > estimateFromMatrix(
 			final RandomAccessibleInterval< T > correlations,
 			final double[] coordinates,
 			final AbstractLUTRealTransform transform,
 			final RandomAccessibleInterval< W > estimateWeightMatrix,
 			final Options options,
-			InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory )
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final Accumulator accumulator )
 	{
 		final int range = options.comparisonRange;
 		final boolean forceMonotonicity = options.forceMonotonicity;
@@ -38,18 +122,21 @@ public abstract class AbstractCorrelationFit
 
 		final RealTransformRealRandomAccessible< T, InverseRealTransform > transformedCorrelations = RealViews.transformReal( extendedInterpolatedCorrelations, transform );
 
+		final RealRandomAccess< T > access1 = transformedCorrelations.realRandomAccess();
+		final RealRandomAccess< T > access2 = transformedCorrelations.realRandomAccess();
+
+		if ( estimateWeightMatrix == null )
+			return estimateWithConstantWeights( access1, access2, coordinates, transform, range, forceMonotonicity, accumulator );
+
 		// TODO extend border or value (nan)?
 		final RealRandomAccessible< W > extendedInterpolatedWeights = Views.interpolate( Views.extendBorder( estimateWeightMatrix ), new NLinearInterpolatorFactory<>() );
 
 		final RealTransformRealRandomAccessible< W, InverseRealTransform > transformedWeights = RealViews.transformReal( extendedInterpolatedWeights, transform );
 
-		final RealRandomAccess< T > access1 = transformedCorrelations.realRandomAccess();
-		final RealRandomAccess< T > access2 = transformedCorrelations.realRandomAccess();
-
 		final RealRandomAccess< W > wAccess1 = transformedWeights.realRandomAccess();
 		final RealRandomAccess< W > wAccess2 = transformedWeights.realRandomAccess();
 
-		init( range );
+		accumulator.init( range );
 
 		for ( int z = 0; z < coordinates.length; ++z )
 		{
@@ -71,25 +158,270 @@ public abstract class AbstractCorrelationFit
 				if ( !Double.isNaN( a1 ) && a1 > 0.0 && ( !forceMonotonicity || a1 < currentMin1 ) )
 				{
 					currentMin1 = a1;
-					add( z, k, a1, wAccess1.get().getRealDouble() );
+					accumulator.add( z, k, a1, wAccess1.get().getRealDouble() );
+				}
+				if ( !Double.isNaN( a2 ) && a2 > 0.0 && ( !forceMonotonicity || a2 < currentMin2 ) )
+				{
+					currentMin2 = a2;
+					accumulator.add( z, k, a2, wAccess2.get().getRealDouble() );
+				}
+			}
+		}
+
+		return accumulator.estimate( coordinates.length );
+	}
+
+	/**
+	 * Same sampling as
+	 * {@link #estimateFromMatrix(RandomAccessibleInterval, double[], AbstractLUTRealTransform, RandomAccessibleInterval, Options, InterpolatorFactory, Accumulator)}
+	 * without interpolation of weights.
+	 */
+	private static < T extends RealType< T > > RandomAccessibleInterval< double[] > estimateWithConstantWeights(
+			final RealRandomAccess< T > access1,
+			final RealRandomAccess< T > access2,
+			final double[] coordinates,
+			final AbstractLUTRealTransform transform,
+			final int range,
+			final boolean forceMonotonicity,
+			final Accumulator accumulator )
+	{
+		accumulator.init( range );
+
+		for ( int z = 0; z < coordinates.length; ++z )
+		{
+			access1.setPosition( z, 1 );
+			access1.setPosition( z, 0 );
+			transform.apply( access1, access1 );
+			access2.setPosition( access1 );
+
+			double currentMin1 = Double.MAX_VALUE;
+			double currentMin2 = Double.MAX_VALUE;
+			for ( int k = 0; k <= range; ++k, access1.fwd( 0 ), access2.bck( 0 ) )
+			{
+				final double a1 = access1.get().getRealDouble();
+				final double a2 = access2.get().getRealDouble();
+				if ( !Double.isNaN( a1 ) && a1 > 0.0 && ( !forceMonotonicity || a1 < currentMin1 ) )
+				{
+					currentMin1 = a1;
+					accumulator.add( z, k, a1, 1.0 );
 				}
 				if ( !Double.isNaN( a2 ) && a2 > 0.0 && ( !forceMonotonicity || a2 < currentMin2 ) )
 				{
 					currentMin2 = a2;
-					add( z, k, a2, wAccess2.get().getRealDouble() );
+					accumulator.add( z, k, a2, 1.0 );
+				}
+			}
+		}
+
+		return accumulator.estimate( coordinates.length );
+	}
+
+	/**
+	 * Estimate correlation fit directly from the banded similarity strip,
+	 * without interpolated and transformed views. Samples the same positions
+	 * as
+	 * {@link #estimateFromMatrix(RandomAccessibleInterval, double[], AbstractLUTRealTransform, RandomAccessibleInterval, Options, InterpolatorFactory, Accumulator)}
+	 * with linear interpolation along each row. Inverse LUT positions are
+	 * monotone in both directions along a row and are, thus, tracked
+	 * incrementally with a {@link LUTCursor} instead of binary search. Weights are sampled at the same
+	 * strip positions as the similarities.
+	 *
+	 * @param strip
+	 *            flattened strip of width {@code 2 * options.comparisonRange + 1}
+	 *            in original (unsorted) order, i.e. similarity of sections
+	 *            {@code x} and {@code y} is stored at
+	 *            {@code strip[ y * ( 2 * range + 1 ) + x - y + range ]}.
+	 * @param inverse
+	 *            {@code inverse[ z ]} is the original index of the section at
+	 *            sorted position {@code z}.
+	 * @param coordinates
+	 *            sorted, strictly increasing coordinates.
+	 * @param weightStrip
+	 *            weights in the same layout as {@code strip}, constant weight
+	 *            if {@code null}.
+	 */
+	public RandomAccessibleInterval< double[] > estimateFromStrip(
+			final double[] strip,
+			final int[] inverse,
+			final double[] coordinates,
+			final double[] weightStrip,
+			final Options options,
+			final Accumulator accumulator )
+	{
+		final int range = options.comparisonRange;
+		final boolean forceMonotonicity = options.forceMonotonicity;
+		final int n = coordinates.length;
+		final int stride = 2 * range + 1;
+
+		accumulator.init( range );
+
+		if ( n < 2 )
+			return accumulator.estimate( n );
+
+		// one cursor per direction: inverse LUT positions are monotone along
+		// each direction of a row
+		final LUTCursor forward = new LUTCursor( coordinates );
+		final LUTCursor backward = new LUTCursor( coordinates );
+
+		for ( int z = 0; z < n; ++z )
+		{
+			final int zSource = inverse[ z ];
+			final int rowOffset = zSource * stride + range - zSource;
+
+			double y1 = coordinates[ z ];
+			double y2 = y1;
+
+			double currentMin1 = Double.MAX_VALUE;
+			double currentMin2 = Double.MAX_VALUE;
+			for ( int k = 0; k <= range; ++k, y1 += 1.0, y2 -= 1.0 )
+			{
+				final double x1 = forward.applyInverseChecked( y1 );
+				if ( x1 != Double.MAX_VALUE )
+				{
+					final double a1 = interpolate( strip, inverse, rowOffset, zSource, range, x1 );
+					if ( !Double.isNaN( a1 ) && a1 > 0.0 && ( !forceMonotonicity || a1 < currentMin1 ) )
+					{
+						currentMin1 = a1;
+						accumulator.add( z, k, a1, weightStrip == null ? 1.0 : interpolate( weightStrip, inverse, rowOffset, zSource, range, x1 ) );
+					}
+				}
+				final double x2 = backward.applyInverseChecked( y2 );
+				if ( x2 != -Double.MAX_VALUE )
+				{
+					final double a2 = interpolate( strip, inverse, rowOffset, zSource, range, x2 );
+					if ( !Double.isNaN( a2 ) && a2 > 0.0 && ( !forceMonotonicity || a2 < currentMin2 ) )
+					{
+						currentMin2 = a2;
+						accumulator.add( z, k, a2, weightStrip == null ? 1.0 : interpolate( weightStrip, inverse, rowOffset, zSource, range, x2 ) );
+					}
 				}
 			}
 		}
 
-		return estimate( coordinates.length );
+		return accumulator.estimate( coordinates.length );
 	}
 
+	/**
+	 * Estimate correlation fit from sparse similarities, visiting only stored
+	 * pairs. Instead of sampling at integer distances, each scaled similarity
+	 * at distance {@code d = |coordinates[ x ] - coordinates[ z ]| <= range}
+	 * is distributed to {@code floor( d )} and {@code floor( d ) + 1} with
+	 * linear weights (the adjoint of the linear interpolation in
+	 * {@link #estimateFromStrip(double[], int[], double[], double[], Options, Accumulator)}).
+	 * Both are identical for integer coordinates. The implicit diagonal is
+	 * added with value and weight {@code 1}.
+	 *
+	 * @param similarities
+	 *            in sorted order, i.e. row {@code z} holds the pairs of the
+	 *            section at {@code coordinates[ z ]}.
+	 * @param coordinates
+	 *            sorted coordinates.
+	 * @param scalingFactors
+	 *            in sorted order, applied to the similarities on the fly.
+	 */
+	public RandomAccessibleInterval< double[] > estimateFromSparse(
+			final SparseSimilarities similarities,
+			final double[] coordinates,
+			final double[] scalingFactors,
+			final Options options,
+			final Accumulator accumulator )
+	{
+		final int range = options.comparisonRange;
+		final boolean forceMonotonicity = options.forceMonotonicity;
+		final int n = coordinates.length;
+		final int[] rowOffsets = similarities.getRowOffsets();
+		final int[] columns = similarities.getColumns();
+		final double[] values = similarities.getValues();
+		final double[] weights = similarities.getWeights();
+
+		accumulator.init( range );
+
+		if ( n < 2 )
+			return accumulator.estimate( n );
+
+		for ( int z = 0; z < n; ++z )
+		{
+			final double c = coordinates[ z ];
+			final double s = scalingFactors[ z ];
+			final int start = rowOffsets[ z ];
+			final int stop = rowOffsets[ z + 1 ];
+			int diagonal = start;
+			while ( diagonal < stop && columns[ diagonal ] < z )
+				++diagonal;
+
+			accumulator.add( z, 0, 1.0, 1.0 );
+
+			double currentMin = Double.MAX_VALUE;
+			for ( int e = diagonal; e < stop; ++e )
+			{
+				final double d = coordinates[ columns[ e ] ] - c;
+				if ( d > range )
+					break;
+				currentMin = distribute( accumulator, z, d, range, values[ e ] * s * scalingFactors[ columns[ e ] ], weights[ e ], forceMonotonicity, currentMin );
+			}
+
+			currentMin = Double.MAX_VALUE;
+			for ( int e = diagonal - 1; e >= start; --e )
+			{
+				final double d = c - coordinates[ columns[ e ] ];
+				if ( d > range )
+					break;
+				currentMin = distribute( accumulator, z, d, range, values[ e ] * s * scalingFactors[ columns[ e ] ], weights[ e ], forceMonotonicity, currentMin );
+			}
+		}
+
+		return accumulator.estimate( n );
+	}
 
-	protected abstract void add( int z, int dz, double value, double weight );
+	/**
+	 * @return updated minimum of accepted values
+	 */
+	private static double distribute(
+			final Accumulator accumulator,
+			final int z,
+			final double d,
+			final int range,
+			final double value,
+			final double weight,
+			final boolean forceMonotonicity,
+			final double currentMin )
+	{
+		if ( Double.isNaN( value ) || value <= 0.0 || forceMonotonicity && value >= currentMin )
+			return currentMin;
+		final int floor = ( int ) d;
+		final double dx = d - floor;
+		accumulator.add( z, floor, value, ( 1.0 - dx ) * weight );
+		if ( dx > 0.0 && floor < range )
+			accumulator.add( z, floor + 1, value, dx * weight );
+		return value;
+	}
 
-	protected abstract void init( int size );
+	private static double interpolate(
+			final double[] strip,
+			final int[] inverse,
+			final int rowOffset,
+			final int zSource,
+			final int range,
+			final double x )
+	{
+		final int floor = ( int ) x;
+		final double dx = x - floor;
+		final double v0 = get( strip, inverse, rowOffset, zSource, range, floor );
+		return dx == 0.0 ? v0 : ( 1.0 - dx ) * v0 + dx * get( strip, inverse, rowOffset, zSource, range, floor + 1 );
+	}
 
-	// TODO change return type to RandomAccessibleInterval< RealComposite< DoubleType > >
-	protected abstract RandomAccessibleInterval< double[] > estimate( int size );
+	private static double get(
+			final double[] strip,
+			final int[] inverse,
+			final int rowOffset,
+			final int zSource,
+			final int range,
+			final int x )
+	{
+		if ( x >= inverse.length )
+			return Double.NaN;
+		final int xSource = inverse[ x ];
+		return Math.abs( xSource - zSource ) > range ? Double.NaN : strip[ rowOffset + xSource ];
+	}
 
 }
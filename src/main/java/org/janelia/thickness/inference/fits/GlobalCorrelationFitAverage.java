@@ -15,51 +15,56 @@ import net.imglib2.view.Views;
 public class GlobalCorrelationFitAverage extends AbstractCorrelationFit
 {
 
-	private double[] summedMeasurements;
+	public static class Accumulator implements AbstractCorrelationFit.Accumulator
+	{
 
-	private double[] weightSum;
+		private double[] summedMeasurements;
 
-	/*
-	 * (non-Javadoc)
-	 *
-	 * @see org.janelia.thickness.inference.fits.AbstractCorrelationFit#add(int,
-	 * int, double)
-	 */
-	@Override
-	protected void add( final int z, final int dz, final double value, final double weight )
-	{
-		summedMeasurements[ dz ] += value * weight;
-		weightSum[ dz ] += weight;
-	}
+		private double[] weightSum;
+
+		@Override
+		public void add( final int z, final int dz, final double value, final double weight )
+		{
+			summedMeasurements[ dz ] += value * weight;
+			weightSum[ dz ] += weight;
+		}
+
+		/**
+		 * Re-uses arrays if {@code size} did not change.
+		 */
+		@Override
+		public void init( final int size )
+		{
+			if ( summedMeasurements == null || summedMeasurements.length != size + 1 )
+			{
+				summedMeasurements = new double[ size + 1 ];
+				weightSum = new double[ size + 1 ];
+			}
+			else
+				for ( int i = 0; i < summedMeasurements.length; ++i )
+				{
+					summedMeasurements[ i ] = 0.0;
+					weightSum[ i ] = 0.0;
+				}
+		}
+
+		@Override
+		public RandomAccessibleInterval< double[] > estimate( final int size )
+		{
+			final double[] estimate = summedMeasurements.clone();
+			estimate[ 0 ] = -1;
+			for ( int z = 1; z < estimate.length; ++z )
+				estimate[ z ] /= -weightSum[ z ];
+			final FinalInterval fi = new FinalInterval( size );
+			return Views.interval( Views.raster( ConstantUtils.constantRealRandomAccessible( estimate, 1 ) ), fi );
+		}
 
-	/*
-	 * (non-Javadoc)
-	 *
-	 * @see
-	 * org.janelia.thickness.inference.fits.AbstractCorrelationFit#clear(int)
-	 */
-	@Override
-	protected void init( final int size )
-	{
-		summedMeasurements = new double[ size + 1 ];
-		weightSum = new double[ size + 1 ];
 	}
 
-	/*
-	 * (non-Javadoc)
-	 *
-	 * @see
-	 * org.janelia.thickness.inference.fits.AbstractCorrelationFit#estimate()
-	 */
 	@Override
-	protected RandomAccessibleInterval< double[] > estimate( final int size )
+	public Accumulator createAccumulator()
 	{
-		final double[] estimate = summedMeasurements.clone();
-		estimate[ 0 ] = -1;
-		for ( int z = 1; z < estimate.length; ++z )
-			estimate[ z ] /= -weightSum[ z ];
-		final FinalInterval fi = new FinalInterval( size );
-		return Views.interval( Views.raster( ConstantUtils.constantRealRandomAccessible( estimate, 1 ) ), fi );
+		return new Accumulator();
 	}
 
 }
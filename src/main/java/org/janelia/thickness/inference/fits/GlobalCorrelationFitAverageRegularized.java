@@ -1,5 +1,7 @@
 package org.janelia.thickness.inference.fits;
 
+import org.janelia.thickness.inference.Options;
+
 import net.imglib2.RandomAccessibleInterval;
 
 /**
@@ -11,11 +13,68 @@ import net.imglib2.RandomAccessibleInterval;
 public class GlobalCorrelationFitAverageRegularized extends AbstractCorrelationFit
 {
 
-	private double[] reg;
+	public static class Accumulator implements AbstractCorrelationFit.Accumulator
+	{
 
-	private final double lambda;
+		private double[] reg;
 
-	private final GlobalCorrelationFitAverage fit = new GlobalCorrelationFitAverage();
+		private final double lambda;
+
+		private final GlobalCorrelationFitAverage.Accumulator fit = new GlobalCorrelationFitAverage.Accumulator();
+
+		public Accumulator( final double[] reg, final double lambda )
+		{
+			super();
+			this.reg = reg;
+			this.lambda = lambda;
+		}
+
+		@Override
+		public void add( final int z, final int dz, final double value, final double weight )
+		{
+			fit.add( z, dz, value, weight );
+		}
+
+		@Override
+		public void init( final int size )
+		{
+			fit.init( size );
+		}
+
+		@Override
+		public RandomAccessibleInterval< double[] > estimate( final int size )
+		{
+			final RandomAccessibleInterval< double[] > rai = fit.estimate( size );
+			final double oneMinusLambda = 1.0 - lambda;
+			final double[] current = rai.randomAccess().get();
+			for ( int i = 0; i < Math.min( current.length, this.reg.length ); ++i )
+			{
+				final double v1 = current[ i ];
+				final double v2 = reg[ i ];
+				current[ i ] = Double.isNaN( v1 ) ? v2 : Double.isNaN( v2 ) ? v1 : oneMinusLambda * v1 + lambda * v2;
+			}
+			// TODO Do this or not?
+			this.reg = current;
+			return rai;
+		}
+
+		@Override
+		public double[] getState()
+		{
+			return reg.clone();
+		}
+
+		@Override
+		public void setState( final double[] state )
+		{
+			this.reg = state.clone();
+		}
+
+	}
+
+	private final double[] reg;
+
+	private final double lambda;
 
 	public GlobalCorrelationFitAverageRegularized( final double[] reg, final double lambda )
 	{
@@ -24,33 +83,26 @@ public class GlobalCorrelationFitAverageRegularized extends AbstractCorrelationF
 		this.lambda = lambda;
 	}
 
+	/**
+	 * Each {@link Accumulator} starts from the regularizer passed at
+	 * construction and updates it only for its own solve.
+	 */
 	@Override
-	protected void add( final int z, final int dz, final double value, final double weight )
-	{
-		fit.add( z, dz, value, weight );
-	}
-
-	@Override
-	protected void init( final int size )
+	public Accumulator createAccumulator()
 	{
-		fit.init( size );
+		return new Accumulator( reg.clone(), lambda );
 	}
 
+	/**
+	 * Regularizer at every other distance.
+	 */
 	@Override
-	protected RandomAccessibleInterval< double[] > estimate( final int size )
+	public GlobalCorrelationFitAverageRegularized forCoarseLevel( final int n, final Options options )
 	{
-		final RandomAccessibleInterval< double[] > rai = fit.estimate( size );
-		final double oneMinusLambda = 1.0 - lambda;
-		final double[] current = rai.randomAccess().get();
-		for ( int i = 0; i < Math.min( current.length, this.reg.length ); ++i )
-		{
-			final double v1 = current[ i ];
-			final double v2 = reg[ i ];
-			current[ i ] = Double.isNaN( v1 ) ? v2 : Double.isNaN( v2 ) ? v1 : oneMinusLambda * v1 + lambda * v2;
-		}
-		// TODO Do this or not?
-		this.reg = current;
-		return rai;
+		final double[] coarseReg = new double[ ( reg.length + 1 ) / 2 ];
+		for ( int dz = 0; dz < coarseReg.length; ++dz )
+			coarseReg[ dz ] = reg[ 2 * dz ];
+		return new GlobalCorrelationFitAverageRegularized( coarseReg, lambda );
 	}
 
 }
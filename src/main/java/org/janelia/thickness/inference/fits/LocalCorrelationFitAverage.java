@@ -25,116 +25,143 @@ import net.imglib2.view.composite.RealComposite;
 
 public class LocalCorrelationFitAverage extends AbstractCorrelationFit
 {
-	int estimateWindowRadius;
 
-	ScaleAndTranslation scaleAndTranslation;
-
-	ArrayImg< DoubleType, DoubleArray > summedMeasurements;
+	public class Accumulator implements AbstractCorrelationFit.Accumulator
+	{
 
-	ArrayRandomAccess< DoubleType > measurementsAccess;
+		final ArrayImg< DoubleType, DoubleArray > summedMeasurements;
 
-	double[][] nSamples;
+		final ArrayRandomAccess< DoubleType > measurementsAccess;
 
-	double[] transformCoordinate;
+		final double[][] nSamples;
 
+		final double[] transformCoordinate;
 
-	public LocalCorrelationFitAverage( final int dimension, final Options o )
-	{
-		estimateWindowRadius = o.estimateWindowRadius < 1 ? dimension : Math.min( o.estimateWindowRadius, dimension );
-		final int nFits = Math.max( dimension / estimateWindowRadius, 1 );
-		final double[] translation = new double[] { estimateWindowRadius };
-		final double[] scale = new double[] { estimateWindowRadius };
-		scaleAndTranslation = new ScaleAndTranslation( scale, translation );
-		summedMeasurements = ArrayImgs.doubles( nFits, o.comparisonRange + 1 );
-		measurementsAccess = summedMeasurements.randomAccess();
-		nSamples = new double[ nFits ][ o.comparisonRange + 1 ];
-		transformCoordinate = new double[ 1 ];
-	}
-
-	@Override
-	protected void add( final int z, final int dz, final double value, final double weight )
-	{
-		transformCoordinate[ 0 ] = z;
-		scaleAndTranslation.applyInverse( transformCoordinate, transformCoordinate );
-		if ( transformCoordinate[0] <= 0.0 )
-			addLocal( 0, dz, value, weight );
-		else if ( transformCoordinate[ 0 ] >= nSamples.length - 1 )
-			addLocal( nSamples.length - 1, dz, value, weight );
-		else
+		public Accumulator()
 		{
-			final int lower = ( int ) Math.floor( transformCoordinate[ 0 ] );
-			addLocal( lower, dz, value, weight );
-			addLocal( lower + 1, dz, value, weight );
+			summedMeasurements = ArrayImgs.doubles( nFits, comparisonRange + 1 );
+			measurementsAccess = summedMeasurements.randomAccess();
+			nSamples = new double[ nFits ][ comparisonRange + 1 ];
+			transformCoordinate = new double[ 1 ];
 		}
 
-	}
-
-	private void addLocal( final int localZ, final int dz, final double value, final double weight )
-	{
-		measurementsAccess.setPosition( localZ, 0 );
-		measurementsAccess.setPosition( dz, 1 );
-		measurementsAccess.get().add( new DoubleType( value * weight ) );
-		nSamples[ localZ ][ dz ] += weight;
-	}
-
-	@Override
-	protected void init( final int size )
-	{
-		final ArrayCursor< DoubleType > c = summedMeasurements.cursor();
-		final int sizePlusOne = size + 1;
-		for ( int n = 0; n < nSamples.length; ++n )
+		@Override
+		public void add( final int z, final int dz, final double value, final double weight )
 		{
-			final double[] ns = nSamples[ n ];
-			for ( int r = 0; r < sizePlusOne; ++r )
+			transformCoordinate[ 0 ] = z;
+			scaleAndTranslation.applyInverse( transformCoordinate, transformCoordinate );
+			if ( transformCoordinate[0] <= 0.0 )
+				addLocal( 0, dz, value, weight );
+			else if ( transformCoordinate[ 0 ] >= nSamples.length - 1 )
+				addLocal( nSamples.length - 1, dz, value, weight );
+			else
 			{
-				ns[ r ] = 0;
-				c.next().set( 0.0 );
+				final int lower = ( int ) Math.floor( transformCoordinate[ 0 ] );
+				addLocal( lower, dz, value, weight );
+				addLocal( lower + 1, dz, value, weight );
 			}
+
 		}
-	}
 
-	@Override
-	protected RandomAccessibleInterval< double[] > estimate( final int size )
-	{
+		private void addLocal( final int localZ, final int dz, final double value, final double weight )
+		{
+			measurementsAccess.setPosition( localZ, 0 );
+			measurementsAccess.setPosition( dz, 1 );
+			measurementsAccess.get().add( new DoubleType( value * weight ) );
+			nSamples[ localZ ][ dz ] += weight;
+		}
 
+		@Override
+		public void init( final int size )
 		{
-			final ArrayRandomAccess< DoubleType > ra = summedMeasurements.randomAccess();
+			final ArrayCursor< DoubleType > c = summedMeasurements.cursor();
+			final int sizePlusOne = size + 1;
 			for ( int n = 0; n < nSamples.length; ++n )
 			{
-				ra.setPosition( n, 0 );
 				final double[] ns = nSamples[ n ];
-				for ( int r = 0; r < ns.length; ++r )
+				for ( int r = 0; r < sizePlusOne; ++r )
 				{
-					ra.setPosition( r, 1 );
-					ra.get().mul( 1.0 / ns[ r ] );
+					ns[ r ] = 0;
+					c.next().set( 0.0 );
 				}
 			}
 		}
 
+		@Override
+		public RandomAccessibleInterval< double[] > estimate( final int size )
+		{
 
-		final CompositeIntervalView< DoubleType, RealComposite< DoubleType > > collapsed =
-				Views.collapseReal( summedMeasurements );
+			{
+				final ArrayRandomAccess< DoubleType > ra = summedMeasurements.randomAccess();
+				for ( int n = 0; n < nSamples.length; ++n )
+				{
+					ra.setPosition( n, 0 );
+					final double[] ns = nSamples[ n ];
+					for ( int r = 0; r < ns.length; ++r )
+					{
+						ra.setPosition( r, 1 );
+						ra.get().mul( 1.0 / ns[ r ] );
+					}
+				}
+			}
 
-		final RealRandomAccessible< RealComposite< DoubleType > > interpolated =
-				Views.interpolate( Views.extendBorder( collapsed ), new NLinearInterpolatorFactory<>() );
 
-		final FinalInterval fi = new FinalInterval( size );
-		final IntervalView< RealComposite< DoubleType > > transformed =
-				Views.interval( Views.raster( RealViews.transformReal( interpolated, scaleAndTranslation ) ), fi );
+			final CompositeIntervalView< DoubleType, RealComposite< DoubleType > > collapsed =
+					Views.collapseReal( summedMeasurements );
 
-		final Cursor< RealComposite< DoubleType > > t = transformed.cursor();
-		final ArrayList< double[] > list = new ArrayList<>();
-		for ( int n = 0; n < size; ++n )
-		{
-			final RealComposite< DoubleType > c = t.next();
-			final double[] target = new double[ nSamples[ 0 ].length ];
-			target[ 0 ] = -1;
-			for ( int i = 1; i < target.length; ++i )
-				target[ i ] = -c.get( i ).get();
-			list.add( target );
+			final RealRandomAccessible< RealComposite< DoubleType > > interpolated =
+					Views.interpolate( Views.extendBorder( collapsed ), new NLinearInterpolatorFactory<>() );
+
+			final FinalInterval fi = new FinalInterval( size );
+			final IntervalView< RealComposite< DoubleType > > transformed =
+					Views.interval( Views.raster( RealViews.transformReal( interpolated, scaleAndTranslation ) ), fi );
+
+			final Cursor< RealComposite< DoubleType > > t = transformed.cursor();
+			final ArrayList< double[] > list = new ArrayList<>();
+			for ( int n = 0; n < size; ++n )
+			{
+				final RealComposite< DoubleType > c = t.next();
+				final double[] target = new double[ nSamples[ 0 ].length ];
+				target[ 0 ] = -1;
+				for ( int i = 1; i < target.length; ++i )
+					target[ i ] = -c.get( i ).get();
+				list.add( target );
+			}
+
+			return new ListImg<>( list, list.size() );
 		}
 
-		return new ListImg<>( list, list.size() );
+	}
+
+	final int estimateWindowRadius;
+
+	final int nFits;
+
+	final int comparisonRange;
+
+	final ScaleAndTranslation scaleAndTranslation;
+
+
+	public LocalCorrelationFitAverage( final int dimension, final Options o )
+	{
+		estimateWindowRadius = o.estimateWindowRadius < 1 ? dimension : Math.min( o.estimateWindowRadius, dimension );
+		nFits = Math.max( dimension / estimateWindowRadius, 1 );
+		comparisonRange = o.comparisonRange;
+		final double[] translation = new double[] { estimateWindowRadius };
+		final double[] scale = new double[] { estimateWindowRadius };
+		scaleAndTranslation = new ScaleAndTranslation( scale, translation );
+	}
+
+	@Override
+	public Accumulator createAccumulator()
+	{
+		return new Accumulator();
+	}
+
+	@Override
+	public LocalCorrelationFitAverage forCoarseLevel( final int n, final Options options )
+	{
+		return new LocalCorrelationFitAverage( n, options );
 	}
 
 }
@@ -0,0 +1,195 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Decouple a (slow, I/O bound) {@link Visitor} from the optimizer thread:
+ * {@link #act} only copies the state of the current iteration into a pooled
+ * {@link VisitorSnapshot} and returns, while the wrapped visitor is called from a
+ * single background thread in iteration order. At most {@code capacity}
+ * snapshots are in flight; {@link #act} blocks when all of them are in use.
+ *
+ * The input and scaled matrices are snapshotted as strips of width
+ * {@code 2 * range + 1} and passed to the wrapped visitor as matrix views
+ * that are NaN outside of the strip. Pass {@code range < 0} if the wrapped
+ * visitor does not need the matrices; it will receive {@code null} instead.
+ *
+ * Failures of the wrapped visitor are re-thrown by the next call to
+ * {@link #act}, {@link #flush()} or {@link #close()}. {@link #flush()} returns
+ * only after the wrapped visitor has processed all previous iterations;
+ * {@link #close()} flushes, closes the wrapped visitor if it is
+ * {@link AutoCloseable}, and stops the background thread.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class AsyncVisitor implements Visitor, AutoCloseable
+{
+
+	private final Visitor visitor;
+
+	private final int range;
+
+	private final ArrayBlockingQueue< VisitorSnapshot > pool;
+
+	private final ExecutorService writer;
+
+	private volatile Throwable failure = null;
+
+	private boolean closed = false;
+
+	/**
+	 * @param visitor
+	 *            called from background thread
+	 * @param capacity
+	 *            maximum number of snapshots in flight
+	 * @param range
+	 *            snapshot matrices as strips with this range, do not snapshot
+	 *            matrices if negative
+	 */
+	public AsyncVisitor( final Visitor visitor, final int capacity, final int range )
+	{
+		super();
+		this.visitor = visitor;
+		this.range = range;
+		this.pool = new ArrayBlockingQueue<>( capacity );
+		for ( int i = 0; i < capacity; ++i )
+			this.pool.add( new VisitorSnapshot() );
+		this.writer = Executors.newSingleThreadExecutor( r -> {
+			final Thread t = new Thread( r, "z-spacing-async-visitor" );
+			t.setDaemon( true );
+			return t;
+		} );
+	}
+
+	public AsyncVisitor( final Visitor visitor, final int range )
+	{
+		this( visitor, 4, range );
+	}
+
+	@Override
+	public < T extends RealType< T > > void act(
+			final int iteration,
+			final RandomAccessibleInterval< T > matrix,
+			final RandomAccessibleInterval< T > scaledMatrix,
+			final double[] lut,
+			final int[] permutation,
+			final int[] inversePermutation,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > estimatedFit )
+	{
+		checkFailure();
+		if ( closed )
+			throw new IllegalStateException( "Visitor already closed." );
+
+		final VisitorSnapshot snapshot;
+		try
+		{
+			snapshot = pool.take();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+
+		snapshot.set( iteration, matrix, scaledMatrix, lut, permutation, inversePermutation, multipliers, estimatedFit, range );
+		writer.execute( () -> {
+			try
+			{
+				if ( failure == null )
+					snapshot.visit( visitor );
+			}
+			catch ( final Throwable t )
+			{
+				failure = t;
+			}
+			finally
+			{
+				pool.add( snapshot );
+			}
+		} );
+	}
+
+	/**
+	 * Wait until all previous iterations have been passed to the wrapped
+	 * visitor.
+	 */
+	public void flush()
+	{
+		if ( !closed )
+		{
+			try
+			{
+				writer.submit( () -> {} ).get();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( e );
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting for the background thread, the
+	 *             interrupt flag is restored and the wrapped visitor is not
+	 *             closed
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if ( closed )
+			return;
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			closed = true;
+			writer.shutdown();
+			try
+			{
+				writer.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				final InterruptedIOException interrupted = new InterruptedIOException( "Interrupted while waiting for visitor." );
+				interrupted.initCause( e );
+				throw interrupted;
+			}
+			AutoCloseables.close( visitor );
+		}
+	}
+
+	private void checkFailure()
+	{
+		final Throwable t = failure;
+		if ( t != null )
+		{
+			if ( t instanceof RuntimeException )
+				throw ( RuntimeException ) t;
+			if ( t instanceof Error )
+				throw ( Error ) t;
+			throw new RuntimeException( t );
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Close wrapped visitors from {@code close() throws IOException} of
+ * delegating visitors.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+final class AutoCloseables
+{
+
+	private AutoCloseables()
+	{
+
+	}
+
+	/**
+	 * Close {@code visitor} if it is {@link AutoCloseable}. Checked
+	 * exceptions other than {@link IOException} are wrapped in an
+	 * {@link IOException}, {@link InterruptedException} in an
+	 * {@link InterruptedIOException} after restoring the interrupt flag.
+	 */
+	static void close( final Visitor visitor ) throws IOException
+	{
+		if ( !( visitor instanceof AutoCloseable ) )
+			return;
+		try
+		{
+			( ( AutoCloseable ) visitor ).close();
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			throw e;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			final InterruptedIOException interrupted = new InterruptedIOException( "Interrupted while closing visitor." );
+			interrupted.initCause( e );
+			throw interrupted;
+		}
+		catch ( final Exception e )
+		{
+			throw new IOException( e );
+		}
+	}
+
+}
@@ -43,7 +43,7 @@ public abstract class CSVVisitor extends FileSaverVisitor
 			@Override
 			public String next()
 			{
-				return String.format( "%d%s%s", ++index, separator, it.next().toString() );
+				return ++index + separator + it.next().toString();
 			}
 
 		}
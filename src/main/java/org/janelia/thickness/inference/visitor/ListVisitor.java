@@ -3,6 +3,7 @@
  */
 package org.janelia.thickness.inference.visitor;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import net.imglib2.RandomAccessibleInterval;
@@ -12,7 +13,7 @@ import net.imglib2.type.numeric.RealType;
  * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
  *
  */
-public class ListVisitor implements Visitor
+public class ListVisitor implements Visitor, AutoCloseable
 {
 	private final ArrayList< Visitor > visitors;
 
@@ -53,4 +54,30 @@ public class ListVisitor implements Visitor
 			v.act( iteration, matrix, scaledMatrix, lut, permutation, inversePermutation, multipliers, estimatedFit );
 	}
 
+	/**
+	 * Close all {@link AutoCloseable} visitors. The first failure is thrown
+	 * after all visitors were closed, with later failures suppressed.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		Exception exception = null;
+		for ( final Visitor v : visitors )
+			try
+			{
+				AutoCloseables.close( v );
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				if ( exception == null )
+					exception = e;
+				else
+					exception.addSuppressed( e );
+			}
+		if ( exception instanceof IOException )
+			throw ( IOException ) exception;
+		if ( exception != null )
+			throw ( RuntimeException ) exception;
+	}
+
 }
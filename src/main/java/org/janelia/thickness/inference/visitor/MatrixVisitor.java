@@ -1,19 +1,12 @@
 package org.janelia.thickness.inference.visitor;
 
-import org.janelia.thickness.lut.LUTRealTransform;
-import org.janelia.utility.MatrixStripConversion;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.janelia.utility.io.FloatTiffWriter;
 
-import ij.io.FileSaver;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
-import net.imglib2.realtransform.InverseRealTransform;
-import net.imglib2.realtransform.RealTransformRealRandomAccessible;
-import net.imglib2.realtransform.RealViews;
-import net.imglib2.realtransform.ScaleAndTranslation;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 
 /**
  *
@@ -25,6 +18,8 @@ public class MatrixVisitor extends FileSaverVisitor
 
 	private final int range;
 
+	private final WarpedStripRenderer renderer = new WarpedStripRenderer();
+
 	public MatrixVisitor( final String basePath, final String relativeFilePattern, final int range )
 	{
 		super( basePath, relativeFilePattern );
@@ -42,20 +37,17 @@ public class MatrixVisitor extends FileSaverVisitor
 			final double[] multipliers,
 			final RandomAccessibleInterval< double[] > estimatedFit )
 	{
-		final T dummy = scaledMatrix.randomAccess().get().createVariable();
-		dummy.setReal( Double.NaN );
 		final String path = fileDir( iteration );
-		if ( iteration == 0 )
-			createParentDirectory( path );
-		final LUTRealTransform tf = new LUTRealTransform( lut, 2, 2 );
-
-		final RealTransformRealRandomAccessible< T, InverseRealTransform > transformed = RealViews.transformReal( Views.interpolate( Views.extendValue( scaledMatrix, dummy ), new NLinearInterpolatorFactory<>() ), tf );
-		final double s = 1.0 / ( lut[ lut.length - 1 ] - lut[ 0 ] ) * lut.length;
-		final double o = -lut[ 0 ];
-		final ScaleAndTranslation scaleAndTranslation = new ScaleAndTranslation( new double[] { s, s }, new double[] { o, o } );
-		final IntervalView< T > offset = Views.interval( Views.raster( RealViews.transformReal( transformed, scaleAndTranslation ) ), scaledMatrix );
-		final RandomAccessibleInterval< T > strip = MatrixStripConversion.matrixToStrip( offset, range, dummy );
-		new FileSaver( ImageJFunctions.wrap( strip, "" ) ).saveAsTiff( path );
+		createParentDirectory( path );
+		final float[] strip = renderer.render( scaledMatrix, lut, range );
+		try
+		{
+			FloatTiffWriter.write( path, strip, 2 * range + 1, ( int ) scaledMatrix.dimension( 1 ) );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
 	}
 
 }
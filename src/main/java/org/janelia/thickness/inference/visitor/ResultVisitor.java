@@ -0,0 +1,54 @@
+package org.janelia.thickness.inference.visitor;
+
+import org.janelia.thickness.inference.Options;
+import org.janelia.thickness.inference.Result;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Keep copies of coordinates, scaling factors and correlation fit of the
+ * most recent iteration to create a {@link Result} bundle after the solve.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ResultVisitor implements Visitor
+{
+
+	private double[] lut = null;
+
+	private double[] scalingFactors = new double[ 0 ];
+
+	private RandomAccessibleInterval< double[] > fits = null;
+
+	private double[][] fitsArray = new double[ 0 ][];
+
+	@Override
+	public < T extends RealType< T > > void act(
+			final int iteration,
+			final RandomAccessibleInterval< T > matrix,
+			final RandomAccessibleInterval< T > scaledMatrix,
+			final double[] lut,
+			final int[] permutation,
+			final int[] inversePermutation,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > estimatedFit )
+	{
+		this.lut = lut.clone();
+		this.scalingFactors = multipliers.clone();
+		// fits are re-estimated in every iteration: copy lazily
+		this.fits = estimatedFit;
+		this.fitsArray = null;
+	}
+
+	public Result getResult( final Options options )
+	{
+		if ( lut == null )
+			throw new IllegalStateException( "No iteration visited." );
+		if ( fitsArray == null )
+			fitsArray = Result.toArray( fits );
+		return Result.create( options, lut, scalingFactors, fitsArray );
+	}
+
+}
@@ -0,0 +1,126 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.io.IOException;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Keep snapshots of the last {@code capacity} iterations in memory and pass
+ * them to the wrapped visitor only if the optimization diverges, i.e. the
+ * coordinates or multipliers contain non-finite values, or if {@link #dump()}
+ * is called explicitly, e.g. after the optimization failed with an exception.
+ * Snapshot buffers are re-used, so memory is bounded by {@code capacity}
+ * times the size of a single iteration.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class RingBufferVisitor implements Visitor, AutoCloseable
+{
+
+	private final Visitor visitor;
+
+	private final VisitorSnapshot[] snapshots;
+
+	private final int range;
+
+	private int start = 0;
+
+	private int size = 0;
+
+	private boolean diverged = false;
+
+	/**
+	 *
+	 * @param visitor
+	 *            receives buffered iterations on {@link #dump()}
+	 * @param capacity
+	 *            number of iterations to keep
+	 * @param range
+	 *            range of matrix strips, matrices are not kept if negative
+	 */
+	public RingBufferVisitor( final Visitor visitor, final int capacity, final int range )
+	{
+		super();
+		this.visitor = visitor;
+		this.snapshots = new VisitorSnapshot[ capacity ];
+		for ( int i = 0; i < capacity; ++i )
+			this.snapshots[ i ] = new VisitorSnapshot();
+		this.range = range;
+	}
+
+	@Override
+	public < T extends RealType< T > > void act(
+			final int iteration,
+			final RandomAccessibleInterval< T > matrix,
+			final RandomAccessibleInterval< T > scaledMatrix,
+			final double[] lut,
+			final int[] permutation,
+			final int[] inversePermutation,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > estimatedFit )
+	{
+		if ( diverged )
+		{
+			// keep reporting after divergence
+			visitor.act( iteration, matrix, scaledMatrix, lut, permutation, inversePermutation, multipliers, estimatedFit );
+			return;
+		}
+
+		final VisitorSnapshot snapshot;
+		if ( size < snapshots.length )
+		{
+			snapshot = snapshots[ ( start + size ) % snapshots.length ];
+			++size;
+		}
+		else
+		{
+			snapshot = snapshots[ start ];
+			start = ( start + 1 ) % snapshots.length;
+		}
+		snapshot.set( iteration, matrix, scaledMatrix, lut, permutation, inversePermutation, multipliers, estimatedFit, range );
+
+		if ( !isFinite( lut ) || !isFinite( multipliers ) )
+		{
+			diverged = true;
+			dump();
+		}
+	}
+
+	/**
+	 * Pass all buffered iterations to the wrapped visitor, oldest first, and
+	 * clear the buffer.
+	 */
+	public void dump()
+	{
+		for ( int i = 0; i < size; ++i )
+			snapshots[ ( start + i ) % snapshots.length ].visit( visitor );
+		start = 0;
+		size = 0;
+	}
+
+	public boolean hasDiverged()
+	{
+		return diverged;
+	}
+
+	/**
+	 * Close the wrapped visitor if it is {@link AutoCloseable}. Buffered
+	 * iterations are discarded.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		AutoCloseables.close( visitor );
+	}
+
+	private static boolean isFinite( final double[] data )
+	{
+		for ( final double d : data )
+			if ( Double.isNaN( d ) || Double.isInfinite( d ) )
+				return false;
+		return true;
+	}
+
+}
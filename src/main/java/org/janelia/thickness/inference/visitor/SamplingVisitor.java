@@ -0,0 +1,203 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.io.IOException;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Pass only a subset of iterations to the wrapped visitor, as selected by a
+ * {@link Policy}. If {@code withLast} is set, the most recent iteration is
+ * passed to the wrapped visitor on {@link #close()}, unless it was accepted
+ * already. This way, the final state is written even if the optimization
+ * terminates before {@code Options.nIterations}. Only coordinates,
+ * permutations and multipliers of the most recent iteration are copied, which
+ * is cheap compared to an iteration. Matrices and fits are passed as they are
+ * on {@link #close()}, i.e. as of the last iteration if the visitor is closed
+ * after the optimization returned.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class SamplingVisitor implements Visitor, AutoCloseable
+{
+
+	/**
+	 * Decide whether or not to pass an iteration to the wrapped visitor.
+	 * Policies may be stateful and must not be shared between visitors.
+	 */
+	public static interface Policy
+	{
+		boolean accept( int iteration, double[] lut, double[] multipliers );
+	}
+
+	/**
+	 * Accept every {@code k}th iteration, starting with the first.
+	 */
+	public static Policy everyKth( final int k )
+	{
+		return ( iteration, lut, multipliers ) -> iteration % k == 0;
+	}
+
+	/**
+	 * Accept iterations 0, 1, and then logarithmically spaced iterations, i.e.
+	 * each accepted iteration is at least {@code base} times the previously
+	 * accepted iteration.
+	 */
+	public static Policy logarithmic( final double base )
+	{
+		return new Policy()
+		{
+			private double next = 0;
+
+			@Override
+			public boolean accept( final int iteration, final double[] lut, final double[] multipliers )
+			{
+				if ( iteration < next )
+					return false;
+				next = Math.max( iteration + 1, Math.ceil( iteration * base ) );
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Accept only the first iteration. Use with {@code withLast} to get first
+	 * and last iteration.
+	 */
+	public static Policy first()
+	{
+		return ( iteration, lut, multipliers ) -> iteration == 0;
+	}
+
+	/**
+	 * Accept iterations for which any coordinate changed by more than
+	 * {@code epsilon} with respect to the last accepted iteration.
+	 */
+	public static Policy onChange( final double epsilon )
+	{
+		return new Policy()
+		{
+			private double[] previous = null;
+
+			@Override
+			public boolean accept( final int iteration, final double[] lut, final double[] multipliers )
+			{
+				if ( previous != null && previous.length == lut.length )
+				{
+					boolean changed = false;
+					for ( int i = 0; i < lut.length && !changed; ++i )
+						changed = !( Math.abs( lut[ i ] - previous[ i ] ) <= epsilon );
+					if ( !changed )
+						return false;
+					System.arraycopy( lut, 0, previous, 0, lut.length );
+				}
+				else
+					previous = lut.clone();
+				return true;
+			}
+		};
+	}
+
+	private final Visitor visitor;
+
+	private final Policy policy;
+
+	private final boolean withLast;
+
+	private final int range;
+
+	private int lastIteration;
+
+	private double[] lastLut = new double[ 0 ];
+
+	private int[] lastPermutation = new int[ 0 ];
+
+	private int[] lastInversePermutation = new int[ 0 ];
+
+	private double[] lastMultipliers = new double[ 0 ];
+
+	private Runnable last = null;
+
+	/**
+	 *
+	 * @param visitor
+	 *            wrapped visitor
+	 * @param policy
+	 *            selects iterations
+	 * @param withLast
+	 *            pass most recent iteration on {@link #close()} if it was not
+	 *            accepted by {@code policy}
+	 * @param range
+	 *            matrices are passed as {@code null} for the last iteration if
+	 *            negative
+	 */
+	public SamplingVisitor( final Visitor visitor, final Policy policy, final boolean withLast, final int range )
+	{
+		super();
+		this.visitor = visitor;
+		this.policy = policy;
+		this.withLast = withLast;
+		this.range = range;
+	}
+
+	public SamplingVisitor( final Visitor visitor, final Policy policy )
+	{
+		this( visitor, policy, false, -1 );
+	}
+
+	@Override
+	public < T extends RealType< T > > void act(
+			final int iteration,
+			final RandomAccessibleInterval< T > matrix,
+			final RandomAccessibleInterval< T > scaledMatrix,
+			final double[] lut,
+			final int[] permutation,
+			final int[] inversePermutation,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > estimatedFit )
+	{
+		if ( policy.accept( iteration, lut, multipliers ) )
+		{
+			visitor.act( iteration, matrix, scaledMatrix, lut, permutation, inversePermutation, multipliers, estimatedFit );
+			last = null;
+		}
+		else if ( withLast )
+		{
+			lastIteration = iteration;
+			lastLut = copy( lut, lastLut );
+			lastPermutation = copy( permutation, lastPermutation );
+			lastInversePermutation = copy( inversePermutation, lastInversePermutation );
+			lastMultipliers = copy( multipliers, lastMultipliers );
+			final RandomAccessibleInterval< T > lastMatrix = range < 0 ? null : matrix;
+			final RandomAccessibleInterval< T > lastScaledMatrix = range < 0 ? null : scaledMatrix;
+			last = () -> visitor.act( lastIteration, lastMatrix, lastScaledMatrix, lastLut, lastPermutation, lastInversePermutation, lastMultipliers, estimatedFit );
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if ( last != null )
+		{
+			last.run();
+			last = null;
+		}
+		AutoCloseables.close( visitor );
+	}
+
+	private static double[] copy( final double[] source, final double[] target )
+	{
+		final double[] result = target.length == source.length ? target : new double[ source.length ];
+		System.arraycopy( source, 0, result, 0, source.length );
+		return result;
+	}
+
+	private static int[] copy( final int[] source, final int[] target )
+	{
+		final int[] result = target.length == source.length ? target : new int[ source.length ];
+		System.arraycopy( source, 0, result, 0, source.length );
+		return result;
+	}
+
+}
@@ -0,0 +1,345 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.janelia.utility.MatrixStripConversion;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.list.ListImg;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Read traces written by {@link TraceVisitor}. The index in the footer is
+ * used if present. Otherwise, e.g. if the optimization did not finish, the
+ * records are collected by a sequential scan that stops at the first
+ * incomplete record.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class TraceReader implements AutoCloseable
+{
+
+	/**
+	 * State of a single iteration as passed to {@link Visitor#act}.
+	 */
+	public static class Record
+	{
+
+		public final int iteration;
+
+		public final double[] lut;
+
+		public final int[] permutation;
+
+		public final int[] inversePermutation;
+
+		public final double[] multipliers;
+
+		/**
+		 * {@code null} if no fits were passed to {@link TraceVisitor}.
+		 */
+		public final RandomAccessibleInterval< double[] > estimatedFit;
+
+		/**
+		 * Scaled matrix as strip of width {@code 2 * range + 1},
+		 * {@code null} if not stored.
+		 */
+		public final double[] scaledMatrixStrip;
+
+		public Record(
+				final int iteration,
+				final double[] lut,
+				final int[] permutation,
+				final int[] inversePermutation,
+				final double[] multipliers,
+				final RandomAccessibleInterval< double[] > estimatedFit,
+				final double[] scaledMatrixStrip )
+		{
+			super();
+			this.iteration = iteration;
+			this.lut = lut;
+			this.permutation = permutation;
+			this.inversePermutation = inversePermutation;
+			this.multipliers = multipliers;
+			this.estimatedFit = estimatedFit;
+			this.scaledMatrixStrip = scaledMatrixStrip;
+		}
+
+		/**
+		 * @return scaled matrix, NaN outside of strip, or {@code null} if not
+		 *         stored.
+		 */
+		public RandomAccessibleInterval< DoubleType > scaledMatrix()
+		{
+			if ( scaledMatrixStrip == null )
+				return null;
+			final int n = lut.length;
+			return MatrixStripConversion.stripToMatrix( ArrayImgs.doubles( scaledMatrixStrip, scaledMatrixStrip.length / n, n ) );
+		}
+
+	}
+
+	private final RandomAccessFile file;
+
+	private final boolean compressed;
+
+	private final int range;
+
+	private final int[] iterations;
+
+	private final long[] offsets;
+
+	private final Inflater inflater = new Inflater();
+
+	public TraceReader( final String path ) throws IOException
+	{
+		super();
+		this.file = new RandomAccessFile( path, "r" );
+		if ( file.length() < TraceVisitor.HEADER_SIZE || file.readInt() != TraceVisitor.MAGIC )
+		{
+			file.close();
+			throw new IOException( path + " is not a trace file." );
+		}
+		final int version = file.readInt();
+		if ( version != TraceVisitor.VERSION )
+		{
+			file.close();
+			throw new IOException( "Unsupported trace version: " + version );
+		}
+		this.compressed = file.readInt() != 0;
+		this.range = file.readInt();
+
+		final long length = file.length();
+		boolean hasIndex = false;
+		if ( length >= TraceVisitor.HEADER_SIZE + 8 + 12 )
+		{
+			file.seek( length - 4 );
+			hasIndex = file.readInt() == TraceVisitor.END;
+		}
+
+		if ( hasIndex )
+		{
+			file.seek( length - 12 );
+			file.seek( file.readLong() );
+			if ( file.readInt() != TraceVisitor.INDEX )
+				throw new IOException( "Corrupt trace index." );
+			final int size = file.readInt();
+			this.iterations = new int[ size ];
+			this.offsets = new long[ size ];
+			for ( int i = 0; i < size; ++i )
+			{
+				this.iterations[ i ] = file.readInt();
+				this.offsets[ i ] = file.readLong();
+			}
+		}
+		else
+		{
+			int[] iterations = new int[ 16 ];
+			long[] offsets = new long[ 16 ];
+			int size = 0;
+			long offset = TraceVisitor.HEADER_SIZE;
+			while ( offset + 16 <= length )
+			{
+				file.seek( offset );
+				if ( file.readInt() != TraceVisitor.RECORD )
+					break;
+				final int iteration = file.readInt();
+				file.readInt();
+				final int storedLength = file.readInt();
+				if ( offset + 16 + storedLength > length )
+					break;
+				if ( size == iterations.length )
+				{
+					iterations = Arrays.copyOf( iterations, 2 * size );
+					offsets = Arrays.copyOf( offsets, 2 * size );
+				}
+				iterations[ size ] = iteration;
+				offsets[ size ] = offset;
+				++size;
+				offset += 16 + storedLength;
+			}
+			this.iterations = Arrays.copyOf( iterations, size );
+			this.offsets = Arrays.copyOf( offsets, size );
+		}
+	}
+
+	public int size()
+	{
+		return iterations.length;
+	}
+
+	/**
+	 * @return range of stored scaled matrix strips, negative if matrices were
+	 *         not stored.
+	 */
+	public int getRange()
+	{
+		return range;
+	}
+
+	public int[] getIterations()
+	{
+		return iterations.clone();
+	}
+
+	/**
+	 * Read the {@code index}th record (not iteration).
+	 */
+	public Record read( final int index ) throws IOException
+	{
+		file.seek( offsets[ index ] );
+		if ( file.readInt() != TraceVisitor.RECORD )
+			throw new IOException( "Corrupt trace record at offset " + offsets[ index ] );
+		final int iteration = file.readInt();
+		final int rawLength = file.readInt();
+		final int storedLength = file.readInt();
+		final byte[] stored = new byte[ storedLength ];
+		file.readFully( stored );
+
+		final byte[] raw;
+		if ( compressed )
+		{
+			raw = new byte[ rawLength ];
+			inflater.reset();
+			inflater.setInput( stored );
+			try
+			{
+				if ( inflater.inflate( raw ) != rawLength )
+					throw new EOFException( "Truncated trace record for iteration " + iteration );
+			}
+			catch ( final DataFormatException e )
+			{
+				throw new IOException( e );
+			}
+		}
+		else
+			raw = stored;
+
+		final ByteBuffer buffer = ByteBuffer.wrap( raw, 0, rawLength );
+		final int n = buffer.getInt();
+		final double[] lut = getDoubles( buffer, n );
+		final int[] permutation = getInts( buffer, n );
+		final int[] inversePermutation = getInts( buffer, n );
+		final double[] multipliers = getDoubles( buffer, buffer.getInt() );
+
+		final long[] fitDimensions = new long[ buffer.getInt() ];
+		for ( int d = 0; d < fitDimensions.length; ++d )
+			fitDimensions[ d ] = buffer.getLong();
+		final RandomAccessibleInterval< double[] > estimatedFit;
+		if ( fitDimensions.length > 0 )
+		{
+			long nFits = 1;
+			for ( final long d : fitDimensions )
+				nFits *= d;
+			final ArrayList< double[] > fits = new ArrayList<>();
+			for ( long i = 0; i < nFits; ++i )
+				fits.add( getDoubles( buffer, buffer.getInt() ) );
+			estimatedFit = new ListImg<>( fits, fitDimensions );
+		}
+		else
+			estimatedFit = null;
+
+		final int stripSize = buffer.getInt();
+		final double[] strip = stripSize > 0 ? getDoubles( buffer, stripSize ) : null;
+
+		return new Record( iteration, lut, permutation, inversePermutation, multipliers, estimatedFit, strip );
+	}
+
+	/**
+	 * Pass all records to {@code visitor} in the order they were written. The
+	 * matrix is not stored and passed as {@code null}.
+	 */
+	public void replay( final Visitor visitor ) throws IOException
+	{
+		for ( int i = 0; i < size(); ++i )
+		{
+			final Record record = read( i );
+			visitor.act(
+					record.iteration,
+					null,
+					record.scaledMatrix(),
+					record.lut,
+					record.permutation,
+					record.inversePermutation,
+					record.multipliers,
+					record.estimatedFit );
+		}
+	}
+
+	/**
+	 * Write the trace in the directory layout used by the variables visitor of
+	 * the plugin: {@code correlation-fit/}, {@code scaling-factors/} and
+	 * {@code lut/} csv files and {@code matrices/} tif files (if matrices
+	 * were stored).
+	 */
+	public void toFiles( final String basePath ) throws IOException
+	{
+		int maxIteration = 0;
+		for ( final int iteration : iterations )
+			maxIteration = Math.max( iteration, maxIteration );
+
+		final ListVisitor lv = new ListVisitor();
+		final CorrelationFitVisitor fitVisitor = new CorrelationFitVisitor( basePath, "", ",", 0 );
+		fitVisitor.setRelativeFilePattern( "correlation-fit/", maxIteration, ".csv" );
+		lv.addVisitor( fitVisitor );
+		final ScalingFactorsVisitor scalingFactorsVisitor = new ScalingFactorsVisitor( basePath, "", "," );
+		scalingFactorsVisitor.setRelativeFilePattern( "scaling-factors/", maxIteration, ".csv" );
+		lv.addVisitor( scalingFactorsVisitor );
+		final LUTVisitor lutVisitor = new LUTVisitor( basePath, "", "," );
+		lutVisitor.setRelativeFilePattern( "lut/", maxIteration, ".csv" );
+		lv.addVisitor( lutVisitor );
+		if ( range >= 0 )
+		{
+			final MatrixVisitor matrixVisitor = new MatrixVisitor( basePath, "", range );
+			matrixVisitor.setRelativeFilePattern( "matrices/", maxIteration, ".tif" );
+			lv.addVisitor( matrixVisitor );
+		}
+		replay( lv );
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		inflater.end();
+		file.close();
+	}
+
+	private static double[] getDoubles( final ByteBuffer buffer, final int length )
+	{
+		final double[] data = new double[ length ];
+		buffer.asDoubleBuffer().get( data );
+		buffer.position( buffer.position() + 8 * length );
+		return data;
+	}
+
+	private static int[] getInts( final ByteBuffer buffer, final int length )
+	{
+		final int[] data = new int[ length ];
+		buffer.asIntBuffer().get( data );
+		buffer.position( buffer.position() + 4 * length );
+		return data;
+	}
+
+	public static void main( final String[] args ) throws IOException
+	{
+		if ( args.length != 2 )
+		{
+			System.err.println( "Usage: TraceReader <trace> <output directory>" );
+			System.exit( 1 );
+		}
+		try (TraceReader reader = new TraceReader( args[ 0 ] ))
+		{
+			reader.toFiles( args[ 1 ] );
+		}
+	}
+
+}
@@ -0,0 +1,266 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.janelia.utility.MatrixStripConversion;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Append the state of all iterations to a single binary trace file instead of
+ * one text file per iteration and variable. Read the trace with
+ * {@link TraceReader}, which can also convert it into the directory layout
+ * of {@link LUTVisitor}, {@link ScalingFactorsVisitor},
+ * {@link CorrelationFitVisitor} and {@link MatrixVisitor}.
+ *
+ * Layout (big endian):
+ * <ul>
+ * <li>header: {@link #MAGIC}, {@link #VERSION}, compression flag (int), range
+ * (int)</li>
+ * <li>one record per iteration: {@link #RECORD}, iteration (int), raw length
+ * (int), stored length (int), payload (deflated if compression flag is
+ * set)</li>
+ * <li>footer, written on {@link #close()}: {@link #INDEX}, number of records
+ * (int), (iteration (int), offset (long)) for each record, offset of index
+ * (long), {@link #END}</li>
+ * </ul>
+ * The payload holds n (int), the LUT, permutation, inverse permutation and
+ * multipliers, the dimensions of the estimated fits and each fit as length
+ * followed by its values, and the scaled matrix as strip of width
+ * {@code 2 * range + 1} (empty if {@code range < 0}). Traces without footer,
+ * e.g. after a crash, can still be read sequentially.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class TraceVisitor implements Visitor, AutoCloseable
+{
+
+	public static final int MAGIC = 0x5A535452; // ZSTR
+
+	public static final int VERSION = 1;
+
+	public static final int RECORD = 0x52454344; // RECD
+
+	public static final int INDEX = 0x494E4458; // INDX
+
+	public static final int END = 0x454E4421; // END!
+
+	public static final int HEADER_SIZE = 16;
+
+	private final DataOutputStream out;
+
+	private final boolean compress;
+
+	private final int range;
+
+	private final Deflater deflater;
+
+	private int[] iterations = new int[ 16 ];
+
+	private long[] offsets = new long[ 16 ];
+
+	private int nRecords = 0;
+
+	private long position;
+
+	private ByteBuffer raw = ByteBuffer.allocate( 1 << 16 );
+
+	private byte[] deflated = new byte[ 1 << 16 ];
+
+	private boolean closed = false;
+
+	/**
+	 *
+	 * @param path
+	 *            trace file, will be overwritten
+	 * @param range
+	 *            store scaled matrix as strip with this range, do not store
+	 *            matrix if negative
+	 * @param compress
+	 *            deflate records
+	 * @throws IOException
+	 */
+	public TraceVisitor( final String path, final int range, final boolean compress ) throws IOException
+	{
+		super();
+		this.out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( path ), 1 << 16 ) );
+		this.range = range;
+		this.compress = compress;
+		this.deflater = compress ? new Deflater( Deflater.BEST_SPEED ) : null;
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		out.writeInt( compress ? 1 : 0 );
+		out.writeInt( range );
+		this.position = HEADER_SIZE;
+	}
+
+	public TraceVisitor( final String path, final int range ) throws IOException
+	{
+		this( path, range, true );
+	}
+
+	@Override
+	public < T extends RealType< T > > void act(
+			final int iteration,
+			final RandomAccessibleInterval< T > matrix,
+			final RandomAccessibleInterval< T > scaledMatrix,
+			final double[] lut,
+			final int[] permutation,
+			final int[] inversePermutation,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > estimatedFit )
+	{
+		try
+		{
+			encode( scaledMatrix, lut, permutation, inversePermutation, multipliers, estimatedFit );
+			final int rawLength = raw.position();
+			final byte[] stored;
+			final int storedLength;
+			if ( compress )
+			{
+				deflater.reset();
+				deflater.setInput( raw.array(), 0, rawLength );
+				deflater.finish();
+				int length = 0;
+				while ( !deflater.finished() )
+				{
+					if ( length == deflated.length )
+						deflated = Arrays.copyOf( deflated, 2 * deflated.length );
+					length += deflater.deflate( deflated, length, deflated.length - length );
+				}
+				stored = deflated;
+				storedLength = length;
+			}
+			else
+			{
+				stored = raw.array();
+				storedLength = rawLength;
+			}
+
+			if ( nRecords == iterations.length )
+			{
+				iterations = Arrays.copyOf( iterations, 2 * nRecords );
+				offsets = Arrays.copyOf( offsets, 2 * nRecords );
+			}
+			iterations[ nRecords ] = iteration;
+			offsets[ nRecords ] = position;
+			++nRecords;
+			out.writeInt( RECORD );
+			out.writeInt( iteration );
+			out.writeInt( rawLength );
+			out.writeInt( storedLength );
+			out.write( stored, 0, storedLength );
+			position += 16 + storedLength;
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if ( closed )
+			return;
+		closed = true;
+		try
+		{
+			final long indexOffset = position;
+			out.writeInt( INDEX );
+			out.writeInt( nRecords );
+			for ( int i = 0; i < nRecords; ++i )
+			{
+				out.writeInt( iterations[ i ] );
+				out.writeLong( offsets[ i ] );
+			}
+			out.writeLong( indexOffset );
+			out.writeInt( END );
+		}
+		finally
+		{
+			out.close();
+			if ( deflater != null )
+				deflater.end();
+		}
+	}
+
+	private < T extends RealType< T > > void encode(
+			final RandomAccessibleInterval< T > scaledMatrix,
+			final double[] lut,
+			final int[] permutation,
+			final int[] inversePermutation,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > estimatedFit )
+	{
+		final int n = lut.length;
+		final int stripSize = range < 0 || scaledMatrix == null ? 0 : ( 2 * range + 1 ) * n;
+		long size = 4 + 16l * n + 4 + 8l * multipliers.length + 4 + 4 + 8l * stripSize;
+		final long[] fitDimensions = estimatedFit == null ? new long[ 0 ] : Intervals.dimensionsAsLongArray( estimatedFit );
+		size += 8l * fitDimensions.length;
+		if ( estimatedFit != null )
+			for ( final double[] fit : Views.flatIterable( estimatedFit ) )
+				size += 4 + 8l * fit.length;
+		ensureCapacity( size );
+
+		raw.clear();
+		raw.putInt( n );
+		raw.asDoubleBuffer().put( lut );
+		raw.position( raw.position() + 8 * n );
+		raw.asIntBuffer().put( permutation );
+		raw.position( raw.position() + 4 * n );
+		raw.asIntBuffer().put( inversePermutation );
+		raw.position( raw.position() + 4 * n );
+		raw.putInt( multipliers.length );
+		raw.asDoubleBuffer().put( multipliers );
+		raw.position( raw.position() + 8 * multipliers.length );
+
+		raw.putInt( fitDimensions.length );
+		for ( final long d : fitDimensions )
+			raw.putLong( d );
+		if ( estimatedFit != null )
+			for ( final double[] fit : Views.flatIterable( estimatedFit ) )
+			{
+				raw.putInt( fit.length );
+				raw.asDoubleBuffer().put( fit );
+				raw.position( raw.position() + 8 * fit.length );
+			}
+
+		raw.putInt( stripSize );
+		if ( stripSize > 0 )
+		{
+			final Cursor< T > cursor = Views.flatIterable( MatrixStripConversion.matrixToStrip( scaledMatrix, range ) ).cursor();
+			while ( cursor.hasNext() )
+				raw.putDouble( cursor.next().getRealDouble() );
+		}
+	}
+
+	private void ensureCapacity( final long size )
+	{
+		if ( size > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Record too large: " + size + " bytes." );
+		if ( size > raw.capacity() )
+		{
+			raw = ByteBuffer.allocate( ( int ) Math.min( Integer.MAX_VALUE, Math.max( size, 2l * raw.capacity() ) ) );
+			deflated = new byte[ raw.capacity() ];
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.util.ArrayList;
+
+import org.janelia.utility.MatrixStripConversion;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.list.ListImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Primitive copy of the state passed to {@link Visitor#act}. Buffers are
+ * re-used if the sizes do not change. Matrices are copied as strips of width
+ * {@code 2 * range + 1} and only if {@code range >= 0}.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+class VisitorSnapshot
+{
+
+	private int iteration;
+
+	private double[] lut = new double[ 0 ];
+
+	private int[] permutation = new int[ 0 ];
+
+	private int[] inversePermutation = new int[ 0 ];
+
+	private double[] multipliers = new double[ 0 ];
+
+	private double[] matrixStrip;
+
+	private double[] scaledMatrixStrip;
+
+	private double[][] fits;
+
+	private long[] fitsDimensions;
+
+	private boolean hasFits;
+
+	private int range = -1;
+
+	< T extends RealType< T > > void set(
+			final int iteration,
+			final RandomAccessibleInterval< T > matrix,
+			final RandomAccessibleInterval< T > scaledMatrix,
+			final double[] lut,
+			final int[] permutation,
+			final int[] inversePermutation,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > estimatedFit,
+			final int range )
+	{
+		this.iteration = iteration;
+		this.range = range;
+		this.lut = copy( lut, this.lut );
+		this.permutation = copy( permutation, this.permutation );
+		this.inversePermutation = copy( inversePermutation, this.inversePermutation );
+		this.multipliers = copy( multipliers, this.multipliers );
+
+		if ( range >= 0 )
+		{
+			this.matrixStrip = matrix == null ? null : copyStrip( matrix, range, this.matrixStrip );
+			this.scaledMatrixStrip = scaledMatrix == null ? null : copyStrip( scaledMatrix, range, this.scaledMatrixStrip );
+		}
+
+		this.hasFits = estimatedFit != null;
+		if ( this.hasFits )
+		{
+			final int size = ( int ) Intervals.numElements( estimatedFit );
+			this.fitsDimensions = Intervals.dimensionsAsLongArray( estimatedFit );
+			if ( this.fits == null || this.fits.length != size )
+				this.fits = new double[ size ][];
+			int i = 0;
+			for ( final double[] fit : Views.flatIterable( estimatedFit ) )
+			{
+				this.fits[ i ] = copy( fit, this.fits[ i ] );
+				++i;
+			}
+		}
+	}
+
+	int getIteration()
+	{
+		return iteration;
+	}
+
+	double[] getLut()
+	{
+		return lut;
+	}
+
+	double[] getMultipliers()
+	{
+		return multipliers;
+	}
+
+	void visit( final Visitor visitor )
+	{
+		final RandomAccessibleInterval< DoubleType > matrix = toMatrix( matrixStrip );
+		final RandomAccessibleInterval< DoubleType > scaledMatrix = toMatrix( scaledMatrixStrip );
+
+		final RandomAccessibleInterval< double[] > estimatedFit;
+		if ( hasFits )
+		{
+			final ArrayList< double[] > list = new ArrayList<>( fits.length );
+			for ( final double[] fit : fits )
+				list.add( fit );
+			estimatedFit = new ListImg<>( list, fitsDimensions );
+		}
+		else
+			estimatedFit = null;
+
+		visitor.act( iteration, matrix, scaledMatrix, lut, permutation, inversePermutation, multipliers, estimatedFit );
+	}
+
+	private RandomAccessibleInterval< DoubleType > toMatrix( final double[] strip )
+	{
+		if ( range < 0 || strip == null )
+			return null;
+		return MatrixStripConversion.stripToMatrix( ArrayImgs.doubles( strip, 2 * range + 1, lut.length ), new DoubleType( Double.NaN ) );
+	}
+
+	private static double[] copy( final double[] source, final double[] target )
+	{
+		final double[] result = target == null || target.length != source.length ? new double[ source.length ] : target;
+		System.arraycopy( source, 0, result, 0, source.length );
+		return result;
+	}
+
+	private static int[] copy( final int[] source, final int[] target )
+	{
+		final int[] result = target == null || target.length != source.length ? new int[ source.length ] : target;
+		System.arraycopy( source, 0, result, 0, source.length );
+		return result;
+	}
+
+	private static < T extends RealType< T > > double[] copyStrip( final RandomAccessibleInterval< T > matrix, final int range, final double[] target )
+	{
+		final int size = ( 2 * range + 1 ) * ( int ) matrix.dimension( 1 );
+		final double[] result = target == null || target.length != size ? new double[ size ] : target;
+		final Cursor< T > cursor = Views.flatIterable( MatrixStripConversion.matrixToStrip( matrix, range ) ).cursor();
+		for ( int i = 0; cursor.hasNext(); ++i )
+			result[ i ] = cursor.next().getRealDouble();
+		return result;
+	}
+
+}
+
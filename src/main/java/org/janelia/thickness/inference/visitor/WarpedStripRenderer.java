@@ -0,0 +1,112 @@
+package org.janelia.thickness.inference.visitor;
+
+import org.janelia.thickness.lut.LUTRealTransform;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Render a (scaled) matrix warped by the current coordinate transform as
+ * strip of width {@code 2 * range + 1}, equivalent to sampling
+ *
+ * <pre>
+ * matrixToStrip( raster( transformReal( transformReal( interpolate(
+ * 		extendValue( matrix, NaN ), NLinear ), lut ), scaleAndTranslation ) ),
+ * 		range )
+ * </pre>
+ *
+ * as formerly done in {@link MatrixVisitor}, but with all lookups and the
+ * bilinear interpolation in primitive code. The transformed coordinates are
+ * computed once per matrix row/column and the float output buffer is re-used
+ * as long as the strip size does not change.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class WarpedStripRenderer
+{
+
+	private float[] strip = new float[ 0 ];
+
+	private double[] positions = new double[ 0 ];
+
+	/**
+	 *
+	 * @param matrix
+	 *            square matrix with zero min, extended by NaN
+	 * @return strip with {@code 2 * range + 1} columns and {@code n} rows in
+	 *         row-major order. The buffer is owned by this renderer and
+	 *         overwritten by the next call.
+	 */
+	public < T extends RealType< T > > float[] render(
+			final RandomAccessibleInterval< T > matrix,
+			final double[] lut,
+			final int range )
+	{
+		final int n = ( int ) matrix.dimension( 1 );
+		final int width = 2 * range + 1;
+		if ( strip.length != width * n )
+			strip = new float[ width * n ];
+		if ( positions.length != n )
+			positions = new double[ n ];
+
+		// same transformation for both dimensions: scale and translation into
+		// lut space followed by inverse lut lookup
+		final LUTRealTransform tf = new LUTRealTransform( lut, 1, 1 );
+		final double s = 1.0 / ( lut[ lut.length - 1 ] - lut[ 0 ] ) * lut.length;
+		final double o = -lut[ 0 ];
+		final double[] source = new double[ 1 ];
+		final double[] target = new double[ 1 ];
+		for ( int q = 0; q < n; ++q )
+		{
+			target[ 0 ] = ( q - o ) / s;
+			tf.applyInverse( source, target );
+			positions[ q ] = source[ 0 ];
+		}
+
+		// bilinear interpolation needs both neighbors within the matrix
+		final int maxPosition = n - 1;
+		final RandomAccess< T > access = matrix.randomAccess();
+		for ( int y = 0, index = 0; y < n; ++y )
+		{
+			final double py = positions[ y ];
+			final boolean validY = py >= 0 && py < maxPosition;
+			final int fy = validY ? ( int ) py : 0;
+			final double wy = py - fy;
+			for ( int sx = 0; sx < width; ++sx, ++index )
+			{
+				final int x = sx - range + y;
+				if ( !validY || x < 0 || x >= n )
+				{
+					strip[ index ] = Float.NaN;
+					continue;
+				}
+				final double px = positions[ x ];
+				if ( !( px >= 0 && px < maxPosition ) )
+				{
+					strip[ index ] = Float.NaN;
+					continue;
+				}
+				final int fx = ( int ) px;
+				final double wx = px - fx;
+
+				// NLinear interpolation: corners with zero weight contribute
+				// (NaN * 0 = NaN)
+				access.setPosition( fx, 0 );
+				access.setPosition( fy, 1 );
+				final double v00 = access.get().getRealDouble();
+				access.fwd( 0 );
+				final double v10 = access.get().getRealDouble();
+				access.fwd( 1 );
+				final double v11 = access.get().getRealDouble();
+				access.bck( 0 );
+				final double v01 = access.get().getRealDouble();
+
+				strip[ index ] = ( float ) ( ( 1.0 - wy ) * ( ( 1.0 - wx ) * v00 + wx * v10 ) + wy * ( ( 1.0 - wx ) * v01 + wx * v11 ) );
+			}
+		}
+		return strip;
+	}
+
+}
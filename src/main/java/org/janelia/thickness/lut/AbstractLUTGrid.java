@@ -33,7 +33,8 @@ public abstract class AbstractLUTGrid implements InvertibleRealTransform
 												// the transform
 
 	/**
-	 * NOT THREADSAFE, AS TO MEMBER 'access' -- THINK ABOUT CHANGING IT!!
+	 * NOT THREADSAFE, AS TO MEMBER 'access' -- use {@link #copy()} for each
+	 * thread, which is cheap and shares the LUTs.
 	 */
 	protected final int lutMaxIndex; // max index of the look-up table
 
@@ -104,6 +105,27 @@ public abstract class AbstractLUTGrid implements InvertibleRealTransform
 
 	}
 
+	/**
+	 * Cheap copy for use in another thread: shares the LUTs and the
+	 * interpolated coefficients with {@code other} and only creates a new
+	 * {@link RealRandomAccess}.
+	 */
+	protected AbstractLUTGrid( final AbstractLUTGrid other )
+	{
+		super();
+		this.numSourceDimensions = other.numSourceDimensions;
+		this.numTargetDimensions = other.numTargetDimensions;
+		this.lutArray = other.lutArray;
+		this.dimensions = other.dimensions;
+		this.nNonTransformedCoordinates = other.nNonTransformedCoordinates;
+		this.lutMaxIndex = other.lutMaxIndex;
+		this.scale = other.scale;
+		this.shift = other.shift;
+		this.coefficients = other.coefficients;
+		this.access = this.coefficients.realRandomAccess();
+		this.currentLut = this.access.get();
+	}
+
 	@Override
 	public int numSourceDimensions()
 	{
@@ -208,6 +230,20 @@ public abstract class AbstractLUTGrid implements InvertibleRealTransform
 		return this.access.get().get( this.lutMaxIndex ).get();
 	}
 
+	/**
+	 * Stateful {@link LUTCursor} on a copy of the interpolated LUT at
+	 * {@code gridCoordinates} for fast lookups at monotone positions.
+	 */
+	public LUTCursor cursor( final double[] gridCoordinates )
+	{
+		this.updateCoordinates( gridCoordinates );
+		this.currentLut = this.access.get();
+		final double[] lut = new double[ this.lutMaxIndex + 1 ];
+		for ( int i = 0; i < lut.length; ++i )
+			lut[ i ] = this.currentLut.get( i ).get();
+		return new LUTCursor( lut );
+	}
+
 	protected void updateCoordinates( final double[] gridCoordinates )
 	{
 		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
@@ -97,6 +97,15 @@ abstract public class AbstractLUTRealTransform implements InvertibleRealTransfor
 			return applyInverse( y );
 	}
 
+	/**
+	 * Stateful {@link LUTCursor} on the LUT of this transform for fast
+	 * lookups at monotone positions.
+	 */
+	public LUTCursor cursor()
+	{
+		return new LUTCursor( lut );
+	}
+
 	public double minTransformedCoordinate()
 	{
 		return lut[ 0 ];
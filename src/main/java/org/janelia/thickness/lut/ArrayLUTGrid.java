@@ -0,0 +1,436 @@
+package org.janelia.thickness.lut;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InverseRealTransform;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Primitive equivalent of {@link LUTGrid}: the LUTs are stored in a flat
+ * {@code double[]}, one contiguous LUT per grid cell, and LUTs at off-grid
+ * positions are blended from the 2^d neighboring grid LUTs on the fly with
+ * weights that are only re-computed when the grid position changes. Behaves
+ * like {@link LUTGrid} with N-linear interpolation and border extension of
+ * the grid, including the scale and shift of the grid.
+ *
+ * Not threadsafe, use {@link #copy()} per thread. Copies share the LUT data.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ArrayLUTGrid implements InvertibleRealTransform
+{
+
+	protected final int numSourceDimensions;
+
+	protected final int numTargetDimensions;
+
+	protected final int nNonTransformedCoordinates;
+
+	protected final long[] gridDimensions;
+
+	protected final int lutLength;
+
+	protected final int lutMaxIndex;
+
+	// data[ cell * lutLength + i ], cell is flat index into grid
+	protected final double[] data;
+
+	protected final double[] scale;
+
+	protected final double[] shift;
+
+	private final int nCorners;
+
+	// offset of first LUT entry and weight of each corner for current position
+	private final int[] cornerOffsets;
+
+	private final double[] cornerWeights;
+
+	private final double[] position;
+
+	private final int[] floor;
+
+	private final double[] fraction;
+
+	private final long[] strides;
+
+	private boolean positionChanged;
+
+	public ArrayLUTGrid(
+			final int numSourceDimensions,
+			final int numTargetDimensions,
+			final RandomAccessibleInterval< DoubleType > lutArray )
+	{
+		this( numSourceDimensions, numTargetDimensions, lutArray, new double[] { 1.0 }, new double[] { 0.0 } );
+	}
+
+	public ArrayLUTGrid(
+			final int numSourceDimensions,
+			final int numTargetDimensions,
+			final RandomAccessibleInterval< DoubleType > lutArray,
+			final double[] scale,
+			final double[] shift )
+	{
+		this( numSourceDimensions, numTargetDimensions, toArray( lutArray ), gridDimensions( lutArray ), scale, shift );
+	}
+
+	/**
+	 * @param data
+	 *            one contiguous LUT per grid cell, grid cells in flat
+	 *            iteration order. Not copied.
+	 */
+	public ArrayLUTGrid(
+			final int numSourceDimensions,
+			final int numTargetDimensions,
+			final double[] data,
+			final long[] gridDimensions,
+			final double[] scale,
+			final double[] shift )
+	{
+		super();
+		this.numSourceDimensions = numSourceDimensions;
+		this.numTargetDimensions = numTargetDimensions;
+		this.nNonTransformedCoordinates = gridDimensions.length;
+		this.gridDimensions = gridDimensions.clone();
+		this.data = data;
+
+		this.strides = new long[ this.nNonTransformedCoordinates ];
+		long nCells = 1;
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+		{
+			this.strides[ d ] = nCells;
+			nCells *= gridDimensions[ d ];
+		}
+		assert data.length % nCells == 0: "Data length not a multiple of grid size.";
+		this.lutLength = ( int ) ( data.length / nCells );
+		this.lutMaxIndex = this.lutLength - 1;
+
+		this.scale = new double[ this.nNonTransformedCoordinates ];
+		this.shift = new double[ this.nNonTransformedCoordinates ];
+		copyAndFillIfNecessary( scale, this.scale );
+		copyAndFillIfNecessary( shift, this.shift );
+
+		this.nCorners = 1 << this.nNonTransformedCoordinates;
+		this.cornerOffsets = new int[ this.nCorners ];
+		this.cornerWeights = new double[ this.nCorners ];
+		this.position = new double[ this.nNonTransformedCoordinates ];
+		this.floor = new int[ this.nNonTransformedCoordinates ];
+		this.fraction = new double[ this.nNonTransformedCoordinates ];
+		Arrays.fill( this.position, Double.NaN );
+		this.updateCoordinates( new double[ this.nNonTransformedCoordinates ] );
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return this.numSourceDimensions;
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return this.numTargetDimensions;
+	}
+
+	/**
+	 * Interpolated LUT value at index {@code i} for the current grid position.
+	 */
+	protected double get( final int i )
+	{
+		double value = this.cornerWeights[ 0 ] * this.data[ this.cornerOffsets[ 0 ] + i ];
+		for ( int c = 1; c < this.nCorners; ++c )
+			value += this.cornerWeights[ c ] * this.data[ this.cornerOffsets[ c ] + i ];
+		return value;
+	}
+
+	protected double apply( final double lutCoordinate )
+	{
+		final int zFloor = ( int ) lutCoordinate;
+
+		final double floorVal = get( zFloor );
+		final double nextVal = get( zFloor + 1 );
+		final double dz = lutCoordinate - zFloor;
+
+		return ( nextVal - floorVal ) * dz + floorVal;
+	}
+
+	protected double applyChecked( final double lutCoordinate )
+	{
+		if ( lutCoordinate < 0 )
+			return -Double.MAX_VALUE;
+		else if ( lutCoordinate > this.lutMaxIndex )
+			return Double.MAX_VALUE;
+		else if ( lutCoordinate == this.lutMaxIndex )
+			return get( this.lutMaxIndex );
+		else
+			return apply( lutCoordinate );
+	}
+
+	/**
+	 * Implemented as bin-search on the interpolated LUT.
+	 */
+	protected int findFloorIndex( final double realLutCoordinate )
+	{
+		int min = 0;
+		int max = this.lutMaxIndex;
+		int i = max >> 1;
+		do
+		{
+			if ( get( i ) > realLutCoordinate )
+				max = i;
+			else
+				min = i;
+			i = ( ( max + min ) >> 1 );
+		}
+		while ( i != min );
+		return i;
+	}
+
+	public double applyInverse( final double realLutCoordinate )
+	{
+		final int i = this.findFloorIndex( realLutCoordinate );
+
+		final double realZ1 = get( i );
+		final double realZ2 = get( i + 1 );
+
+		return ( realLutCoordinate - realZ1 ) / ( realZ2 - realZ1 ) + i;
+	}
+
+	public double applyInverseChecked( final double realLutCoordinate )
+	{
+		if ( realLutCoordinate < get( 0 ) )
+			return -Double.MAX_VALUE;
+		if ( realLutCoordinate > get( this.lutMaxIndex ) )
+			return Double.MAX_VALUE;
+		else
+			return this.applyInverse( realLutCoordinate );
+	}
+
+	public double minTransformedCoordinate( final double[] gridCoordinates )
+	{
+		this.updateCoordinates( gridCoordinates );
+		return get( 0 );
+	}
+
+	public double maxTransformedCoordinate( final double[] gridCoordinates )
+	{
+		this.updateCoordinates( gridCoordinates );
+		return get( this.lutMaxIndex );
+	}
+
+	/**
+	 * Stateful {@link LUTCursor} on a copy of the interpolated LUT at
+	 * {@code gridCoordinates} for fast lookups at monotone positions.
+	 */
+	public LUTCursor cursor( final double[] gridCoordinates )
+	{
+		this.updateCoordinates( gridCoordinates );
+		final double[] lut = new double[ this.lutLength ];
+		for ( int i = 0; i < lut.length; ++i )
+			lut[ i ] = get( i );
+		return new LUTCursor( lut );
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		this.updateCoordinates( source );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			target[ d ] = source[ d ];
+		for ( int d = this.nNonTransformedCoordinates; d < target.length; ++d )
+			target[ d ] = this.applyChecked( source[ d ] );
+	}
+
+	@Override
+	public void apply( final float[] source, final float[] target )
+	{
+		this.updateCoordinates( source );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			target[ d ] = source[ d ];
+		for ( int d = this.nNonTransformedCoordinates; d < target.length; ++d )
+			target[ d ] = ( float ) this.applyChecked( source[ d ] );
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		this.updateCoordinates( source );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			target.setPosition( source.getDoublePosition( d ), d );
+		for ( int d = this.nNonTransformedCoordinates; d < target.numDimensions(); ++d )
+			target.setPosition( this.applyChecked( source.getDoublePosition( d ) ), d );
+	}
+
+	@Override
+	public void applyInverse( final double[] source, final double[] target )
+	{
+		this.updateCoordinates( target );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			source[ d ] = target[ d ];
+		for ( int d = this.nNonTransformedCoordinates; d < target.length; ++d )
+			source[ d ] = this.applyInverseChecked( target[ d ] );
+	}
+
+	@Override
+	public void applyInverse( final float[] source, final float[] target )
+	{
+		this.updateCoordinates( target );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			source[ d ] = target[ d ];
+		for ( int d = this.nNonTransformedCoordinates; d < target.length; ++d )
+			source[ d ] = ( float ) this.applyInverseChecked( target[ d ] );
+	}
+
+	/**
+	 * Same as {@link LUTGrid#applyInverse(RealPositionable, RealLocalizable)},
+	 * including the shift by -1e-10 of positive coordinates.
+	 */
+	@Override
+	public void applyInverse( final RealPositionable source, final RealLocalizable target )
+	{
+		final double epsilon = 1e-10;
+		this.updateCoordinates( target );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+		{
+			final double pos = target.getDoublePosition( d );
+			final double dPos = pos - epsilon;
+			source.setPosition( dPos > 0 ? dPos : pos, d );
+		}
+		for ( int d = this.nNonTransformedCoordinates; d < target.numDimensions(); ++d )
+		{
+			final double pos = this.applyInverseChecked( target.getDoublePosition( d ) );
+			final double dPos = pos - epsilon;
+			source.setPosition( dPos > 0 ? dPos : pos, d );
+		}
+	}
+
+	@Override
+	public InvertibleRealTransform inverse()
+	{
+		return new InverseRealTransform( this );
+	}
+
+	/**
+	 * Shares the LUT data.
+	 */
+	@Override
+	public ArrayLUTGrid copy()
+	{
+		return new ArrayLUTGrid( numSourceDimensions, numTargetDimensions, data, gridDimensions, scale, shift );
+	}
+
+	public ArrayLUTGrid reScale( final double... scale )
+	{
+		final double[] sc = new double[ this.scale.length ];
+		copyAndFillIfNecessary( scale, sc );
+		return new ArrayLUTGrid( numSourceDimensions, numTargetDimensions, data, gridDimensions, sc, shift );
+	}
+
+	public ArrayLUTGrid reShift( final double... shift )
+	{
+		final double[] sh = new double[ this.shift.length ];
+		copyAndFillIfNecessary( shift, sh );
+		return new ArrayLUTGrid( numSourceDimensions, numTargetDimensions, data, gridDimensions, scale, sh );
+	}
+
+	protected void updateCoordinates( final double[] gridCoordinates )
+	{
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			this.setPosition( gridCoordinates[ d ], d );
+		this.updateWeights();
+	}
+
+	protected void updateCoordinates( final float[] gridCoordinates )
+	{
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			this.setPosition( gridCoordinates[ d ], d );
+		this.updateWeights();
+	}
+
+	protected void updateCoordinates( final RealLocalizable gridCoordinates )
+	{
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			this.setPosition( gridCoordinates.getDoublePosition( d ), d );
+		this.updateWeights();
+	}
+
+	private void setPosition( final double gridCoordinate, final int d )
+	{
+		if ( this.position[ d ] != gridCoordinate )
+		{
+			this.position[ d ] = gridCoordinate;
+			final double p = ( gridCoordinate - this.shift[ d ] ) / this.scale[ d ];
+			final double f = Math.floor( p );
+			this.floor[ d ] = ( int ) f;
+			this.fraction[ d ] = p - f;
+			this.positionChanged = true;
+		}
+	}
+
+	private void updateWeights()
+	{
+		if ( !this.positionChanged )
+			return;
+		for ( int c = 0; c < this.nCorners; ++c )
+		{
+			long cell = 0;
+			double weight = 1.0;
+			for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			{
+				final boolean upper = ( c & ( 1 << d ) ) != 0;
+				// border extension
+				final long index = Math.min( Math.max( this.floor[ d ] + ( upper ? 1 : 0 ), 0 ), this.gridDimensions[ d ] - 1 );
+				cell += index * this.strides[ d ];
+				weight *= upper ? this.fraction[ d ] : 1.0 - this.fraction[ d ];
+			}
+			this.cornerOffsets[ c ] = ( int ) ( cell * this.lutLength );
+			this.cornerWeights[ c ] = weight;
+		}
+		this.positionChanged = false;
+	}
+
+	private static void copyAndFillIfNecessary( final double[] source, final double[] target )
+	{
+		final int range = Math.min( source.length, target.length );
+		for ( int i = 0; i < range; ++i )
+			target[ i ] = source[ i ];
+		for ( int i = range; i < target.length; ++i )
+			target[ i ] = source[ source.length - 1 ];
+	}
+
+	private static long[] gridDimensions( final RandomAccessibleInterval< DoubleType > lutArray )
+	{
+		final long[] dimensions = new long[ lutArray.numDimensions() - 1 ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			dimensions[ d ] = lutArray.dimension( d );
+		return dimensions;
+	}
+
+	/**
+	 * Re-arrange {@code lutArray} such that the LUT of each grid cell is
+	 * contiguous.
+	 */
+	public static double[] toArray( final RandomAccessibleInterval< DoubleType > lutArray )
+	{
+		final int lutDimension = lutArray.numDimensions() - 1;
+		final long lutLength = lutArray.dimension( lutDimension );
+		long nCells = 1;
+		for ( int d = 0; d < lutDimension; ++d )
+			nCells *= lutArray.dimension( d );
+		final double[] data = new double[ ( int ) ( nCells * lutLength ) ];
+		final Cursor< DoubleType > cursor = Views.flatIterable( lutArray ).cursor();
+		// flat iteration: grid dimensions fastest, LUT dimension slowest
+		for ( int i = 0; i < lutLength; ++i )
+			for ( int cell = 0; cell < nCells; ++cell )
+				data[ cell * ( int ) lutLength + i ] = cursor.next().get();
+		return data;
+	}
+
+}
@@ -0,0 +1,230 @@
+package org.janelia.thickness.lut;
+
+/**
+ * Stateful forward and inverse evaluation of a LUT. For a monotonically
+ * increasing LUT, remembers the last bracket [lut[i], lut[i+1]] of an inverse
+ * lookup and starts the next search from there, advancing linearly to the
+ * neighboring bracket or galloping for larger jumps. Lookups at monotone
+ * positions, as they occur when walking along a row of the similarity matrix
+ * or over the sections of a stack, are thus amortized O(1) instead of
+ * O(log n) for {@link AbstractLUTRealTransform#findFloorIndex(double)}. LUTs
+ * that are not monotonically increasing, e.g. correlation fits without
+ * {@link org.janelia.thickness.inference.Options#forceMonotonicity}, fall back
+ * to the bisection of {@link AbstractLUTRealTransform}. Results are identical
+ * to those of {@link AbstractLUTRealTransform} in both cases, except for
+ * monotonically increasing LUTs that end in {@code NaN}, e.g. correlation fits
+ * at distances without similarities, where only the finite part is searched.
+ *
+ * Not threadsafe, create one {@link LUTCursor} per thread. The LUT is shared
+ * and must not be modified while in use.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class LUTCursor
+{
+
+	private final double[] lut;
+
+	private final int lutMaxIndex;
+
+	private final int maxFloorIndex;
+
+	private final boolean isMonotone;
+
+	private int floorIndex;
+
+	public LUTCursor( final double[] lut )
+	{
+		super();
+		this.lut = lut;
+		this.lutMaxIndex = lut.length - 1;
+		this.maxFloorIndex = Math.max( this.lutMaxIndex - 1, 0 );
+		this.isMonotone = isMonotone( lut );
+		this.floorIndex = 0;
+	}
+
+	public boolean isMonotone()
+	{
+		return isMonotone;
+	}
+
+	public double apply( final double x )
+	{
+		final int xFloor = ( int ) x;
+		final double dx = x - xFloor;
+		return ( lut[ xFloor + 1 ] - lut[ xFloor ] ) * dx + lut[ xFloor ];
+	}
+
+	public double applyChecked( final double x )
+	{
+		if ( x < 0 )
+			return -Double.MAX_VALUE;
+		else if ( x > lutMaxIndex )
+			return Double.MAX_VALUE;
+		else if ( x == lutMaxIndex )
+			return lut[ lutMaxIndex ];
+		else
+			return apply( x );
+	}
+
+	/**
+	 * Same as {@link AbstractLUTRealTransform#findFloorIndex(double)}: index i
+	 * of the largest value smaller than or equal y for all y in
+	 * [lut[0],lut[max]] with the exception of lut[max] for which it returns
+	 * max-1.
+	 */
+	public int findFloorIndex( final double y )
+	{
+		if ( !isMonotone )
+			return bisect( y );
+
+		int lower = floorIndex;
+		int upper;
+		if ( lut[ lower ] <= y )
+		{
+			// common case: same or next bracket
+			if ( lower == maxFloorIndex || lut[ lower + 1 ] > y )
+				return lower;
+			++lower;
+			if ( lower == maxFloorIndex || lut[ lower + 1 ] > y )
+			{
+				floorIndex = lower;
+				return lower;
+			}
+			// gallop forward, upper == maxFloorIndex + 1 or lut[ upper ] > y
+			int step = 1;
+			upper = lower + step;
+			while ( upper <= maxFloorIndex && lut[ upper ] <= y )
+			{
+				lower = upper;
+				step <<= 1;
+				upper = lower + step;
+			}
+			upper = Math.min( upper, maxFloorIndex + 1 );
+		}
+		else
+		{
+			// gallop backward, lut[ upper ] > y
+			upper = lower;
+			int step = 1;
+			lower = upper - step;
+			while ( lower > 0 && lut[ lower ] > y )
+			{
+				upper = lower;
+				step <<= 1;
+				lower = upper - step;
+			}
+			if ( lower <= 0 )
+			{
+				lower = 0;
+				if ( lut[ 0 ] > y )
+				{
+					floorIndex = 0;
+					return 0;
+				}
+			}
+		}
+
+		// bin-search between lut[ lower ] <= y and lut[ upper ] > y
+		while ( upper - lower > 1 )
+		{
+			final int i = ( lower + upper ) >>> 1;
+			if ( lut[ i ] > y )
+				upper = i;
+			else
+				lower = i;
+		}
+		floorIndex = lower;
+		return lower;
+	}
+
+	private int bisect( final double y )
+	{
+		int min = 0;
+		int max = lutMaxIndex;
+		int i = max >> 1;
+		do
+		{
+			if ( lut[ i ] > y )
+				max = i;
+			else
+				min = i;
+			i = ( ( max - min ) >> 1 ) + min;
+		}
+		while ( i != min );
+		return i;
+	}
+
+	public double applyInverse( final double y )
+	{
+		final int i = findFloorIndex( y );
+
+		final double x1 = lut[ i ];
+		final double x2 = lut[ i + 1 ];
+
+		return ( y - x1 ) / ( x2 - x1 ) + i;
+	}
+
+	public double applyInverseChecked( final double y )
+	{
+		if ( y < lut[ 0 ] )
+			return -Double.MAX_VALUE;
+		else if ( y > lut[ lutMaxIndex ] )
+			return Double.MAX_VALUE;
+		else if ( Double.isNaN( y ) )
+			return Double.NaN;
+		else
+			return applyInverse( y );
+	}
+
+	/**
+	 * Apply {@link #applyChecked(double)} to all entries of {@code source}
+	 * and write into {@code target}. Amortized O(1) per entry if
+	 * {@code source} is sorted.
+	 */
+	public void apply( final double[] source, final double[] target )
+	{
+		assert source.length == target.length: "Dimensions do not match.";
+
+		for ( int i = 0; i < source.length; ++i )
+			target[ i ] = applyChecked( source[ i ] );
+	}
+
+	/**
+	 * Apply {@link #applyInverseChecked(double)} to all entries of
+	 * {@code target} and write into {@code source}. Amortized O(1) per entry
+	 * if {@code target} is sorted.
+	 */
+	public void applyInverse( final double[] source, final double[] target )
+	{
+		assert source.length == target.length: "Dimensions do not match.";
+
+		for ( int i = 0; i < target.length; ++i )
+			source[ i ] = applyInverseChecked( target[ i ] );
+	}
+
+	public double minTransformedCoordinate()
+	{
+		return lut[ 0 ];
+	}
+
+	public double maxTransformedCoordinate()
+	{
+		return lut[ lutMaxIndex ];
+	}
+
+	// trailing NaN, e.g. distances without similarities, end the search
+	// before they are reached
+	private static boolean isMonotone( final double[] lut )
+	{
+		int end = lut.length;
+		while ( end > 1 && Double.isNaN( lut[ end - 1 ] ) )
+			--end;
+		for ( int i = 1; i < end; ++i )
+			if ( !( lut[ i ] >= lut[ i - 1 ] ) )
+				return false;
+		return true;
+	}
+
+}
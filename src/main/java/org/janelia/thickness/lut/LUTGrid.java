@@ -51,6 +51,11 @@ public class LUTGrid extends AbstractLUTGrid
 		super( numSourceDimensions, numTargetDimensions, lutArray, scale, shift );
 	}
 
+	protected LUTGrid( final LUTGrid other )
+	{
+		super( other );
+	}
+
 	@Override
 	public void apply( final double[] source, final double[] target )
 	{
@@ -146,10 +151,13 @@ public class LUTGrid extends AbstractLUTGrid
 		return new InverseRealTransform( this );
 	}
 
+	/**
+	 * Shares LUTs and interpolated coefficients.
+	 */
 	@Override
 	public LUTGrid copy()
 	{
-		return new LUTGrid( numSourceDimensions, numTargetDimensions, lutArray, scale, shift );
+		return new LUTGrid( this );
 	}
 
 	public LUTGrid reScale( final double... scale )
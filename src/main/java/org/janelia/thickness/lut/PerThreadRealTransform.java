@@ -0,0 +1,102 @@
+package org.janelia.thickness.lut;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InverseRealTransform;
+import net.imglib2.realtransform.InvertibleRealTransform;
+
+/**
+ * Threadsafe wrapper for transforms that are not threadsafe, e.g.
+ * {@link LUTGrid}, {@link ArrayLUTGrid} or {@link LUTRealTransformField}:
+ * each thread works on its own {@link InvertibleRealTransform#copy() copy}
+ * of the wrapped transform. All LUT transforms in this package share their
+ * LUTs between copies, so this is cheap and the wrapper can be shared by all
+ * workers of a parallel renderer.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class PerThreadRealTransform< T extends InvertibleRealTransform > implements InvertibleRealTransform
+{
+
+	private final T transform;
+
+	private final ThreadLocal< InvertibleRealTransform > copies;
+
+	public PerThreadRealTransform( final T transform )
+	{
+		super();
+		this.transform = transform;
+		this.copies = ThreadLocal.withInitial( transform::copy );
+	}
+
+	/**
+	 * @return the thread-confined copy of the wrapped transform for the
+	 *         calling thread.
+	 */
+	public InvertibleRealTransform get()
+	{
+		return copies.get();
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return transform.numSourceDimensions();
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return transform.numTargetDimensions();
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		copies.get().apply( source, target );
+	}
+
+	@Override
+	public void apply( final float[] source, final float[] target )
+	{
+		copies.get().apply( source, target );
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		copies.get().apply( source, target );
+	}
+
+	@Override
+	public void applyInverse( final double[] source, final double[] target )
+	{
+		copies.get().applyInverse( source, target );
+	}
+
+	@Override
+	public void applyInverse( final float[] source, final float[] target )
+	{
+		copies.get().applyInverse( source, target );
+	}
+
+	@Override
+	public void applyInverse( final RealPositionable source, final RealLocalizable target )
+	{
+		copies.get().applyInverse( source, target );
+	}
+
+	@Override
+	public InvertibleRealTransform inverse()
+	{
+		return new InverseRealTransform( this );
+	}
+
+	@Override
+	public PerThreadRealTransform< T > copy()
+	{
+		return new PerThreadRealTransform<>( transform );
+	}
+
+}
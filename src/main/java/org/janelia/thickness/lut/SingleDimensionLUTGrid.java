@@ -39,6 +39,12 @@ public class SingleDimensionLUTGrid extends AbstractLUTGrid
 		assert this.applyTransformToDimension >= this.nNonTransformedCoordinates;
 	}
 
+	protected SingleDimensionLUTGrid( final SingleDimensionLUTGrid other )
+	{
+		super( other );
+		this.applyTransformToDimension = other.applyTransformToDimension;
+	}
+
 	@Override
 	public void apply( final double[] source, final double[] target )
 	{
@@ -113,15 +119,13 @@ public class SingleDimensionLUTGrid extends AbstractLUTGrid
 		return new InverseRealTransform( this );
 	}
 
+	/**
+	 * Shares LUTs and interpolated coefficients.
+	 */
 	@Override
-	public InvertibleRealTransform copy()
+	public SingleDimensionLUTGrid copy()
 	{
-		return new SingleDimensionLUTGrid( applyTransformToDimension,
-				applyTransformToDimension,
-				lutArray,
-				applyTransformToDimension,
-				scale,
-				shift );
+		return new SingleDimensionLUTGrid( this );
 	}
 
 	public SingleDimensionLUTGrid reScale( final double... scale )
@@ -135,7 +139,7 @@ public class SingleDimensionLUTGrid extends AbstractLUTGrid
 		{
 			sc[ i ] = scale[ scale.length - 1 ];
 		}
-		return new SingleDimensionLUTGrid( applyTransformToDimension, applyTransformToDimension, lutArray, applyTransformToDimension, sc, shift );
+		return new SingleDimensionLUTGrid( numSourceDimensions, numTargetDimensions, lutArray, applyTransformToDimension, sc, shift );
 	}
 
 	public SingleDimensionLUTGrid reShift( final double... shift )
@@ -149,7 +153,7 @@ public class SingleDimensionLUTGrid extends AbstractLUTGrid
 		{
 			sh[ i ] = shift[ shift.length - 1 ];
 		}
-		return new SingleDimensionLUTGrid( applyTransformToDimension, applyTransformToDimension, lutArray, applyTransformToDimension, scale, sh );
+		return new SingleDimensionLUTGrid( numSourceDimensions, numTargetDimensions, lutArray, applyTransformToDimension, scale, sh );
 	}
 
 }
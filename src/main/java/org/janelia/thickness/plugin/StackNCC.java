@@ -0,0 +1,214 @@
+package org.janelia.thickness.plugin;
+
+import org.janelia.thickness.similarity.MaskedNCC;
+import org.janelia.thickness.similarity.TiledPairScheduler;
+import org.janelia.thickness.similarity.ValidityMask;
+
+import ij.ImageStack;
+
+/**
+ * NCC of two slices of an {@link ImageStack}, specialized for the pixel
+ * type of the stack such that similarities are calculated on the native
+ * pixels without conversion of the stack to float. 8 and 16 bit pixels are
+ * unsigned and accumulated in exact integer sums, 32 bit pixels are
+ * processed by {@link RealSumFloatNCC}. With per-slice
+ * {@link ValidityMask}s, only pixels valid in both slices are compared (see
+ * {@link MaskedNCC}).
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+interface StackNCC
+{
+
+	/**
+	 * @param zA
+	 *            zero-based slice index
+	 * @param zB
+	 *            zero-based slice index
+	 */
+	double ncc( int zA, int zB );
+
+	static StackNCC forImageStack( final ImageStack stack )
+	{
+		switch ( stack.getBitDepth() )
+		{
+		case 8:
+			return new ByteStackNCC( stack );
+		case 16:
+			return new ShortStackNCC( stack );
+		case 32:
+			return new FloatStackNCC( stack );
+		default:
+			throw new IllegalArgumentException( "Stack bit depth not supported: " + stack.getBitDepth() );
+		}
+	}
+
+	/**
+	 * @param masks
+	 *            valid pixels of each slice, unmasked if {@code null}
+	 */
+	static StackNCC forImageStack( final ImageStack stack, final ValidityMask[] masks )
+	{
+		if ( masks == null )
+			return forImageStack( stack );
+		if ( masks.length != stack.getSize() )
+			throw new IllegalArgumentException( "Expected one mask per slice but got " + masks.length + " masks for " + stack.getSize() + " slices." );
+		return new MaskedStackNCC( stack, masks );
+	}
+
+	/**
+	 * Read tiles of the native pixels of {@code stack} for
+	 * {@link TiledPairScheduler}, 8 and 16 bit pixels are unsigned.
+	 */
+	static TiledPairScheduler.TileReader tileReader( final ImageStack stack )
+	{
+		switch ( stack.getBitDepth() )
+		{
+		case 8:
+		case 16:
+		case 32:
+			return new StackTileReader( stack );
+		default:
+			throw new IllegalArgumentException( "Stack bit depth not supported: " + stack.getBitDepth() );
+		}
+	}
+
+	static double ncc( final double n, final double suma, final double sumaa, final double sumb, final double sumbb, final double sumab )
+	{
+		return ( n * sumab - suma * sumb ) / Math.sqrt( n * sumaa - suma * suma ) / Math.sqrt( n * sumbb - sumb * sumb );
+	}
+
+	class ByteStackNCC implements StackNCC
+	{
+		private final ImageStack stack;
+
+		public ByteStackNCC( final ImageStack stack )
+		{
+			this.stack = stack;
+		}
+
+		@Override
+		public double ncc( final int zA, final int zB )
+		{
+			final byte[] a = ( byte[] ) stack.getPixels( zA + 1 );
+			final byte[] b = ( byte[] ) stack.getPixels( zB + 1 );
+			long sumA = 0, sumAA = 0, sumB = 0, sumBB = 0, sumAB = 0;
+			for ( int i = 0; i < a.length; ++i )
+			{
+				final long va = a[ i ] & 0xff;
+				final long vb = b[ i ] & 0xff;
+				sumA += va;
+				sumAA += va * va;
+				sumB += vb;
+				sumBB += vb * vb;
+				sumAB += va * vb;
+			}
+			return StackNCC.ncc( a.length, sumA, sumAA, sumB, sumBB, sumAB );
+		}
+	}
+
+	class ShortStackNCC implements StackNCC
+	{
+		private final ImageStack stack;
+
+		public ShortStackNCC( final ImageStack stack )
+		{
+			this.stack = stack;
+		}
+
+		@Override
+		public double ncc( final int zA, final int zB )
+		{
+			final short[] a = ( short[] ) stack.getPixels( zA + 1 );
+			final short[] b = ( short[] ) stack.getPixels( zB + 1 );
+			long sumA = 0, sumAA = 0, sumB = 0, sumBB = 0, sumAB = 0;
+			for ( int i = 0; i < a.length; ++i )
+			{
+				final long va = a[ i ] & 0xffff;
+				final long vb = b[ i ] & 0xffff;
+				sumA += va;
+				sumAA += va * va;
+				sumB += vb;
+				sumBB += vb * vb;
+				sumAB += va * vb;
+			}
+			return StackNCC.ncc( a.length, sumA, sumAA, sumB, sumBB, sumAB );
+		}
+	}
+
+	class FloatStackNCC implements StackNCC
+	{
+		private final ImageStack stack;
+
+		public FloatStackNCC( final ImageStack stack )
+		{
+			this.stack = stack;
+		}
+
+		@Override
+		public double ncc( final int zA, final int zB )
+		{
+			return new RealSumFloatNCC( ( float[] ) stack.getPixels( zA + 1 ), ( float[] ) stack.getPixels( zB + 1 ) ).call();
+		}
+	}
+
+	class MaskedStackNCC implements StackNCC
+	{
+		private final ImageStack stack;
+
+		private final ValidityMask[] masks;
+
+		public MaskedStackNCC( final ImageStack stack, final ValidityMask[] masks )
+		{
+			this.stack = stack;
+			this.masks = masks;
+		}
+
+		@Override
+		public double ncc( final int zA, final int zB )
+		{
+			return MaskedNCC.ncc( stack.getPixels( zA + 1 ), masks[ zA ], stack.getPixels( zB + 1 ), masks[ zB ] );
+		}
+	}
+
+	class StackTileReader implements TiledPairScheduler.TileReader
+	{
+		private final ImageStack stack;
+
+		private final int bytesPerPixel;
+
+		public StackTileReader( final ImageStack stack )
+		{
+			this.stack = stack;
+			this.bytesPerPixel = stack.getBitDepth() / 8;
+		}
+
+		@Override
+		public void read( final int z, final int offset, final int length, final float[] target )
+		{
+			final Object pixels = stack.getPixels( z + 1 );
+			if ( pixels instanceof byte[] )
+			{
+				final byte[] p = ( byte[] ) pixels;
+				for ( int i = 0; i < length; ++i )
+					target[ i ] = p[ offset + i ] & 0xff;
+			}
+			else if ( pixels instanceof short[] )
+			{
+				final short[] p = ( short[] ) pixels;
+				for ( int i = 0; i < length; ++i )
+					target[ i ] = p[ offset + i ] & 0xffff;
+			}
+			else
+				System.arraycopy( pixels, offset, target, 0, length );
+		}
+
+		@Override
+		public int getBytesPerPixel()
+		{
+			return bytesPerPixel;
+		}
+	}
+
+}
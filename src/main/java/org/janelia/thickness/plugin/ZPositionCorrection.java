@@ -10,16 +10,18 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.GenericDialog;
+import ij.gui.Roi;
 import ij.measure.Calibration;
 import ij.plugin.FolderOpener;
 import ij.plugin.PlugIn;
+import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.FloatStatistics;
-import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
 import mpicbg.ij.util.Filter;
 import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.NotEnoughDataPointsException;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
@@ -27,6 +29,8 @@ import net.imglib2.RealRandomAccessible;
 import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealDoubleConverter;
 import net.imglib2.converter.read.ConvertedRandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.InverseRealTransform;
@@ -47,20 +51,38 @@ import net.imglib2.view.TransformView;
 import net.imglib2.view.Views;
 import org.janelia.thickness.inference.InferFromMatrix;
 import org.janelia.thickness.inference.Options;
+import org.janelia.thickness.inference.Progress;
+import org.janelia.thickness.inference.Workspace;
 import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
 import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
 import org.janelia.thickness.inference.fits.LocalCorrelationFitAverage;
+import org.janelia.thickness.inference.visitor.AsyncVisitor;
 import org.janelia.thickness.inference.visitor.CorrelationFitVisitor;
 import org.janelia.thickness.inference.visitor.LUTVisitor;
 import org.janelia.thickness.inference.visitor.LazyVisitor;
 import org.janelia.thickness.inference.visitor.ListVisitor;
 import org.janelia.thickness.inference.visitor.MatrixVisitor;
+import org.janelia.thickness.inference.visitor.ResultVisitor;
+import org.janelia.thickness.inference.visitor.RingBufferVisitor;
+import org.janelia.thickness.inference.visitor.SamplingVisitor;
 import org.janelia.thickness.inference.visitor.ScalingFactorsVisitor;
+import org.janelia.thickness.inference.visitor.TraceVisitor;
 import org.janelia.thickness.inference.visitor.Visitor;
+import org.janelia.thickness.lut.LUTCursor;
 import org.janelia.thickness.lut.LUTRealTransform;
 import org.janelia.thickness.lut.PermutationTransform;
 import org.janelia.thickness.lut.SingleDimensionLUTRealTransform;
 import org.janelia.thickness.lut.SingleDimensionPermutationTransform;
+import org.janelia.thickness.similarity.AdaptiveRange;
+import org.janelia.thickness.similarity.ChunkedVolume;
+import org.janelia.thickness.similarity.MappedNCC;
+import org.janelia.thickness.similarity.MappedSliceSource;
+import org.janelia.thickness.similarity.PhaseCorrelation;
+import org.janelia.thickness.similarity.SlabSource;
+import org.janelia.thickness.similarity.SubsampledNCC;
+import org.janelia.thickness.similarity.TiledPairScheduler;
+import org.janelia.thickness.similarity.ValidityMask;
+import org.janelia.thickness.similarity.StreamingSimilarity;
 import org.janelia.utility.MatrixStripConversion;
 import org.janelia.utility.arrays.ArraySortedIndices;
 
@@ -70,12 +92,15 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -87,6 +112,14 @@ public class ZPositionCorrection implements PlugIn
 {
 
 	private static HashMap< String, VisitorFactory > visitors = new HashMap<>();
+
+	private static final String[] SAMPLING_POLICIES = {
+			"all",
+			"every k-th",
+			"logarithmic",
+			"first and last",
+			"on change",
+			"last n on failure" };
 	static
 	{
 		addVisitor( "lazy", new LazyVisitor() );
@@ -103,12 +136,16 @@ public class ZPositionCorrection implements PlugIn
 						1,
 						new String[] { "Fit", "Scaling Factors", "Coordinate Transformation", "Matrix" },
 						new boolean[] { false, false, false, false } );
+				dialog.addChoice( "Iterations", SAMPLING_POLICIES, SAMPLING_POLICIES[ 0 ] );
+				dialog.addNumericField( "Every k-th iteration / base / epsilon / buffer size", 10, 3 );
 				dialog.showDialog();
 
 				if ( dialog.wasCanceled() )
 					return new LazyVisitor();
 
 				final String basePath = dialog.getNextString();
+				final String policy = dialog.getNextChoice();
+				final double parameter = dialog.getNextNumber();
 
 				@SuppressWarnings( "unchecked" )
 				final Vector< Checkbox > boxes = dialog.getCheckboxes();
@@ -144,10 +181,52 @@ public class ZPositionCorrection implements PlugIn
 				if ( vs.size() == 0 )
 					return new LazyVisitor();
 
-				return lv;
+				// keep file I/O off the optimizer thread
+				final int range = boxes.get( 3 ).getState() ? options.comparisonRange : -1;
+				final AsyncVisitor async = new AsyncVisitor( lv, range );
+				switch ( Arrays.asList( SAMPLING_POLICIES ).indexOf( policy ) )
+				{
+				case 1:
+					return new SamplingVisitor( async, SamplingVisitor.everyKth( Math.max( ( int ) parameter, 1 ) ), true, range );
+				case 2:
+					return new SamplingVisitor( async, SamplingVisitor.logarithmic( Math.max( parameter, 1.0 ) ), true, range );
+				case 3:
+					return new SamplingVisitor( async, SamplingVisitor.first(), true, range );
+				case 4:
+					return new SamplingVisitor( async, SamplingVisitor.onChange( parameter ), true, range );
+				case 5:
+					return new RingBufferVisitor( async, Math.max( ( int ) parameter, 1 ), range );
+				default:
+					return async;
+				}
 			}
 		};
 		addVisitor( "variables", factory );
+
+		addVisitor( "trace", ( final RandomAccessibleInterval< DoubleType > matrix, final Options options ) ->
+		{
+			final GenericDialogPlus dialog = new GenericDialogPlus( "Choose trace file!" );
+			dialog.addFileField( "Trace file", System.getProperty( "user.home" ) + "/z-spacing.trace" );
+			dialog.addCheckbox( "Matrix", false );
+			dialog.addCheckbox( "Compress", true );
+			dialog.showDialog();
+
+			if ( dialog.wasCanceled() )
+				return new LazyVisitor();
+
+			final String path = dialog.getNextString();
+			final int range = dialog.getNextBoolean() ? options.comparisonRange : -1;
+			final boolean compress = dialog.getNextBoolean();
+			try
+			{
+				return new AsyncVisitor( new TraceVisitor( path, range, compress ), range );
+			}
+			catch ( final IOException e )
+			{
+				IJ.log( "Unable to create trace file " + path + ": " + e.getMessage() );
+				return new LazyVisitor();
+			}
+		} );
 	}
 
 	public static interface VisitorFactory
@@ -180,7 +259,7 @@ public class ZPositionCorrection implements PlugIn
 		final GenericDialogPlus dialog = new GenericDialogPlus( "Correct layer z-positions" );
 		dialog.addMessage( "Data source settings : " );
 		dialog.addFileField( "Input path (use current image if empty)", "" );
-		dialog.addChoice( "Type of input data : ", new String[] { "Matrix", "Image Stack" }, "Image Stack" );
+		dialog.addChoice( "Type of input data : ", new String[] { "Matrix", "Image Stack", "Chunked volume (N5/Zarr)", "Raw/TIFF file (memory-mapped)" }, "Image Stack" );
 		dialog.addMessage( "Inference settings : " );
 		dialog.addMessage( "Section neighbor range :" );
 		dialog.addNumericField( "test_maximally :", options.comparisonRange, 0, 6, "layers" );
@@ -208,8 +287,10 @@ public class ZPositionCorrection implements PlugIn
 			return;
 
 		final String inputPath = dialog.getNextString();
-		final boolean inputIsMatrix = dialog.getNextChoiceIndex() == 0;
-		final ImagePlus input = inputPath.equals( "" ) ? IJ.getImage() : FolderOpener.open( inputPath );
+		final int inputType = dialog.getNextChoiceIndex();
+		final boolean inputIsMatrix = inputType == 0;
+		final boolean inputIsFile = inputType >= 2;
+		final ImagePlus input = inputIsFile ? null : inputPath.equals( "" ) ? IJ.getImage() : FolderOpener.open( inputPath );
 
 		options.comparisonRange = ( int ) dialog.getNextNumber();
 		options.nIterations = ( int ) dialog.getNextNumber();
@@ -225,7 +306,18 @@ public class ZPositionCorrection implements PlugIn
 
 		final String visitorString = dialog.getNextChoice();
 
-		final FloatProcessor matrixFp = inputIsMatrix ? normalize( input ).getProcessor().convertToFloatProcessor() : calculateSimilarityMatrix( input, options.comparisonRange );
+		final Progress progress = createProgress();
+
+		// per-pair weights (compared pixels, inverse variance), constant
+		// weights are skipped by the inference
+		final FloatProcessor weightsFp = inputIsMatrix || inputIsFile ? null : createConstantMatrix( input.getStack().getSize(), 1.0f );
+		final FloatProcessor matrixFp;
+		if ( inputIsMatrix )
+			matrixFp = normalize( input ).getProcessor().convertToFloatProcessor();
+		else if ( inputIsFile )
+			matrixFp = calculateSimilarityStrip( inputPath, options.comparisonRange, progress );
+		else
+			matrixFp = calculateSimilarityMatrix( input, options.comparisonRange, weightsFp, progress );
 
 		if ( matrixFp == null )
 			return;
@@ -248,13 +340,39 @@ public class ZPositionCorrection implements PlugIn
 
 		boolean estimatedSuccessfully = false;
 		double[] transform = null;
+		Visitor visitor = null;
+		final ResultVisitor resultVisitor = new ResultVisitor();
 		try
 		{
 			final VisitorFactory factory = visitors.get( visitorString );
-			final Visitor visitor = factory.create( matrix, options );
-			transform = inf.estimateZCoordinates( matrix, startingCoordinates, visitor, options );
+			visitor = factory.create( matrix, options );
+			final ListVisitor listVisitor = new ListVisitor( new ArrayList<>( Arrays.asList( visitor, resultVisitor ) ) );
+			if ( weightsFp == null )
+				transform = inf.estimateZCoordinates( matrix, startingCoordinates, listVisitor, options, progress );
+			else
+			{
+				final double[] scalingFactors = new double[ startingCoordinates.length ];
+				final double[] shiftWeights = new double[ startingCoordinates.length ];
+				Arrays.fill( scalingFactors, 1.0 );
+				Arrays.fill( shiftWeights, 1.0 );
+				transform = inf.estimateZCoordinates(
+						matrix,
+						startingCoordinates,
+						new double[ 0 ],
+						scalingFactors,
+						wrapDouble( new ImagePlus( "", weightsFp ) ),
+						shiftWeights,
+						listVisitor,
+						options,
+						new Workspace( startingCoordinates.length, options.comparisonRange, correlationFit ),
+						progress );
+			}
 			estimatedSuccessfully = true;
 		}
+		catch ( final CancellationException e )
+		{
+			IJ.log( e.getMessage() );
+		}
 		catch ( final NotEnoughDataPointsException e )
 		{
 			// TODO Auto-generated catch block
@@ -269,6 +387,21 @@ public class ZPositionCorrection implements PlugIn
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			if ( !estimatedSuccessfully && visitor instanceof RingBufferVisitor )
+				( ( RingBufferVisitor ) visitor ).dump();
+			// wait for pending visitor output
+			if ( visitor instanceof AutoCloseable )
+				try
+				{
+					( ( AutoCloseable ) visitor ).close();
+				}
+				catch ( final Exception e )
+				{
+					e.printStackTrace();
+				}
+		}
 		IJ.log( options.toString() );
 
 		if ( estimatedSuccessfully )
@@ -302,11 +435,13 @@ public class ZPositionCorrection implements PlugIn
 
 			final GenericDialogPlus saveAsCsvDialog = new GenericDialogPlus( "Save transform" );
 			saveAsCsvDialog.addFileField( "Store transform as CSV", null );
+			saveAsCsvDialog.addFileField( "Store result bundle (.json or binary)", null );
 			saveAsCsvDialog.showDialog();
 
 			if ( saveAsCsvDialog.wasOKed() )
 			{
 				final String csvPath = saveAsCsvDialog.getNextString();
+				final String bundlePath = saveAsCsvDialog.getNextString();
 				final File f = new File( csvPath );
 				try {
 					f.createNewFile();
@@ -337,11 +472,21 @@ public class ZPositionCorrection implements PlugIn
 					IJ.log( "Unable to save transform at: " + csvPath );
 					IJ.handleException( new IOException( "Unable to save transform at: " + csvPath, e ) );
 				}
+				if ( bundlePath != null && bundlePath.length() > 0 )
+					try
+					{
+						resultVisitor.getResult( options ).write( bundlePath );
+					}
+					catch ( final IOException e )
+					{
+						IJ.log( "Unable to save result bundle at: " + bundlePath );
+						IJ.handleException( e );
+					}
 			}
 
-			double stackXScale = inputIsMatrix ? 1.0 : input.getCalibration().pixelWidth;
-			double stackYScale = inputIsMatrix ? 1.0 : input.getCalibration().pixelHeight;
-			double stackZScale = inputIsMatrix ? 1.0 : input.getCalibration().pixelDepth;
+			double stackXScale = input == null || inputIsMatrix ? 1.0 : input.getCalibration().pixelWidth;
+			double stackYScale = input == null || inputIsMatrix ? 1.0 : input.getCalibration().pixelHeight;
+			double stackZScale = input == null || inputIsMatrix ? 1.0 : input.getCalibration().pixelDepth;
 			final boolean showTransformedStack = true;
 			final Pair< ImagePlus, double[] > inputAndVoxelSizeBdv = askShowAsBdv( inputIsMatrix ? null : input, permutationArray, sortedTransform, stackXScale, stackYScale, stackZScale, showTransformedStack );
 
@@ -376,10 +521,47 @@ public class ZPositionCorrection implements PlugIn
 		return wrapDouble( normalize( input ) );
 	}
 
+	/**
+	 * Progress that is shown in the ImageJ status bar and cancelled when
+	 * escape is pressed.
+	 */
+	public static Progress createProgress()
+	{
+		IJ.resetEscape();
+		final Progress progress = new Progress( IJ::escapePressed );
+		final long[] lastUpdate = { 0 };
+		progress.addListener( p -> {
+			final long now = System.currentTimeMillis();
+			if ( now - lastUpdate[ 0 ] > 100 || p.getDone() >= p.getTotal() )
+			{
+				lastUpdate[ 0 ] = now;
+				IJ.showStatus( p.toString() + " (press Esc to cancel)" );
+				IJ.showProgress( p.getFraction() );
+			}
+		} );
+		return progress;
+	}
+
 	public static FloatProcessor calculateSimilarityMatrix( final ImagePlus input, final int range )
+	{
+		return calculateSimilarityMatrix( input, range, new Progress() );
+	}
+
+	public static FloatProcessor calculateSimilarityMatrix( final ImagePlus input, final int range, final Progress progress )
+	{
+		return calculateSimilarityMatrix( input, range, null, progress );
+	}
+
+	/**
+	 * @param weights
+	 *            output for per-pair weights ({@code n x n}) of methods that
+	 *            estimate the error of each similarity, left unchanged by
+	 *            other methods, ignored if {@code null}
+	 */
+	public static FloatProcessor calculateSimilarityMatrix( final ImagePlus input, final int range, final FloatProcessor weights, final Progress progress )
 	{
 		final GenericDialog dialog = new GenericDialog( "Choose similiarity calculation method" );
-		dialog.addChoice( "Similarity_method :", new String[] { "NCC (aligned)" }, "NCC (aligned)" );
+		dialog.addChoice( "Similarity_method :", new String[] { "NCC (aligned)", "Phase correlation (FFT, small shifts)", "NCC (subsampled, confidence weights)" }, "NCC (aligned)" );
 		dialog.showDialog();
 
 		if ( dialog.wasCanceled() )
@@ -392,11 +574,13 @@ public class ZPositionCorrection implements PlugIn
 		switch ( method )
 		{
 		case 1:
-			similarityCalculationWasSuccessful = invokeSIFT( input, range, matrix ); // not
-			// implemented
-			// yet
+			similarityCalculationWasSuccessful = invokePhaseCorrelation( input, range, matrix, progress );
+			break;
+		case 2:
+			similarityCalculationWasSuccessful = invokeSubsampledNCC( input, range, matrix, weights, progress );
+			break;
 		default:
-			similarityCalculationWasSuccessful = invokeNCC( input, range, matrix );
+			similarityCalculationWasSuccessful = invokeNCC( input, range, matrix, weights, progress );
 		}
 		if ( similarityCalculationWasSuccessful )
 			return matrix;
@@ -404,6 +588,106 @@ public class ZPositionCorrection implements PlugIn
 			return null;
 	}
 
+	/**
+	 * Calculate NCC similarities of a three-dimensional N5 dataset or Zarr
+	 * array (directory) slab by slab (see {@link StreamingSimilarity}) or of
+	 * an uncompressed raw or TIFF stack (file) that is memory-mapped (see
+	 * {@link MappedNCC}).
+	 *
+	 * @return strip of width {@code 2 * range + 1} or matrix if strip would
+	 *         be square, {@code null} on failure or cancellation
+	 */
+	public static FloatProcessor calculateSimilarityStrip( final String path, final int range, final Progress progress )
+	{
+		final double minimumCorrelationValue = Options.generateDefaultOptions().minimumCorrelationValue;
+		final GenericDialog dialog = new GenericDialog( "NCC options" );
+		dialog.addNumericField( "Stop after consecutive similarities <= " + minimumCorrelationValue + " (0: full range)", 0, 0 );
+		dialog.showDialog();
+		if ( dialog.wasCanceled() )
+			return null;
+		final int stopCount = ( int ) dialog.getNextNumber();
+
+		final File file = new File( path );
+		final SlabSource source;
+		try
+		{
+			if ( file.isDirectory() )
+				source = new File( file, ".zarray" ).exists() ? ChunkedVolume.openZarr( file.toPath() ) : ChunkedVolume.openN5( file.toPath() );
+			else if ( path.toLowerCase().endsWith( ".tif" ) || path.toLowerCase().endsWith( ".tiff" ) )
+				source = MappedSliceSource.openTiff( file.toPath() );
+			else
+			{
+				source = openRaw( file );
+				if ( source == null )
+					return null;
+			}
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			IJ.log( "Unable to open volume at: " + path );
+			IJ.handleException( e );
+			return null;
+		}
+
+		final ExecutorService es = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		try
+		{
+			final RandomAccessibleInterval< DoubleType > strip = source instanceof MappedSliceSource
+					? MappedNCC.calculateNCCStrip( ( MappedSliceSource ) source, range, minimumCorrelationValue, stopCount, es, progress )
+					: StreamingSimilarity.calculateNCCStrip( source, range, minimumCorrelationValue, stopCount, es, progress );
+			final RandomAccessibleInterval< DoubleType > result = strip.dimension( 0 ) == strip.dimension( 1 ) ? MatrixStripConversion.stripToMatrix( strip ) : strip;
+			final FloatProcessor fp = new FloatProcessor( ( int ) result.dimension( 0 ), ( int ) result.dimension( 1 ) );
+			final Cursor< DoubleType > cursor = Views.flatIterable( result ).cursor();
+			for ( int i = 0; cursor.hasNext(); ++i )
+				fp.setf( i, cursor.next().getRealFloat() );
+			return fp;
+		}
+		catch ( final CancellationException e )
+		{
+			IJ.log( "Similarity calculation cancelled." );
+			return null;
+		}
+		catch ( final IOException | InterruptedException | ExecutionException e )
+		{
+			if ( e.getCause() instanceof CancellationException )
+			{
+				IJ.log( "Similarity calculation cancelled." );
+				return null;
+			}
+			IJ.log( "Unable to calculate similarities for: " + path );
+			IJ.handleException( e );
+			return null;
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	private static MappedSliceSource openRaw( final File file ) throws IOException
+	{
+		final String[] types = { "8-bit", "16-bit unsigned", "32-bit float" };
+		final GenericDialog dialog = new GenericDialog( "Raw stack" );
+		dialog.addNumericField( "Width", 0, 0, 6, "pixels" );
+		dialog.addNumericField( "Height", 0, 0, 6, "pixels" );
+		dialog.addNumericField( "Number of images", 0, 0, 6, "" );
+		dialog.addChoice( "Image type", types, types[ 0 ] );
+		dialog.addNumericField( "Offset to first image", 0, 0, 6, "bytes" );
+		dialog.addNumericField( "Gap between images", 0, 0, 6, "bytes" );
+		dialog.addCheckbox( "Little-endian byte order", false );
+		dialog.showDialog();
+		if ( dialog.wasCanceled() )
+			return null;
+		final int width = ( int ) dialog.getNextNumber();
+		final int height = ( int ) dialog.getNextNumber();
+		final int depth = ( int ) dialog.getNextNumber();
+		final MappedSliceSource.PixelType type = MappedSliceSource.PixelType.values()[ dialog.getNextChoiceIndex() ];
+		final long offset = ( long ) dialog.getNextNumber();
+		final long gap = ( long ) dialog.getNextNumber();
+		final ByteOrder byteOrder = dialog.getNextBoolean() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		return MappedSliceSource.openRaw( file.toPath(), width, height, depth, type, byteOrder, offset, gap );
+	}
+
 	public static void main( final String[] args )
 	{
 		new ImageJ();
@@ -428,21 +712,301 @@ public class ZPositionCorrection implements PlugIn
 		return false;
 	}
 
-	public static boolean invokeNCC( final ImagePlus input, final int range, final FloatProcessor matrix )
+	/**
+	 * Calculate peak height of phase correlation of each section with all
+	 * sections within {@code range} (see {@link PhaseCorrelation}).
+	 */
+	public static boolean invokePhaseCorrelation( final ImagePlus input, final int range, final FloatProcessor matrix, final Progress progress )
 	{
-		new ImageConverter( input ).convertToGray32();
+		final GenericDialog dialog = new GenericDialog( "Phase correlation options" );
+		dialog.addNumericField( "Scale xy before similarity calculation", 1.0, 3 );
+		dialog.addNumericField( "Maximum shift (after scaling)", 10, 0, 6, "pixels" );
+		dialog.showDialog();
+		if ( dialog.wasCanceled() )
+			return false;
+
+		final double xyScale = dialog.getNextNumber();
+		final int maxShift = Math.max( ( int ) dialog.getNextNumber(), 0 );
+
 		final ImageStack stackSource = input.getStack();
+		final ImageStack stack = xyScale == 1.0 ? stackSource : downsampleStack( stackSource, xyScale );
+		final int height = stack.getSize();
+		final int stripRange = Math.min( range, height - 1 );
+
+		final ExecutorService es = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		try
+		{
+			// convert one section at a time, spectra are cached
+			final ArrayImg< DoubleType, DoubleArray > strip = PhaseCorrelation.calculateStrip(
+					height,
+					z -> ( float[] ) stack.getProcessor( z + 1 ).convertToFloatProcessor().getPixels(),
+					stack.getWidth(),
+					stack.getHeight(),
+					stripRange,
+					maxShift,
+					es,
+					progress );
+			final RandomAccess< DoubleType > access = strip.randomAccess();
+			for ( int z = 0; z < height; ++z )
+			{
+				access.setPosition( z, 1 );
+				for ( int k = Math.max( z - stripRange, 0 ); k <= Math.min( z + stripRange, height - 1 ); ++k )
+				{
+					access.setPosition( k - z + stripRange, 0 );
+					matrix.setf( k, z, access.get().getRealFloat() );
+				}
+			}
+			return true;
+		}
+		catch ( final CancellationException e )
+		{
+			IJ.log( "Similarity calculation cancelled." );
+			return false;
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			if ( e.getCause() instanceof CancellationException )
+			{
+				IJ.log( "Similarity calculation cancelled." );
+				return false;
+			}
+			IJ.handleException( e );
+			return false;
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	/**
+	 * Calculate NCC on a fixed subset of pixels (see {@link SubsampledNCC})
+	 * and write the inverse variance of each similarity into
+	 * {@code weights} (if not {@code null}).
+	 */
+	public static boolean invokeSubsampledNCC( final ImagePlus input, final int range, final FloatProcessor matrix, final FloatProcessor weights, final Progress progress )
+	{
+		final GenericDialog dialog = new GenericDialog( "Subsampled NCC options" );
+		dialog.addNumericField( "Number of sampled pixels", 1 << 16, 0 );
+		dialog.showDialog();
+		if ( dialog.wasCanceled() )
+			return false;
+
+		final int nSamples = Math.max( ( int ) dialog.getNextNumber(), 4 );
+
+		// 8, 16, and 32 bit pixels are sampled directly, only color stacks
+		// are converted
+		final ImageStack stack = input.getBitDepth() == 24 ? convertToFloat( input.getStack() ) : input.getStack();
+		final int height = stack.getSize();
+		final int stripRange = Math.min( range, height - 1 );
+
+		final ExecutorService es = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		try
+		{
+			final Pair< ArrayImg< DoubleType, DoubleArray >, ArrayImg< DoubleType, DoubleArray > > strips = SubsampledNCC.calculateStrips(
+					height,
+					z -> stack.getPixels( z + 1 ),
+					stack.getWidth(),
+					stack.getHeight(),
+					nSamples,
+					stripRange,
+					es,
+					progress );
+			final RandomAccess< DoubleType > access = strips.getA().randomAccess();
+			final RandomAccess< DoubleType > weightAccess = strips.getB().randomAccess();
+			for ( int z = 0; z < height; ++z )
+			{
+				access.setPosition( z, 1 );
+				weightAccess.setPosition( z, 1 );
+				for ( int k = Math.max( z - stripRange, 0 ); k <= Math.min( z + stripRange, height - 1 ); ++k )
+				{
+					access.setPosition( k - z + stripRange, 0 );
+					weightAccess.setPosition( k - z + stripRange, 0 );
+					matrix.setf( k, z, access.get().getRealFloat() );
+					if ( weights != null )
+						weights.setf( k, z, weightAccess.get().getRealFloat() );
+				}
+			}
+			return true;
+		}
+		catch ( final CancellationException e )
+		{
+			IJ.log( "Similarity calculation cancelled." );
+			return false;
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			if ( e.getCause() instanceof CancellationException )
+			{
+				IJ.log( "Similarity calculation cancelled." );
+				return false;
+			}
+			IJ.handleException( e );
+			return false;
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	public static boolean invokeNCC( final ImagePlus input, final int range, final FloatProcessor matrix )
+	{
+		return invokeNCC( input, range, matrix, new Progress() );
+	}
+
+	public static boolean invokeNCC( final ImagePlus input, final int range, final FloatProcessor matrix, final Progress progress )
+	{
+		return invokeNCC( input, range, matrix, null, progress );
+	}
 
+	/**
+	 * @param weights
+	 *            output for the number of compared pixels of each pair if
+	 *            masked, unchanged otherwise, ignored if {@code null}
+	 */
+	public static boolean invokeNCC( final ImagePlus input, final int range, final FloatProcessor matrix, final FloatProcessor weights, final Progress progress )
+	{
+		final double minimumCorrelationValue = Options.generateDefaultOptions().minimumCorrelationValue;
 		final GenericDialog dialog = new GenericDialog( "NCC options" );
 		dialog.addNumericField( "Scale xy before similarity calculation", 1.0, 3 );
+		dialog.addNumericField( "Stop after consecutive similarities <= " + minimumCorrelationValue + " (0: full range)", 0, 0 );
+		final Roi roi = input.getRoi();
+		final boolean hasAreaRoi = roi != null && roi.isArea();
+		if ( hasAreaRoi )
+			dialog.addCheckbox( "Compare only pixels inside ROI", true );
 		dialog.showDialog();
 		if ( dialog.wasCanceled() )
 			return false;
 
 		final double xyScale = dialog.getNextNumber();
+		final int stopCount = ( int ) dialog.getNextNumber();
+		final boolean useRoi = hasAreaRoi && dialog.getNextBoolean();
 
+		// 8, 16, and 32 bit stacks are compared on their native pixels (see
+		// StackNCC), only color stacks are converted into a copy
+		final ImageStack stackSource = input.getBitDepth() == 24 ? convertToFloat( input.getStack() ) : input.getStack();
 		final ImageStack stack = xyScale == 1.0 ? stackSource : downsampleStack( stackSource, xyScale );
-		final int height = input.getStackSize();
+		final ValidityMask[] masks = createMasks( stack, useRoi ? roi : null, input.getWidth(), input.getHeight() );
+		return invokeNCC( stack, masks, range, minimumCorrelationValue, stopCount, matrix, weights, progress );
+	}
+
+	/**
+	 * Valid pixels of each slice: pixels inside {@code roi} that are not
+	 * {@code NaN} (float stacks). Without {@code roi}, no masks are needed:
+	 * NCC skips {@code NaN} pixels of unmasked float stacks (see
+	 * {@link RealSumFloatNCC} and {@link TiledPairScheduler}).
+	 *
+	 * @param width
+	 *            width of the image {@code roi} refers to, {@code roi} is
+	 *            scaled to the size of {@code stack} if different
+	 * @param height
+	 *            height of the image {@code roi} refers to
+	 * @return one mask per slice or {@code null} if {@code roi} is
+	 *         {@code null}
+	 */
+	public static ValidityMask[] createMasks( final ImageStack stack, final Roi roi, final int width, final int height )
+	{
+		if ( roi == null )
+			return null;
+
+		ImageProcessor roiPixels = new ByteProcessor( width, height );
+		roiPixels.setValue( 255 );
+		roiPixels.fill( roi );
+		if ( width != stack.getWidth() || height != stack.getHeight() )
+		{
+			roiPixels.setInterpolationMethod( ImageProcessor.NONE );
+			roiPixels = roiPixels.resize( stack.getWidth(), stack.getHeight() );
+		}
+		final ValidityMask roiMask = ValidityMask.fromMask( ( byte[] ) roiPixels.getPixels() );
+
+		final ValidityMask[] masks = new ValidityMask[ stack.getSize() ];
+		for ( int z = 0; z < masks.length; ++z )
+			masks[ z ] = stack.getBitDepth() == 32 ? ValidityMask.fromFloats( ( float[] ) stack.getPixels( z + 1 ) ).and( roiMask ) : roiMask;
+		return masks;
+	}
+
+	/**
+	 * @return {@code true} if {@link #invokeNCC} computes all pairs through
+	 *         {@link #invokeTiledNCC}: full range on unmasked, in-memory
+	 *         stacks, where all pairs are known in advance and can be
+	 *         scheduled in cache-sized tiles
+	 */
+	static boolean isTiled( final ImageStack stack, final ValidityMask[] masks, final int stopCount )
+	{
+		return masks == null && stopCount < 1 && !stack.isVirtual();
+	}
+
+	/**
+	 * Calculate NCC of each section with all sections within {@code range}.
+	 * If {@code stopCount > 0}, stop for a section once similarity is at or
+	 * below {@code minimumCorrelationValue} for {@code stopCount} consecutive
+	 * offsets (see {@link AdaptiveRange}). Entries that are not computed
+	 * remain unchanged. {@code stack} must be 8, 16, or 32 bit and is not
+	 * converted (see {@link StackNCC}).
+	 */
+	public static boolean invokeNCC(
+			final ImageStack stack,
+			final int range,
+			final double minimumCorrelationValue,
+			final int stopCount,
+			final FloatProcessor matrix,
+			final Progress progress )
+	{
+		return invokeNCC( stack, null, range, minimumCorrelationValue, stopCount, matrix, progress );
+	}
+
+	/**
+	 * As {@link #invokeNCC(ImageStack, int, double, int, FloatProcessor, Progress)}
+	 * but compare only pixels that are valid in both sections.
+	 *
+	 * @param masks
+	 *            valid pixels of each section (see
+	 *            {@link #createMasks(ImageStack, Roi, int, int)}), all pixels
+	 *            if {@code null}
+	 */
+	public static boolean invokeNCC(
+			final ImageStack stack,
+			final ValidityMask[] masks,
+			final int range,
+			final double minimumCorrelationValue,
+			final int stopCount,
+			final FloatProcessor matrix,
+			final Progress progress )
+	{
+		return invokeNCC( stack, masks, range, minimumCorrelationValue, stopCount, matrix, null, progress );
+	}
+
+	/**
+	 * As
+	 * {@link #invokeNCC(ImageStack, ValidityMask[], int, double, int, FloatProcessor, Progress)}
+	 * and write the number of pixels that are valid in both sections into
+	 * {@code weights} (if not {@code null}) as per-pair weight for
+	 * {@link InferFromMatrix}, and the number of valid pixels of each section
+	 * on the diagonal. {@code NaN} pixels of float stacks are not valid.
+	 * Without masks, all pairs of 8 and 16 bit stacks compare the same number
+	 * of pixels and {@code weights} is not changed.
+	 */
+	public static boolean invokeNCC(
+			final ImageStack stack,
+			final ValidityMask[] masks,
+			final int range,
+			final double minimumCorrelationValue,
+			final int stopCount,
+			final FloatProcessor matrix,
+			final FloatProcessor weights,
+			final Progress progress )
+	{
+		if ( isTiled( stack, masks, stopCount ) )
+			return invokeTiledNCC( stack, range, matrix, weights, progress );
+
+		final int height = stack.getSize();
+		// overlap of unmasked float sections is given by their NaN pixels
+		final ValidityMask[] validMasks = masks == null && weights != null && stack.getBitDepth() == 32 ? nanMasks( stack ) : masks;
+		if ( weights != null && validMasks != null )
+			for ( int z = 0; z < height; ++z )
+				weights.setf( z, z, validMasks[ z ].cardinality() );
+		final StackNCC ncc = StackNCC.forImageStack( stack, validMasks );
 		final int nThreads = Runtime.getRuntime().availableProcessors();
 		final ArrayList< Callable< Void > > callables = new ArrayList< Callable< Void > >();
 		for ( int i = 0; i < height; ++i )
@@ -454,17 +1018,28 @@ public class ZPositionCorrection implements PlugIn
 				@Override
 				public Void call() throws Exception
 				{
-					for ( int k = finalI + 1; k - finalI <= range && k < height; ++k )
+					final AdaptiveRange adaptiveRange = new AdaptiveRange( minimumCorrelationValue, stopCount );
+					for ( int k = finalI + 1; k - finalI <= range && k < height && !adaptiveRange.isStopped(); ++k )
 					{
-						final float val = new RealSumFloatNCC( ( float[] ) stack.getProcessor( finalI + 1 ).getPixels(), ( float[] ) stack.getProcessor( k + 1 ).getPixels() ).call().floatValue();
+						progress.checkCancelled();
+						final float val = ( float ) ncc.ncc( finalI, k );
 						matrix.setf( finalI, k, val );
 						matrix.setf( k, finalI, val );
+						if ( weights != null && validMasks != null )
+						{
+							final float count = validMasks[ finalI ].overlap( validMasks[ k ] );
+							weights.setf( finalI, k, count );
+							weights.setf( k, finalI, count );
+						}
+						adaptiveRange.add( val );
 					}
+					progress.advance( 1 );
 					return null;
 				}
 			} );
 		}
 		final ExecutorService es = Executors.newFixedThreadPool( nThreads );
+		progress.start( "Similarity", height );
 		try
 		{
 			es.invokeAll( callables );
@@ -474,9 +1049,111 @@ public class ZPositionCorrection implements PlugIn
 			e.printStackTrace();
 			return false;
 		}
+		finally
+		{
+			es.shutdown();
+		}
+		if ( progress.isCancelled() )
+		{
+			IJ.log( "Similarity calculation cancelled." );
+			return false;
+		}
 		return true;
 	}
 
+	private static ValidityMask[] nanMasks( final ImageStack stack )
+	{
+		final ValidityMask[] masks = new ValidityMask[ stack.getSize() ];
+		for ( int z = 0; z < masks.length; ++z )
+			masks[ z ] = ValidityMask.fromFloats( ( float[] ) stack.getPixels( z + 1 ) );
+		return masks;
+	}
+
+	/**
+	 * Calculate NCC of each section with all sections within {@code range}
+	 * using {@link TiledPairScheduler} and log the achieved read bandwidth.
+	 */
+	public static boolean invokeTiledNCC( final ImageStack stack, final int range, final FloatProcessor matrix, final Progress progress )
+	{
+		return invokeTiledNCC( stack, range, matrix, null, progress );
+	}
+
+	/**
+	 * As {@link #invokeTiledNCC(ImageStack, int, FloatProcessor, Progress)}
+	 * and, for float stacks, write the number of pixels that are not
+	 * {@code NaN} in both sections into {@code weights} (if not
+	 * {@code null}), and the number of pixels that are not {@code NaN} in each
+	 * section on the diagonal.
+	 */
+	public static boolean invokeTiledNCC( final ImageStack stack, final int range, final FloatProcessor matrix, final FloatProcessor weights, final Progress progress )
+	{
+		final int height = stack.getSize();
+		final TiledPairScheduler scheduler = new TiledPairScheduler();
+		final ExecutorService es = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		final double[] counts = weights != null && stack.getBitDepth() == 32 ? new double[ ( 2 * range + 1 ) * height ] : null;
+		final ArrayImg< DoubleType, DoubleArray > strip;
+		try
+		{
+			strip = scheduler.calculateNCCStrip( height, stack.getWidth() * stack.getHeight(), StackNCC.tileReader( stack ), range, counts, es, progress );
+		}
+		catch ( final InterruptedException e )
+		{
+			e.printStackTrace();
+			return false;
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof CancellationException )
+			{
+				IJ.log( "Similarity calculation cancelled." );
+				return false;
+			}
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			es.shutdown();
+		}
+
+		final RandomAccess< DoubleType > access = strip.randomAccess();
+		for ( int z = 0; z < height; ++z )
+		{
+			if ( counts != null )
+				weights.setf( z, z, ValidityMask.fromFloats( ( float[] ) stack.getPixels( z + 1 ) ).cardinality() );
+			access.setPosition( z, 1 );
+			for ( int k = z + 1; k - z <= range && k < height; ++k )
+			{
+				access.setPosition( k - z + range, 0 );
+				final float val = access.get().getRealFloat();
+				matrix.setf( z, k, val );
+				matrix.setf( k, z, val );
+				if ( counts != null )
+				{
+					final float count = ( float ) counts[ z * ( 2 * range + 1 ) + k - z + range ];
+					weights.setf( z, k, count );
+					weights.setf( k, z, count );
+				}
+			}
+		}
+
+		IJ.log( String.format(
+				"Similarity: %d pairs, %.1f MB read in %.2f s (%.2f GB/s).",
+				scheduler.getNumberOfPairs(),
+				scheduler.getBytesRead() * 1e-6,
+				scheduler.getElapsedNanos() * 1e-9,
+				scheduler.getBandwidth() * 1e-9 ) );
+		return true;
+	}
+
+	public static ImageStack convertToFloat( final ImageStack stackSource )
+	{
+		final ImageStack stack = new ImageStack( stackSource.getWidth(), stackSource.getHeight() );
+		for ( int z = 1; z <= stackSource.getSize(); ++z )
+			stack.addSlice( stackSource.getSliceLabel( z ), stackSource.getProcessor( z ).convertToFloatProcessor() );
+		return stack;
+	}
+
 	public static ImageStack downsampleStack( final ImageStack stackSource, final double xyScale )
 	{
 		final ImageStack stack = new ImageStack( ( int ) Math.round( stackSource.getWidth() * xyScale ), ( int ) Math.round( stackSource.getHeight() * xyScale ) );
@@ -498,6 +1175,13 @@ public class ZPositionCorrection implements PlugIn
 		return matrix;
 	}
 
+	public static FloatProcessor createConstantMatrix( final int height, final float value )
+	{
+		final FloatProcessor matrix = new FloatProcessor( height, height );
+		matrix.add( value );
+		return matrix;
+	}
+
 	public static ImagePlus getFileFromOption( final String path )
 	{
 		return path.equals( "" ) ? IJ.getImage() : ( new File( path ).isDirectory() ? FolderOpener.open( path ) : new ImagePlus( path ) );
@@ -678,7 +1362,7 @@ public class ZPositionCorrection implements PlugIn
 			// TODO use more appropriate img type
 
 			final SingleDimensionPermutationTransform permutation1D = new SingleDimensionPermutationTransform( permutationArray, 1, 1, 0 );
-			final SingleDimensionLUTRealTransform lut1D = new SingleDimensionLUTRealTransform( sortedTransform, 1, 1, 0 );
+			final LUTCursor lut1D = new SingleDimensionLUTRealTransform( sortedTransform, 1, 1, 0 ).cursor();
 
 			final int width = stackImp.getWidth();
 			final int height = stackImp.getHeight();
@@ -692,9 +1376,7 @@ public class ZPositionCorrection implements PlugIn
 
 			if ( upsampleBy == 1 ) {
 				for ( int z = 0; z < depth; ++z ) {
-					zSource[ 0 ] = z;
-					lut1D.applyInverse( zSource, zSource );
-					final double zMapped = zSource[ 0 ];
+					final double zMapped = lut1D.applyInverseChecked( z );
 					int z1 = Math.min( Math.max( ( int ) Math.floor( zMapped ), 0 ), depth - 1 );
 					int z2 = Math.min( Math.max( ( int ) Math.ceil( zMapped ), 0 ), depth - 1 );
 					int z1Perm = permutation1D.apply( z1 );
@@ -727,8 +1409,7 @@ public class ZPositionCorrection implements PlugIn
 				{
 					zSource[ 0 ] = z;
 					scale.applyInverse( zSource, zSource );
-					lut1D.applyInverse( zSource, zSource );
-					final double zMapped = zSource[ 0 ];
+					final double zMapped = lut1D.applyInverseChecked( zSource[ 0 ] );
 					resultStack.addSlice( generateInterpolatedProcessor( zMapped, permutation1D, stackImp.getStack(), nanProcessor ) );
 				}
 
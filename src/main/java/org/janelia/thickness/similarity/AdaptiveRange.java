@@ -0,0 +1,72 @@
+package org.janelia.thickness.similarity;
+
+/**
+ * Stopping rule for similarity computation with an adaptive comparison range
+ * per section: similarities of a section with its neighbors at increasing
+ * offsets are computed until {@code stopCount} consecutive offsets yield a
+ * similarity at or below {@code minimumCorrelationValue} (or {@code NaN}),
+ * i.e. once similarity has decayed to noise. Such values are rejected by
+ * {@link org.janelia.thickness.ShiftCoordinates} anyway. The resulting
+ * ragged band has {@code NaN} beyond the last computed offset of each
+ * section, which {@link org.janelia.thickness.inference.InferFromMatrix}
+ * ignores (see also
+ * {@link org.janelia.thickness.inference.SparseSimilarities#fromMatrix}).
+ *
+ * Create one {@link AdaptiveRange} per section or {@link #reset()} before
+ * each section.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class AdaptiveRange
+{
+
+	private final double minimumCorrelationValue;
+
+	private final int stopCount;
+
+	private int count = 0;
+
+	/**
+	 * @param stopCount
+	 *            number of consecutive offsets with similarity at or below
+	 *            {@code minimumCorrelationValue} after which to stop, never
+	 *            stop if {@code stopCount < 1}
+	 */
+	public AdaptiveRange( final double minimumCorrelationValue, final int stopCount )
+	{
+		super();
+		this.minimumCorrelationValue = minimumCorrelationValue;
+		this.stopCount = stopCount;
+	}
+
+	public boolean isAdaptive()
+	{
+		return stopCount > 0;
+	}
+
+	/**
+	 * Register the similarity at the next offset.
+	 *
+	 * @return {@code true} if no further offsets need to be computed
+	 */
+	public boolean add( final double similarity )
+	{
+		if ( Double.isNaN( similarity ) || similarity <= minimumCorrelationValue )
+			++count;
+		else
+			count = 0;
+		return isStopped();
+	}
+
+	public boolean isStopped()
+	{
+		return isAdaptive() && count >= stopCount;
+	}
+
+	public void reset()
+	{
+		count = 0;
+	}
+
+}
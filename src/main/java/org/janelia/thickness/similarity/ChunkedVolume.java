@@ -0,0 +1,596 @@
+package org.janelia.thickness.similarity;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Read-only access to three-dimensional (x, y, z) N5 datasets or Zarr (v2)
+ * arrays in block directories on the local file system, without N5 or Zarr
+ * libraries. Sections are read slab by slab through
+ * {@link #readSlab(int, int, ExecutorService)}, which decodes all blocks
+ * that intersect a slab in parallel. Compressed blocks are read and inflated
+ * into buffers that are re-used by each thread and converted to float from
+ * a {@link ByteBuffer} view with the byte order of the format.
+ *
+ * Supported are unsigned and signed integer types with up to 32 bits,
+ * float32 and float64, and raw, gzip, and zlib compression. Missing blocks
+ * are filled with zero (N5) or the fill value of the array (Zarr).
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ChunkedVolume implements SlabSource
+{
+
+	public enum DataType
+	{
+		UINT8( 1 )
+		{
+			@Override
+			void copy( final ByteBuffer source, final int offset, final float[] target, final int targetOffset, final int length )
+			{
+				for ( int i = 0; i < length; ++i )
+					target[ targetOffset + i ] = source.get( offset + i ) & 0xff;
+			}
+		},
+		INT8( 1 )
+		{
+			@Override
+			void copy( final ByteBuffer source, final int offset, final float[] target, final int targetOffset, final int length )
+			{
+				for ( int i = 0; i < length; ++i )
+					target[ targetOffset + i ] = source.get( offset + i );
+			}
+		},
+		UINT16( 2 )
+		{
+			@Override
+			void copy( final ByteBuffer source, final int offset, final float[] target, final int targetOffset, final int length )
+			{
+				for ( int i = 0, b = 2 * offset; i < length; ++i, b += 2 )
+					target[ targetOffset + i ] = source.getShort( b ) & 0xffff;
+			}
+		},
+		INT16( 2 )
+		{
+			@Override
+			void copy( final ByteBuffer source, final int offset, final float[] target, final int targetOffset, final int length )
+			{
+				for ( int i = 0, b = 2 * offset; i < length; ++i, b += 2 )
+					target[ targetOffset + i ] = source.getShort( b );
+			}
+		},
+		UINT32( 4 )
+		{
+			@Override
+			void copy( final ByteBuffer source, final int offset, final float[] target, final int targetOffset, final int length )
+			{
+				for ( int i = 0, b = 4 * offset; i < length; ++i, b += 4 )
+					target[ targetOffset + i ] = source.getInt( b ) & 0xffffffffL;
+			}
+		},
+		INT32( 4 )
+		{
+			@Override
+			void copy( final ByteBuffer source, final int offset, final float[] target, final int targetOffset, final int length )
+			{
+				for ( int i = 0, b = 4 * offset; i < length; ++i, b += 4 )
+					target[ targetOffset + i ] = source.getInt( b );
+			}
+		},
+		FLOAT32( 4 )
+		{
+			@Override
+			void copy( final ByteBuffer source, final int offset, final float[] target, final int targetOffset, final int length )
+			{
+				for ( int i = 0, b = 4 * offset; i < length; ++i, b += 4 )
+					target[ targetOffset + i ] = source.getFloat( b );
+			}
+		},
+		FLOAT64( 8 )
+		{
+			@Override
+			void copy( final ByteBuffer source, final int offset, final float[] target, final int targetOffset, final int length )
+			{
+				for ( int i = 0, b = 8 * offset; i < length; ++i, b += 8 )
+					target[ targetOffset + i ] = ( float ) source.getDouble( b );
+			}
+		};
+
+		public final int bytes;
+
+		private DataType( final int bytes )
+		{
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Convert {@code length} elements starting at element
+		 * {@code offset} of {@code source}.
+		 */
+		abstract void copy( ByteBuffer source, int offset, float[] target, int targetOffset, int length );
+
+	}
+
+	public enum Compression
+	{
+		RAW, GZIP, ZLIB
+	}
+
+	private final Path root;
+
+	private final boolean isN5;
+
+	private final long[] dimensions;
+
+	private final int[] blockSize;
+
+	private final DataType dataType;
+
+	private final ByteOrder byteOrder;
+
+	private final Compression compression;
+
+	private final float fillValue;
+
+	private final String separator;
+
+	private final ThreadLocal< Decoder > decoders;
+
+	private ChunkedVolume(
+			final Path root,
+			final boolean isN5,
+			final long[] dimensions,
+			final int[] blockSize,
+			final DataType dataType,
+			final ByteOrder byteOrder,
+			final Compression compression,
+			final float fillValue,
+			final String separator )
+	{
+		super();
+		if ( dimensions.length != 3 || blockSize.length != 3 )
+			throw new IllegalArgumentException( "Expected three dimensional volume but got dimensions " + Arrays.toString( dimensions ) + "." );
+		if ( dimensions[ 0 ] * dimensions[ 1 ] > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Sections of size " + dimensions[ 0 ] + "x" + dimensions[ 1 ] + " exceed the maximum array size." );
+		this.root = root;
+		this.isN5 = isN5;
+		this.dimensions = dimensions;
+		this.blockSize = blockSize;
+		this.dataType = dataType;
+		this.byteOrder = byteOrder;
+		this.compression = compression;
+		this.fillValue = fillValue;
+		this.separator = separator;
+		this.decoders = new ThreadLocal< Decoder >()
+		{
+			@Override
+			protected Decoder initialValue()
+			{
+				return new Decoder();
+			}
+		};
+	}
+
+	/**
+	 * Open N5 dataset, i.e. a directory with {@code attributes.json} and
+	 * blocks at {@code <x>/<y>/<z>}.
+	 */
+	public static ChunkedVolume openN5( final Path dataset ) throws IOException
+	{
+		final JsonObject attributes = readJson( dataset.resolve( "attributes.json" ) );
+		final long[] dimensions = toLongs( attributes.getAsJsonArray( "dimensions" ) );
+		final int[] blockSize = toInts( attributes.getAsJsonArray( "blockSize" ) );
+		final DataType dataType = DataType.valueOf( attributes.get( "dataType" ).getAsString().toUpperCase() );
+
+		final String compressionType;
+		boolean useZlib = false;
+		if ( attributes.has( "compression" ) )
+		{
+			final JsonObject c = attributes.getAsJsonObject( "compression" );
+			compressionType = c.get( "type" ).getAsString();
+			useZlib = c.has( "useZlib" ) && c.get( "useZlib" ).getAsBoolean();
+		}
+		else
+			// version 1 and earlier
+			compressionType = attributes.has( "compressionType" ) ? attributes.get( "compressionType" ).getAsString() : "raw";
+
+		final Compression compression;
+		switch ( compressionType )
+		{
+		case "raw":
+			compression = Compression.RAW;
+			break;
+		case "gzip":
+			compression = useZlib ? Compression.ZLIB : Compression.GZIP;
+			break;
+		default:
+			throw new IOException( "Unsupported N5 compression: " + compressionType );
+		}
+
+		return new ChunkedVolume( dataset, true, dimensions, blockSize, dataType, ByteOrder.BIG_ENDIAN, compression, 0.0f, "/" );
+	}
+
+	/**
+	 * Open Zarr (v2) array, i.e. a directory with {@code .zarray} and chunks
+	 * at {@code <z>.<y>.<x>} (or {@code <z>/<y>/<x>}). Only C order is
+	 * supported.
+	 */
+	public static ChunkedVolume openZarr( final Path array ) throws IOException
+	{
+		final JsonObject attributes = readJson( array.resolve( ".zarray" ) );
+		// zarr lists dimensions slowest first
+		final long[] dimensions = reverse( toLongs( attributes.getAsJsonArray( "shape" ) ) );
+		final int[] blockSize = toInts( attributes.getAsJsonArray( "chunks" ) );
+		final int[] reversedBlockSize = new int[ blockSize.length ];
+		for ( int d = 0; d < blockSize.length; ++d )
+			reversedBlockSize[ d ] = blockSize[ blockSize.length - 1 - d ];
+
+		if ( attributes.has( "order" ) && !attributes.get( "order" ).getAsString().equals( "C" ) )
+			throw new IOException( "Only C order is supported." );
+
+		final String dtype = attributes.get( "dtype" ).getAsString();
+		final ByteOrder byteOrder = dtype.charAt( 0 ) == '>' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		final DataType dataType;
+		switch ( dtype.substring( 1 ) )
+		{
+		case "u1":
+			dataType = DataType.UINT8;
+			break;
+		case "i1":
+			dataType = DataType.INT8;
+			break;
+		case "u2":
+			dataType = DataType.UINT16;
+			break;
+		case "i2":
+			dataType = DataType.INT16;
+			break;
+		case "u4":
+			dataType = DataType.UINT32;
+			break;
+		case "i4":
+			dataType = DataType.INT32;
+			break;
+		case "f4":
+			dataType = DataType.FLOAT32;
+			break;
+		case "f8":
+			dataType = DataType.FLOAT64;
+			break;
+		default:
+			throw new IOException( "Unsupported zarr dtype: " + dtype );
+		}
+
+		final Compression compression;
+		final JsonElement compressor = attributes.get( "compressor" );
+		if ( compressor == null || compressor.isJsonNull() )
+			compression = Compression.RAW;
+		else
+		{
+			final String id = compressor.getAsJsonObject().get( "id" ).getAsString();
+			switch ( id )
+			{
+			case "zlib":
+				compression = Compression.ZLIB;
+				break;
+			case "gzip":
+				compression = Compression.GZIP;
+				break;
+			default:
+				throw new IOException( "Unsupported zarr compressor: " + id );
+			}
+		}
+
+		final JsonElement fill = attributes.get( "fill_value" );
+		final float fillValue;
+		if ( fill == null || fill.isJsonNull() )
+			fillValue = 0.0f;
+		else if ( fill.getAsJsonPrimitive().isString() )
+			fillValue = Float.parseFloat( fill.getAsString() );
+		else
+			fillValue = fill.getAsFloat();
+
+		final String separator = attributes.has( "dimension_separator" ) ? attributes.get( "dimension_separator" ).getAsString() : ".";
+
+		return new ChunkedVolume( array, false, dimensions, reversedBlockSize, dataType, byteOrder, compression, fillValue, separator );
+	}
+
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	public int[] getBlockSize()
+	{
+		return blockSize.clone();
+	}
+
+	public DataType getDataType()
+	{
+		return dataType;
+	}
+
+	public Compression getCompression()
+	{
+		return compression;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return ( int ) dimensions[ 0 ];
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return ( int ) dimensions[ 1 ];
+	}
+
+	@Override
+	public int getDepth()
+	{
+		return ( int ) dimensions[ 2 ];
+	}
+
+	@Override
+	public int getSlabDepth()
+	{
+		return blockSize[ 2 ];
+	}
+
+	@Override
+	public float[][] readSlab( final int zMin, final int zMax, final ExecutorService es ) throws IOException, InterruptedException
+	{
+		final int width = getWidth();
+		final int height = getHeight();
+		final float[][] slab = new float[ zMax - zMin ][];
+		for ( int z = 0; z < slab.length; ++z )
+		{
+			slab[ z ] = new float[ width * height ];
+			if ( fillValue != 0.0f )
+				Arrays.fill( slab[ z ], fillValue );
+		}
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+		final long nx = ( dimensions[ 0 ] + blockSize[ 0 ] - 1 ) / blockSize[ 0 ];
+		final long ny = ( dimensions[ 1 ] + blockSize[ 1 ] - 1 ) / blockSize[ 1 ];
+		for ( long bz = zMin / blockSize[ 2 ]; bz * blockSize[ 2 ] < zMax; ++bz )
+			for ( long by = 0; by < ny; ++by )
+				for ( long bx = 0; bx < nx; ++bx )
+				{
+					final long[] position = { bx, by, bz };
+					tasks.add( () -> {
+						decoders.get().readBlock( position, slab, zMin, zMax );
+						return null;
+					} );
+				}
+
+		for ( final Future< Void > f : es.invokeAll( tasks ) )
+			try
+			{
+				f.get();
+			}
+			catch ( final ExecutionException e )
+			{
+				throw e.getCause() instanceof IOException ? ( IOException ) e.getCause() : new IOException( e.getCause() );
+			}
+		return slab;
+	}
+
+	/**
+	 * Path of the block at grid {@code position} (x, y, z).
+	 */
+	public Path getBlockPath( final long[] position )
+	{
+		if ( isN5 )
+			return root.resolve( position[ 0 ] + "/" + position[ 1 ] + "/" + position[ 2 ] );
+		return root.resolve( position[ 2 ] + separator + position[ 1 ] + separator + position[ 0 ] );
+	}
+
+	/**
+	 * Per-thread buffers for reading and inflating blocks.
+	 */
+	private class Decoder
+	{
+
+		private final Inflater gzipInflater = new Inflater( true );
+
+		private final Inflater zlibInflater = new Inflater( false );
+
+		private byte[] compressed = new byte[ 0 ];
+
+		private final byte[] decompressed;
+
+		private final ByteBuffer decompressedBuffer;
+
+		private Decoder()
+		{
+			decompressed = new byte[ blockSize[ 0 ] * blockSize[ 1 ] * blockSize[ 2 ] * dataType.bytes ];
+			decompressedBuffer = ByteBuffer.wrap( decompressed ).order( byteOrder );
+		}
+
+		private void readBlock( final long[] position, final float[][] slab, final int zMin, final int zMax ) throws IOException
+		{
+			final Path path = getBlockPath( position );
+			if ( !Files.isRegularFile( path ) )
+				return;
+
+			final int length = read( path );
+			int offset = 0;
+			final int[] size = blockSize.clone();
+			if ( isN5 )
+			{
+				final ByteBuffer header = ByteBuffer.wrap( compressed, 0, length );
+				final int mode = header.getShort();
+				final int nDim = header.getShort();
+				if ( nDim != 3 )
+					throw new IOException( "Block " + path + " has " + nDim + " dimensions." );
+				for ( int d = 0; d < nDim; ++d )
+					size[ d ] = header.getInt();
+				if ( mode == 1 )
+					header.getInt();
+				offset = header.position();
+			}
+
+			final int nBytes = size[ 0 ] * size[ 1 ] * size[ 2 ] * dataType.bytes;
+			if ( nBytes > decompressed.length )
+				throw new IOException( "Block " + path + " exceeds block size." );
+			switch ( compression )
+			{
+			case RAW:
+				if ( length - offset < nBytes )
+					throw new IOException( "Block " + path + " is truncated." );
+				System.arraycopy( compressed, offset, decompressed, 0, nBytes );
+				break;
+			case GZIP:
+				inflate( gzipInflater, skipGzipHeader( compressed, offset ), length, nBytes, path );
+				break;
+			case ZLIB:
+				inflate( zlibInflater, offset, length, nBytes, path );
+				break;
+			}
+
+			// copy rows that intersect the volume and the slab
+			final int width = getWidth();
+			final long x0 = position[ 0 ] * blockSize[ 0 ];
+			final long y0 = position[ 1 ] * blockSize[ 1 ];
+			final long z0 = position[ 2 ] * blockSize[ 2 ];
+			final int rowLength = ( int ) Math.min( size[ 0 ], dimensions[ 0 ] - x0 );
+			final int rows = ( int ) Math.min( size[ 1 ], dimensions[ 1 ] - y0 );
+			for ( int z = ( int ) Math.max( zMin - z0, 0 ); z < size[ 2 ] && z0 + z < zMax; ++z )
+			{
+				final float[] target = slab[ ( int ) ( z0 + z - zMin ) ];
+				for ( int y = 0; y < rows; ++y )
+					dataType.copy(
+							decompressedBuffer,
+							( z * size[ 1 ] + y ) * size[ 0 ],
+							target,
+							( int ) ( ( y0 + y ) * width + x0 ),
+							rowLength );
+			}
+		}
+
+		/**
+		 * Read file into re-used buffer.
+		 *
+		 * @return number of bytes read
+		 */
+		private int read( final Path path ) throws IOException
+		{
+			try (FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ))
+			{
+				final long size = channel.size();
+				if ( size > Integer.MAX_VALUE )
+					throw new IOException( "Block " + path + " too large." );
+				if ( compressed.length < size )
+					compressed = new byte[ ( int ) size ];
+				final ByteBuffer buffer = ByteBuffer.wrap( compressed, 0, ( int ) size );
+				while ( buffer.hasRemaining() && channel.read( buffer ) >= 0 )
+				{}
+				return buffer.position();
+			}
+		}
+
+		private void inflate( final Inflater inflater, final int offset, final int length, final int nBytes, final Path path ) throws IOException
+		{
+			inflater.reset();
+			inflater.setInput( compressed, offset, length - offset );
+			try
+			{
+				int n = 0;
+				while ( n < nBytes && !inflater.finished() )
+				{
+					final int inflated = inflater.inflate( decompressed, n, nBytes - n );
+					if ( inflated == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+						break;
+					n += inflated;
+				}
+				if ( n < nBytes )
+					throw new IOException( "Block " + path + " is truncated." );
+			}
+			catch ( final DataFormatException e )
+			{
+				throw new IOException( "Unable to inflate block " + path, e );
+			}
+		}
+
+	}
+
+	/**
+	 * @return offset of deflate data after gzip header that starts at
+	 *         {@code offset}
+	 */
+	static int skipGzipHeader( final byte[] data, final int offset ) throws IOException
+	{
+		if ( ( data[ offset ] & 0xff ) != 0x1f || ( data[ offset + 1 ] & 0xff ) != 0x8b || data[ offset + 2 ] != 8 )
+			throw new IOException( "Not in gzip format." );
+		final int flags = data[ offset + 3 ];
+		int position = offset + 10;
+		if ( ( flags & 4 ) != 0 )
+			position += 2 + ( ( data[ position ] & 0xff ) | ( data[ position + 1 ] & 0xff ) << 8 );
+		if ( ( flags & 8 ) != 0 )
+			while ( data[ position++ ] != 0 )
+			{}
+		if ( ( flags & 16 ) != 0 )
+			while ( data[ position++ ] != 0 )
+			{}
+		if ( ( flags & 2 ) != 0 )
+			position += 2;
+		return position;
+	}
+
+	private static JsonObject readJson( final Path path ) throws IOException
+	{
+		try (Reader reader = Files.newBufferedReader( path, StandardCharsets.UTF_8 ))
+		{
+			return new JsonParser().parse( reader ).getAsJsonObject();
+		}
+	}
+
+	private static long[] toLongs( final JsonArray array )
+	{
+		final long[] result = new long[ array.size() ];
+		for ( int i = 0; i < result.length; ++i )
+			result[ i ] = array.get( i ).getAsLong();
+		return result;
+	}
+
+	private static int[] toInts( final JsonArray array )
+	{
+		final int[] result = new int[ array.size() ];
+		for ( int i = 0; i < result.length; ++i )
+			result[ i ] = array.get( i ).getAsInt();
+		return result;
+	}
+
+	private static long[] reverse( final long[] array )
+	{
+		final long[] result = new long[ array.length ];
+		for ( int i = 0; i < array.length; ++i )
+			result[ i ] = array[ array.length - 1 - i ];
+		return result;
+	}
+
+}
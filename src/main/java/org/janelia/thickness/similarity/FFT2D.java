@@ -0,0 +1,167 @@
+package org.janelia.thickness.similarity;
+
+/**
+ * In-place radix-2 complex FFT of {@code width x height} arrays (x fastest)
+ * with power of two {@code width} and {@code height}. Twiddle factors and
+ * bit reversal tables are precomputed; {@link #transform(double[], double[], boolean)}
+ * allocates only row and column buffers and is safe for concurrent use.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class FFT2D
+{
+
+	private final int width;
+
+	private final int height;
+
+	private final Radix2 rows;
+
+	private final Radix2 columns;
+
+	public FFT2D( final int width, final int height )
+	{
+		super();
+		this.width = width;
+		this.height = height;
+		this.rows = new Radix2( width );
+		this.columns = height == width ? rows : new Radix2( height );
+	}
+
+	public static int nextPowerOfTwo( final int n )
+	{
+		int p = 1;
+		while ( p < n )
+			p <<= 1;
+		return p;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @param inverse
+	 *            inverse transform including normalization by
+	 *            {@code 1 / ( width * height )}
+	 */
+	public void transform( final double[] re, final double[] im, final boolean inverse )
+	{
+		final double[] bufferRe = new double[ Math.max( width, height ) ];
+		final double[] bufferIm = new double[ bufferRe.length ];
+
+		for ( int y = 0, offset = 0; y < height; ++y, offset += width )
+		{
+			System.arraycopy( re, offset, bufferRe, 0, width );
+			System.arraycopy( im, offset, bufferIm, 0, width );
+			rows.transform( bufferRe, bufferIm, inverse );
+			System.arraycopy( bufferRe, 0, re, offset, width );
+			System.arraycopy( bufferIm, 0, im, offset, width );
+		}
+
+		for ( int x = 0; x < width; ++x )
+		{
+			for ( int y = 0, i = x; y < height; ++y, i += width )
+			{
+				bufferRe[ y ] = re[ i ];
+				bufferIm[ y ] = im[ i ];
+			}
+			columns.transform( bufferRe, bufferIm, inverse );
+			for ( int y = 0, i = x; y < height; ++y, i += width )
+			{
+				re[ i ] = bufferRe[ y ];
+				im[ i ] = bufferIm[ y ];
+			}
+		}
+
+		if ( inverse )
+		{
+			final double norm = 1.0 / ( ( double ) width * height );
+			for ( int i = 0; i < re.length; ++i )
+			{
+				re[ i ] *= norm;
+				im[ i ] *= norm;
+			}
+		}
+	}
+
+	private static class Radix2
+	{
+
+		private final int n;
+
+		private final int[] reversed;
+
+		private final double[] cos;
+
+		private final double[] sin;
+
+		private Radix2( final int n )
+		{
+			if ( n < 1 || ( n & n - 1 ) != 0 )
+				throw new IllegalArgumentException( "Size must be a power of two but is " + n + "." );
+			this.n = n;
+			this.reversed = new int[ n ];
+			final int bits = Integer.numberOfTrailingZeros( n );
+			for ( int i = 0; i < n; ++i )
+				reversed[ i ] = bits == 0 ? 0 : Integer.reverse( i ) >>> ( 32 - bits );
+			this.cos = new double[ n / 2 ];
+			this.sin = new double[ n / 2 ];
+			for ( int i = 0; i < n / 2; ++i )
+			{
+				cos[ i ] = Math.cos( 2 * Math.PI * i / n );
+				sin[ i ] = Math.sin( 2 * Math.PI * i / n );
+			}
+		}
+
+		/**
+		 * Transform first {@code n} entries of {@code re} and {@code im}
+		 * without normalization.
+		 */
+		private void transform( final double[] re, final double[] im, final boolean inverse )
+		{
+			for ( int i = 0; i < n; ++i )
+			{
+				final int j = reversed[ i ];
+				if ( j > i )
+				{
+					final double tr = re[ i ];
+					re[ i ] = re[ j ];
+					re[ j ] = tr;
+					final double ti = im[ i ];
+					im[ i ] = im[ j ];
+					im[ j ] = ti;
+				}
+			}
+			final double sign = inverse ? 1.0 : -1.0;
+			for ( int size = 2; size <= n; size <<= 1 )
+			{
+				final int half = size >>> 1;
+				final int step = n / size;
+				for ( int start = 0; start < n; start += size )
+					for ( int k = 0; k < half; ++k )
+					{
+						final double wr = cos[ k * step ];
+						final double wi = sign * sin[ k * step ];
+						final int a = start + k;
+						final int b = a + half;
+						final double xr = re[ b ] * wr - im[ b ] * wi;
+						final double xi = re[ b ] * wi + im[ b ] * wr;
+						re[ b ] = re[ a ] - xr;
+						im[ b ] = im[ a ] - xi;
+						re[ a ] += xr;
+						im[ a ] += xi;
+					}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,185 @@
+package org.janelia.thickness.similarity;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.janelia.thickness.inference.Progress;
+import org.janelia.thickness.similarity.MappedSliceSource.PixelType;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.RealSum;
+
+/**
+ * NCC of two slices of a {@link MappedSliceSource} that reads pixels
+ * directly from the mapped buffers and converts them on the fly, i.e.
+ * without intermediate arrays (cf.
+ * {@link org.janelia.thickness.plugin.RealSumFloatNCC}). 8 and 16 bit
+ * slices are accumulated in exact integer sums (no overflow for up to
+ * {@code 2^31} pixels per slice), 32 bit slices in
+ * {@link RealSum} and skipping {@code NaN}.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class MappedNCC implements Callable< Double >
+{
+
+	private final ByteBuffer a;
+
+	private final ByteBuffer b;
+
+	private final PixelType type;
+
+	private final int size;
+
+	public MappedNCC( final MappedSliceSource source, final int zA, final int zB )
+	{
+		this( source.getSlice( zA ), source.getSlice( zB ), source.getPixelType(), source.getWidth() * source.getHeight() );
+	}
+
+	public MappedNCC( final ByteBuffer a, final ByteBuffer b, final PixelType type, final int size )
+	{
+		this.a = a;
+		this.b = b;
+		this.type = type;
+		this.size = size;
+	}
+
+	@Override
+	public Double call()
+	{
+		switch ( type )
+		{
+		case GRAY8:
+			return nccGray8();
+		case GRAY16:
+			return nccGray16();
+		default:
+			return nccGray32();
+		}
+	}
+
+	private double nccGray8()
+	{
+		long sumA = 0, sumAA = 0, sumB = 0, sumBB = 0, sumAB = 0;
+		for ( int i = 0; i < size; ++i )
+		{
+			final long va = a.get( i ) & 0xff;
+			final long vb = b.get( i ) & 0xff;
+			sumA += va;
+			sumAA += va * va;
+			sumB += vb;
+			sumBB += vb * vb;
+			sumAB += va * vb;
+		}
+		return ncc( size, sumA, sumAA, sumB, sumBB, sumAB );
+	}
+
+	private double nccGray16()
+	{
+		long sumA = 0, sumAA = 0, sumB = 0, sumBB = 0, sumAB = 0;
+		for ( int i = 0, byteIndex = 0; i < size; ++i, byteIndex += 2 )
+		{
+			final long va = a.getShort( byteIndex ) & 0xffff;
+			final long vb = b.getShort( byteIndex ) & 0xffff;
+			sumA += va;
+			sumAA += va * va;
+			sumB += vb;
+			sumBB += vb * vb;
+			sumAB += va * vb;
+		}
+		return ncc( size, sumA, sumAA, sumB, sumBB, sumAB );
+	}
+
+	private double nccGray32()
+	{
+		final RealSum sumA = new RealSum();
+		final RealSum sumAA = new RealSum();
+		final RealSum sumB = new RealSum();
+		final RealSum sumBB = new RealSum();
+		final RealSum sumAB = new RealSum();
+		int n = 0;
+		for ( int i = 0, byteIndex = 0; i < size; ++i, byteIndex += 4 )
+		{
+			final double va = a.getFloat( byteIndex );
+			final double vb = b.getFloat( byteIndex );
+
+			if ( Double.isNaN( va ) || Double.isNaN( vb ) )
+				continue;
+
+			++n;
+			sumA.add( va );
+			sumAA.add( va * va );
+			sumB.add( vb );
+			sumBB.add( vb * vb );
+			sumAB.add( va * vb );
+		}
+		return ncc( n, sumA.getSum(), sumAA.getSum(), sumB.getSum(), sumBB.getSum(), sumAB.getSum() );
+	}
+
+	private static double ncc( final double n, final double suma, final double sumaa, final double sumb, final double sumbb, final double sumab )
+	{
+		return ( n * sumab - suma * sumb ) / Math.sqrt( n * sumaa - suma * suma ) / Math.sqrt( n * sumbb - sumb * sumb );
+	}
+
+	/**
+	 * NCC of each slice with all slices within {@code range}, parallel over
+	 * slices. All slices are mapped, i.e. no slices are loaded or released
+	 * explicitly (cf. {@link StreamingSimilarity}).
+	 *
+	 * @param stopCount
+	 *            adaptive comparison range per section (see
+	 *            {@link AdaptiveRange}), full range if {@code stopCount < 1}
+	 * @return strip of width {@code 2 * range + 1}; pairs that were not
+	 *         computed are {@code NaN}
+	 */
+	public static ArrayImg< DoubleType, DoubleArray > calculateNCCStrip(
+			final MappedSliceSource source,
+			final int range,
+			final double minimumCorrelationValue,
+			final int stopCount,
+			final ExecutorService es,
+			final Progress progress ) throws InterruptedException, ExecutionException
+	{
+		final int n = source.getDepth();
+		final int width = 2 * range + 1;
+		final double[] strip = new double[ width * n ];
+		Arrays.fill( strip, Double.NaN );
+		for ( int z = 0; z < n; ++z )
+			strip[ z * width + range ] = 1.0;
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+		for ( int z = 0; z < n; ++z )
+		{
+			final int i = z;
+			tasks.add( () -> {
+				final AdaptiveRange adaptiveRange = new AdaptiveRange( minimumCorrelationValue, stopCount );
+				for ( int k = i + 1; k - i <= range && k < n && !adaptiveRange.isStopped(); ++k )
+				{
+					progress.checkCancelled();
+					final double val = new MappedNCC( source, i, k ).call();
+					strip[ i * width + k - i + range ] = val;
+					strip[ k * width + i - k + range ] = val;
+					adaptiveRange.add( val );
+				}
+				progress.advance( 1 );
+				return null;
+			} );
+		}
+
+		progress.start( "Similarity", n );
+		for ( final Future< Void > f : es.invokeAll( tasks ) )
+			f.get();
+
+		return ArrayImgs.doubles( strip, width, n );
+	}
+
+}
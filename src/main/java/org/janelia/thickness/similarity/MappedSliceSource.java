@@ -0,0 +1,359 @@
+package org.janelia.thickness.similarity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sections of an uncompressed 8, 16, or 32 bit stack in a raw or TIFF file,
+ * memory-mapped slice by slice. {@link #getSlice(int)} returns views into
+ * the mapped file that are read directly, e.g. by {@link MappedNCC},
+ * without decoding into intermediate arrays.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class MappedSliceSource implements SlabSource
+{
+
+	public enum PixelType
+	{
+		/**
+		 * unsigned 8 bit
+		 */
+		GRAY8( 1 ),
+		/**
+		 * unsigned 16 bit
+		 */
+		GRAY16( 2 ),
+		/**
+		 * 32 bit float
+		 */
+		GRAY32( 4 );
+
+		public final int bytes;
+
+		private PixelType( final int bytes )
+		{
+			this.bytes = bytes;
+		}
+	}
+
+	private final int width;
+
+	private final int height;
+
+	private final PixelType type;
+
+	private final ByteBuffer[] slices;
+
+	private MappedSliceSource( final int width, final int height, final PixelType type, final ByteBuffer[] slices )
+	{
+		super();
+		this.width = width;
+		this.height = height;
+		this.type = type;
+		this.slices = slices;
+	}
+
+	/**
+	 * Map raw file with {@code depth} slices of {@code width x height}
+	 * pixels.
+	 *
+	 * @param offset
+	 *            offset of the first slice in bytes
+	 * @param gap
+	 *            bytes between consecutive slices
+	 */
+	public static MappedSliceSource openRaw(
+			final Path path,
+			final int width,
+			final int height,
+			final int depth,
+			final PixelType type,
+			final ByteOrder byteOrder,
+			final long offset,
+			final long gap ) throws IOException
+	{
+		final long sliceBytes = ( long ) width * height * type.bytes;
+		final long[] offsets = new long[ depth ];
+		for ( int z = 0; z < depth; ++z )
+			offsets[ z ] = offset + z * ( sliceBytes + gap );
+		return map( path, width, height, type, byteOrder, offsets );
+	}
+
+	/**
+	 * Map uncompressed single channel TIFF stack. Each page must be stored
+	 * contiguously. Stacks larger than 4GB written by ImageJ, which contain
+	 * only the first page directory, are supported through the
+	 * {@code images=} entry of the ImageJ image description.
+	 */
+	public static MappedSliceSource openTiff( final Path path ) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ))
+		{
+			final ByteBuffer header = read( channel, 0, 8, ByteOrder.BIG_ENDIAN );
+			final short byteOrderMark = header.getShort( 0 );
+			final ByteOrder byteOrder;
+			if ( byteOrderMark == 0x4949 )
+				byteOrder = ByteOrder.LITTLE_ENDIAN;
+			else if ( byteOrderMark == 0x4d4d )
+				byteOrder = ByteOrder.BIG_ENDIAN;
+			else
+				throw new IOException( path + " is not a TIFF file." );
+			header.order( byteOrder );
+			if ( header.getShort( 2 ) != 42 )
+				throw new IOException( path + " is not a classic TIFF file." );
+
+			int width = -1;
+			int height = -1;
+			PixelType type = null;
+			String description = null;
+			final ArrayList< Long > offsets = new ArrayList<>();
+			for ( long ifd = header.getInt( 4 ) & 0xffffffffL; ifd != 0; )
+			{
+				final int nEntries = read( channel, ifd, 2, byteOrder ).getShort( 0 ) & 0xffff;
+				final ByteBuffer entries = read( channel, ifd + 2, 12 * nEntries + 4, byteOrder );
+				int w = 1, h = 1, bits = 8, format = 1, samples = 1, compression = 1;
+				long[] stripOffsets = null;
+				long[] stripByteCounts = null;
+				for ( int e = 0; e < nEntries; ++e )
+				{
+					final int position = 12 * e;
+					final int tag = entries.getShort( position ) & 0xffff;
+					switch ( tag )
+					{
+					case 256:
+						w = ( int ) values( channel, entries, position, byteOrder )[ 0 ];
+						break;
+					case 257:
+						h = ( int ) values( channel, entries, position, byteOrder )[ 0 ];
+						break;
+					case 258:
+						bits = ( int ) values( channel, entries, position, byteOrder )[ 0 ];
+						break;
+					case 259:
+						compression = ( int ) values( channel, entries, position, byteOrder )[ 0 ];
+						break;
+					case 270:
+						if ( description == null )
+						{
+							final long count = entries.getInt( position + 4 ) & 0xffffffffL;
+							final ByteBuffer text = count <= 4 ? entries.duplicate() : read( channel, entries.getInt( position + 8 ) & 0xffffffffL, ( int ) count, byteOrder );
+							final byte[] bytes = new byte[ ( int ) count ];
+							text.position( count <= 4 ? position + 8 : 0 );
+							text.get( bytes );
+							description = new String( bytes, StandardCharsets.ISO_8859_1 );
+						}
+						break;
+					case 273:
+						stripOffsets = values( channel, entries, position, byteOrder );
+						break;
+					case 277:
+						samples = ( int ) values( channel, entries, position, byteOrder )[ 0 ];
+						break;
+					case 279:
+						stripByteCounts = values( channel, entries, position, byteOrder );
+						break;
+					case 339:
+						format = ( int ) values( channel, entries, position, byteOrder )[ 0 ];
+						break;
+					}
+				}
+
+				if ( compression != 1 || samples != 1 )
+					throw new IOException( "Only uncompressed single channel TIFF is supported." );
+				final PixelType t = pixelType( bits, format );
+				if ( type == null )
+				{
+					width = w;
+					height = h;
+					type = t;
+				}
+				else if ( w != width || h != height || t != type )
+					throw new IOException( "All pages must be of same size and type." );
+				if ( stripOffsets == null || stripByteCounts == null || stripOffsets.length != stripByteCounts.length )
+					throw new IOException( "Missing or inconsistent strips in " + path );
+				for ( int s = 1; s < stripOffsets.length; ++s )
+					if ( stripOffsets[ s ] != stripOffsets[ s - 1 ] + stripByteCounts[ s - 1 ] )
+						throw new IOException( "Strips of each page must be contiguous in " + path );
+				offsets.add( stripOffsets[ 0 ] );
+
+				ifd = entries.getInt( 12 * nEntries ) & 0xffffffffL;
+			}
+
+			if ( type == null )
+				throw new IOException( "No images in " + path );
+
+			final long[] sliceOffsets;
+			final Matcher images = description == null ? null : Pattern.compile( "images=(\\d+)" ).matcher( description );
+			if ( offsets.size() == 1 && images != null && description.startsWith( "ImageJ" ) && images.find() )
+			{
+				// ImageJ stacks > 4GB only have the first directory
+				sliceOffsets = new long[ Integer.parseInt( images.group( 1 ) ) ];
+				final long sliceBytes = ( long ) width * height * type.bytes;
+				for ( int z = 0; z < sliceOffsets.length; ++z )
+					sliceOffsets[ z ] = offsets.get( 0 ) + z * sliceBytes;
+			}
+			else
+			{
+				sliceOffsets = new long[ offsets.size() ];
+				for ( int z = 0; z < sliceOffsets.length; ++z )
+					sliceOffsets[ z ] = offsets.get( z );
+			}
+			return map( path, width, height, type, byteOrder, sliceOffsets );
+		}
+	}
+
+	public PixelType getPixelType()
+	{
+		return type;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return height;
+	}
+
+	@Override
+	public int getDepth()
+	{
+		return slices.length;
+	}
+
+	@Override
+	public int getSlabDepth()
+	{
+		return 1;
+	}
+
+	/**
+	 * @return read-only view of slice {@code z} in native byte order of the
+	 *         file, position {@code 0} and limit
+	 *         {@code getWidth() * getHeight() * getPixelType().bytes}.
+	 *         Independent for each call, i.e. safe for concurrent use.
+	 */
+	public ByteBuffer getSlice( final int z )
+	{
+		return slices[ z ].duplicate().order( slices[ z ].order() );
+	}
+
+	/**
+	 * Convert sections to float. {@link MappedNCC} reads the mapped slices
+	 * directly and should be preferred for similarity calculation.
+	 */
+	@Override
+	public float[][] readSlab( final int zMin, final int zMax, final ExecutorService es )
+	{
+		final float[][] slab = new float[ zMax - zMin ][ width * height ];
+		for ( int z = zMin; z < zMax; ++z )
+		{
+			final ByteBuffer slice = getSlice( z );
+			final float[] target = slab[ z - zMin ];
+			for ( int i = 0; i < target.length; ++i )
+				target[ i ] = getValue( slice, type, i );
+		}
+		return slab;
+	}
+
+	static float getValue( final ByteBuffer slice, final PixelType type, final int index )
+	{
+		switch ( type )
+		{
+		case GRAY8:
+			return slice.get( index ) & 0xff;
+		case GRAY16:
+			return slice.getShort( 2 * index ) & 0xffff;
+		default:
+			return slice.getFloat( 4 * index );
+		}
+	}
+
+	private static MappedSliceSource map(
+			final Path path,
+			final int width,
+			final int height,
+			final PixelType type,
+			final ByteOrder byteOrder,
+			final long[] offsets ) throws IOException
+	{
+		final long sliceBytes = ( long ) width * height * type.bytes;
+		if ( sliceBytes > Integer.MAX_VALUE )
+			throw new IOException( "Slices of " + sliceBytes + " bytes exceed maximum mapping size." );
+		final ByteBuffer[] slices = new ByteBuffer[ offsets.length ];
+		try (FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ))
+		{
+			final long size = channel.size();
+			for ( int z = 0; z < offsets.length; ++z )
+			{
+				if ( offsets[ z ] + sliceBytes > size )
+					throw new IOException( "Slice " + z + " exceeds size of " + path );
+				// mappings remain valid after the channel is closed
+				slices[ z ] = channel.map( FileChannel.MapMode.READ_ONLY, offsets[ z ], sliceBytes ).order( byteOrder );
+			}
+		}
+		return new MappedSliceSource( width, height, type, slices );
+	}
+
+	private static PixelType pixelType( final int bits, final int format ) throws IOException
+	{
+		if ( bits == 8 && format == 1 )
+			return PixelType.GRAY8;
+		if ( bits == 16 && format == 1 )
+			return PixelType.GRAY16;
+		if ( bits == 32 && format == 3 )
+			return PixelType.GRAY32;
+		throw new IOException( "Unsupported pixel type: " + bits + " bits, sample format " + format );
+	}
+
+	private static ByteBuffer read( final FileChannel channel, final long position, final int length, final ByteOrder byteOrder ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( length ).order( byteOrder );
+		while ( buffer.hasRemaining() )
+			if ( channel.read( buffer, position + buffer.position() ) < 0 )
+				throw new IOException( "Unexpected end of file." );
+		return buffer;
+	}
+
+	/**
+	 * Values of SHORT or LONG TIFF directory entry at {@code position}.
+	 */
+	private static long[] values( final FileChannel channel, final ByteBuffer entries, final int position, final ByteOrder byteOrder ) throws IOException
+	{
+		final int fieldType = entries.getShort( position + 2 );
+		final int count = entries.getInt( position + 4 );
+		final int bytes = fieldType == 3 ? 2 : 4;
+		final ByteBuffer data;
+		final int start;
+		if ( count * bytes <= 4 )
+		{
+			data = entries;
+			start = position + 8;
+		}
+		else
+		{
+			data = read( channel, entries.getInt( position + 8 ) & 0xffffffffL, count * bytes, byteOrder );
+			start = 0;
+		}
+		final long[] values = new long[ count ];
+		for ( int i = 0; i < count; ++i )
+			values[ i ] = bytes == 2 ? data.getShort( start + 2 * i ) & 0xffff : data.getInt( start + 4 * i ) & 0xffffffffL;
+		return values;
+	}
+
+}
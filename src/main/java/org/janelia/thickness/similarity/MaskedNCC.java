@@ -0,0 +1,192 @@
+package org.janelia.thickness.similarity;
+
+import net.imglib2.util.RealSum;
+
+/**
+ * NCC of two sections restricted to the pixels that are valid in both
+ * {@link ValidityMask}s. The masks are combined word by word; blocks of 64
+ * pixels without valid pixels are skipped, fully valid blocks are summed
+ * without any test, and partially valid blocks visit only their set bits.
+ * Masks of float sections must exclude {@code NaN} pixels (see
+ * {@link ValidityMask#fromFloats(float[])}). 8 and 16 bit pixels are
+ * unsigned and accumulated in exact integer sums, float pixels in double
+ * sums per block that are added to a {@link RealSum}.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class MaskedNCC
+{
+
+	public static double ncc( final float[] a, final ValidityMask maskA, final float[] b, final ValidityMask maskB )
+	{
+		final long[] wordsA = checkedWords( a.length, maskA, b.length, maskB );
+		final long[] wordsB = maskB.getWords();
+		final RealSum sumA = new RealSum();
+		final RealSum sumAA = new RealSum();
+		final RealSum sumB = new RealSum();
+		final RealSum sumBB = new RealSum();
+		final RealSum sumAB = new RealSum();
+		long n = 0;
+		for ( int k = 0; k < wordsA.length; ++k )
+		{
+			long word = wordsA[ k ] & wordsB[ k ];
+			if ( word == 0 )
+				continue;
+			final int offset = k << 6;
+			double sa = 0, saa = 0, sb = 0, sbb = 0, sab = 0;
+			if ( word == -1L )
+			{
+				n += 64;
+				for ( int i = offset; i < offset + 64; ++i )
+				{
+					final double va = a[ i ];
+					final double vb = b[ i ];
+					sa += va;
+					saa += va * va;
+					sb += vb;
+					sbb += vb * vb;
+					sab += va * vb;
+				}
+			}
+			else
+			{
+				n += Long.bitCount( word );
+				for ( ; word != 0; word &= word - 1 )
+				{
+					final int i = offset + Long.numberOfTrailingZeros( word );
+					final double va = a[ i ];
+					final double vb = b[ i ];
+					sa += va;
+					saa += va * va;
+					sb += vb;
+					sbb += vb * vb;
+					sab += va * vb;
+				}
+			}
+			sumA.add( sa );
+			sumAA.add( saa );
+			sumB.add( sb );
+			sumBB.add( sbb );
+			sumAB.add( sab );
+		}
+		return ncc( n, sumA.getSum(), sumAA.getSum(), sumB.getSum(), sumBB.getSum(), sumAB.getSum() );
+	}
+
+	public static double ncc( final byte[] a, final ValidityMask maskA, final byte[] b, final ValidityMask maskB )
+	{
+		final long[] wordsA = checkedWords( a.length, maskA, b.length, maskB );
+		final long[] wordsB = maskB.getWords();
+		long n = 0, sumA = 0, sumAA = 0, sumB = 0, sumBB = 0, sumAB = 0;
+		for ( int k = 0; k < wordsA.length; ++k )
+		{
+			long word = wordsA[ k ] & wordsB[ k ];
+			if ( word == 0 )
+				continue;
+			final int offset = k << 6;
+			if ( word == -1L )
+			{
+				n += 64;
+				for ( int i = offset; i < offset + 64; ++i )
+				{
+					final long va = a[ i ] & 0xff;
+					final long vb = b[ i ] & 0xff;
+					sumA += va;
+					sumAA += va * va;
+					sumB += vb;
+					sumBB += vb * vb;
+					sumAB += va * vb;
+				}
+			}
+			else
+			{
+				n += Long.bitCount( word );
+				for ( ; word != 0; word &= word - 1 )
+				{
+					final int i = offset + Long.numberOfTrailingZeros( word );
+					final long va = a[ i ] & 0xff;
+					final long vb = b[ i ] & 0xff;
+					sumA += va;
+					sumAA += va * va;
+					sumB += vb;
+					sumBB += vb * vb;
+					sumAB += va * vb;
+				}
+			}
+		}
+		return ncc( n, sumA, sumAA, sumB, sumBB, sumAB );
+	}
+
+	public static double ncc( final short[] a, final ValidityMask maskA, final short[] b, final ValidityMask maskB )
+	{
+		final long[] wordsA = checkedWords( a.length, maskA, b.length, maskB );
+		final long[] wordsB = maskB.getWords();
+		long n = 0, sumA = 0, sumAA = 0, sumB = 0, sumBB = 0, sumAB = 0;
+		for ( int k = 0; k < wordsA.length; ++k )
+		{
+			long word = wordsA[ k ] & wordsB[ k ];
+			if ( word == 0 )
+				continue;
+			final int offset = k << 6;
+			if ( word == -1L )
+			{
+				n += 64;
+				for ( int i = offset; i < offset + 64; ++i )
+				{
+					final long va = a[ i ] & 0xffff;
+					final long vb = b[ i ] & 0xffff;
+					sumA += va;
+					sumAA += va * va;
+					sumB += vb;
+					sumBB += vb * vb;
+					sumAB += va * vb;
+				}
+			}
+			else
+			{
+				n += Long.bitCount( word );
+				for ( ; word != 0; word &= word - 1 )
+				{
+					final int i = offset + Long.numberOfTrailingZeros( word );
+					final long va = a[ i ] & 0xffff;
+					final long vb = b[ i ] & 0xffff;
+					sumA += va;
+					sumAA += va * va;
+					sumB += vb;
+					sumBB += vb * vb;
+					sumAB += va * vb;
+				}
+			}
+		}
+		return ncc( n, sumA, sumAA, sumB, sumBB, sumAB );
+	}
+
+	/**
+	 * Dispatch on the type of {@code a} and {@code b}, e.g. pixels of an
+	 * ImageJ processor.
+	 */
+	public static double ncc( final Object a, final ValidityMask maskA, final Object b, final ValidityMask maskB )
+	{
+		if ( a instanceof byte[] && b instanceof byte[] )
+			return ncc( ( byte[] ) a, maskA, ( byte[] ) b, maskB );
+		if ( a instanceof short[] && b instanceof short[] )
+			return ncc( ( short[] ) a, maskA, ( short[] ) b, maskB );
+		if ( a instanceof float[] && b instanceof float[] )
+			return ncc( ( float[] ) a, maskA, ( float[] ) b, maskB );
+		throw new IllegalArgumentException( "Pixel types not supported: " + a.getClass().getSimpleName() + ", " + b.getClass().getSimpleName() );
+	}
+
+	private static double ncc( final double n, final double suma, final double sumaa, final double sumb, final double sumbb, final double sumab )
+	{
+		return ( n * sumab - suma * sumb ) / Math.sqrt( n * sumaa - suma * suma ) / Math.sqrt( n * sumbb - sumb * sumb );
+	}
+
+	private static long[] checkedWords( final int sizeA, final ValidityMask maskA, final int sizeB, final ValidityMask maskB )
+	{
+		maskA.checkSize( sizeA );
+		maskB.checkSize( sizeA );
+		maskB.checkSize( sizeB );
+		return maskA.getWords();
+	}
+
+}
@@ -0,0 +1,228 @@
+package org.janelia.thickness.similarity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+import org.janelia.thickness.inference.Progress;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Similarity of sections that are not perfectly aligned: the height of the
+ * phase correlation peak within {@code maxShift} pixels of the origin. Each
+ * section is transformed once into its phase spectrum (mean subtracted, Hann
+ * window, zero padded to a power of two of at least
+ * {@code size + maxShift}, normalized to unit magnitude), which is re-used
+ * for all pairs of that section. A pair costs the spectrum product and one
+ * inverse FFT, i.e. {@code O( n * range * N log N )} for {@code n} sections
+ * of {@code N} pixels, in buffers that are allocated once per thread.
+ *
+ * The peak height is {@code 1} for identical (and shifted) sections and
+ * decays towards {@code 0} with decreasing similarity.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class PhaseCorrelation
+{
+
+	private final int width;
+
+	private final int height;
+
+	private final int maxShift;
+
+	private final FFT2D fft;
+
+	private final double[] windowX;
+
+	private final double[] windowY;
+
+	// real and imaginary part of the cross power spectrum, one per thread
+	private final ThreadLocal< double[][] > crossPower;
+
+	public PhaseCorrelation( final int width, final int height, final int maxShift )
+	{
+		super();
+		this.width = width;
+		this.height = height;
+		this.maxShift = maxShift;
+		this.fft = new FFT2D( FFT2D.nextPowerOfTwo( width + maxShift ), FFT2D.nextPowerOfTwo( height + maxShift ) );
+		this.windowX = hann( width );
+		this.windowY = hann( height );
+		final int size = fft.getWidth() * fft.getHeight();
+		this.crossPower = ThreadLocal.withInitial( () -> new double[][] { new double[ size ], new double[ size ] } );
+	}
+
+	/**
+	 * @param pixels
+	 *            {@code width x height} section, {@code NaN} pixels are
+	 *            treated as mean
+	 * @return interleaved (real, imaginary) unit phase spectrum
+	 */
+	public float[] spectrum( final float[] pixels )
+	{
+		final int paddedWidth = fft.getWidth();
+		final int size = paddedWidth * fft.getHeight();
+		final double[] re = new double[ size ];
+		final double[] im = new double[ size ];
+
+		double sum = 0;
+		int count = 0;
+		for ( final float p : pixels )
+			if ( !Float.isNaN( p ) )
+			{
+				sum += p;
+				++count;
+			}
+		final double mean = count > 0 ? sum / count : 0.0;
+
+		for ( int y = 0, i = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x, ++i )
+				if ( !Float.isNaN( pixels[ i ] ) )
+					re[ y * paddedWidth + x ] = ( pixels[ i ] - mean ) * windowX[ x ] * windowY[ y ];
+
+		fft.transform( re, im, false );
+
+		final float[] spectrum = new float[ 2 * size ];
+		// skip DC
+		for ( int i = 1; i < size; ++i )
+		{
+			final double magnitude = Math.sqrt( re[ i ] * re[ i ] + im[ i ] * im[ i ] );
+			if ( magnitude > 0 )
+			{
+				spectrum[ 2 * i ] = ( float ) ( re[ i ] / magnitude );
+				spectrum[ 2 * i + 1 ] = ( float ) ( im[ i ] / magnitude );
+			}
+		}
+		return spectrum;
+	}
+
+	/**
+	 * @return peak height of the phase correlation of two spectra within
+	 *         {@code maxShift} pixels in x and y
+	 */
+	public double similarity( final float[] spectrumA, final float[] spectrumB )
+	{
+		final int paddedWidth = fft.getWidth();
+		final int paddedHeight = fft.getHeight();
+		final int size = paddedWidth * paddedHeight;
+		final double[][] buffers = crossPower.get();
+		final double[] re = buffers[ 0 ];
+		final double[] im = buffers[ 1 ];
+		for ( int i = 0; i < size; ++i )
+		{
+			final double ar = spectrumA[ 2 * i ];
+			final double ai = spectrumA[ 2 * i + 1 ];
+			final double br = spectrumB[ 2 * i ];
+			final double bi = spectrumB[ 2 * i + 1 ];
+			// a * conj( b )
+			re[ i ] = ar * br + ai * bi;
+			im[ i ] = ai * br - ar * bi;
+		}
+
+		fft.transform( re, im, true );
+
+		double peak = Double.NEGATIVE_INFINITY;
+		for ( int dy = -maxShift; dy <= maxShift; ++dy )
+		{
+			final int offset = ( ( dy + paddedHeight ) % paddedHeight ) * paddedWidth;
+			for ( int dx = -maxShift; dx <= maxShift; ++dx )
+				peak = Math.max( peak, re[ offset + ( dx + paddedWidth ) % paddedWidth ] );
+		}
+		return peak;
+	}
+
+	/**
+	 * Phase correlation of each section with all sections within
+	 * {@code range}. Spectra are computed in parallel for batches of
+	 * sections and the {@code range} sections that follow and released once
+	 * all their pairs have been compared, i.e. each spectrum is computed once
+	 * and at most {@code batch + range} spectra are held in memory.
+	 *
+	 * @param sections
+	 *            {@code width x height} pixels of section {@code z}
+	 * @return strip of width {@code 2 * range + 1}
+	 */
+	public static ArrayImg< DoubleType, DoubleArray > calculateStrip(
+			final int n,
+			final IntFunction< float[] > sections,
+			final int width,
+			final int height,
+			final int range,
+			final int maxShift,
+			final ExecutorService es,
+			final Progress progress ) throws InterruptedException, ExecutionException
+	{
+		final PhaseCorrelation pc = new PhaseCorrelation( width, height, maxShift );
+		final int stripWidth = 2 * range + 1;
+		final double[] strip = new double[ stripWidth * n ];
+		Arrays.fill( strip, Double.NaN );
+		for ( int z = 0; z < n; ++z )
+			strip[ z * stripWidth + range ] = 1.0;
+
+		final int batchSize = Runtime.getRuntime().availableProcessors();
+		final float[][] spectra = new float[ n ][];
+		int transformed = 0;
+
+		progress.start( "Similarity", n );
+		for ( int batchStart = 0; batchStart < n; batchStart += batchSize )
+		{
+			progress.checkCancelled();
+			final int batchStop = Math.min( n, batchStart + batchSize );
+			final int required = Math.min( n, batchStop + range );
+			final ArrayList< Callable< Void > > transforms = new ArrayList<>();
+			for ( ; transformed < required; ++transformed )
+			{
+				final int z = transformed;
+				transforms.add( () -> {
+					spectra[ z ] = pc.spectrum( sections.apply( z ) );
+					return null;
+				} );
+			}
+			for ( final Future< Void > f : es.invokeAll( transforms ) )
+				f.get();
+
+			final ArrayList< Callable< Void > > pairs = new ArrayList<>();
+			for ( int z = batchStart; z < batchStop; ++z )
+			{
+				final int i = z;
+				pairs.add( () -> {
+					for ( int k = i + 1; k - i <= range && k < n; ++k )
+					{
+						progress.checkCancelled();
+						final double val = pc.similarity( spectra[ i ], spectra[ k ] );
+						strip[ i * stripWidth + k - i + range ] = val;
+						strip[ k * stripWidth + i - k + range ] = val;
+					}
+					progress.advance( 1 );
+					return null;
+				} );
+			}
+			for ( final Future< Void > f : es.invokeAll( pairs ) )
+				f.get();
+
+			for ( int z = batchStart; z < batchStop; ++z )
+				spectra[ z ] = null;
+		}
+
+		return ArrayImgs.doubles( strip, stripWidth, n );
+	}
+
+	private static double[] hann( final int size )
+	{
+		final double[] window = new double[ size ];
+		for ( int i = 0; i < size; ++i )
+			window[ i ] = size == 1 ? 1.0 : 0.5 - 0.5 * Math.cos( 2 * Math.PI * i / ( size - 1 ) );
+		return window;
+	}
+
+}
@@ -0,0 +1,43 @@
+package org.janelia.thickness.similarity;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Stack of equally sized sections that is read in slabs of consecutive
+ * sections, e.g. one layer of blocks of a chunked volume, instead of
+ * holding all sections in memory.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public interface SlabSource
+{
+
+	int getWidth();
+
+	int getHeight();
+
+	/**
+	 * @return number of sections
+	 */
+	int getDepth();
+
+	/**
+	 * @return preferred number of sections per
+	 *         {@link #readSlab(int, int, ExecutorService)}, e.g. the block
+	 *         size in z
+	 */
+	int getSlabDepth();
+
+	/**
+	 * Read sections {@code zMin <= z < zMax}.
+	 *
+	 * @param es
+	 *            executor for parallel decoding
+	 * @return one array of {@code getWidth() * getHeight()} pixels per
+	 *         section, x fastest
+	 */
+	float[][] readSlab( int zMin, int zMax, ExecutorService es ) throws IOException, InterruptedException;
+
+}
@@ -0,0 +1,105 @@
+package org.janelia.thickness.similarity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.janelia.thickness.inference.Progress;
+import org.janelia.thickness.plugin.RealSumFloatNCC;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Pairwise NCC of all sections of a {@link SlabSource} within a comparison
+ * range, computed while streaming through the volume: only the sections of
+ * the current batch and the {@code range} sections that follow are held in
+ * memory at any time, i.e. the full stack is never materialized. The result
+ * is a strip as consumed by
+ * {@link org.janelia.thickness.inference.InferFromMatrix} (see
+ * {@link org.janelia.utility.MatrixStripConversion}).
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class StreamingSimilarity
+{
+
+	/**
+	 * @param stopCount
+	 *            adaptive comparison range per section (see
+	 *            {@link AdaptiveRange}), full range if {@code stopCount < 1}
+	 * @return strip of width {@code 2 * range + 1}; pairs that were not
+	 *         computed are {@code NaN}
+	 */
+	public static ArrayImg< DoubleType, DoubleArray > calculateNCCStrip(
+			final SlabSource source,
+			final int range,
+			final double minimumCorrelationValue,
+			final int stopCount,
+			final ExecutorService es,
+			final Progress progress ) throws IOException, InterruptedException, ExecutionException
+	{
+		final int n = source.getDepth();
+		final int width = 2 * range + 1;
+		final double[] strip = new double[ width * n ];
+		Arrays.fill( strip, Double.NaN );
+		for ( int z = 0; z < n; ++z )
+			strip[ z * width + range ] = 1.0;
+
+		// sections that are compared in parallel
+		final int batchSize = Math.max( source.getSlabDepth(), Runtime.getRuntime().availableProcessors() );
+		final float[][] sections = new float[ n ][];
+		int loaded = 0;
+
+		progress.start( "Similarity", n );
+		for ( int batchStart = 0; batchStart < n; batchStart += batchSize )
+		{
+			progress.checkCancelled();
+			final int batchStop = Math.min( n, batchStart + batchSize );
+			final int required = Math.min( n, batchStop + range );
+			while ( loaded < required )
+			{
+				final int slabStop = Math.min( n, loaded + source.getSlabDepth() );
+				final float[][] slab = source.readSlab( loaded, slabStop, es );
+				System.arraycopy( slab, 0, sections, loaded, slab.length );
+				loaded = slabStop;
+			}
+
+			final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+			for ( int z = batchStart; z < batchStop; ++z )
+			{
+				final int i = z;
+				tasks.add( () -> {
+					final AdaptiveRange adaptiveRange = new AdaptiveRange( minimumCorrelationValue, stopCount );
+					for ( int k = i + 1; k - i <= range && k < n && !adaptiveRange.isStopped(); ++k )
+					{
+						progress.checkCancelled();
+						final double val = new RealSumFloatNCC( sections[ i ], sections[ k ] ).call();
+						// each section writes only its own pairs
+						strip[ i * width + k - i + range ] = val;
+						strip[ k * width + i - k + range ] = val;
+						adaptiveRange.add( val );
+					}
+					progress.advance( 1 );
+					return null;
+				} );
+			}
+			for ( final Future< Void > f : es.invokeAll( tasks ) )
+				f.get();
+
+			// release sections that are not compared anymore
+			for ( int z = batchStart; z < batchStop; ++z )
+				sections[ z ] = null;
+		}
+
+		return ArrayImgs.doubles( strip, width, n );
+	}
+
+}
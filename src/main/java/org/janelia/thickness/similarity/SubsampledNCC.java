@@ -0,0 +1,320 @@
+package org.janelia.thickness.similarity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+import org.janelia.thickness.inference.Progress;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+
+/**
+ * NCC on a fixed subset of pixels with a confidence interval per pair. The
+ * subset is the first {@code nSamples} points of the two-dimensional
+ * additive recurrence (R2) low-discrepancy sequence, mapped to pixel
+ * positions and sorted by index. The same subset is used for all sections,
+ * such that each section is gathered once into a contiguous sample array
+ * that is re-used for all of its pairs.
+ *
+ * The confidence interval of the correlation {@code r} of {@code m} samples
+ * is obtained through the Fisher transform {@code z = atanh( r )}, which is
+ * approximately normal with standard error {@code 1 / sqrt( m - 3 )}. The
+ * weight of a pair is the inverse of the approximate variance
+ * {@code ( 1 - r^2 )^2 / ( m - 3 )} of {@code r}, with {@code |r|} clamped to
+ * {@link #MAX_CORRELATION}, and can be passed as estimate weight to
+ * {@link org.janelia.thickness.inference.InferFromMatrix}.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class SubsampledNCC
+{
+
+	/**
+	 * Two-sided 95% quantile of the standard normal distribution.
+	 */
+	public static final double Z_95 = 1.959963984540054;
+
+	/**
+	 * Upper bound of {@code |r|} for weights, such that weights of (nearly)
+	 * identical sections remain finite.
+	 */
+	public static final double MAX_CORRELATION = 0.99;
+
+	// plastic number, generator of the R2 sequence
+	private static final double PLASTIC = 1.324717957244746;
+
+	/**
+	 * Subsampled NCC of a pair of sections.
+	 */
+	public static class Estimate
+	{
+		public final double value;
+
+		public final double lower;
+
+		public final double upper;
+
+		public final int count;
+
+		public final double weight;
+
+		public Estimate( final double value, final double lower, final double upper, final int count, final double weight )
+		{
+			super();
+			this.value = value;
+			this.lower = lower;
+			this.upper = upper;
+			this.count = count;
+			this.weight = weight;
+		}
+
+		@Override
+		public String toString()
+		{
+			return value + " [" + lower + ", " + upper + "] (" + count + " samples, weight " + weight + ")";
+		}
+	}
+
+	private final int[] indices;
+
+	private final double quantile;
+
+	/**
+	 * @param nSamples
+	 *            number of samples, all pixels if
+	 *            {@code nSamples >= width * height}
+	 * @param quantile
+	 *            standard normal quantile of the confidence interval, e.g.
+	 *            {@link #Z_95}
+	 */
+	public SubsampledNCC( final int width, final int height, final int nSamples, final double quantile )
+	{
+		super();
+		this.indices = createIndices( width, height, nSamples );
+		this.quantile = quantile;
+	}
+
+	public SubsampledNCC( final int width, final int height, final int nSamples )
+	{
+		this( width, height, nSamples, Z_95 );
+	}
+
+	/**
+	 * @return sorted, unique pixel indices of the subset
+	 */
+	public int[] getIndices()
+	{
+		return indices;
+	}
+
+	/**
+	 * Gather the subset of {@code pixels} (unsigned {@code byte[]} or
+	 * {@code short[]}, or {@code float[]}).
+	 */
+	public float[] sample( final Object pixels )
+	{
+		final float[] samples = new float[ indices.length ];
+		if ( pixels instanceof byte[] )
+		{
+			final byte[] p = ( byte[] ) pixels;
+			for ( int i = 0; i < indices.length; ++i )
+				samples[ i ] = p[ indices[ i ] ] & 0xff;
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] p = ( short[] ) pixels;
+			for ( int i = 0; i < indices.length; ++i )
+				samples[ i ] = p[ indices[ i ] ] & 0xffff;
+		}
+		else if ( pixels instanceof float[] )
+		{
+			final float[] p = ( float[] ) pixels;
+			for ( int i = 0; i < indices.length; ++i )
+				samples[ i ] = p[ indices[ i ] ];
+		}
+		else
+			throw new IllegalArgumentException( "Pixel type not supported: " + pixels.getClass().getSimpleName() );
+		return samples;
+	}
+
+	/**
+	 * @param samplesA
+	 *            {@link #sample(Object)} of section a
+	 * @param samplesB
+	 *            {@link #sample(Object)} of section b
+	 * @return NCC of all samples that are not {@code NaN} in both sections
+	 */
+	public Estimate ncc( final float[] samplesA, final float[] samplesB )
+	{
+		double sa = 0, saa = 0, sb = 0, sbb = 0, sab = 0;
+		int count = 0;
+		for ( int i = 0; i < samplesA.length; ++i )
+		{
+			final double va = samplesA[ i ];
+			final double vb = samplesB[ i ];
+			if ( Double.isNaN( va ) || Double.isNaN( vb ) )
+				continue;
+			++count;
+			sa += va;
+			saa += va * va;
+			sb += vb;
+			sbb += vb * vb;
+			sab += va * vb;
+		}
+		final double r = ( count * sab - sa * sb ) / Math.sqrt( count * saa - sa * sa ) / Math.sqrt( count * sbb - sb * sb );
+		return estimate( r, count, quantile );
+	}
+
+	/**
+	 * Fisher confidence interval and weight of correlation {@code r} of
+	 * {@code count} samples. Interval and weight are undefined ({@code NaN}
+	 * and {@code 0}) for fewer than four samples or {@code NaN} correlation.
+	 */
+	public static Estimate estimate( final double r, final int count, final double quantile )
+	{
+		if ( count < 4 || Double.isNaN( r ) )
+			return new Estimate( r, Double.NaN, Double.NaN, count, 0.0 );
+		final double z = 0.5 * Math.log( ( 1 + r ) / ( 1 - r ) );
+		final double halfWidth = quantile / Math.sqrt( count - 3 );
+		final double clamped = Math.min( Math.abs( r ), MAX_CORRELATION );
+		final double oneMinusSquared = 1 - clamped * clamped;
+		final double weight = ( count - 3 ) / ( oneMinusSquared * oneMinusSquared );
+		return new Estimate( r, Math.tanh( z - halfWidth ), Math.tanh( z + halfWidth ), count, weight );
+	}
+
+	/**
+	 * @return weight of a pair of identical sections with {@code count}
+	 *         samples, used for the diagonal
+	 */
+	public static double maxWeight( final int count )
+	{
+		final double oneMinusSquared = 1 - MAX_CORRELATION * MAX_CORRELATION;
+		return Math.max( count - 3, 0 ) / ( oneMinusSquared * oneMinusSquared );
+	}
+
+	/**
+	 * Subsampled NCC of each section with all sections within
+	 * {@code range}. Samples are gathered in parallel for batches of
+	 * sections and the {@code range} sections that follow and released once
+	 * all their pairs have been compared.
+	 *
+	 * @param sections
+	 *            {@code width x height} pixels of section {@code z} (see
+	 *            {@link #sample(Object)})
+	 * @return similarity strip and weight strip of width
+	 *         {@code 2 * range + 1}
+	 */
+	public static Pair< ArrayImg< DoubleType, DoubleArray >, ArrayImg< DoubleType, DoubleArray > > calculateStrips(
+			final int n,
+			final IntFunction< Object > sections,
+			final int width,
+			final int height,
+			final int nSamples,
+			final int range,
+			final ExecutorService es,
+			final Progress progress ) throws InterruptedException, ExecutionException
+	{
+		final SubsampledNCC ncc = new SubsampledNCC( width, height, nSamples );
+		final int stripWidth = 2 * range + 1;
+		final double[] strip = new double[ stripWidth * n ];
+		final double[] weights = new double[ stripWidth * n ];
+		Arrays.fill( strip, Double.NaN );
+		Arrays.fill( weights, Double.NaN );
+		final double diagonalWeight = maxWeight( ncc.getIndices().length );
+		for ( int z = 0; z < n; ++z )
+		{
+			strip[ z * stripWidth + range ] = 1.0;
+			weights[ z * stripWidth + range ] = diagonalWeight;
+		}
+
+		final int batchSize = Runtime.getRuntime().availableProcessors();
+		final float[][] samples = new float[ n ][];
+		int sampled = 0;
+
+		progress.start( "Similarity", n );
+		for ( int batchStart = 0; batchStart < n; batchStart += batchSize )
+		{
+			progress.checkCancelled();
+			final int batchStop = Math.min( n, batchStart + batchSize );
+			final int required = Math.min( n, batchStop + range );
+			final ArrayList< Callable< Void > > gathers = new ArrayList<>();
+			for ( ; sampled < required; ++sampled )
+			{
+				final int z = sampled;
+				gathers.add( () -> {
+					samples[ z ] = ncc.sample( sections.apply( z ) );
+					return null;
+				} );
+			}
+			for ( final Future< Void > f : es.invokeAll( gathers ) )
+				f.get();
+
+			final ArrayList< Callable< Void > > pairs = new ArrayList<>();
+			for ( int z = batchStart; z < batchStop; ++z )
+			{
+				final int i = z;
+				pairs.add( () -> {
+					for ( int k = i + 1; k - i <= range && k < n; ++k )
+					{
+						progress.checkCancelled();
+						final Estimate estimate = ncc.ncc( samples[ i ], samples[ k ] );
+						strip[ i * stripWidth + k - i + range ] = estimate.value;
+						strip[ k * stripWidth + i - k + range ] = estimate.value;
+						weights[ i * stripWidth + k - i + range ] = estimate.weight;
+						weights[ k * stripWidth + i - k + range ] = estimate.weight;
+					}
+					progress.advance( 1 );
+					return null;
+				} );
+			}
+			for ( final Future< Void > f : es.invokeAll( pairs ) )
+				f.get();
+
+			for ( int z = batchStart; z < batchStop; ++z )
+				samples[ z ] = null;
+		}
+
+		return new ValuePair<>( ArrayImgs.doubles( strip, stripWidth, n ), ArrayImgs.doubles( weights, stripWidth, n ) );
+	}
+
+	private static int[] createIndices( final int width, final int height, final int nSamples )
+	{
+		final int size = width * height;
+		if ( nSamples >= size )
+		{
+			final int[] all = new int[ size ];
+			for ( int i = 0; i < size; ++i )
+				all[ i ] = i;
+			return all;
+		}
+
+		final double a1 = 1.0 / PLASTIC;
+		final double a2 = 1.0 / ( PLASTIC * PLASTIC );
+		final int[] candidates = new int[ nSamples ];
+		for ( int i = 0; i < nSamples; ++i )
+		{
+			final double x = ( 0.5 + a1 * i ) % 1.0;
+			final double y = ( 0.5 + a2 * i ) % 1.0;
+			candidates[ i ] = Math.min( ( int ) ( y * height ), height - 1 ) * width + Math.min( ( int ) ( x * width ), width - 1 );
+		}
+
+		// sorted for sequential access, duplicates removed
+		Arrays.sort( candidates );
+		int unique = 0;
+		for ( int i = 0; i < candidates.length; ++i )
+			if ( i == 0 || candidates[ i ] != candidates[ i - 1 ] )
+				candidates[ unique++ ] = candidates[ i ];
+		return Arrays.copyOf( candidates, unique );
+	}
+
+}
@@ -0,0 +1,317 @@
+package org.janelia.thickness.similarity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.janelia.thickness.inference.Progress;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.RealSum;
+
+/**
+ * Cache-aware computation of the NCC of all pairs of sections within a
+ * comparison range. Sections are grouped into blocks of {@code blockSize}
+ * consecutive sections and each task computes all in-range pairs within a
+ * block or between a block and one of the following blocks, i.e. tasks are
+ * of similar size and work is balanced up to the end of the stack. Within a
+ * task, pixels are processed in tiles: the tile of each section of the
+ * task is read once (through a {@link TileReader}, e.g. converting native
+ * pixel types) into a buffer of at most {@code tileBytes} and then used for
+ * all pairs of that section, instead of streaming the full sections from
+ * memory for each pair.
+ *
+ * The bytes read from the sections and the elapsed time of the last
+ * {@link #calculateNCCStrip} are available through {@link #getBytesRead()},
+ * {@link #getElapsedNanos()}, and {@link #getBandwidth()}.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class TiledPairScheduler
+{
+
+	/**
+	 * Reads pixels {@code offset <= i < offset + length} of section
+	 * {@code z} into {@code target[ 0 ] ... target[ length - 1 ]}.
+	 */
+	public static interface TileReader
+	{
+		void read( int z, int offset, int length, float[] target );
+
+		/**
+		 * @return bytes per pixel of the source, for bandwidth statistics
+		 */
+		int getBytesPerPixel();
+	}
+
+	public static final int DEFAULT_TILE_BYTES = 256 * 1024;
+
+	private final int blockSize;
+
+	private final int tileBytes;
+
+	private long bytesRead = 0;
+
+	private long elapsedNanos = 0;
+
+	private long numberOfPairs = 0;
+
+	/**
+	 * @param blockSize
+	 *            sections per block, use comparison range if
+	 *            {@code blockSize < 1}
+	 * @param tileBytes
+	 *            size of the tile buffers of each task, should fit into the
+	 *            per-core cache
+	 */
+	public TiledPairScheduler( final int blockSize, final int tileBytes )
+	{
+		super();
+		this.blockSize = blockSize;
+		this.tileBytes = tileBytes;
+	}
+
+	public TiledPairScheduler()
+	{
+		this( 0, DEFAULT_TILE_BYTES );
+	}
+
+	/**
+	 * @param n
+	 *            number of sections
+	 * @param size
+	 *            number of pixels per section
+	 * @return strip of width {@code 2 * range + 1}. Pixels that are
+	 *         {@code NaN} in either section of a pair are ignored (cf.
+	 *         {@link org.janelia.thickness.plugin.RealSumFloatNCC}).
+	 */
+	public ArrayImg< DoubleType, DoubleArray > calculateNCCStrip(
+			final int n,
+			final int size,
+			final TileReader reader,
+			final int range,
+			final ExecutorService es,
+			final Progress progress ) throws InterruptedException, ExecutionException
+	{
+		return calculateNCCStrip( n, size, reader, range, null, es, progress );
+	}
+
+	/**
+	 * As {@link #calculateNCCStrip(int, int, TileReader, int, ExecutorService, Progress)}
+	 * and write the number of pixels that are not {@code NaN} in both
+	 * sections of each pair into {@code counts}.
+	 *
+	 * @param counts
+	 *            strip of width {@code 2 * range + 1} in the layout of the
+	 *            returned strip, ignored if {@code null}. Entries of pairs
+	 *            that are not computed remain unchanged.
+	 */
+	public ArrayImg< DoubleType, DoubleArray > calculateNCCStrip(
+			final int n,
+			final int size,
+			final TileReader reader,
+			final int range,
+			final double[] counts,
+			final ExecutorService es,
+			final Progress progress ) throws InterruptedException, ExecutionException
+	{
+		final long start = System.nanoTime();
+		final int stripWidth = 2 * range + 1;
+		final double[] strip = new double[ stripWidth * n ];
+		Arrays.fill( strip, Double.NaN );
+		for ( int z = 0; z < n; ++z )
+			strip[ z * stripWidth + range ] = 1.0;
+
+		final int b = blockSize < 1 ? Math.max( range, 1 ) : blockSize;
+		final int nBlocks = ( n + b - 1 ) / b;
+		// blocks that contain pairs within range
+		final int maxBlockDistance = ( range + b - 1 ) / b;
+
+		final ArrayList< Callable< long[] > > tasks = new ArrayList<>();
+		for ( int k = 0; k < nBlocks; ++k )
+			for ( int d = 0; d <= maxBlockDistance && k + d < nBlocks; ++d )
+			{
+				final int blockA = k;
+				final int blockB = k + d;
+				tasks.add( () -> {
+					final long[] statistics = computeBlockPair( blockA * b, Math.min( ( blockA + 1 ) * b, n ), blockB * b, Math.min( ( blockB + 1 ) * b, n ), size, reader, range, strip, counts, stripWidth, progress );
+					progress.advance( 1 );
+					return statistics;
+				} );
+			}
+
+		progress.start( "Similarity", tasks.size() );
+		long bytes = 0;
+		long pairs = 0;
+		for ( final Future< long[] > f : es.invokeAll( tasks ) )
+		{
+			final long[] statistics = f.get();
+			bytes += statistics[ 0 ];
+			pairs += statistics[ 1 ];
+		}
+
+		this.bytesRead = bytes;
+		this.numberOfPairs = pairs;
+		this.elapsedNanos = System.nanoTime() - start;
+		return ArrayImgs.doubles( strip, stripWidth, n );
+	}
+
+	/**
+	 * @return bytes read from sections by the last
+	 *         {@link #calculateNCCStrip}
+	 */
+	public long getBytesRead()
+	{
+		return bytesRead;
+	}
+
+	public long getElapsedNanos()
+	{
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return number of pairs computed by the last
+	 *         {@link #calculateNCCStrip}
+	 */
+	public long getNumberOfPairs()
+	{
+		return numberOfPairs;
+	}
+
+	/**
+	 * @return achieved read bandwidth of the last
+	 *         {@link #calculateNCCStrip} in bytes per second
+	 */
+	public double getBandwidth()
+	{
+		return elapsedNanos > 0 ? bytesRead * 1e9 / elapsedNanos : 0.0;
+	}
+
+	/**
+	 * Compute all pairs {@code (i, j)} with {@code aMin <= i < aMax},
+	 * {@code bMin <= j < bMax}, and {@code 0 < j - i <= range}.
+	 *
+	 * @return bytes read and number of pairs
+	 */
+	private long[] computeBlockPair(
+			final int aMin,
+			final int aMax,
+			final int bMin,
+			final int bMax,
+			final int size,
+			final TileReader reader,
+			final int range,
+			final double[] strip,
+			final double[] countStrip,
+			final int stripWidth,
+			final Progress progress )
+	{
+		progress.checkCancelled();
+
+		// sections of both blocks in a contiguous index space
+		final int zMin = aMin;
+		final int zMax = bMax;
+		final int nSections = zMax - zMin;
+
+		final ArrayList< int[] > pairs = new ArrayList<>();
+		final boolean[] used = new boolean[ nSections ];
+		for ( int i = aMin; i < aMax; ++i )
+			for ( int j = Math.max( bMin, i + 1 ); j < bMax && j - i <= range; ++j )
+			{
+				pairs.add( new int[] { i, j } );
+				used[ i - zMin ] = true;
+				used[ j - zMin ] = true;
+			}
+		if ( pairs.isEmpty() )
+			return new long[] { 0, 0 };
+
+		int nUsed = 0;
+		for ( final boolean u : used )
+			if ( u )
+				++nUsed;
+
+		final int tileLength = Math.max( 64, tileBytes / ( 4 * nUsed ) );
+		final float[][] tiles = new float[ nSections ][];
+		for ( int z = 0; z < nSections; ++z )
+			if ( used[ z ] )
+				tiles[ z ] = new float[ tileLength ];
+
+		final int nPairs = pairs.size();
+		final long[] counts = new long[ nPairs ];
+		final RealSum[][] sums = new RealSum[ nPairs ][ 5 ];
+		for ( final RealSum[] s : sums )
+			for ( int m = 0; m < s.length; ++m )
+				s[ m ] = new RealSum();
+
+		long bytes = 0;
+		for ( int offset = 0; offset < size; offset += tileLength )
+		{
+			final int length = Math.min( tileLength, size - offset );
+			for ( int z = 0; z < nSections; ++z )
+				if ( used[ z ] )
+				{
+					reader.read( zMin + z, offset, length, tiles[ z ] );
+					bytes += ( long ) length * reader.getBytesPerPixel();
+				}
+
+			for ( int p = 0; p < nPairs; ++p )
+			{
+				final float[] ta = tiles[ pairs.get( p )[ 0 ] - zMin ];
+				final float[] tb = tiles[ pairs.get( p )[ 1 ] - zMin ];
+				double sa = 0, saa = 0, sb = 0, sbb = 0, sab = 0;
+				int count = 0;
+				for ( int t = 0; t < length; ++t )
+				{
+					final double va = ta[ t ];
+					final double vb = tb[ t ];
+					if ( Double.isNaN( va ) || Double.isNaN( vb ) )
+						continue;
+					++count;
+					sa += va;
+					saa += va * va;
+					sb += vb;
+					sbb += vb * vb;
+					sab += va * vb;
+				}
+				counts[ p ] += count;
+				final RealSum[] s = sums[ p ];
+				s[ 0 ].add( sa );
+				s[ 1 ].add( saa );
+				s[ 2 ].add( sb );
+				s[ 3 ].add( sbb );
+				s[ 4 ].add( sab );
+			}
+		}
+
+		for ( int p = 0; p < nPairs; ++p )
+		{
+			final int i = pairs.get( p )[ 0 ];
+			final int j = pairs.get( p )[ 1 ];
+			final double count = counts[ p ];
+			final double suma = sums[ p ][ 0 ].getSum();
+			final double sumaa = sums[ p ][ 1 ].getSum();
+			final double sumb = sums[ p ][ 2 ].getSum();
+			final double sumbb = sums[ p ][ 3 ].getSum();
+			final double sumab = sums[ p ][ 4 ].getSum();
+			final double val = ( count * sumab - suma * sumb ) / Math.sqrt( count * sumaa - suma * suma ) / Math.sqrt( count * sumbb - sumb * sumb );
+			strip[ i * stripWidth + j - i + ( stripWidth - 1 ) / 2 ] = val;
+			strip[ j * stripWidth + i - j + ( stripWidth - 1 ) / 2 ] = val;
+			if ( countStrip != null )
+			{
+				countStrip[ i * stripWidth + j - i + ( stripWidth - 1 ) / 2 ] = count;
+				countStrip[ j * stripWidth + i - j + ( stripWidth - 1 ) / 2 ] = count;
+			}
+		}
+
+		return new long[] { bytes, nPairs };
+	}
+
+}
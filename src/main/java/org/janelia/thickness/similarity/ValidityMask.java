@@ -0,0 +1,160 @@
+package org.janelia.thickness.similarity;
+
+/**
+ * Valid pixels of a section as a bitset of 64 pixel words: pixel {@code i}
+ * is valid iff bit {@code i % 64} of word {@code i / 64} is set. Bits beyond
+ * {@link #size()} are never set. Masks are computed once per section, e.g.
+ * from {@code NaN} pixels, saturated ARGB pixels, a resin/background mask,
+ * or a user ROI, and combined with {@link #and(ValidityMask)}.
+ * {@link MaskedNCC} uses them to skip invalid blocks of 64 pixels without
+ * testing each pixel for each pair of sections.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ValidityMask
+{
+
+	private final int size;
+
+	private final long[] words;
+
+	/**
+	 * Create mask with all {@code size} pixels invalid.
+	 */
+	public ValidityMask( final int size )
+	{
+		super();
+		this.size = size;
+		this.words = new long[ ( size + 63 ) >>> 6 ];
+	}
+
+	/**
+	 * @return mask with all {@code size} pixels valid
+	 */
+	public static ValidityMask all( final int size )
+	{
+		final ValidityMask mask = new ValidityMask( size );
+		for ( int k = 0; k < mask.words.length; ++k )
+			mask.words[ k ] = -1L;
+		if ( ( size & 63 ) != 0 )
+			mask.words[ mask.words.length - 1 ] = ( 1L << ( size & 63 ) ) - 1;
+		return mask;
+	}
+
+	/**
+	 * @return mask of pixels that are not {@code NaN}
+	 */
+	public static ValidityMask fromFloats( final float[] pixels )
+	{
+		final ValidityMask mask = new ValidityMask( pixels.length );
+		for ( int i = 0; i < pixels.length; ++i )
+			if ( !Float.isNaN( pixels[ i ] ) )
+				mask.set( i );
+		return mask;
+	}
+
+	/**
+	 * @return mask of non-zero pixels, e.g. of an ImageJ mask or binary image
+	 */
+	public static ValidityMask fromMask( final byte[] pixels )
+	{
+		final ValidityMask mask = new ValidityMask( pixels.length );
+		for ( int i = 0; i < pixels.length; ++i )
+			if ( pixels[ i ] != 0 )
+				mask.set( i );
+		return mask;
+	}
+
+	/**
+	 * @return mask of ARGB pixels without any channel at {@code 0} or
+	 *         {@code 255} (cf.
+	 *         {@link org.janelia.thickness.trakem2.RealSumARGBNCC})
+	 */
+	public static ValidityMask fromARGB( final int[] pixels )
+	{
+		final ValidityMask mask = new ValidityMask( pixels.length );
+		for ( int i = 0; i < pixels.length; ++i )
+		{
+			final int r = ( pixels[ i ] >> 16 ) & 0xff;
+			final int g = ( pixels[ i ] >> 8 ) & 0xff;
+			final int b = pixels[ i ] & 0xff;
+			if ( r != 0 && g != 0 && b != 0 && r != 255 && g != 255 && b != 255 )
+				mask.set( i );
+		}
+		return mask;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return internal words, do not modify
+	 */
+	public long[] getWords()
+	{
+		return words;
+	}
+
+	public boolean get( final int i )
+	{
+		return ( words[ i >>> 6 ] & 1L << i ) != 0;
+	}
+
+	public void set( final int i )
+	{
+		if ( i < 0 || i >= size )
+			throw new IndexOutOfBoundsException( "Pixel " + i + " out of bounds for size " + size + "." );
+		words[ i >>> 6 ] |= 1L << i;
+	}
+
+	public void clear( final int i )
+	{
+		words[ i >>> 6 ] &= ~( 1L << i );
+	}
+
+	/**
+	 * @return number of valid pixels
+	 */
+	public int cardinality()
+	{
+		int count = 0;
+		for ( final long word : words )
+			count += Long.bitCount( word );
+		return count;
+	}
+
+	/**
+	 * @return new mask of pixels that are valid in this and {@code other}
+	 */
+	public ValidityMask and( final ValidityMask other )
+	{
+		checkSize( other.size );
+		final ValidityMask result = new ValidityMask( size );
+		for ( int k = 0; k < words.length; ++k )
+			result.words[ k ] = words[ k ] & other.words[ k ];
+		return result;
+	}
+
+	/**
+	 * @return number of pixels that are valid in this and {@code other},
+	 *         i.e. the number of pixels compared by {@link MaskedNCC}
+	 */
+	public int overlap( final ValidityMask other )
+	{
+		checkSize( other.size );
+		int count = 0;
+		for ( int k = 0; k < words.length; ++k )
+			count += Long.bitCount( words[ k ] & other.words[ k ] );
+		return count;
+	}
+
+	void checkSize( final int otherSize )
+	{
+		if ( otherSize != size )
+			throw new IllegalArgumentException( "Size mismatch: " + otherSize + " != " + size );
+	}
+
+}
@@ -23,6 +23,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -31,7 +33,15 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.janelia.thickness.inference.InferFromMatrix;
 import org.janelia.thickness.inference.Options;
+import org.janelia.thickness.inference.Progress;
+import org.janelia.thickness.inference.SparseSimilarities;
+import org.janelia.thickness.inference.Workspace;
 import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.inference.visitor.LazyVisitor;
+import org.janelia.thickness.plugin.ZPositionCorrection;
+import org.janelia.thickness.similarity.AdaptiveRange;
+import org.janelia.thickness.similarity.MaskedNCC;
+import org.janelia.thickness.similarity.ValidityMask;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -66,6 +76,7 @@ import mpicbg.trakem2.align.Align.Param;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.ConstantUtils;
 
 /**
  *
@@ -92,6 +103,8 @@ public class LayerZPosition implements TPlugIn
 
 	static protected boolean showMatrix = true;
 
+	static protected int adaptiveRangeStopCount = 0;
+
 	static protected Param siftParam = Align.param.clone();
 
 	final static protected String[] similarityMethods = new String[] { "NCC (aligned)", "SIFT consensus (unaligned)" };
@@ -205,6 +218,17 @@ public class LayerZPosition implements TPlugIn
 			return null;
 	}
 
+	/**
+	 * Gray values as in {@link RealSumARGBNCC}.
+	 */
+	static private float[] toGray( final int[] argb )
+	{
+		final float[] gray = new float[ argb.length ];
+		for ( int i = 0; i < argb.length; ++i )
+			gray[ i ] = ( float ) ( 0.3 * ( ( argb[ i ] >> 16 ) & 0xff ) + 0.6 * ( ( argb[ i ] >> 8 ) & 0xff ) + 0.1 * ( argb[ i ] & 0xff ) );
+		return gray;
+	}
+
 	static private int[] getPixels(
 			final Layer layer,
 			final Rectangle fov,
@@ -227,6 +251,64 @@ public class LayerZPosition implements TPlugIn
 			final int innerIter,
 			final double innerReg,
 			final boolean reord ) throws Exception
+	{
+		optimize( layers, matrix, rad, iter, reg, innerIter, innerReg, reord, new Progress() );
+	}
+
+	static public void optimize(
+			final List< Layer > layers,
+			final FloatProcessor matrix,
+			final int rad,
+			final int iter,
+			final double reg,
+			final int innerIter,
+			final double innerReg,
+			final boolean reord,
+			final Progress progress ) throws Exception
+	{
+		optimize( layers, matrix, null, rad, iter, reg, innerIter, innerReg, reord, progress );
+	}
+
+	/**
+	 * @param weights
+	 *            per-pair weights of {@code matrix}, e.g. the number of
+	 *            compared pixels, constant if {@code null}
+	 */
+	static public void optimize(
+			final List< Layer > layers,
+			final FloatProcessor matrix,
+			final FloatProcessor weights,
+			final int rad,
+			final int iter,
+			final double reg,
+			final int innerIter,
+			final double innerReg,
+			final boolean reord,
+			final Progress progress ) throws Exception
+	{
+		optimize( layers, matrix, weights, false, rad, iter, reg, innerIter, innerReg, reord, progress );
+	}
+
+	/**
+	 * @param weights
+	 *            per-pair weights of {@code matrix}, e.g. the number of
+	 *            compared pixels, constant if {@code null}
+	 * @param sparse
+	 *            visit only the finite similarities of {@code matrix}, e.g. the
+	 *            ragged band of an adaptive range
+	 */
+	static public void optimize(
+			final List< Layer > layers,
+			final FloatProcessor matrix,
+			final FloatProcessor weights,
+			final boolean sparse,
+			final int rad,
+			final int iter,
+			final double reg,
+			final int innerIter,
+			final double innerReg,
+			final boolean reord,
+			final Progress progress ) throws Exception
 	{
 		final Options options = Options.generateDefaultOptions();
 		options.comparisonRange = rad;
@@ -252,8 +334,28 @@ public class LayerZPosition implements TPlugIn
 				new InferFromMatrix( new GlobalCorrelationFitAverage() );
 
 		final RandomAccessibleInterval< FloatType > raMatrix = ImagePlusImgs.from( new ImagePlus( "", matrix ) );
-
-		final double[] lutCorrected = inference.estimateZCoordinates( raMatrix, lut, options );
+		final RandomAccessibleInterval< FloatType > raWeights = weights == null ? null : ImagePlusImgs.from( new ImagePlus( "", weights ) );
+
+		final double[] lutCorrected = sparse ?
+				inference.estimateZCoordinates(
+						SparseSimilarities.fromMatrix( raMatrix, raWeights == null ? ConstantUtils.constantRandomAccessibleInterval( new FloatType( 1.0f ), 2, raMatrix ) : raWeights, rad ),
+						lut,
+						Arrays.stream( new double[ lut.length ] ).map( d -> 1.0 ).toArray(),
+						Arrays.stream( new double[ lut.length ] ).map( d -> 1.0 ).toArray(),
+						new LazyVisitor(),
+						options,
+						progress ) :
+				inference.estimateZCoordinates(
+						raMatrix,
+						lut,
+						new double[ 0 ],
+						Arrays.stream( new double[ lut.length ] ).map( d -> 1.0 ).toArray(),
+						raWeights,
+						Arrays.stream( new double[ lut.length ] ).map( d -> 1.0 ).toArray(),
+						new LazyVisitor(),
+						options,
+						new Workspace( lut.length, options.comparisonRange, inference.getCorrelationFit() ),
+						progress );
 
 		IJ.log( Arrays.toString( lutCorrected ) );
 
@@ -277,6 +379,56 @@ public class LayerZPosition implements TPlugIn
 			final Rectangle fov,
 			final int r,
 			final double s ) throws InterruptedException, ExecutionException
+	{
+		return calculateNCCSimilarity( layers, fov, r, s, new Progress() );
+	}
+
+	static public FloatProcessor calculateNCCSimilarity(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final double s,
+			final Progress progress ) throws InterruptedException, ExecutionException
+	{
+		return calculateNCCSimilarity( layers, fov, r, s, Options.generateDefaultOptions().minimumCorrelationValue, adaptiveRangeStopCount, progress );
+	}
+
+	/**
+	 * Calculate NCC of each layer with all layers within {@code r}. If
+	 * {@code stopCount > 0}, stop for a layer once similarity is at or below
+	 * {@code minimumCorrelationValue} for {@code stopCount} consecutive
+	 * offsets (see {@link AdaptiveRange}). Offsets are computed in parallel
+	 * batches of the number of available processors and the stopping rule is
+	 * applied after each batch.
+	 */
+	static public FloatProcessor calculateNCCSimilarity(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final double s,
+			final double minimumCorrelationValue,
+			final int stopCount,
+			final Progress progress ) throws InterruptedException, ExecutionException
+	{
+		return calculateNCCSimilarity( layers, fov, r, s, minimumCorrelationValue, stopCount, null, progress );
+	}
+
+	/**
+	 * As
+	 * {@link #calculateNCCSimilarity(List, Rectangle, int, double, double, int, Progress)}
+	 * and write the number of pixels compared for each pair, i.e. pixels that
+	 * are covered by both layers, into {@code weights} (if not {@code null}),
+	 * and the number of pixels covered by each layer on the diagonal.
+	 */
+	static public FloatProcessor calculateNCCSimilarity(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final double s,
+			final double minimumCorrelationValue,
+			final int stopCount,
+			final FloatProcessor weights,
+			final Progress progress ) throws InterruptedException, ExecutionException
 	{
 		final FloatProcessor ip = initMatrix( layers.size() );
 
@@ -289,61 +441,85 @@ public class LayerZPosition implements TPlugIn
 		else
 			impMatrix = null;
 
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		final AdaptiveRange adaptiveRange = new AdaptiveRange( minimumCorrelationValue, stopCount );
+		progress.start( "Similarity", layers.size() );
 		for ( int i = 0; i < layers.size(); ++i )
 		{
+			progress.checkCancelled();
+			progress.advance( 1 );
 			final int fi = i;
 			final Layer li = layers.get( i );
 			final int[] argbi = getPixels( li, fov, s );
 			if ( argbi == null )
 				continue;
+			// valid pixels of layer i are determined once for all pairs
+			final float[] grayi = toGray( argbi );
+			final ValidityMask maski = ValidityMask.fromARGB( argbi );
 
 			ip.setf( fi, fi, 1.0f );
+			if ( weights != null )
+				weights.setf( fi, fi, maski.cardinality() );
 
-			final ExecutorService exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
-			final ArrayList< Future< FloatProcessor > > tasks = new ArrayList< Future< FloatProcessor > >();
+			final ExecutorService exec = Executors.newFixedThreadPool( nThreads );
+			final ArrayList< Future< Double > > tasks = new ArrayList< Future< Double > >();
+			final int batchSize = adaptiveRange.isAdaptive() ? nThreads : r;
+			adaptiveRange.reset();
 
-			for ( int j = i + 1; j < layers.size() && j <= i + r; ++j )
+			for ( int start = i + 1; start < layers.size() && start <= i + r && !adaptiveRange.isStopped(); start += batchSize )
 			{
-				final int fj = j;
-				final Layer lj = layers.get( j );
-				tasks.add( exec.submit( new Runnable()
+				for ( int j = start; j < layers.size() && j <= i + r && j < start + batchSize; ++j )
 				{
-					@Override
-					public void run()
+					final int fj = j;
+					final Layer lj = layers.get( j );
+					tasks.add( exec.submit( new Callable< Double >()
 					{
-						final int[] argbj = getPixels( lj, fov, s );
-						if ( argbj != null )
+						@Override
+						public Double call()
 						{
-							final Double d = new RealSumARGBNCC( argbi, argbj ).call();
+							if ( progress.isCancelled() )
+								return Double.NaN;
+							final int[] argbj = getPixels( lj, fov, s );
+							if ( argbj == null )
+								return Double.NaN;
+							final ValidityMask maskj = ValidityMask.fromARGB( argbj );
+							final Double d = MaskedNCC.ncc( grayi, maski, toGray( argbj ), maskj );
 							ip.setf( fi, fj, d.floatValue() );
 							ip.setf( fj, fi, d.floatValue() );
+							if ( weights != null )
+							{
+								final float count = maski.overlap( maskj );
+								weights.setf( fi, fj, count );
+								weights.setf( fj, fi, count );
+							}
 							if ( impMatrix != null )
 								impMatrix.updateAndDraw();
+							return d;
 						}
-					}
-				},
-						ip ) );
-			}
-
-			for ( final Future< FloatProcessor > fu : tasks )
-			{
-				try
-				{
-					fu.get();
-				}
-				catch ( final InterruptedException e )
-				{
-					exec.shutdownNow();
-					throw e;
+					} ) );
 				}
-				catch ( final ExecutionException e )
+
+				for ( final Future< Double > fu : tasks )
 				{
-					exec.shutdownNow();
-					throw e;
+					try
+					{
+						adaptiveRange.add( fu.get() );
+					}
+					catch ( final InterruptedException e )
+					{
+						exec.shutdownNow();
+						throw e;
+					}
+					catch ( final ExecutionException e )
+					{
+						exec.shutdownNow();
+						throw e;
+					}
 				}
+
+				tasks.clear();
 			}
 
-			tasks.clear();
 			exec.shutdown();
 
 			if ( impMatrix != null )
@@ -374,11 +550,33 @@ public class LayerZPosition implements TPlugIn
 			final double innerReg,
 			final boolean reord ) throws InterruptedException, ExecutionException
 	{
-		final FloatProcessor matrix = calculateNCCSimilarity( layers, fov, r, s );
+		runNCC( layers, fov, r, s, iter, reg, innerIter, innerReg, reord, new Progress() );
+	}
+
+	static public void runNCC(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final double s,
+			final int iter,
+			final double reg,
+			final int innerIter,
+			final double innerReg,
+			final boolean reord,
+			final Progress progress ) throws InterruptedException, ExecutionException
+	{
+		final FloatProcessor weights = new FloatProcessor( layers.size(), layers.size() );
+		weights.add( 1.0 );
+		final FloatProcessor matrix = calculateNCCSimilarity( layers, fov, r, s, Options.generateDefaultOptions().minimumCorrelationValue, adaptiveRangeStopCount, weights, progress );
 
 		try
 		{
-			optimize( layers, matrix, r, iter, reg, innerIter, innerReg, reord );
+			// ragged band of adaptive range: visit computed pairs only
+			optimize( layers, matrix, weights, adaptiveRangeStopCount > 0, r, iter, reg, innerIter, innerReg, reord, progress );
+		}
+		catch ( final CancellationException e )
+		{
+			throw e;
 		}
 		catch ( final Exception e )
 		{
@@ -395,6 +593,11 @@ public class LayerZPosition implements TPlugIn
 	 * @throws ExecutionException
 	 */
 	public void invokeNCC( final List< Layer > layers, final Rectangle fov ) throws InterruptedException, ExecutionException
+	{
+		invokeNCC( layers, fov, new Progress() );
+	}
+
+	public void invokeNCC( final List< Layer > layers, final Rectangle fov, final Progress progress ) throws InterruptedException, ExecutionException
 	{
 		final GenericDialog gd = new GenericDialog( "Correct layer z-positions - NCC" );
 		gd.addNumericField( "scale :", scale < 0 ? suggestScale( layers ) : scale, 2, 6, "" );
@@ -404,7 +607,7 @@ public class LayerZPosition implements TPlugIn
 
 		scale = gd.getNextNumber();
 
-		runNCC( layers, fov, radius, scale, iterations, regularize, innerIterations, innerRegularize, reorder );
+		runNCC( layers, fov, radius, scale, iterations, regularize, innerIterations, innerRegularize, reorder, progress );
 	}
 
 	/* extract features */
@@ -479,7 +682,8 @@ public class LayerZPosition implements TPlugIn
 	static private List< ArrayList< Feature > > extractFeatures(
 			final List< Layer > layers,
 			final Param param,
-			final Rectangle fov ) throws InterruptedException
+			final Rectangle fov,
+			final Progress progress ) throws InterruptedException
 	{
 		final double s = Math.min( 1.0, Math.min( param.sift.maxOctaveSize / fov.getWidth(), param.sift.maxOctaveSize / fov.getHeight() ) );
 
@@ -497,7 +701,7 @@ public class LayerZPosition implements TPlugIn
 						{
 							final FloatArray2DSIFT sift = new FloatArray2DSIFT( param.sift );
 							final SIFT ijSIFT = new SIFT( sift );
-							for ( int k = i.getAndIncrement(); k < layers.size(); k = i.getAndIncrement() )
+							for ( int k = i.getAndIncrement(); k < layers.size() && !progress.isCancelled(); k = i.getAndIncrement() )
 							{
 								final ArrayList< Feature > features = extract( ijSIFT, getColorProcessor( layers.get( k ), fov, s ) );
 								IJ.log( k + ": " + features.size() + " features extracted" );
@@ -510,6 +714,7 @@ public class LayerZPosition implements TPlugIn
 		}
 		for ( final Thread t : threads )
 			t.join();
+		progress.checkCancelled();
 
 		return Arrays.asList( featuresArray );
 	}
@@ -520,7 +725,17 @@ public class LayerZPosition implements TPlugIn
 			final int r,
 			final Param p ) throws InterruptedException, ExecutionException
 	{
-		final List< ArrayList< Feature > > featuresList = extractFeatures( layers, p, fov );
+		return calculateSIFTSimilarity( layers, fov, r, p, new Progress() );
+	}
+
+	static public FloatProcessor calculateSIFTSimilarity(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final Param p,
+			final Progress progress ) throws InterruptedException, ExecutionException
+	{
+		final List< ArrayList< Feature > > featuresList = extractFeatures( layers, p, fov, progress );
 
 		final FloatProcessor ip = initMatrix( layers.size() );
 
@@ -534,8 +749,11 @@ public class LayerZPosition implements TPlugIn
 			impMatrix = null;
 
 		/* match */
+		progress.start( "Similarity", layers.size() );
 		for ( int i = 0; i < layers.size(); ++i )
 		{
+			progress.checkCancelled();
+			progress.advance( 1 );
 			final int fi = i;
 			final ArrayList< Feature > f1 = featuresList.get( fi );
 			if ( f1 == null || f1.size() == 0 )
@@ -553,7 +771,7 @@ public class LayerZPosition implements TPlugIn
 							@Override
 							public void run()
 							{
-								for ( int k = j.getAndIncrement(); k < layers.size() && k < fi + radius; k = j.getAndIncrement() )
+								for ( int k = j.getAndIncrement(); k < layers.size() && k < fi + radius && !progress.isCancelled(); k = j.getAndIncrement() )
 								{
 									final ArrayList< Feature > f2 = featuresList.get( k );
 									if ( f2 == null || f2.size() == 0 )
@@ -590,11 +808,25 @@ public class LayerZPosition implements TPlugIn
 			final int r,
 			final Param p ) throws InterruptedException, ExecutionException
 	{
-		final FloatProcessor matrix = calculateSIFTSimilarity( layers, fov, r, p );
+		runSIFT( layers, fov, r, p, new Progress() );
+	}
+
+	static public void runSIFT(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final Param p,
+			final Progress progress ) throws InterruptedException, ExecutionException
+	{
+		final FloatProcessor matrix = calculateSIFTSimilarity( layers, fov, r, p, progress );
 
 		try
 		{
-			optimize( layers, matrix, r, iterations, regularize, innerIterations, innerRegularize, reorder );
+			optimize( layers, matrix, r, iterations, regularize, innerIterations, innerRegularize, reorder, progress );
+		}
+		catch ( final CancellationException e )
+		{
+			throw e;
 		}
 		catch ( final Exception e )
 		{
@@ -611,6 +843,11 @@ public class LayerZPosition implements TPlugIn
 	 * @throws InterruptedException
 	 */
 	public void invokeSIFT( final List< Layer > layers, final Rectangle fov ) throws InterruptedException, ExecutionException
+	{
+		invokeSIFT( layers, fov, new Progress() );
+	}
+
+	public void invokeSIFT( final List< Layer > layers, final Rectangle fov, final Progress progress ) throws InterruptedException, ExecutionException
 	{
 		final GenericDialog gd = new GenericDialog( "Correct layer z-positions - SIFT consensus" );
 		gd.addMessage( "Scale Invariant Features :" );
@@ -625,7 +862,7 @@ public class LayerZPosition implements TPlugIn
 		siftParam.readSIFTFields( gd );
 		siftParam.readGeometricConsensusFilterFields( gd );
 
-		runSIFT( layers, fov, radius, siftParam.clone() );
+		runSIFT( layers, fov, radius, siftParam.clone(), progress );
 	}
 
 	@Override
@@ -639,6 +876,7 @@ public class LayerZPosition implements TPlugIn
 		Utils.addLayerRangeChoices( layer, gd );
 		gd.addMessage( "Layer neighborhood range :" );
 		gd.addNumericField( "test_maximally :", radius, 0, 6, "layers" );
+		gd.addNumericField( "stop_after_dissimilar :", adaptiveRangeStopCount, 0, 6, "layers (0: test all)" );
 		gd.addMessage( "Optimizer :" );
 		gd.addNumericField( "outer_iterations :", iterations, 0, 6, "" );
 		gd.addNumericField( "outer_regularization :", regularize, 2, 6, "" );
@@ -659,24 +897,30 @@ public class LayerZPosition implements TPlugIn
 						gd.getNextChoiceIndex(),
 						gd.getNextChoiceIndex() + 1 );
 		radius = ( int ) gd.getNextNumber();
+		adaptiveRangeStopCount = ( int ) gd.getNextNumber();
 		final int method = gd.getNextChoiceIndex();
 		similarityMethod = similarityMethods[ method ];
 		showMatrix = gd.getNextBoolean();
+		final Progress progress = ZPositionCorrection.createProgress();
 		try
 		{
 			switch ( method )
 			{
 			case 1:
-				invokeSIFT( layers, getRoi( layerset ) );
+				invokeSIFT( layers, getRoi( layerset ), progress );
 				break;
 			default:
-				invokeNCC( layers, getRoi( layerset ) );
+				invokeNCC( layers, getRoi( layerset ), progress );
 			}
 		}
 		catch ( final InterruptedException e )
 		{
 			Utils.log( "Layer Z-Spacing Correction interrupted." );
 		}
+		catch ( final CancellationException e )
+		{
+			Utils.log( "Layer Z-Spacing Correction cancelled." );
+		}
 		catch ( final ExecutionException e )
 		{
 			Utils.log( "Layer Z-Spacing Correction ExecutiuonException occurred:" );
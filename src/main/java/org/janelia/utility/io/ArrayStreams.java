@@ -0,0 +1,78 @@
+package org.janelia.utility.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bulk big endian transfer of primitive arrays through data streams. Values
+ * are converted in chunks through {@code buffer}, avoiding a stream call per
+ * value. Lengths are not written, callers need to store them as needed.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ArrayStreams
+{
+
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	public static ByteBuffer createBuffer()
+	{
+		return ByteBuffer.allocate( DEFAULT_BUFFER_SIZE );
+	}
+
+	public static void write( final DataOutputStream out, final ByteBuffer buffer, final double[] data ) throws IOException
+	{
+		final int chunk = buffer.capacity() / 8;
+		for ( int offset = 0; offset < data.length; offset += chunk )
+		{
+			final int length = Math.min( chunk, data.length - offset );
+			buffer.clear();
+			buffer.asDoubleBuffer().put( data, offset, length );
+			out.write( buffer.array(), 0, 8 * length );
+		}
+	}
+
+	public static void write( final DataOutputStream out, final ByteBuffer buffer, final int[] data ) throws IOException
+	{
+		final int chunk = buffer.capacity() / 4;
+		for ( int offset = 0; offset < data.length; offset += chunk )
+		{
+			final int length = Math.min( chunk, data.length - offset );
+			buffer.clear();
+			buffer.asIntBuffer().put( data, offset, length );
+			out.write( buffer.array(), 0, 4 * length );
+		}
+	}
+
+	public static double[] readDoubles( final DataInputStream in, final ByteBuffer buffer, final int n ) throws IOException
+	{
+		final double[] data = new double[ n ];
+		final int chunk = buffer.capacity() / 8;
+		for ( int offset = 0; offset < n; offset += chunk )
+		{
+			final int length = Math.min( chunk, n - offset );
+			in.readFully( buffer.array(), 0, 8 * length );
+			buffer.clear();
+			buffer.asDoubleBuffer().get( data, offset, length );
+		}
+		return data;
+	}
+
+	public static int[] readInts( final DataInputStream in, final ByteBuffer buffer, final int n ) throws IOException
+	{
+		final int[] data = new int[ n ];
+		final int chunk = buffer.capacity() / 4;
+		for ( int offset = 0; offset < n; offset += chunk )
+		{
+			final int length = Math.min( chunk, n - offset );
+			in.readFully( buffer.array(), 0, 4 * length );
+			buffer.clear();
+			buffer.asIntBuffer().get( data, offset, length );
+		}
+		return data;
+	}
+
+}
@@ -0,0 +1,144 @@
+package org.janelia.utility.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming writer for single-plane, uncompressed, big endian 32-bit float
+ * TIFF files with one strip per row. Header and strip table are written up
+ * front, rows are appended with {@link #write(float[], int, int)} and need
+ * not be held in memory at once.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class FloatTiffWriter implements AutoCloseable
+{
+
+	private static final int N_ENTRIES = 10;
+
+	private static final int IFD_OFFSET = 8;
+
+	private static final int IFD_SIZE = 2 + 12 * N_ENTRIES + 4;
+
+	private static final short SHORT = 3;
+
+	private static final short LONG = 4;
+
+	private final DataOutputStream out;
+
+	private final int width;
+
+	private final int height;
+
+	private final ByteBuffer row;
+
+	private int rowsWritten = 0;
+
+	public FloatTiffWriter( final String path, final int width, final int height ) throws IOException
+	{
+		super();
+		this.width = width;
+		this.height = height;
+		this.row = ByteBuffer.allocate( 4 * width );
+		this.out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( path ), 1 << 16 ) );
+		writeHeader();
+	}
+
+	/**
+	 * Append {@code nRows} rows, starting at {@code offset} in
+	 * {@code data}.
+	 */
+	public void write( final float[] data, final int offset, final int nRows ) throws IOException
+	{
+		if ( rowsWritten + nRows > height )
+			throw new IOException( "Trying to write more than " + height + " rows." );
+		for ( int r = 0, o = offset; r < nRows; ++r, o += width )
+		{
+			row.clear();
+			row.asFloatBuffer().put( data, o, width );
+			out.write( row.array(), 0, 4 * width );
+		}
+		rowsWritten += nRows;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			if ( rowsWritten != height )
+				throw new IOException( "Expected " + height + " rows but got " + rowsWritten );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Write {@code data} ({@code width * height} values, row-major) to
+	 * {@code path}.
+	 */
+	public static void write( final String path, final float[] data, final int width, final int height ) throws IOException
+	{
+		try (FloatTiffWriter writer = new FloatTiffWriter( path, width, height ))
+		{
+			writer.write( data, 0, height );
+		}
+	}
+
+	private void writeHeader() throws IOException
+	{
+		final long stripOffsetsOffset = IFD_OFFSET + IFD_SIZE;
+		final long stripByteCountsOffset = stripOffsetsOffset + 4l * height;
+		final long dataOffset = stripByteCountsOffset + 4l * height;
+		final long rowBytes = 4l * width;
+		if ( dataOffset + rowBytes * height > 0xFFFFFFFFl )
+			throw new IOException( "Image too large for TIFF: " + width + "x" + height );
+
+		out.writeByte( 'M' );
+		out.writeByte( 'M' );
+		out.writeShort( 42 );
+		out.writeInt( IFD_OFFSET );
+
+		// entries sorted by tag
+		out.writeShort( N_ENTRIES );
+		writeEntry( 256, LONG, 1, width ); // ImageWidth
+		writeEntry( 257, LONG, 1, height ); // ImageLength
+		writeEntry( 258, SHORT, 1, 32 ); // BitsPerSample
+		writeEntry( 259, SHORT, 1, 1 ); // Compression: none
+		writeEntry( 262, SHORT, 1, 1 ); // PhotometricInterpretation: BlackIsZero
+		// single strip: value fits into entry
+		writeEntry( 273, LONG, height, height == 1 ? dataOffset : stripOffsetsOffset ); // StripOffsets
+		writeEntry( 277, SHORT, 1, 1 ); // SamplesPerPixel
+		writeEntry( 278, LONG, 1, 1 ); // RowsPerStrip
+		writeEntry( 279, LONG, height, height == 1 ? rowBytes : stripByteCountsOffset ); // StripByteCounts
+		writeEntry( 339, SHORT, 1, 3 ); // SampleFormat: IEEE float
+		out.writeInt( 0 ); // no next IFD
+
+		for ( int y = 0; y < height; ++y )
+			out.writeInt( ( int ) ( dataOffset + y * rowBytes ) );
+		for ( int y = 0; y < height; ++y )
+			out.writeInt( ( int ) rowBytes );
+	}
+
+	private void writeEntry( final int tag, final short type, final int count, final long value ) throws IOException
+	{
+		out.writeShort( tag );
+		out.writeShort( type );
+		out.writeInt( count );
+		if ( type == SHORT && count == 1 )
+		{
+			// left justified
+			out.writeShort( ( int ) value );
+			out.writeShort( 0 );
+		}
+		else
+			out.writeInt( ( int ) value );
+	}
+
+}
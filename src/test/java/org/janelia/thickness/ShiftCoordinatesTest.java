@@ -2,7 +2,10 @@ package org.janelia.thickness;
 
 import java.util.Arrays;
 
+import org.janelia.thickness.inference.InferFromMatrix;
 import org.janelia.thickness.inference.Options;
+import org.janelia.thickness.inference.ShiftSamples;
+import org.janelia.thickness.inference.SparseSimilarities;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -94,6 +97,114 @@ public class ShiftCoordinatesTest
 		}
 	}
 
+	@Test
+	public void testDenseMatchesSparse()
+	{
+		final int size = 20;
+		final int range = 5;
+		final double step = 0.5 / range;
+
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( size, size );
+		final ArrayImg< DoubleType, DoubleArray > pairWeights = ArrayImgs.doubles( size, size );
+		final ArrayCursor< DoubleType > w = pairWeights.cursor();
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			w.fwd();
+			final long x = c.getLongPosition( 0 );
+			final long y = c.getLongPosition( 1 );
+			final long dx = Math.abs( x - y );
+			c.get().set( dx <= range ? 1.0 - dx * step : Double.NaN );
+			w.get().set( 1.0 + ( x + y ) % 3 );
+		}
+
+		final double[] fit = new double[ range + 1 ];
+		for ( int dz = 0; dz < fit.length; ++dz )
+			fit[ dz ] = -( 1.0 - dz * step );
+		final RandomAccessibleInterval< double[] > fits = ConstantUtils.constantRandomAccessibleInterval( fit, 1, new FinalInterval( size ) );
+
+		// perturbed coordinates and non-constant shift weights
+		final double[] coordinates = new double[ size ];
+		final double[] scalingFactors = new double[ size ];
+		final double[] shiftWeights = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+		{
+			coordinates[ z ] = z + 0.1 * Math.sin( z );
+			scalingFactors[ z ] = 1.0;
+			shiftWeights[ z ] = 0.5 + z % 4;
+		}
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+
+		final double[] denseShifts = new double[ size ];
+		final double[] denseWeightSums = new double[ size ];
+		ShiftCoordinates.collectShiftsFromMatrix( coordinates, matrix, scalingFactors, fits, denseShifts, denseWeightSums, shiftWeights, pairWeights, o );
+
+		final double[] sparseShifts = new double[ size ];
+		final double[] sparseWeightSums = new double[ size ];
+		ShiftCoordinates.collectShiftsFromSparse( coordinates, SparseSimilarities.fromMatrix( matrix, pairWeights, range ), scalingFactors, fits, sparseShifts, sparseWeightSums, shiftWeights, o );
+
+		boolean hasShift = false;
+		for ( int z = 0; z < size; ++z )
+		{
+			Assert.assertEquals( sparseWeightSums[ z ], denseWeightSums[ z ], 1e-12 );
+			Assert.assertEquals( sparseShifts[ z ] / sparseWeightSums[ z ], denseShifts[ z ] / denseWeightSums[ z ], 1e-12 );
+			hasShift |= Math.abs( denseShifts[ z ] ) > 1e-3;
+		}
+		Assert.assertTrue( hasShift );
+	}
+
+	@Test
+	public void testSparseSamplesBeyondRange()
+	{
+		final int size = 20;
+		final int pairRange = 8;
+		final double step = 0.5 / pairRange;
+
+		// pairs beyond the comparison range of the options
+		final SparseSimilarities.Builder builder = new SparseSimilarities.Builder( size );
+		for ( int i = 0; i < size; ++i )
+			for ( int j = i + 1; j < size && j - i <= pairRange; ++j )
+				builder.add( i, j, 1.0 - ( j - i ) * step, 1.0 + ( i + j ) % 3 );
+		final SparseSimilarities similarities = builder.build();
+		Assert.assertEquals( 2 * pairRange, similarities.getMaxRowLength() );
+
+		final double[] fit = new double[ pairRange + 1 ];
+		for ( int dz = 0; dz < fit.length; ++dz )
+			fit[ dz ] = -( 1.0 - dz * step );
+		final RandomAccessibleInterval< double[] > fits = ConstantUtils.constantRandomAccessibleInterval( fit, 1, new FinalInterval( size ) );
+
+		final double[] coordinates = new double[ size ];
+		final double[] scalingFactors = new double[ size ];
+		final double[] shiftWeights = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+		{
+			coordinates[ z ] = z + 0.1 * Math.sin( z );
+			scalingFactors[ z ] = 1.0;
+			shiftWeights[ z ] = 1.0;
+		}
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = 2;
+
+		final double[] shifts = new double[ size ];
+		final double[] weightSums = new double[ size ];
+		final ShiftSamples samples = new ShiftSamples( size, similarities.getMaxRowLength() );
+		ShiftCoordinates.collectShiftsFromSparse( coordinates, similarities, scalingFactors, fits, shifts, weightSums, shiftWeights, samples, o );
+
+		// robust mediation sees all samples of the weighted mean
+		final double[] mediated = new double[ size ];
+		samples.mediate( InferFromMatrix.MediationType.MEAN, 0, mediated );
+		int maxCount = 0;
+		for ( int z = 0; z < size; ++z )
+		{
+			maxCount = Math.max( maxCount, samples.getCount( z ) );
+			Assert.assertEquals( shifts[ z ] / weightSums[ z ], mediated[ z ], 1e-12 );
+		}
+		Assert.assertTrue( maxCount > 2 * o.comparisonRange );
+	}
+
 	private static Img< DoubleType > scaleMatrix( final Img< DoubleType > matrix, final double[] scalingFactors )
 	{
 		final long[] dim = new long[ matrix.numDimensions() ];
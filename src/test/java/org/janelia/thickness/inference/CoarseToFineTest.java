@@ -0,0 +1,159 @@
+package org.janelia.thickness.inference;
+
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class CoarseToFineTest
+{
+
+	@Test
+	public void testDownsampleStrip()
+	{
+		final int n = 5;
+		final int range = 2;
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( n, n );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final long a = c.getLongPosition( 0 );
+			final long b = c.getLongPosition( 1 );
+			c.get().set( Math.abs( a - b ) <= range ? 10 * a + b : Double.NaN );
+		}
+		final RandomAccess< DoubleType > matrixAccess = matrix.randomAccess();
+		matrixAccess.setPosition( new int[] { 2, 1 } );
+		matrixAccess.get().set( Double.NaN );
+
+		final ArrayImg< DoubleType, DoubleArray > strip = CoarseToFine.downsampleStrip( matrix, range );
+		Assert.assertEquals( 2 * CoarseToFine.coarseRange( range ) + 1, strip.dimension( 0 ) );
+		Assert.assertEquals( CoarseToFine.coarseSize( n ), strip.dimension( 1 ) );
+
+		final RandomAccess< DoubleType > access = strip.randomAccess();
+		// coarse range 1: strip( i - j + 1, j ) = coarse( i, j )
+		access.setPosition( new int[] { 1, 0 } );
+		Assert.assertEquals( ( 0 + 11 ) / 2.0, access.get().get(), 0.0 );
+		// (2, 1) is NaN, (3, 0) out of range
+		access.setPosition( new int[] { 2, 0 } );
+		Assert.assertEquals( ( 20 + 31 ) / 2.0, access.get().get(), 0.0 );
+		// (0, 3) out of range
+		access.setPosition( new int[] { 0, 1 } );
+		Assert.assertEquals( ( 2 + 12 + 13 ) / 3.0, access.get().get(), 0.0 );
+		// single section in last group
+		access.setPosition( new int[] { 1, 2 } );
+		Assert.assertEquals( 44, access.get().get(), 0.0 );
+		access.setPosition( new int[] { 2, 2 } );
+		Assert.assertTrue( Double.isNaN( access.get().get() ) );
+	}
+
+	@Test
+	public void testRestrictAndProlongate()
+	{
+		final double[] fine = { 0.0, 1.0, 2.0, 3.0, 4.0 };
+		final double[] coarse = CoarseToFine.restrictCoordinates( fine );
+		Assert.assertArrayEquals( new double[] { 0.25, 1.25, 2.0 }, coarse, 0.0 );
+
+		Assert.assertArrayEquals( fine, CoarseToFine.prolongate( fine, coarse, coarse ), 0.0 );
+
+		final double[] shifted = { 0.25, 1.75, 2.0 };
+		// displacements 0, 1, 0 at centers 0.5, 2.5, 4
+		Assert.assertArrayEquals(
+				new double[] { 0.0, 1.25, 2.75, 3.0 + 2.0 / 3.0, 4.0 },
+				CoarseToFine.prolongate( fine, coarse, shifted ),
+				1e-12 );
+	}
+
+	@Test
+	public void testLowFrequencyDrift() throws Exception
+	{
+		final int n = 200;
+		final int range = 8;
+		final double[] truth = new double[ n ];
+		for ( int z = 1; z < n; ++z )
+			truth[ z ] = truth[ z - 1 ] + 1.0 + 0.6 * Math.sin( 2 * Math.PI * z / n );
+		for ( int z = 0; z < n; ++z )
+			truth[ z ] *= ( n - 1 ) / truth[ n - 1 ];
+
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( n, n );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final int a = c.getIntPosition( 0 );
+			final int b = c.getIntPosition( 1 );
+			c.get().set( Math.abs( a - b ) <= range ? Math.exp( -0.2 * Math.abs( truth[ a ] - truth[ b ] ) ) : Double.NaN );
+		}
+		final double[] startingCoordinates = new double[ n ];
+		for ( int z = 0; z < n; ++z )
+			startingCoordinates[ z ] = z;
+
+		final Options options = Options.generateDefaultOptions();
+		options.comparisonRange = range;
+		options.scalingFactorEstimationIterations = 0;
+		options.nIterations = 100;
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		final double plainError = error( truth, inf.estimateZCoordinates( matrix, startingCoordinates, options ) );
+
+		// 100 iterations at the coarsest level (range 2, 1/16 of the cost)
+		// and 20 at each finer level: less than half the cost
+		options.coarseToFineLevels = 3;
+		options.coarseToFineIterations = 20;
+		final double coarseToFineError = error( truth, inf.estimateZCoordinates( matrix, startingCoordinates, options ) );
+
+		Assert.assertTrue( coarseToFineError < 0.7 * plainError );
+	}
+
+	@Test
+	public void testRegularizerTarget() throws Exception
+	{
+		final int n = 64;
+		final int range = 6;
+		final double[] truth = new double[ n ];
+		for ( int z = 1; z < n; ++z )
+			truth[ z ] = truth[ z - 1 ] + 1.0 + 0.5 * Math.sin( 2 * Math.PI * z / n );
+
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( n, n );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final int a = c.getIntPosition( 0 );
+			final int b = c.getIntPosition( 1 );
+			c.get().set( Math.abs( a - b ) <= range ? Math.exp( -0.2 * Math.abs( truth[ a ] - truth[ b ] ) ) : Double.NaN );
+		}
+		final double[] startingCoordinates = new double[ n ];
+		for ( int z = 0; z < n; ++z )
+			startingCoordinates[ z ] = z;
+
+		// strong pull towards starting coordinates: fixed point does not
+		// depend on the coarse solution
+		final Options options = Options.generateDefaultOptions();
+		options.comparisonRange = range;
+		options.scalingFactorEstimationIterations = 0;
+		options.coordinateUpdateRegularizerWeight = 0.5;
+		options.nIterations = 200;
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		final double[] plain = inf.estimateZCoordinates( matrix, startingCoordinates, options );
+
+		options.coarseToFineLevels = 1;
+		options.coarseToFineIterations = 200;
+		Assert.assertEquals( 0.0, error( plain, inf.estimateZCoordinates( matrix, startingCoordinates, options ) ), 1e-2 );
+	}
+
+	private static double error( final double[] truth, final double[] estimate )
+	{
+		double max = 0.0;
+		for ( int z = 0; z < truth.length; ++z )
+			max = Math.max( max, Math.abs( truth[ z ] - estimate[ z ] ) );
+		return max;
+	}
+
+}
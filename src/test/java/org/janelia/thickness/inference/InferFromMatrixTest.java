@@ -1,11 +1,23 @@
 package org.janelia.thickness.inference;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.janelia.thickness.inference.InferFromMatrix.RegularizationType;
 import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverageRegularized;
+import org.janelia.thickness.inference.visitor.LazyVisitor;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import net.imglib2.img.array.ArrayCursor;
 import net.imglib2.img.array.ArrayImg;
@@ -16,6 +28,9 @@ import net.imglib2.type.numeric.real.DoubleType;
 public class InferFromMatrixTest
 {
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	@Test
 	public void testNoScalingFactors() throws Exception
 	{
@@ -73,4 +88,570 @@ public class InferFromMatrixTest
 			Assert.assertEquals( z == rupture - 1 ? 1.0 + diminishingFactor : 1.0, ( coordinates[ z + 1 ] - coordinates[ z ] ) / unitDist, 1e-10 );
 	}
 
+	@Test
+	public void testPairWeights() throws Exception
+	{
+		final int size = 20;
+		final int range = 5;
+		final double step = 0.5 / range;
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( size, size );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final long dx = Math.abs( c.getLongPosition( 0 ) - c.getLongPosition( 1 ) );
+			c.get().set( dx <= range ? 1.0 - dx * step : Double.NaN );
+		}
+
+		// outliers, e.g. a fold in sections 6 and 13
+		final ArrayImg< DoubleType, DoubleArray > corrupted = ArrayImgs.doubles( size, size );
+		final ArrayImg< DoubleType, DoubleArray > weights = ArrayImgs.doubles( size, size );
+		final ArrayImg< DoubleType, DoubleArray > constantWeights = ArrayImgs.doubles( size, size );
+		final ArrayCursor< DoubleType > m = matrix.cursor();
+		final ArrayCursor< DoubleType > w = weights.cursor();
+		final ArrayCursor< DoubleType > cw = constantWeights.cursor();
+		for ( final ArrayCursor< DoubleType > c = corrupted.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			w.fwd();
+			cw.fwd();
+			final double value = m.next().get();
+			final long x = c.getLongPosition( 0 );
+			final long y = c.getLongPosition( 1 );
+			final boolean isOutlier = x != y && ( x == 6 || y == 6 || x == 13 || y == 13 ) && Math.abs( x - y ) <= 2;
+			c.get().set( isOutlier ? value - 0.25 : value );
+			w.get().set( isOutlier ? 1e-3 : 1.0 );
+			cw.get().set( 3.0 );
+		}
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.withReorder = false;
+		o.nIterations = 100;
+		o.regularizationType = RegularizationType.BORDER;
+		o.scalingFactorEstimationIterations = 0;
+		o.shiftProportion = 0.6;
+
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		final double[] startingCoordinates = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+			startingCoordinates[ z ] = z;
+
+		final double[] unweighted = inf.estimateZCoordinates( corrupted, startingCoordinates, o );
+		// constant weights are skipped and do not change the result
+		Assert.assertArrayEquals( unweighted, solve( inf, corrupted, startingCoordinates, constantWeights, o ), 0.0 );
+
+		// weights of missing similarities, e.g. after adaptive range, are
+		// ignored
+		final ArrayImg< DoubleType, DoubleArray > incomplete = ArrayImgs.doubles( size, size );
+		final ArrayImg< DoubleType, DoubleArray > incompleteWeights = ArrayImgs.doubles( size, size );
+		final ArrayCursor< DoubleType > source = corrupted.cursor();
+		final ArrayCursor< DoubleType > iw = incompleteWeights.cursor();
+		for ( final ArrayCursor< DoubleType > c = incomplete.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			iw.fwd();
+			final double value = source.next().get();
+			final boolean isMissing = Math.abs( c.getLongPosition( 0 ) - c.getLongPosition( 1 ) ) == range;
+			c.get().set( isMissing ? Double.NaN : value );
+			iw.get().set( isMissing ? 1.0 : 3.0 );
+		}
+		Assert.assertArrayEquals( inf.estimateZCoordinates( incomplete, startingCoordinates, o ), solve( inf, incomplete, startingCoordinates, incompleteWeights, o ), 0.0 );
+
+		final double[] weighted = solve( inf, corrupted, startingCoordinates, weights, o );
+		final double unweightedError = maxDifference( startingCoordinates, unweighted );
+		final double weightedError = maxDifference( startingCoordinates, weighted );
+		Assert.assertTrue( unweightedError > 0.1 );
+		Assert.assertTrue( weightedError < 0.2 * unweightedError );
+	}
+
+	@Test
+	public void testRobustMediation() throws Exception
+	{
+		final int size = 20;
+		final int range = 5;
+		final double step = 0.5 / range;
+		// outliers, e.g. a fold in sections 6 and 13
+		final ArrayImg< DoubleType, DoubleArray > corrupted = ArrayImgs.doubles( size, size );
+		for ( final ArrayCursor< DoubleType > c = corrupted.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final long x = c.getLongPosition( 0 );
+			final long y = c.getLongPosition( 1 );
+			final long dx = Math.abs( x - y );
+			final boolean isOutlier = x != y && ( x == 6 || y == 6 || x == 13 || y == 13 ) && dx <= 2;
+			c.get().set( dx <= range ? 1.0 - dx * step - ( isOutlier ? 0.25 : 0.0 ) : Double.NaN );
+		}
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.withReorder = false;
+		o.nIterations = 100;
+		o.regularizationType = RegularizationType.BORDER;
+		o.scalingFactorEstimationIterations = 0;
+		o.shiftProportion = 0.6;
+
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		final double[] startingCoordinates = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+			startingCoordinates[ z ] = z;
+
+		final double meanError = maxDifference( startingCoordinates, inf.estimateZCoordinates( corrupted, startingCoordinates, o ) );
+		Assert.assertTrue( meanError > 0.1 );
+		for ( final InferFromMatrix.MediationType type : new InferFromMatrix.MediationType[] { InferFromMatrix.MediationType.HUBER, InferFromMatrix.MediationType.TUKEY, InferFromMatrix.MediationType.MEDIAN } )
+		{
+			final Options robust = o.clone();
+			robust.mediationType = type;
+			final double[] coordinates = inf.estimateZCoordinates( corrupted, startingCoordinates, robust );
+			Assert.assertTrue( type + " " + meanError, maxDifference( startingCoordinates, coordinates ) < 0.7 * meanError );
+			// same result through workspace
+			Assert.assertArrayEquals( coordinates, solve( inf, corrupted, startingCoordinates, robust, new Workspace.Pool() ), 0.0 );
+		}
+	}
+
+	@Test
+	public void testConcurrentSolves() throws Exception
+	{
+
+		final int size = 30;
+
+		final int range = 6;
+
+		final int nSolves = 8;
+
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( size, size );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final long x = c.getLongPosition( 0 );
+			final long y = c.getLongPosition( 1 );
+			final double dx = Math.abs( x - y ) * ( ( x < size / 3 ) == ( y < size / 3 ) ? 1.0 : 1.5 );
+			c.get().set( Math.abs( x - y ) <= range ? Math.exp( -0.1 * dx ) : Double.NaN );
+		}
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.nIterations = 20;
+		o.scalingFactorEstimationIterations = 3;
+
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+
+		final double[][] startingCoordinates = new double[ nSolves ][ size ];
+		final double[][] expected = new double[ nSolves ][];
+		for ( int i = 0; i < nSolves; ++i )
+		{
+			for ( int z = 0; z < size; ++z )
+				startingCoordinates[ i ][ z ] = z * ( 1.0 + 0.05 * i );
+			expected[ i ] = solve( inf, matrix, startingCoordinates[ i ], o, null );
+		}
+
+		final Workspace.Pool pool = new Workspace.Pool();
+		final ExecutorService es = Executors.newFixedThreadPool( 4 );
+		try
+		{
+			final List< Future< double[] > > futures = new ArrayList<>();
+			for ( int repetition = 0; repetition < 3; ++repetition )
+				for ( int i = 0; i < nSolves; ++i )
+				{
+					final double[] start = startingCoordinates[ i ];
+					futures.add( es.submit( () -> solve( inf, matrix, start, o, pool ) ) );
+				}
+			for ( int k = 0; k < futures.size(); ++k )
+				Assert.assertArrayEquals( expected[ k % nSolves ], futures.get( k ).get(), 0.0 );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test
+	public void testProgressAndCancellation() throws Exception
+	{
+		final int size = 20;
+		final int range = 5;
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( size, size );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final long dx = Math.abs( c.getLongPosition( 0 ) - c.getLongPosition( 1 ) );
+			c.get().set( dx <= range ? Math.exp( -0.1 * dx ) : Double.NaN );
+		}
+		final double[] startingCoordinates = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+			startingCoordinates[ z ] = z;
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.nIterations = 10;
+
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+
+		final Progress progress = new Progress();
+		inf.estimateZCoordinates( matrix, startingCoordinates, new LazyVisitor(), o, progress );
+		Assert.assertEquals( o.nIterations.longValue(), progress.getDone() );
+		Assert.assertEquals( 1.0, progress.getFraction(), 0.0 );
+
+		final Progress cancelled = new Progress();
+		cancelled.addListener( p -> {
+			if ( p.getDone() == 3 )
+				p.cancel();
+		} );
+		try
+		{
+			inf.estimateZCoordinates( matrix, startingCoordinates, new LazyVisitor(), o, cancelled );
+			Assert.fail( "Expected cancellation." );
+		}
+		catch ( final CancellationException e )
+		{
+			Assert.assertEquals( 3, cancelled.getDone() );
+		}
+	}
+
+	@Test
+	public void testCheckpointResume() throws Exception
+	{
+		final int size = 25;
+		final int range = 5;
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( size, size );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final long x = c.getLongPosition( 0 );
+			final long y = c.getLongPosition( 1 );
+			final double dx = Math.abs( x - y ) * ( ( x < size / 2 ) == ( y < size / 2 ) ? 1.0 : 2.0 );
+			c.get().set( Math.abs( x - y ) <= range ? Math.exp( -0.1 * dx ) * ( x == 7 || y == 7 ? 0.8 : 1.0 ) : Double.NaN );
+		}
+		final double[] startingCoordinates = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+			startingCoordinates[ z ] = z;
+
+		final File checkpointFile = new File( folder.getRoot(), "checkpoint" );
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.nIterations = 10;
+		o.checkpointInterval = 4;
+		o.checkpointPath = checkpointFile.getAbsolutePath();
+
+		final double[] reg = new double[ range + 1 ];
+		for ( int dz = 0; dz <= range; ++dz )
+			reg[ dz ] = -Math.exp( -0.1 * dz );
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverageRegularized( reg, 0.3 ) );
+
+		final double[] expected = inf.estimateZCoordinates( matrix, startingCoordinates, new LazyVisitor(), o );
+		Assert.assertEquals( 8, Checkpoint.read( o.checkpointPath ).getIteration() );
+
+		// interrupt after 6 iterations, last checkpoint after 4
+		final Progress cancelled = new Progress();
+		cancelled.addListener( p -> {
+			if ( p.getDone() == 6 )
+				p.cancel();
+		} );
+		try
+		{
+			inf.estimateZCoordinates( matrix, startingCoordinates, new LazyVisitor(), o, cancelled );
+			Assert.fail( "Expected cancellation." );
+		}
+		catch ( final CancellationException e )
+		{
+			// expected
+		}
+
+		final Checkpoint checkpoint = Checkpoint.read( o.checkpointPath );
+		Assert.assertEquals( 4, checkpoint.getIteration() );
+		Assert.assertFalse( Arrays.equals( expected, checkpoint.getCoordinates() ) );
+		Assert.assertArrayEquals( expected, inf.resumeZCoordinates( matrix, checkpoint, new LazyVisitor(), o ), 0.0 );
+		Assert.assertEquals( 1, folder.getRoot().list().length );
+	}
+
+	@Test
+	public void testCheckpointResumeAccelerated() throws Exception
+	{
+		final int size = 25;
+		final int range = 5;
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( size, size );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final long x = c.getLongPosition( 0 );
+			final long y = c.getLongPosition( 1 );
+			final double dx = Math.abs( x - y ) * ( ( x < size / 2 ) == ( y < size / 2 ) ? 1.0 : 2.0 );
+			c.get().set( Math.abs( x - y ) <= range ? Math.exp( -0.1 * dx ) : Double.NaN );
+		}
+		final double[] startingCoordinates = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+			startingCoordinates[ z ] = z;
+
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		for ( final InferFromMatrix.AccelerationType type : new InferFromMatrix.AccelerationType[] { InferFromMatrix.AccelerationType.ANDERSON, InferFromMatrix.AccelerationType.NESTEROV } )
+		{
+			final Options o = Options.generateDefaultOptions();
+			o.comparisonRange = range;
+			o.nIterations = 12;
+			o.checkpointInterval = 5;
+			o.checkpointPath = new File( folder.getRoot(), "checkpoint-" + type ).getAbsolutePath();
+			o.accelerationType = type;
+			o.accelerationDepth = 3;
+
+			final double[] expected = inf.estimateZCoordinates( matrix, startingCoordinates, new LazyVisitor(), o );
+
+			// interrupt after 7 iterations, last checkpoint after 5
+			final Progress cancelled = new Progress();
+			cancelled.addListener( p -> {
+				if ( p.getDone() == 7 )
+					p.cancel();
+			} );
+			try
+			{
+				inf.estimateZCoordinates( matrix, startingCoordinates, new LazyVisitor(), o, cancelled );
+				Assert.fail( "Expected cancellation." );
+			}
+			catch ( final CancellationException e )
+			{
+				// expected
+			}
+
+			final Checkpoint checkpoint = Checkpoint.read( o.checkpointPath );
+			Assert.assertEquals( 5, checkpoint.getIteration() );
+			Assert.assertArrayEquals( type.toString(), expected, inf.resumeZCoordinates( matrix, checkpoint, new LazyVisitor(), o ), 0.0 );
+
+			// acceleration history cannot be dropped on resume
+			final Options plain = o.clone();
+			plain.accelerationType = InferFromMatrix.AccelerationType.NONE;
+			try
+			{
+				inf.resumeZCoordinates( matrix, checkpoint, new LazyVisitor(), plain );
+				Assert.fail( "Expected incompatible checkpoint." );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testCheckpointResumeCoarseToFine() throws Exception
+	{
+		final int size = 25;
+		final int range = 5;
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( size, size );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final long x = c.getLongPosition( 0 );
+			final long y = c.getLongPosition( 1 );
+			final double dx = Math.abs( x - y ) * ( ( x < size / 2 ) == ( y < size / 2 ) ? 1.0 : 2.0 );
+			c.get().set( Math.abs( x - y ) <= range ? Math.exp( -0.1 * dx ) : Double.NaN );
+		}
+		final double[] startingCoordinates = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+			startingCoordinates[ z ] = z;
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.nIterations = 10;
+		o.coarseToFineLevels = 1;
+		o.coarseToFineIterations = 13;
+		o.checkpointInterval = 4;
+		o.checkpointPath = new File( folder.getRoot(), "checkpoint" ).getAbsolutePath();
+
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		final double[] expected = inf.estimateZCoordinates( matrix, startingCoordinates, new LazyVisitor(), o );
+		// checkpoints at finest level only
+		Assert.assertEquals( 12, Checkpoint.read( o.checkpointPath ).getIteration() );
+		Assert.assertEquals( 13, Checkpoint.read( o.checkpointPath ).getNumberOfIterations() );
+
+		// interrupt after 6 iterations at the finest level
+		final Progress cancelled = new Progress();
+		cancelled.addListener( p -> {
+			if ( p.getTotal() == o.coarseToFineIterations && p.getDone() == 6 )
+				p.cancel();
+		} );
+		try
+		{
+			inf.estimateZCoordinates( matrix, startingCoordinates, new LazyVisitor(), o, cancelled );
+			Assert.fail( "Expected cancellation." );
+		}
+		catch ( final CancellationException e )
+		{
+			// expected
+		}
+
+		final Checkpoint checkpoint = Checkpoint.read( o.checkpointPath );
+		Assert.assertEquals( 4, checkpoint.getIteration() );
+		Assert.assertArrayEquals( expected, inf.resumeZCoordinates( matrix, checkpoint, new LazyVisitor(), o ), 0.0 );
+	}
+
+	@Test
+	public void testAccelerators()
+	{
+		// damped Jacobi-like iteration for 1D Laplacian: slow linear convergence
+		final int n = 40;
+		final double[] solution = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+			solution[ i ] = Math.sin( 0.1 * i ) + i;
+		final double[] b = laplacian( solution );
+
+		final int plain = iterationsToTolerance( null, b, solution );
+		final int anderson = iterationsToTolerance( new InferFromMatrix.AndersonAcceleration( n, 5 ), b, solution );
+		final int nesterov = iterationsToTolerance( new InferFromMatrix.NesterovAcceleration( n ), b, solution );
+		Assert.assertTrue( plain > 0 );
+		Assert.assertTrue( anderson > 0 && anderson < plain / 5 );
+		Assert.assertTrue( nesterov > 0 && nesterov < plain / 2 );
+	}
+
+	@Test
+	public void testAndersonRestart()
+	{
+		// residuals shrink for three steps (two history columns), grow at
+		// the fourth step (restart), shrink at the fifth step
+		final double[][] previous = { { 0.0, 0.0 }, { 1.0, 1.0 }, { 1.5, 1.2 }, { 1.7, 1.3 }, { 4.0, -2.0 } };
+		final double[][] updates = { { 1.0, 1.0 }, { 1.5, 1.2 }, { 1.7, 1.3 }, { 4.0, -2.0 }, { 4.3, -2.9 } };
+
+		final InferFromMatrix.AndersonAcceleration restarted = new InferFromMatrix.AndersonAcceleration( 2, 3 );
+		final double[] update = new double[ 2 ];
+		for ( int step = 0; step < updates.length - 1; ++step )
+		{
+			System.arraycopy( updates[ step ], 0, update, 0, 2 );
+			restarted.accelerate( previous[ step ], update );
+		}
+		// no history directly after restart
+		Assert.assertArrayEquals( updates[ 3 ], update, 0.0 );
+		System.arraycopy( updates[ 4 ], 0, update, 0, 2 );
+		restarted.accelerate( previous[ 4 ], update );
+
+		// only post-restart history
+		final InferFromMatrix.AndersonAcceleration fresh = new InferFromMatrix.AndersonAcceleration( 2, 3 );
+		final double[] expected = new double[ 2 ];
+		for ( int step = 3; step < updates.length; ++step )
+		{
+			System.arraycopy( updates[ step ], 0, expected, 0, 2 );
+			fresh.accelerate( previous[ step ], expected );
+		}
+		Assert.assertFalse( Arrays.equals( updates[ 4 ], expected ) );
+		Assert.assertArrayEquals( expected, update, 0.0 );
+	}
+
+	@Test
+	public void testAcceleratedSolve() throws Exception
+	{
+		final int size = 60;
+		final int range = 8;
+		final Random rng = new Random( 1 );
+		final double[] truth = new double[ size ];
+		for ( int z = 1; z < size; ++z )
+			truth[ z ] = truth[ z - 1 ] + 0.5 + rng.nextDouble();
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( size, size );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final int x = c.getIntPosition( 0 );
+			final int y = c.getIntPosition( 1 );
+			c.get().set( Math.abs( x - y ) <= range ? Math.exp( -0.15 * Math.abs( truth[ x ] - truth[ y ] ) ) : Double.NaN );
+		}
+		final double[] startingCoordinates = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+			startingCoordinates[ z ] = z;
+
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.withReorder = false;
+		o.nIterations = 1500;
+		final double[] reference = inf.estimateZCoordinates( matrix, startingCoordinates, o );
+
+		o.nIterations = 150;
+		final double plainError = maxDifference( reference, inf.estimateZCoordinates( matrix, startingCoordinates, o ) );
+		for ( final InferFromMatrix.AccelerationType type : new InferFromMatrix.AccelerationType[] { InferFromMatrix.AccelerationType.ANDERSON, InferFromMatrix.AccelerationType.NESTEROV } )
+		{
+			o.accelerationType = type;
+			final double[] coordinates = inf.estimateZCoordinates( matrix, startingCoordinates, o );
+			Assert.assertTrue( type.toString(), maxDifference( reference, coordinates ) < 0.5 * plainError );
+			// safeguards: border regularization and no reordering
+			Assert.assertEquals( 0.0, coordinates[ 0 ], 1e-9 );
+			Assert.assertEquals( size - 1, coordinates[ size - 1 ], 1e-9 );
+			for ( int z = 1; z < size; ++z )
+				Assert.assertTrue( coordinates[ z ] > coordinates[ z - 1 ] );
+		}
+	}
+
+	private static double[] laplacian( final double[] x )
+	{
+		final int n = x.length;
+		final double[] result = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+			result[ i ] = 2 * x[ i ] - ( i > 0 ? x[ i - 1 ] : 0.0 ) - ( i < n - 1 ? x[ i + 1 ] : 0.0 );
+		return result;
+	}
+
+	private static int iterationsToTolerance( final InferFromMatrix.Accelerator accelerator, final double[] b, final double[] solution )
+	{
+		final int n = b.length;
+		final double[] x = new double[ n ];
+		final double[] previous = new double[ n ];
+		for ( int iteration = 1; iteration <= 100000; ++iteration )
+		{
+			System.arraycopy( x, 0, previous, 0, n );
+			final double[] ax = laplacian( x );
+			for ( int i = 0; i < n; ++i )
+				x[ i ] += 0.25 * ( b[ i ] - ax[ i ] );
+			if ( accelerator != null )
+				accelerator.accelerate( previous, x );
+			if ( maxDifference( solution, x ) < 1e-6 )
+				return iteration;
+		}
+		return -1;
+	}
+
+	private static double maxDifference( final double[] a, final double[] b )
+	{
+		double max = 0.0;
+		for ( int i = 0; i < a.length; ++i )
+			max = Math.max( max, Math.abs( a[ i ] - b[ i ] ) );
+		return max;
+	}
+
+	private static double[] solve(
+			final InferFromMatrix inf,
+			final ArrayImg< DoubleType, DoubleArray > matrix,
+			final double[] startingCoordinates,
+			final ArrayImg< DoubleType, DoubleArray > estimateWeights,
+			final Options o ) throws Exception
+	{
+		final int size = startingCoordinates.length;
+		final double[] scalingFactors = new double[ size ];
+		Arrays.fill( scalingFactors, 1.0 );
+		final double[] shiftWeights = new double[ size ];
+		Arrays.fill( shiftWeights, 1.0 );
+		return inf.estimateZCoordinates( matrix, startingCoordinates, null, scalingFactors, estimateWeights, shiftWeights, new LazyVisitor(), o );
+	}
+
+	private static double[] solve(
+			final InferFromMatrix inf,
+			final ArrayImg< DoubleType, DoubleArray > matrix,
+			final double[] startingCoordinates,
+			final Options o,
+			final Workspace.Pool pool ) throws Exception
+	{
+		final int size = startingCoordinates.length;
+		final double[] scalingFactors = new double[ size ];
+		Arrays.fill( scalingFactors, 1.0 );
+		final double[] shiftWeights = new double[ size ];
+		Arrays.fill( shiftWeights, 1.0 );
+		final ArrayImg< DoubleType, DoubleArray > estimateWeights = ArrayImgs.doubles( size, size );
+		for ( final DoubleType w : estimateWeights )
+			w.set( 1.0 );
+		if ( pool == null )
+			return inf.estimateZCoordinates( matrix, startingCoordinates, null, scalingFactors, estimateWeights, shiftWeights, new LazyVisitor(), o );
+		final Workspace workspace = pool.acquire( size, o.comparisonRange, inf.getCorrelationFit() );
+		try
+		{
+			return inf.estimateZCoordinates( matrix, startingCoordinates, null, scalingFactors, estimateWeights, shiftWeights, new LazyVisitor(), o, workspace );
+		}
+		finally
+		{
+			pool.release( workspace );
+		}
+	}
+
 }
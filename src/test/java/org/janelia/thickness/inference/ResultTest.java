@@ -0,0 +1,151 @@
+package org.janelia.thickness.inference;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.inference.visitor.ResultVisitor;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ResultTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testBinaryAndJson() throws Exception
+	{
+		final Options options = Options.generateDefaultOptions();
+		options.nIterations = 17;
+		options.checkpointPath = "some/path";
+		final double[] lut = { 0.0, 2.5, 1.0, 3.0, -1.0 };
+		final double[] scalingFactors = { 1.0, 0.9, 1.1, Double.NaN, 1.0 };
+		final double[][] fits = { { -1.0, -0.8, Double.NaN, Double.NEGATIVE_INFINITY } };
+		final Result result = Result.create( options, lut, scalingFactors, fits );
+
+		Assert.assertArrayEquals( new double[] { -1.0, 0.0, 1.0, 2.5, 3.0 }, result.sortedLut, 0.0 );
+		for ( int i = 0; i < lut.length; ++i )
+		{
+			Assert.assertEquals( result.sortedLut[ i ], lut[ result.backward[ i ] ], 0.0 );
+			Assert.assertEquals( i, result.forward[ result.backward[ i ] ] );
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		result.writeBinary( bytes );
+		assertEquals( result, Result.readBinary( new ByteArrayInputStream( bytes.toByteArray() ) ) );
+
+		final StringWriter json = new StringWriter();
+		result.writeJson( json );
+		assertEquals( result, Result.readJson( new StringReader( json.toString() ) ) );
+
+		final File binaryFile = new File( folder.getRoot(), "result.bin" );
+		final File jsonFile = new File( folder.getRoot(), "result.json" );
+		result.write( binaryFile.getAbsolutePath() );
+		result.write( jsonFile.getAbsolutePath() );
+		assertEquals( result, Result.read( binaryFile.getAbsolutePath() ) );
+		assertEquals( result, Result.read( jsonFile.getAbsolutePath() ) );
+		Assert.assertTrue( binaryFile.length() < jsonFile.length() );
+	}
+
+	@Test
+	public void testOptions() throws Exception
+	{
+		final Options options = Options.generateDefaultOptions();
+		options.comparisonRange = 3;
+		options.regularizationType = InferFromMatrix.RegularizationType.IDENTITY;
+
+		// compatible with reflection based Gson serialization
+		final File file = new File( folder.getRoot(), "options.json" );
+		options.toFile( file.getAbsolutePath() );
+		try (final JsonReader reader = new JsonReader( new FileReader( file ) ))
+		{
+			Assert.assertEquals( options, Options.readJson( reader ) );
+		}
+
+		// unset fields
+		options.withReorder = null;
+		options.checkpointPath = null;
+		options.shiftProportion = null;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		options.write( new DataOutputStream( bytes ) );
+		final Options fromBinary = Options.read( new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) );
+		final StringWriter json = new StringWriter();
+		options.writeJson( new JsonWriter( json ) );
+		final Options fromJson = Options.readJson( new JsonReader( new StringReader( json.toString() ) ) );
+		for ( final Options o : new Options[] { fromBinary, fromJson } )
+		{
+			Assert.assertNull( o.withReorder );
+			Assert.assertNull( o.checkpointPath );
+			Assert.assertNull( o.shiftProportion );
+			Assert.assertEquals( options.comparisonRange, o.comparisonRange );
+			Assert.assertEquals( options.regularizationType, o.regularizationType );
+			Assert.assertEquals( options.forceMonotonicity, o.forceMonotonicity );
+		}
+	}
+
+	@Test
+	public void testResultVisitor() throws Exception
+	{
+		final int size = 15;
+		final int range = 4;
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( size, size );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final long dx = Math.abs( c.getLongPosition( 0 ) - c.getLongPosition( 1 ) );
+			c.get().set( dx <= range ? Math.exp( -0.2 * dx ) : Double.NaN );
+		}
+		final double[] startingCoordinates = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+			startingCoordinates[ z ] = z;
+		final Options options = Options.generateDefaultOptions();
+		options.comparisonRange = range;
+		options.nIterations = 5;
+
+		final ResultVisitor visitor = new ResultVisitor();
+		final double[] lut = new InferFromMatrix( new GlobalCorrelationFitAverage() ).estimateZCoordinates( matrix, startingCoordinates, visitor, options );
+		final Result result = visitor.getResult( options );
+		Assert.assertArrayEquals( lut, result.lut, 0.0 );
+		Assert.assertEquals( size, result.scalingFactors.length );
+		// global fit is stored once
+		Assert.assertEquals( 1, result.fits.length );
+		Assert.assertEquals( range + 1, result.fits[ 0 ].length );
+	}
+
+	private static void assertEquals( final Result expected, final Result actual )
+	{
+		Assert.assertEquals( expected.options, actual.options );
+		Assert.assertArrayEquals( expected.lut, actual.lut, 0.0 );
+		Assert.assertArrayEquals( expected.sortedLut, actual.sortedLut, 0.0 );
+		Assert.assertArrayEquals( expected.forward, actual.forward );
+		Assert.assertArrayEquals( expected.backward, actual.backward );
+		Assert.assertArrayEquals( expected.scalingFactors, actual.scalingFactors, 0.0 );
+		Assert.assertEquals( expected.fits.length, actual.fits.length );
+		for ( int i = 0; i < expected.fits.length; ++i )
+			Assert.assertArrayEquals( expected.fits[ i ], actual.fits[ i ], 0.0 );
+	}
+
+}
@@ -0,0 +1,98 @@
+package org.janelia.thickness.inference;
+
+import java.util.Random;
+
+import org.janelia.thickness.inference.InferFromMatrix.MediationType;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ShiftSamplesTest
+{
+
+	@Test
+	public void testWeightedMedian()
+	{
+		final double[] values = { 0.0, 5.0, 3.0, 1.0, 2.0 };
+		final double[] weights = { 1.0, 1.0, 1.0, 1.0, 1.0 };
+		Assert.assertEquals( 2.0, ShiftSamples.weightedMedian( values, weights, 0, 5 ), 0.0 );
+		Assert.assertArrayEquals( new double[] { 0.0, 1.0, 2.0, 3.0, 5.0 }, values, 0.0 );
+
+		final double[] heavy = { 4.0, 1.0, 2.0, 0.0 };
+		Assert.assertEquals( 4.0, ShiftSamples.weightedMedian( heavy, new double[] { 10.0, 1.0, 1.0, 1.0 }, 0, 4 ), 0.0 );
+		// even number of equal weights
+		Assert.assertEquals( 1.5, ShiftSamples.weightedMedian( new double[] { 3.0, 1.0, 0.0, 2.0 }, new double[] { 1.0, 1.0, 1.0, 1.0 }, 0, 4 ), 0.0 );
+		// offset into buffer
+		Assert.assertEquals( 2.0, ShiftSamples.weightedMedian( new double[] { 100.0, 2.0, 7.0, 1.0 }, new double[] { 1.0, 1.0, 1.0, 1.0 }, 1, 3 ), 0.0 );
+		Assert.assertTrue( Double.isNaN( ShiftSamples.weightedMedian( new double[] { 1.0 }, new double[] { 0.0 }, 0, 1 ) ) );
+	}
+
+	@Test
+	public void testMediate()
+	{
+		final int n = 3;
+		final int range = 5;
+		final ShiftSamples samples = new ShiftSamples( n, 2 * range );
+		Assert.assertEquals( 2 * range, samples.getCapacity() );
+
+		final Random rng = new Random( 100 );
+		final double[] clean = new double[ 2 * range ];
+		for ( int i = 0; i < clean.length; ++i )
+		{
+			clean[ i ] = 0.5 + 0.1 * rng.nextGaussian();
+			samples.add( 0, clean[ i ], 1.0 );
+			// 30% outliers in section 1
+			samples.add( 1, i < 3 ? 5.0 : clean[ i ], 1.0 );
+		}
+		// beyond capacity
+		try
+		{
+			samples.add( 0, 1000.0, 1.0 );
+			Assert.fail( "Expected exceeded capacity." );
+		}
+		catch ( final IllegalStateException e )
+		{
+			// expected
+		}
+		Assert.assertEquals( 2 * range, samples.getCount( 0 ) );
+		Assert.assertEquals( 0, samples.getCount( 2 ) );
+
+		double mean = 0.0;
+		for ( final double c : clean )
+			mean += c;
+		mean /= clean.length;
+
+		final double[] mediated = new double[ n ];
+		samples.mediate( MediationType.MEAN, 0, mediated );
+		Assert.assertEquals( mean, mediated[ 0 ], 1e-12 );
+		Assert.assertTrue( mediated[ 1 ] > 1.5 );
+		Assert.assertTrue( Double.isNaN( mediated[ 2 ] ) );
+
+		for ( final MediationType type : new MediationType[] { MediationType.HUBER, MediationType.TUKEY, MediationType.MEDIAN } )
+		{
+			samples.mediate( type, 20, mediated );
+			// close to mean for clean samples, unaffected by outliers
+			Assert.assertEquals( mean, mediated[ 0 ], 0.1 );
+			Assert.assertEquals( mean, mediated[ 1 ], 0.15 );
+			Assert.assertTrue( Double.isNaN( mediated[ 2 ] ) );
+		}
+		samples.mediate( MediationType.TUKEY, 20, mediated );
+		final double tukey = mediated[ 1 ];
+		samples.mediate( MediationType.HUBER, 20, mediated );
+		// outliers rejected by Tukey but only down-weighted by Huber
+		Assert.assertTrue( tukey < mediated[ 1 ] );
+
+		// identical samples
+		samples.clear();
+		for ( int i = 0; i < 4; ++i )
+			samples.add( 2, 1.0, 1.0 );
+		samples.add( 2, 3.0, 1.0 );
+		samples.mediate( MediationType.HUBER, 20, mediated );
+		Assert.assertEquals( 1.0, mediated[ 2 ], 0.0 );
+		Assert.assertTrue( Double.isNaN( mediated[ 0 ] ) );
+	}
+
+}
@@ -0,0 +1,175 @@
+package org.janelia.thickness.inference;
+
+import java.util.Random;
+
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.inference.visitor.LazyVisitor;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.ConstantUtils;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class SparseSimilaritiesTest
+{
+
+	@Test
+	public void testBuilder()
+	{
+		final SparseSimilarities similarities = new SparseSimilarities.Builder( 4 )
+				.add( 2, 0, 0.5, 2.0 )
+				.add( 0, 1, 0.8 )
+				.add( 3, 1, Double.NaN )
+				.add( 2, 2, 0.1 )
+				.add( 3, 2, 0.7 )
+				.build();
+		Assert.assertEquals( 4, similarities.getSize() );
+		Assert.assertEquals( 3, similarities.getNumberOfPairs() );
+		Assert.assertArrayEquals( new int[] { 0, 2, 3, 5, 6 }, similarities.getRowOffsets() );
+		Assert.assertArrayEquals( new int[] { 1, 2, 0, 0, 3, 2 }, similarities.getColumns() );
+		Assert.assertEquals( 0.5, similarities.get( 0, 2 ), 0.0 );
+		Assert.assertEquals( 0.5, similarities.get( 2, 0 ), 0.0 );
+		Assert.assertEquals( 2.0, similarities.getWeight( 0, 2 ), 0.0 );
+		Assert.assertEquals( 1.0, similarities.getWeight( 1, 0 ), 0.0 );
+		Assert.assertEquals( 1.0, similarities.get( 2, 2 ), 0.0 );
+		Assert.assertTrue( Double.isNaN( similarities.get( 1, 3 ) ) );
+
+		// reverse order
+		final int[] forward = { 3, 2, 1, 0 };
+		final SparseSimilarities permuted = similarities.copy();
+		similarities.permute( forward, forward, permuted );
+		for ( int i = 0; i < 4; ++i )
+			for ( int j = 0; j < 4; ++j )
+				Assert.assertEquals( similarities.get( i, j ), permuted.get( forward[ i ], forward[ j ] ), 0.0 );
+
+		final RandomAccess< DoubleType > access = similarities.asMatrix( new double[] { 1.0, 2.0, 1.0, 3.0 } ).randomAccess();
+		access.setPosition( new int[] { 1, 0 } );
+		Assert.assertEquals( 1.6, access.get().get(), 1e-12 );
+		access.setPosition( new int[] { 3, 3 } );
+		Assert.assertEquals( 1.0, access.get().get(), 0.0 );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testDuplicatePair()
+	{
+		new SparseSimilarities.Builder( 3 ).add( 0, 1, 0.5 ).add( 1, 0, 0.5 ).build();
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testScalingFactorsSize() throws Exception
+	{
+		final SparseSimilarities similarities = new SparseSimilarities.Builder( 3 ).add( 0, 1, 0.5 ).add( 1, 2, 0.5 ).build();
+		final double[] coordinates = { 0.0, 1.0, 2.0 };
+		new InferFromMatrix( new GlobalCorrelationFitAverage() ).estimateZCoordinates(
+				similarities,
+				coordinates,
+				new double[] { 1.0, 1.0 },
+				new double[] { 1.0, 1.0, 1.0 },
+				new LazyVisitor(),
+				Options.generateDefaultOptions(),
+				new Progress() );
+	}
+
+	@Test
+	public void testMatchesDense() throws Exception
+	{
+		final int n = 40;
+		final int range = 5;
+		final double[] truth = truth( n );
+		final ArrayImg< DoubleType, DoubleArray > matrix = matrix( truth, range );
+		final double[] startingCoordinates = startingCoordinates( n );
+
+		final Options options = Options.generateDefaultOptions();
+		options.comparisonRange = range;
+		options.scalingFactorEstimationIterations = 0;
+		options.nIterations = 1;
+
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		final double[] dense = inf.estimateZCoordinates( matrix, startingCoordinates, options );
+		final SparseSimilarities similarities = SparseSimilarities.fromMatrix( matrix, ConstantUtils.constantRandomAccessibleInterval( new DoubleType( 1.0 ), 2, matrix ), range );
+		Assert.assertEquals( ( 2 * n - range - 1 ) * range / 2, similarities.getNumberOfPairs() );
+		final double[] sparse = inf.estimateZCoordinates( similarities, startingCoordinates, new LazyVisitor(), options );
+		Assert.assertArrayEquals( dense, sparse, 1e-10 );
+	}
+
+	@Test
+	public void testMissingPairs() throws Exception
+	{
+		final int n = 100;
+		final int range = 8;
+		final double[] truth = truth( n );
+		final ArrayImg< DoubleType, DoubleArray > matrix = matrix( truth, range );
+		final double[] startingCoordinates = startingCoordinates( n );
+
+		final Options options = Options.generateDefaultOptions();
+		options.comparisonRange = range;
+		options.nIterations = 100;
+
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		final double denseError = error( truth, inf.estimateZCoordinates( matrix, startingCoordinates, options ) );
+
+		// drop a third of all pairs
+		final Random rng = new Random( 100 );
+		final SparseSimilarities.Builder builder = new SparseSimilarities.Builder( n );
+		final RandomAccess< DoubleType > access = matrix.randomAccess();
+		for ( int i = 0; i < n; ++i )
+			for ( int j = i + 1; j < Math.min( n, i + range + 1 ); ++j )
+			{
+				access.setPosition( new int[] { i, j } );
+				if ( rng.nextDouble() > 1.0 / 3.0 )
+					builder.add( j, i, access.get().get() );
+			}
+		final double sparseError = error( truth, inf.estimateZCoordinates( builder.build(), startingCoordinates, new LazyVisitor(), options ) );
+		Assert.assertTrue( sparseError < 0.5 * error( truth, startingCoordinates ) );
+		Assert.assertTrue( sparseError < 2 * denseError );
+	}
+
+	private static double[] truth( final int n )
+	{
+		final double[] truth = new double[ n ];
+		for ( int z = 1; z < n; ++z )
+			truth[ z ] = truth[ z - 1 ] + 1.0 + 0.5 * Math.sin( 2 * Math.PI * z / 17 );
+		for ( int z = 0; z < n; ++z )
+			truth[ z ] *= ( n - 1 ) / truth[ n - 1 ];
+		return truth;
+	}
+
+	private static ArrayImg< DoubleType, DoubleArray > matrix( final double[] truth, final int range )
+	{
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( truth.length, truth.length );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final int a = c.getIntPosition( 0 );
+			final int b = c.getIntPosition( 1 );
+			c.get().set( Math.abs( a - b ) <= range ? Math.exp( -0.2 * Math.abs( truth[ a ] - truth[ b ] ) ) : Double.NaN );
+		}
+		return matrix;
+	}
+
+	private static double[] startingCoordinates( final int n )
+	{
+		final double[] startingCoordinates = new double[ n ];
+		for ( int z = 0; z < n; ++z )
+			startingCoordinates[ z ] = z;
+		return startingCoordinates;
+	}
+
+	private static double error( final double[] truth, final double[] estimate )
+	{
+		double max = 0.0;
+		for ( int z = 0; z < truth.length; ++z )
+			max = Math.max( max, Math.abs( truth[ z ] - estimate[ z ] ) );
+		return max;
+	}
+
+}
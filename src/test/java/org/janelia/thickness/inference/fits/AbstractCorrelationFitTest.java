@@ -0,0 +1,160 @@
+package org.janelia.thickness.inference.fits;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.janelia.thickness.inference.Options;
+import org.janelia.thickness.lut.LUTRealTransform;
+import org.janelia.thickness.lut.PermutationTransform;
+import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.arrays.ArraySortedIndices;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.ConstantUtils;
+import net.imglib2.view.TransformView;
+import net.imglib2.view.Views;
+
+/**
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class AbstractCorrelationFitTest
+{
+
+	private static final int n = 25;
+
+	private static final int range = 4;
+
+	private static class RecordingFit extends AbstractCorrelationFit
+	{
+
+		private final List< double[] > samples = new ArrayList<>();
+
+		@Override
+		public Accumulator createAccumulator()
+		{
+			return new Accumulator()
+			{
+
+				@Override
+				public void init( final int size )
+				{
+					samples.clear();
+				}
+
+				@Override
+				public void add( final int z, final int dz, final double value, final double weight )
+				{
+					samples.add( new double[] { z, dz, value, weight } );
+				}
+
+				@Override
+				public RandomAccessibleInterval< double[] > estimate( final int size )
+				{
+					return null;
+				}
+			};
+		}
+
+	}
+
+	@Test
+	public void testIdentity()
+	{
+		final double[] coordinates = new double[ n ];
+		for ( int z = 0; z < n; ++z )
+			coordinates[ z ] = z;
+		final List< double[] >[] samples = sample( coordinates );
+		Assert.assertEquals( samples[ 0 ].size(), samples[ 1 ].size() );
+		for ( int i = 0; i < samples[ 0 ].size(); ++i )
+			Assert.assertArrayEquals( samples[ 0 ].get( i ), samples[ 1 ].get( i ), 0.0 );
+	}
+
+	@Test
+	public void testPermutedCoordinates()
+	{
+		final double[] coordinates = new double[ n ];
+		for ( int z = 0; z < n; ++z )
+			coordinates[ z ] = 1.3 * z + 0.4 * Math.sin( z );
+		// swap sections
+		coordinates[ 7 ] = coordinates[ 8 ] + 0.2;
+		coordinates[ 15 ] = coordinates[ 13 ] - 0.1;
+		final List< double[] >[] samples = sample( coordinates );
+
+		// the interpolated views drop samples whenever a zero-weighted
+		// neighbor is NaN, everything else must be sampled identically
+		Assert.assertTrue( samples[ 1 ].size() > samples[ 0 ].size() );
+		int index = 0;
+		for ( final double[] expected : samples[ 0 ] )
+		{
+			while ( index < samples[ 1 ].size() && !equals( expected, samples[ 1 ].get( index ), 1e-12 ) )
+				++index;
+			Assert.assertTrue( index < samples[ 1 ].size() );
+			++index;
+		}
+	}
+
+	private static boolean equals( final double[] expected, final double[] actual, final double tolerance )
+	{
+		for ( int d = 0; d < expected.length; ++d )
+			if ( Math.abs( expected[ d ] - actual[ d ] ) > tolerance )
+				return false;
+		return true;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static List< double[] >[] sample( final double[] coordinates )
+	{
+		final double[] sortedCoordinates = coordinates.clone();
+		final int[] forward = new int[ n ];
+		final int[] inverse = new int[ n ];
+		ArraySortedIndices.sort( sortedCoordinates, forward, inverse );
+
+		final double[] matrixData = new double[ n * n ];
+		for ( int y = 0, i = 0; y < n; ++y )
+			for ( int x = 0; x < n; ++x, ++i )
+				matrixData[ i ] = Math.abs( x - y ) <= range ? Math.exp( -0.2 * Math.abs( coordinates[ x ] - coordinates[ y ] ) ) : Double.NaN;
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( matrixData, n, n );
+
+		final double[] strip = new double[ ( 2 * range + 1 ) * n ];
+		int index = 0;
+		for ( final DoubleType s : Views.flatIterable( MatrixStripConversion.matrixToStrip( matrix, range ) ) )
+			strip[ index++ ] = s.get();
+
+		final Options options = Options.generateDefaultOptions();
+		options.comparisonRange = range;
+		options.forceMonotonicity = false;
+
+		final PermutationTransform permutation = new PermutationTransform( inverse, 2, 2 );
+		final RandomAccessibleInterval< DoubleType > permuted = Views.interval( new TransformView<>( matrix, permutation ), matrix );
+
+		boolean isIdentity = true;
+		for ( int z = 0; z < n && isIdentity; ++z )
+			isIdentity = sortedCoordinates[ z ] == z;
+
+		final RecordingFit viewFit = new RecordingFit();
+		viewFit.estimateFromMatrix(
+				permuted,
+				sortedCoordinates,
+				new LUTRealTransform( sortedCoordinates, 2, 2 ),
+				ConstantUtils.constantRandomAccessibleInterval( new DoubleType( 1.0 ), 2, matrix ),
+				options,
+				isIdentity ? new NearestNeighborInterpolatorFactory<>() : new NLinearInterpolatorFactory<>(),
+				viewFit.createAccumulator() );
+
+		final RecordingFit stripFit = new RecordingFit();
+		stripFit.estimateFromStrip( strip, inverse, sortedCoordinates, null, options, stripFit.createAccumulator() );
+
+		return new List[] { viewFit.samples, stripFit.samples };
+	}
+
+}
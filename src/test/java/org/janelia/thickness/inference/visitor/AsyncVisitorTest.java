@@ -0,0 +1,163 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.list.ListImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class AsyncVisitorTest
+{
+
+	private static final int n = 5;
+
+	private static final int range = 2;
+
+	private static class RecordingVisitor implements Visitor, AutoCloseable
+	{
+
+		private final ArrayList< double[] > luts = new ArrayList<>();
+
+		private final ArrayList< double[] > matrices = new ArrayList<>();
+
+		private final ArrayList< double[] > fits = new ArrayList<>();
+
+		private boolean closed = false;
+
+		@Override
+		public < T extends RealType< T > > void act(
+				final int iteration,
+				final RandomAccessibleInterval< T > matrix,
+				final RandomAccessibleInterval< T > scaledMatrix,
+				final double[] lut,
+				final int[] permutation,
+				final int[] inversePermutation,
+				final double[] multipliers,
+				final RandomAccessibleInterval< double[] > estimatedFit )
+		{
+			if ( iteration < 0 )
+				throw new RuntimeException( "Failure in iteration " + iteration );
+			luts.add( lut.clone() );
+			final double[] m = new double[ n * n ];
+			int i = 0;
+			for ( final T t : Views.flatIterable( matrix ) )
+				m[ i++ ] = t.getRealDouble();
+			matrices.add( m );
+			fits.add( Views.flatIterable( estimatedFit ).firstElement().clone() );
+		}
+
+		@Override
+		public void close()
+		{
+			closed = true;
+		}
+
+	}
+
+	@Test
+	public void testSnapshots() throws Exception
+	{
+		final RecordingVisitor recorder = new RecordingVisitor();
+		final AsyncVisitor visitor = new AsyncVisitor( recorder, 2, range );
+
+		final double[] lut = new double[ n ];
+		final int[] permutation = new int[ n ];
+		final double[] multipliers = new double[ n ];
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( n, n );
+		final double[] fit = new double[ range + 1 ];
+		final ArrayList< double[] > fitList = new ArrayList<>();
+		fitList.add( fit );
+		final ListImg< double[] > fits = new ListImg<>( fitList, 1 );
+
+		final int nIterations = 10;
+		for ( int iteration = 0; iteration < nIterations; ++iteration )
+		{
+			// mutate inputs in place, as the optimizer does
+			for ( int i = 0; i < n; ++i )
+			{
+				lut[ i ] = iteration * n + i;
+				permutation[ i ] = i;
+			}
+			int k = 0;
+			for ( final DoubleType m : matrix )
+				m.set( iteration + k++ );
+			fit[ 0 ] = iteration;
+			visitor.act( iteration, matrix, matrix, lut, permutation, permutation, multipliers, fits );
+		}
+		visitor.close();
+
+		Assert.assertTrue( recorder.closed );
+		Assert.assertEquals( nIterations, recorder.luts.size() );
+		for ( int iteration = 0; iteration < nIterations; ++iteration )
+		{
+			for ( int i = 0; i < n; ++i )
+				Assert.assertEquals( iteration * n + i, recorder.luts.get( iteration )[ i ], 0.0 );
+			Assert.assertEquals( iteration, recorder.fits.get( iteration )[ 0 ], 0.0 );
+			final double[] m = recorder.matrices.get( iteration );
+			for ( int y = 0; y < n; ++y )
+				for ( int x = 0; x < n; ++x )
+				{
+					final double value = m[ y * n + x ];
+					if ( Math.abs( x - y ) > range )
+						Assert.assertTrue( Double.isNaN( value ) );
+					else
+						Assert.assertEquals( iteration + y * n + x, value, 0.0 );
+				}
+		}
+	}
+
+	@Test
+	public void testInterruptedClose() throws Exception
+	{
+		final ListVisitor list = new ListVisitor();
+		list.addVisitor( new InterruptingVisitor() );
+		for ( final AutoCloseable visitor : new AutoCloseable[] { new AsyncVisitor( new InterruptingVisitor(), -1 ), list } )
+		{
+			try
+			{
+				visitor.close();
+				Assert.fail( "Expected InterruptedIOException." );
+			}
+			catch ( final InterruptedIOException e )
+			{
+				Assert.assertTrue( e.getCause() instanceof InterruptedException );
+			}
+			// interrupt flag restored, clear for next visitor
+			Assert.assertTrue( Thread.interrupted() );
+		}
+	}
+
+	@SuppressWarnings( "try" )
+	private static class InterruptingVisitor extends LazyVisitor implements AutoCloseable
+	{
+		@Override
+		public void close() throws InterruptedException
+		{
+			throw new InterruptedException();
+		}
+	}
+
+	@Test( expected = RuntimeException.class )
+	public void testFailure() throws Exception
+	{
+		final AsyncVisitor visitor = new AsyncVisitor( new RecordingVisitor(), -1 );
+		final double[] lut = new double[ n ];
+		final int[] permutation = new int[ n ];
+		visitor.act( -1, null, null, lut, permutation, permutation, lut, null );
+		visitor.close();
+	}
+
+}
@@ -0,0 +1,81 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class RingBufferVisitorTest
+{
+
+	private static class RecordingVisitor implements Visitor
+	{
+
+		private final ArrayList< double[] > luts = new ArrayList<>();
+
+		@Override
+		public < T extends RealType< T > > void act(
+				final int iteration,
+				final RandomAccessibleInterval< T > matrix,
+				final RandomAccessibleInterval< T > scaledMatrix,
+				final double[] lut,
+				final int[] permutation,
+				final int[] inversePermutation,
+				final double[] multipliers,
+				final RandomAccessibleInterval< double[] > estimatedFit )
+		{
+			Assert.assertEquals( iteration, lut[ 1 ], 0.0 );
+			luts.add( lut.clone() );
+		}
+
+	}
+
+	@Test
+	public void testDump()
+	{
+		final RecordingVisitor recorder = new RecordingVisitor();
+		final RingBufferVisitor visitor = new RingBufferVisitor( recorder, 3, -1 );
+		act( visitor, 10, 0.0 );
+		Assert.assertEquals( 0, recorder.luts.size() );
+		visitor.dump();
+		Assert.assertEquals( 3, recorder.luts.size() );
+		for ( int i = 0; i < 3; ++i )
+			Assert.assertEquals( 8 + i, recorder.luts.get( i )[ 1 ], 0.0 );
+		Assert.assertFalse( visitor.hasDiverged() );
+	}
+
+	@Test
+	public void testDivergence()
+	{
+		final RecordingVisitor recorder = new RecordingVisitor();
+		final RingBufferVisitor visitor = new RingBufferVisitor( recorder, 4, -1 );
+		act( visitor, 6, Double.NaN );
+		Assert.assertTrue( visitor.hasDiverged() );
+		// iterations 2, 3, 4, 5 from buffer and 6 after divergence
+		Assert.assertEquals( 5, recorder.luts.size() );
+		Assert.assertFalse( Double.isNaN( recorder.luts.get( 2 )[ 0 ] ) );
+		Assert.assertTrue( Double.isNaN( recorder.luts.get( 3 )[ 0 ] ) );
+	}
+
+	private static void act( final RingBufferVisitor visitor, final int nIterations, final double divergedValue )
+	{
+		final double[] lut = new double[ 2 ];
+		final int[] permutation = new int[ 2 ];
+		for ( int iteration = 0; iteration <= nIterations; ++iteration )
+		{
+			Arrays.fill( lut, iteration );
+			if ( iteration >= nIterations - 1 )
+				lut[ 0 ] = divergedValue;
+			visitor.act( iteration, null, null, lut, permutation, permutation, lut, null );
+		}
+	}
+
+}
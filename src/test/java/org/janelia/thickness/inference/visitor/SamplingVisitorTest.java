@@ -0,0 +1,134 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class SamplingVisitorTest
+{
+
+	private static class IterationVisitor implements Visitor
+	{
+
+		private final ArrayList< Integer > iterations = new ArrayList<>();
+
+		private final ArrayList< Integer > firstValues = new ArrayList<>();
+
+		@Override
+		public < T extends RealType< T > > void act(
+				final int iteration,
+				final RandomAccessibleInterval< T > matrix,
+				final RandomAccessibleInterval< T > scaledMatrix,
+				final double[] lut,
+				final int[] permutation,
+				final int[] inversePermutation,
+				final double[] multipliers,
+				final RandomAccessibleInterval< double[] > estimatedFit )
+		{
+			iterations.add( iteration );
+			firstValues.add( ( int ) lut[ 0 ] );
+		}
+
+	}
+
+	@Test
+	public void testPolicies() throws Exception
+	{
+		Assert.assertArrayEquals( new int[] { 0, 3, 6, 9, 10 }, run( SamplingVisitor.everyKth( 3 ), true, 10, i -> i ) );
+		Assert.assertArrayEquals( new int[] { 0, 3, 6, 9 }, run( SamplingVisitor.everyKth( 3 ), false, 10, i -> i ) );
+		Assert.assertArrayEquals( new int[] { 0, 1, 2, 4, 8, 16, 20 }, run( SamplingVisitor.logarithmic( 2.0 ), true, 20, i -> i ) );
+		Assert.assertArrayEquals( new int[] { 0, 7 }, run( SamplingVisitor.first(), true, 7, i -> i ) );
+		// lut[ 0 ] changes by one every other iteration
+		Assert.assertArrayEquals( new int[] { 0, 2, 4, 6 }, run( SamplingVisitor.onChange( 0.5 ), false, 7, i -> i / 2 ) );
+	}
+
+	@Test
+	public void testLastIsSnapshot() throws Exception
+	{
+		final IterationVisitor recorder = new IterationVisitor();
+		final double[] lut = new double[ 3 ];
+		final int[] permutation = new int[ 3 ];
+		try (SamplingVisitor visitor = new SamplingVisitor( recorder, SamplingVisitor.first(), true, -1 ))
+		{
+			for ( int iteration = 0; iteration <= 5; ++iteration )
+			{
+				Arrays.fill( lut, iteration );
+				visitor.act( iteration, null, null, lut, permutation, permutation, lut, null );
+			}
+			Arrays.fill( lut, -1.0 );
+		}
+		Assert.assertArrayEquals( new int[] { 0, 5 }, toArray( recorder.firstValues ) );
+	}
+
+	@Test
+	public void testLastMatrixIsNotCopied() throws Exception
+	{
+		final ArrayList< Object > matrices = new ArrayList<>();
+		final Visitor recorder = new LazyVisitor()
+		{
+			@Override
+			public < T extends RealType< T > > void act(
+					final int iteration,
+					final RandomAccessibleInterval< T > matrix,
+					final RandomAccessibleInterval< T > scaledMatrix,
+					final double[] lut,
+					final int[] permutation,
+					final int[] inversePermutation,
+					final double[] multipliers,
+					final RandomAccessibleInterval< double[] > estimatedFit )
+			{
+				matrices.add( matrix );
+			}
+		};
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( 3, 3 );
+		final double[] lut = new double[ 3 ];
+		final int[] permutation = new int[ 3 ];
+		for ( final int range : new int[] { 1, -1 } )
+			try (SamplingVisitor visitor = new SamplingVisitor( recorder, SamplingVisitor.first(), true, range ))
+			{
+				for ( int iteration = 0; iteration <= 2; ++iteration )
+					visitor.act( iteration, matrix, matrix, lut, permutation, permutation, lut, null );
+			}
+		Assert.assertEquals( Arrays.asList( matrix, matrix, matrix, null ), matrices );
+	}
+
+	private static int[] run(
+			final SamplingVisitor.Policy policy,
+			final boolean withLast,
+			final int lastIteration,
+			final IntUnaryOperator value ) throws Exception
+	{
+		final IterationVisitor recorder = new IterationVisitor();
+		final double[] lut = new double[ 3 ];
+		final int[] permutation = new int[ 3 ];
+		try (SamplingVisitor visitor = new SamplingVisitor( recorder, policy, withLast, -1 ))
+		{
+			for ( int iteration = 0; iteration <= lastIteration; ++iteration )
+			{
+				Arrays.fill( lut, value.applyAsInt( iteration ) );
+				visitor.act( iteration, null, null, lut, permutation, permutation, lut, null );
+			}
+		}
+		return toArray( recorder.iterations );
+	}
+
+	private static int[] toArray( final ArrayList< Integer > list )
+	{
+		return list.stream().mapToInt( Integer::intValue ).toArray();
+	}
+
+}
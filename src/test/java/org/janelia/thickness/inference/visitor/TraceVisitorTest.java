@@ -0,0 +1,164 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.list.ListImg;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class TraceVisitorTest
+{
+
+	private static final int n = 7;
+
+	private static final int range = 2;
+
+	private static final int nIterations = 5;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		for ( final boolean compress : new boolean[] { true, false } )
+		{
+			final File file = folder.newFile();
+			final ArrayList< Object[] > expected = write( file, compress, true );
+			try (TraceReader reader = new TraceReader( file.getAbsolutePath() ))
+			{
+				Assert.assertEquals( range, reader.getRange() );
+				compare( expected, reader );
+			}
+		}
+	}
+
+	@Test
+	public void testWithoutIndex() throws IOException
+	{
+		final File file = folder.newFile();
+		final ArrayList< Object[] > expected = write( file, true, true );
+		// drop footer and part of the last record
+		try (RandomAccessFile raf = new RandomAccessFile( file, "rw" ))
+		{
+			raf.setLength( raf.length() - 12 - 4 - 12 * nIterations - 20 );
+		}
+		try (TraceReader reader = new TraceReader( file.getAbsolutePath() ))
+		{
+			Assert.assertEquals( nIterations - 1, reader.size() );
+			compare( expected.subList( 0, nIterations - 1 ), reader );
+		}
+	}
+
+	@Test
+	public void testToFiles() throws IOException
+	{
+		final File file = folder.newFile();
+		final ArrayList< Object[] > expected = write( file, true, false );
+		final File directory = folder.newFolder();
+		try (TraceReader reader = new TraceReader( file.getAbsolutePath() ))
+		{
+			Assert.assertEquals( -1, reader.getRange() );
+			reader.toFiles( directory.getAbsolutePath() );
+		}
+
+		for ( int iteration = 0; iteration < nIterations; ++iteration )
+		{
+			final double[] lut = ( double[] ) expected.get( iteration )[ 1 ];
+			final List< String > lines = Files.readAllLines( new File( directory, String.format( "lut/%04d.csv", iteration ) ).toPath() );
+			Assert.assertEquals( n, lines.size() );
+			for ( int i = 0; i < n; ++i )
+				Assert.assertEquals( i + "," + lut[ i ], lines.get( i ) );
+			Assert.assertTrue( new File( directory, String.format( "scaling-factors/%04d.csv", iteration ) ).exists() );
+			Assert.assertTrue( new File( directory, String.format( "correlation-fit/%04d.csv", iteration ) ).exists() );
+		}
+	}
+
+	private static ArrayList< Object[] > write( final File file, final boolean compress, final boolean withMatrix ) throws IOException
+	{
+		final Random rng = new Random( 100 );
+		final ArrayList< Object[] > expected = new ArrayList<>();
+		try (TraceVisitor visitor = new TraceVisitor( file.getAbsolutePath(), withMatrix ? range : -1, compress ))
+		{
+			for ( int iteration = 0; iteration < nIterations; ++iteration )
+			{
+				final double[] lut = new double[ n ];
+				final int[] permutation = new int[ n ];
+				final int[] inverse = new int[ n ];
+				final double[] multipliers = new double[ n ];
+				for ( int i = 0; i < n; ++i )
+				{
+					lut[ i ] = i + rng.nextDouble();
+					permutation[ n - 1 - i ] = i;
+					inverse[ i ] = n - 1 - i;
+					multipliers[ i ] = rng.nextDouble();
+				}
+				final ArrayList< double[] > fitList = new ArrayList<>();
+				for ( int i = 0; i < 3; ++i )
+					fitList.add( new double[] { 1.0, rng.nextDouble(), rng.nextDouble() } );
+				final ListImg< double[] > fits = new ListImg<>( fitList, 3 );
+				final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( n, n );
+				for ( final DoubleType m : matrix )
+					m.set( rng.nextDouble() );
+				visitor.act( iteration, matrix, matrix, lut, permutation, inverse, multipliers, fits );
+				expected.add( new Object[] { iteration, lut, permutation, inverse, multipliers, fitList, matrix } );
+			}
+		}
+		return expected;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static void compare( final List< Object[] > expected, final TraceReader reader ) throws IOException
+	{
+		Assert.assertEquals( expected.size(), reader.size() );
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			final Object[] e = expected.get( i );
+			final TraceReader.Record record = reader.read( i );
+			Assert.assertEquals( e[ 0 ], record.iteration );
+			Assert.assertArrayEquals( ( double[] ) e[ 1 ], record.lut, 0.0 );
+			Assert.assertArrayEquals( ( int[] ) e[ 2 ], record.permutation );
+			Assert.assertArrayEquals( ( int[] ) e[ 3 ], record.inversePermutation );
+			Assert.assertArrayEquals( ( double[] ) e[ 4 ], record.multipliers, 0.0 );
+			final ArrayList< double[] > fits = ( ArrayList< double[] > ) e[ 5 ];
+			int k = 0;
+			for ( final double[] fit : Views.flatIterable( record.estimatedFit ) )
+				Assert.assertArrayEquals( fits.get( k++ ), fit, 0.0 );
+			Assert.assertEquals( fits.size(), k );
+
+			final RandomAccessibleInterval< DoubleType > matrix = ( RandomAccessibleInterval< DoubleType > ) e[ 6 ];
+			final Cursor< DoubleType > expectedCursor = Views.flatIterable( matrix ).cursor();
+			final Cursor< DoubleType > actualCursor = Views.flatIterable( record.scaledMatrix() ).cursor();
+			while ( expectedCursor.hasNext() )
+			{
+				final double expectedValue = expectedCursor.next().get();
+				final double actualValue = actualCursor.next().get();
+				if ( Math.abs( expectedCursor.getLongPosition( 0 ) - expectedCursor.getLongPosition( 1 ) ) > range )
+					Assert.assertTrue( Double.isNaN( actualValue ) );
+				else
+					Assert.assertEquals( expectedValue, actualValue, 0.0 );
+			}
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.janelia.thickness.inference.visitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.janelia.thickness.lut.LUTRealTransform;
+import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.io.FloatTiffWriter;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.FloatProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.InverseRealTransform;
+import net.imglib2.realtransform.RealTransformRealRandomAccessible;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.ScaleAndTranslation;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class WarpedStripRendererTest
+{
+
+	private static final int n = 20;
+
+	private static final int range = 4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testAgainstViews()
+	{
+		final Random rng = new Random( 100 );
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( n, n );
+		for ( final DoubleType m : matrix )
+			m.set( rng.nextDouble() );
+		final double[] lut = new double[ n ];
+		for ( int i = 1; i < n; ++i )
+			lut[ i ] = lut[ i - 1 ] + 0.2 + 1.6 * rng.nextDouble();
+
+		final WarpedStripRenderer renderer = new WarpedStripRenderer();
+		// render twice to check re-use of buffers
+		renderer.render( matrix, lut, range + 1 );
+		final float[] strip = renderer.render( matrix, lut, range );
+
+		final Cursor< DoubleType > expected = Views.flatIterable( renderWithViews( matrix, lut, range ) ).cursor();
+		int nValid = 0;
+		for ( int i = 0; expected.hasNext(); ++i )
+		{
+			final float e = ( float ) expected.next().get();
+			if ( Float.isNaN( e ) )
+				Assert.assertTrue( Float.isNaN( strip[ i ] ) );
+			else
+			{
+				Assert.assertEquals( e, strip[ i ], 1e-6f );
+				++nValid;
+			}
+		}
+		Assert.assertTrue( nValid > n );
+	}
+
+	@Test
+	public void testTiff() throws IOException
+	{
+		final int width = 5;
+		final int height = 3;
+		final float[] data = new float[ width * height ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = i * 0.5f - 3.0f;
+		data[ 7 ] = Float.NaN;
+		final File file = new File( folder.getRoot(), "strip.tif" );
+		FloatTiffWriter.write( file.getAbsolutePath(), data, width, height );
+
+		final ImagePlus imp = new Opener().openImage( file.getAbsolutePath() );
+		Assert.assertNotNull( imp );
+		Assert.assertEquals( width, imp.getWidth() );
+		Assert.assertEquals( height, imp.getHeight() );
+		Assert.assertTrue( imp.getProcessor() instanceof FloatProcessor );
+		Assert.assertArrayEquals( data, ( float[] ) imp.getProcessor().getPixels(), 0.0f );
+	}
+
+	// former implementation of MatrixVisitor
+	private static RandomAccessibleInterval< DoubleType > renderWithViews( final RandomAccessibleInterval< DoubleType > scaledMatrix, final double[] lut, final int range )
+	{
+		final DoubleType dummy = new DoubleType( Double.NaN );
+		final LUTRealTransform tf = new LUTRealTransform( lut, 2, 2 );
+		final RealTransformRealRandomAccessible< DoubleType, InverseRealTransform > transformed = RealViews.transformReal( Views.interpolate( Views.extendValue( scaledMatrix, dummy ), new NLinearInterpolatorFactory<>() ), tf );
+		final double s = 1.0 / ( lut[ lut.length - 1 ] - lut[ 0 ] ) * lut.length;
+		final double o = -lut[ 0 ];
+		final ScaleAndTranslation scaleAndTranslation = new ScaleAndTranslation( new double[] { s, s }, new double[] { o, o } );
+		final IntervalView< DoubleType > offset = Views.interval( Views.raster( RealViews.transformReal( transformed, scaleAndTranslation ) ), scaledMatrix );
+		return MatrixStripConversion.matrixToStrip( offset, range, dummy );
+	}
+
+}
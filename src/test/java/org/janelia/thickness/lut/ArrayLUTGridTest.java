@@ -0,0 +1,127 @@
+package org.janelia.thickness.lut;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.imglib2.RealPoint;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.array.ArrayRandomAccess;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ArrayLUTGridTest
+{
+
+	private static final int width = 4;
+
+	private static final int height = 3;
+
+	private static final int lutLength = 20;
+
+	private static final int nSamples = 500;
+
+	private static final double tolerance = 1e-10;
+
+	private static ArrayImg< DoubleType, DoubleArray > luts = ArrayImgs.doubles( width, height, lutLength );
+
+	@BeforeClass
+	public static void setUpBeforeClass()
+	{
+		final Random rnd = new Random( 100 );
+		final ArrayRandomAccess< DoubleType > access = luts.randomAccess();
+		for ( int y = 0; y < height; ++y )
+		{
+			access.setPosition( y, 1 );
+			for ( int x = 0; x < width; ++x )
+			{
+				access.setPosition( x, 0 );
+				double value = rnd.nextDouble();
+				for ( int z = 0; z < lutLength; ++z )
+				{
+					access.setPosition( z, 2 );
+					access.get().set( value );
+					value += 0.1 + 2 * rnd.nextDouble();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testAgainstLUTGrid()
+	{
+		compare( new LUTGrid( 3, 3, luts ), new ArrayLUTGrid( 3, 3, luts ), 1.0, 0.0 );
+		compare( new LUTGrid( 3, 3, luts ).reScale( 2.5 ), new ArrayLUTGrid( 3, 3, luts ).reScale( 2.5 ), 2.5, 0.0 );
+		compare( new LUTGrid( 3, 3, luts ).reShift( 0.7, -0.3 ), new ArrayLUTGrid( 3, 3, luts ).reShift( 0.7, -0.3 ), 1.0, 0.5 );
+	}
+
+	@Test
+	public void testCopySharesData()
+	{
+		final ArrayLUTGrid grid = new ArrayLUTGrid( 3, 3, luts );
+		final ArrayLUTGrid copy = grid.copy();
+		Assert.assertSame( grid.data, copy.data );
+		compare( grid, copy );
+	}
+
+	private static void compare( final LUTGrid expected, final ArrayLUTGrid actual, final double scale, final double shift )
+	{
+		final Random rnd = new Random( 200 );
+		final double[] source = new double[ 3 ];
+		final double[] target1 = new double[ 3 ];
+		final double[] target2 = new double[ 3 ];
+		final float[] sourceFloat = new float[ 3 ];
+		final float[] targetFloat1 = new float[ 3 ];
+		final float[] targetFloat2 = new float[ 3 ];
+		final RealPoint point1 = new RealPoint( 3 );
+		final RealPoint point2 = new RealPoint( 3 );
+		for ( int i = 0; i < nSamples; ++i )
+		{
+			// include samples outside of grid and LUT range
+			source[ 0 ] = ( ( width + 1 ) * rnd.nextDouble() - 0.5 ) * scale + shift;
+			source[ 1 ] = ( ( height + 1 ) * rnd.nextDouble() - 0.5 ) * scale + shift;
+			source[ 2 ] = i % 10 == 0 ? i % 20 == 0 ? lutLength - 1 : 0 : ( lutLength + 2 ) * rnd.nextDouble() - 1;
+			sourceFloat[ 0 ] = ( float ) source[ 0 ];
+			sourceFloat[ 1 ] = ( float ) source[ 1 ];
+			sourceFloat[ 2 ] = ( float ) source[ 2 ];
+
+			expected.apply( source, target1 );
+			actual.apply( source, target2 );
+			Assert.assertArrayEquals( target1, target2, tolerance );
+
+			expected.apply( sourceFloat, targetFloat1 );
+			actual.apply( sourceFloat, targetFloat2 );
+			Assert.assertArrayEquals( targetFloat1, targetFloat2, ( float ) tolerance );
+
+			expected.applyInverse( target1, source );
+			actual.applyInverse( target2, source );
+			Assert.assertArrayEquals( target1, target2, tolerance );
+
+			expected.applyInverse( point1, RealPoint.wrap( source ) );
+			actual.applyInverse( point2, RealPoint.wrap( source ) );
+			for ( int d = 0; d < 3; ++d )
+				Assert.assertEquals( point1.getDoublePosition( d ), point2.getDoublePosition( d ), tolerance );
+
+			final LUTCursor cursor = actual.cursor( source );
+			Assert.assertEquals( expected.applyInverseChecked( source[ 2 ] ), cursor.applyInverseChecked( source[ 2 ] ), tolerance );
+		}
+	}
+
+	private static void compare( final ArrayLUTGrid expected, final ArrayLUTGrid actual )
+	{
+		final double[] source = new double[] { 1.3, 0.4, 7.5 };
+		final double[] target1 = new double[ 3 ];
+		final double[] target2 = new double[ 3 ];
+		expected.apply( source, target1 );
+		actual.apply( source, target2 );
+		Assert.assertArrayEquals( target1, target2, 0.0 );
+	}
+
+}
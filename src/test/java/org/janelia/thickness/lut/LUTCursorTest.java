@@ -0,0 +1,122 @@
+package org.janelia.thickness.lut;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LUTCursorTest
+{
+
+	final static private int lutLength = 93;
+
+	static private double[] lut = new double[ lutLength ];
+
+	static private double[] queries;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final Random rnd = new Random( 100 );
+		for ( int i = 0; i < lutLength; ++i )
+			lut[ i ] = 100 * rnd.nextDouble();
+		Arrays.sort( lut );
+
+		queries = new double[ 5 * lutLength + 4 ];
+		for ( int i = 0; i < lutLength; ++i )
+		{
+			queries[ i ] = lut[ i ];
+			queries[ lutLength + i ] = 110 * rnd.nextDouble() - 5;
+			queries[ 2 * lutLength + i ] = i < lutLength - 1 ? 0.5 * ( lut[ i ] + lut[ i + 1 ] ) : lut[ i ];
+			queries[ 3 * lutLength + i ] = i;
+			queries[ 4 * lutLength + i ] = ( lutLength - 1 ) * rnd.nextDouble();
+		}
+		queries[ 5 * lutLength ] = -1.0;
+		queries[ 5 * lutLength + 1 ] = 1000.0;
+		queries[ 5 * lutLength + 2 ] = lutLength - 0.5;
+		queries[ 5 * lutLength + 3 ] = Double.NaN;
+	}
+
+	@Test
+	public void testUnsorted()
+	{
+		compare( queries );
+	}
+
+	@Test
+	public void testSorted()
+	{
+		final double[] sorted = queries.clone();
+		Arrays.sort( sorted );
+		compare( sorted );
+		final double[] reversed = new double[ sorted.length ];
+		for ( int i = 0; i < sorted.length; ++i )
+			reversed[ i ] = sorted[ sorted.length - 1 - i ];
+		compare( reversed );
+	}
+
+	@Test
+	public void testBulk()
+	{
+		final LUTRealTransform transform = new LUTRealTransform( lut, 1, 1 );
+		final double[] sorted = queries.clone();
+		Arrays.sort( sorted );
+
+		final double[] expected = new double[ 1 ];
+		final double[] inverse = new double[ sorted.length ];
+		final double[] forward = new double[ sorted.length ];
+		final LUTCursor cursor = transform.cursor();
+		cursor.applyInverse( inverse, sorted );
+		cursor.apply( sorted, forward );
+		for ( int i = 0; i < sorted.length; ++i )
+		{
+			transform.applyInverse( expected, new double[] { sorted[ i ] } );
+			Assert.assertEquals( expected[ 0 ], inverse[ i ], 0.0 );
+			transform.apply( new double[] { sorted[ i ] }, expected );
+			Assert.assertEquals( expected[ 0 ], forward[ i ], 0.0 );
+		}
+	}
+
+	@Test
+	public void testNonMonotone()
+	{
+		// correlation fit without forced monotonicity
+		final double[] fit = { -1.0, -0.8, -0.85, -0.5, -0.6, -0.3, -0.1, -0.2, 0.0 };
+		Assert.assertFalse( new LUTCursor( fit ).isMonotone() );
+		Assert.assertTrue( new LUTCursor( lut ).isMonotone() );
+		Assert.assertTrue( new LUTCursor( new double[] { -1.0, -0.5, 0.0, Double.NaN, Double.NaN } ).isMonotone() );
+		final double[] ys = new double[ 4 * fit.length ];
+		for ( int i = 0; i < fit.length; ++i )
+		{
+			ys[ i ] = fit[ i ];
+			ys[ fit.length + i ] = fit[ i ] - 0.02;
+			ys[ 2 * fit.length + i ] = fit[ i ] + 0.02;
+			ys[ 3 * fit.length + i ] = fit[ fit.length - 1 - i ] + 0.01;
+		}
+		Assert.assertEquals( new LUTRealTransform( fit, 1, 1 ).applyInverseChecked( -0.82 ), new LUTCursor( fit ).applyInverseChecked( -0.82 ), 0.0 );
+		compare( fit, ys );
+		Arrays.sort( ys );
+		compare( fit, ys );
+	}
+
+	private static void compare( final double[] ys )
+	{
+		compare( lut, ys );
+	}
+
+	private static void compare( final double[] lut, final double[] ys )
+	{
+		final LUTRealTransform transform = new LUTRealTransform( lut, 1, 1 );
+		final LUTCursor cursor = transform.cursor();
+		for ( final double y : ys )
+		{
+			if ( y >= lut[ 0 ] && y <= lut[ lut.length - 1 ] )
+				Assert.assertEquals( transform.findFloorIndex( y ), cursor.findFloorIndex( y ) );
+			Assert.assertEquals( transform.applyInverseChecked( y ), cursor.applyInverseChecked( y ), 0.0 );
+			Assert.assertEquals( transform.applyChecked( y ), cursor.applyChecked( y ), 0.0 );
+		}
+	}
+
+}
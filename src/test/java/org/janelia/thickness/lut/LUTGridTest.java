@@ -4,6 +4,11 @@
 package org.janelia.thickness.lut;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.imglib2.Cursor;
 import net.imglib2.RealPoint;
@@ -173,4 +178,29 @@ public class LUTGridTest {
 		}
 	}
 
+	@Test
+	public void testPerThreadCopies() throws Exception {
+		final PerThreadRealTransform< LUTGrid > perThread = new PerThreadRealTransform<>( tf1 );
+		final int nSamples = 1000;
+		final double[][] expected = new double[ nSamples ][ 4 ];
+		final double[][] sources = new double[ nSamples ][];
+		for ( int i = 0; i < nSamples; ++i ) {
+			sources[ i ] = new double[] { 2.0 * i / nSamples, 1.0, 3.0 * i / nSamples, 1.5 };
+			tf1.copy().apply( sources[ i ], expected[ i ] );
+		}
+		final ExecutorService es = Executors.newFixedThreadPool( 4 );
+		final List< Future< double[] > > futures = new ArrayList<>();
+		for ( int i = 0; i < nSamples; ++i ) {
+			final double[] source = sources[ i ];
+			futures.add( es.submit( () -> {
+				final double[] target = new double[ 4 ];
+				perThread.apply( source, target );
+				return target;
+			} ) );
+		}
+		for ( int i = 0; i < nSamples; ++i )
+			Assert.assertArrayEquals( expected[ i ], futures.get( i ).get(), 0.0 );
+		es.shutdown();
+	}
+
 }
@@ -0,0 +1,79 @@
+package org.janelia.thickness.plugin;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class StackNCCTest
+{
+
+	private static final int WIDTH = 17;
+
+	private static final int HEIGHT = 9;
+
+	@Test
+	public void testMatchesFloat()
+	{
+		final Random rng = new Random( 100 );
+		// values beyond the signed range of byte and short
+		assertMatchesFloat( fill( new ImageStack( WIDTH, HEIGHT ), rng, 255, ByteProcessor::new ), StackNCC.ByteStackNCC.class );
+		assertMatchesFloat( fill( new ImageStack( WIDTH, HEIGHT ), rng, 65535, ShortProcessor::new ), StackNCC.ShortStackNCC.class );
+		assertMatchesFloat( fill( new ImageStack( WIDTH, HEIGHT ), rng, 1, FloatProcessor::new ), StackNCC.FloatStackNCC.class );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testUnsupported()
+	{
+		final ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		stack.addSlice( new ColorProcessor( WIDTH, HEIGHT ) );
+		StackNCC.forImageStack( stack );
+	}
+
+	private static ImageStack fill( final ImageStack stack, final Random rng, final int maxValue, final ProcessorFactory factory )
+	{
+		for ( int z = 0; z < 4; ++z )
+		{
+			final ImageProcessor ip = factory.create( WIDTH, HEIGHT );
+			for ( int i = 0; i < WIDTH * HEIGHT; ++i )
+			{
+				// correlated with previous slice
+				final double previous = z == 0 ? rng.nextDouble() * maxValue : stack.getProcessor( z ).getf( i );
+				ip.setf( i, ( float ) Math.min( Math.floor( 0.7 * previous + 0.3 * rng.nextDouble() * maxValue ), maxValue ) );
+			}
+			stack.addSlice( ip );
+		}
+		return stack;
+	}
+
+	private static void assertMatchesFloat( final ImageStack stack, final Class< ? > expectedKernel )
+	{
+		final StackNCC ncc = StackNCC.forImageStack( stack );
+		Assert.assertEquals( expectedKernel, ncc.getClass() );
+		for ( int a = 0; a < stack.getSize(); ++a )
+			for ( int b = 0; b < stack.getSize(); ++b )
+			{
+				final double expected = new RealSumFloatNCC(
+						( float[] ) stack.getProcessor( a + 1 ).convertToFloatProcessor().getPixels(),
+						( float[] ) stack.getProcessor( b + 1 ).convertToFloatProcessor().getPixels() ).call();
+				Assert.assertEquals( expected, ncc.ncc( a, b ), 1e-9 );
+			}
+	}
+
+	private static interface ProcessorFactory
+	{
+		ImageProcessor create( int width, int height );
+	}
+
+}
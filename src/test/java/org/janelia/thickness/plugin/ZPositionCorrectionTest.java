@@ -0,0 +1,95 @@
+package org.janelia.thickness.plugin;
+
+import java.util.Random;
+
+import org.janelia.thickness.inference.Progress;
+import org.janelia.thickness.similarity.ValidityMask;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ZPositionCorrectionTest
+{
+
+	private static final int WIDTH = 40;
+
+	private static final int HEIGHT = 30;
+
+	@Test
+	public void testFloatStackIsTiled()
+	{
+		final int n = 8;
+		final int range = 3;
+		final ImageStack stack = createFloatStack( n );
+
+		// NaN pixels do not require masks
+		Assert.assertNull( ZPositionCorrection.createMasks( stack, null, WIDTH, HEIGHT ) );
+		Assert.assertTrue( ZPositionCorrection.isTiled( stack, null, 0 ) );
+		Assert.assertFalse( ZPositionCorrection.isTiled( stack, null, 2 ) );
+		final ValidityMask[] masks = ZPositionCorrection.createMasks( stack, new Roi( 5, 5, 20, 15 ), WIDTH, HEIGHT );
+		Assert.assertEquals( n, masks.length );
+		Assert.assertFalse( ZPositionCorrection.isTiled( stack, masks, 0 ) );
+
+		final FloatProcessor tiledMatrix = new FloatProcessor( n, n );
+		final FloatProcessor tiledWeights = new FloatProcessor( n, n );
+		Assert.assertTrue( ZPositionCorrection.invokeNCC( stack, null, range, 0.0, 0, tiledMatrix, tiledWeights, new Progress() ) );
+
+		// never stops early for positive similarities
+		final FloatProcessor matrix = new FloatProcessor( n, n );
+		final FloatProcessor weights = new FloatProcessor( n, n );
+		Assert.assertTrue( ZPositionCorrection.invokeNCC( stack, null, range, 0.0, range + 1, matrix, weights, new Progress() ) );
+
+		for ( int z = 0; z < n; ++z )
+			for ( int k = Math.max( z - range, 0 ); k <= Math.min( z + range, n - 1 ); ++k )
+			{
+				final float[] a = ( float[] ) stack.getPixels( z + 1 );
+				final float[] b = ( float[] ) stack.getPixels( k + 1 );
+				// valid in both sections, on the diagonal valid in section
+				Assert.assertEquals( validPixels( a, b ), tiledWeights.getf( z, k ), 0.0 );
+				Assert.assertEquals( validPixels( a, b ), weights.getf( z, k ), 0.0 );
+				if ( k == z )
+					continue;
+				final double expected = new RealSumFloatNCC( a, b ).call();
+				Assert.assertEquals( expected, tiledMatrix.getf( z, k ), 1e-6 );
+				Assert.assertEquals( expected, matrix.getf( z, k ), 1e-6 );
+			}
+	}
+
+	private static ImageStack createFloatStack( final int n )
+	{
+		final Random rng = new Random( 100 );
+		final ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		for ( int z = 0; z < n; ++z )
+		{
+			final FloatProcessor fp = new FloatProcessor( WIDTH, HEIGHT );
+			for ( int i = 0; i < WIDTH * HEIGHT; ++i )
+			{
+				final double previous = z == 0 ? rng.nextDouble() : stack.getProcessor( z ).getf( i );
+				fp.setf( i, ( float ) ( Double.isNaN( previous ) ? rng.nextDouble() : 0.7 * previous + 0.3 * rng.nextDouble() ) );
+			}
+			// damaged region that differs between sections
+			for ( int y = z; y < z + 4; ++y )
+				for ( int x = 2 * z; x < 2 * z + 10; ++x )
+					fp.setf( x, y, Float.NaN );
+			stack.addSlice( fp );
+		}
+		return stack;
+	}
+
+	private static int validPixels( final float[] a, final float[] b )
+	{
+		int count = 0;
+		for ( int i = 0; i < a.length; ++i )
+			if ( !Float.isNaN( a[ i ] ) && !Float.isNaN( b[ i ] ) )
+				++count;
+		return count;
+	}
+
+}
@@ -0,0 +1,103 @@
+package org.janelia.thickness.similarity;
+
+import org.janelia.thickness.inference.InferFromMatrix;
+import org.janelia.thickness.inference.Options;
+import org.janelia.thickness.inference.SparseSimilarities;
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.inference.visitor.LazyVisitor;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.ConstantUtils;
+import net.imglib2.view.Views;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class AdaptiveRangeTest
+{
+
+	@Test
+	public void testStoppingRule()
+	{
+		final AdaptiveRange adaptiveRange = new AdaptiveRange( 0.1, 2 );
+		Assert.assertTrue( adaptiveRange.isAdaptive() );
+		Assert.assertFalse( adaptiveRange.add( 0.05 ) );
+		Assert.assertFalse( adaptiveRange.add( 0.5 ) );
+		Assert.assertFalse( adaptiveRange.add( 0.1 ) );
+		Assert.assertTrue( adaptiveRange.add( Double.NaN ) );
+		Assert.assertTrue( adaptiveRange.isStopped() );
+		adaptiveRange.reset();
+		Assert.assertFalse( adaptiveRange.isStopped() );
+
+		final AdaptiveRange fullRange = new AdaptiveRange( 0.1, 0 );
+		Assert.assertFalse( fullRange.isAdaptive() );
+		for ( int i = 0; i < 10; ++i )
+			Assert.assertFalse( fullRange.add( 0.0 ) );
+	}
+
+	@Test
+	public void testRaggedBand() throws Exception
+	{
+		final int n = 80;
+		final int range = 20;
+		final double[] truth = new double[ n ];
+		for ( int z = 1; z < n; ++z )
+			truth[ z ] = truth[ z - 1 ] + ( z < n / 2 ? 1.0 : 2.0 );
+
+		// similarity decays to noise floor after a few sections in the upper
+		// half, later in the lower half
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( n, n );
+		for ( final DoubleType t : matrix )
+			t.set( Double.NaN );
+		final RandomAccess< DoubleType > access = matrix.randomAccess();
+		int nPairs = 0;
+		for ( int i = 0; i < n; ++i )
+		{
+			access.setPosition( new int[] { i, i } );
+			access.get().set( 1.0 );
+			final AdaptiveRange adaptiveRange = new AdaptiveRange( 0.01, 2 );
+			for ( int j = i + 1; j < n && j - i <= range && !adaptiveRange.isStopped(); ++j, ++nPairs )
+			{
+				final double similarity = Math.max( Math.exp( -0.5 * ( truth[ j ] - truth[ i ] ) ) - 0.005, 0.0 );
+				access.setPosition( new int[] { i, j } );
+				access.get().set( similarity );
+				access.setPosition( new int[] { j, i } );
+				access.get().set( similarity );
+				adaptiveRange.add( similarity );
+			}
+		}
+		// less than 2/3 of the full band
+		Assert.assertTrue( nPairs < ( 2 * n - range - 1 ) * range / 3 );
+
+		final double[] startingCoordinates = new double[ n ];
+		for ( int z = 0; z < n; ++z )
+			startingCoordinates[ z ] = z;
+		final Options options = Options.generateDefaultOptions();
+		options.comparisonRange = range;
+		options.nIterations = 200;
+		options.minimumCorrelationValue = 0.01;
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		final SparseSimilarities similarities = SparseSimilarities.fromMatrix( matrix, ConstantUtils.constantRandomAccessibleInterval( new DoubleType( 1.0 ), 2, matrix ), range );
+		Assert.assertEquals( nPairs, similarities.getNumberOfPairs() );
+
+		for ( final double[] estimate : new double[][] {
+				inf.estimateZCoordinates( matrix, startingCoordinates, options ),
+				inf.estimateZCoordinates( similarities, startingCoordinates, new LazyVisitor(), options ) } )
+		{
+			// thicker sections in lower half are recovered
+			final double upper = ( estimate[ n / 2 - 1 ] - estimate[ 0 ] ) / ( n / 2 - 1 );
+			final double lower = ( estimate[ n - 1 ] - estimate[ n / 2 ] ) / ( n - 1 - n / 2 );
+			for ( final double e : estimate )
+				Assert.assertTrue( Double.isFinite( e ) );
+			Assert.assertEquals( 2.0, lower / upper, 0.3 );
+		}
+	}
+
+}
@@ -0,0 +1,279 @@
+package org.janelia.thickness.similarity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.janelia.thickness.inference.Progress;
+import org.janelia.thickness.plugin.RealSumFloatNCC;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ChunkedVolumeTest
+{
+
+	private static final int[] DIMENSIONS = { 7, 5, 9 };
+
+	private static final int[] BLOCK_SIZE = { 3, 2, 4 };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final float[][] sections = new float[ DIMENSIONS[ 2 ] ][ DIMENSIONS[ 0 ] * DIMENSIONS[ 1 ] ];
+
+	private ExecutorService es;
+
+	@Before
+	public void setUp()
+	{
+		final Random rng = new Random( 100 );
+		for ( final float[] section : sections )
+			for ( int i = 0; i < section.length; ++i )
+				section[ i ] = rng.nextInt( 1 << 16 );
+		es = Executors.newFixedThreadPool( 3 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		es.shutdown();
+	}
+
+	@Test
+	public void testN5() throws IOException, InterruptedException
+	{
+		final Path gzip = folder.newFolder( "gzip" ).toPath();
+		writeN5( gzip, "{\"type\":\"gzip\"}", null );
+		final ChunkedVolume gzipVolume = ChunkedVolume.openN5( gzip );
+		Assert.assertEquals( ChunkedVolume.Compression.GZIP, gzipVolume.getCompression() );
+		Assert.assertEquals( ChunkedVolume.DataType.UINT16, gzipVolume.getDataType() );
+		Assert.assertEquals( 4, gzipVolume.getSlabDepth() );
+		assertSlabs( sections, gzipVolume );
+
+		// missing blocks are zero
+		final Path raw = folder.newFolder( "raw" ).toPath();
+		writeN5( raw, "{\"type\":\"raw\"}", new long[] { 1, 2, 1 } );
+		final ChunkedVolume rawVolume = ChunkedVolume.openN5( raw );
+		final float[][] expected = copy( sections );
+		for ( int z = 4; z < 8; ++z )
+			for ( int y = 4; y < 5; ++y )
+				for ( int x = 3; x < 6; ++x )
+					expected[ z ][ y * DIMENSIONS[ 0 ] + x ] = 0.0f;
+		assertSlabs( expected, rawVolume );
+	}
+
+	@Test
+	public void testZarr() throws IOException, InterruptedException
+	{
+		final Path zlib = folder.newFolder( "zlib" ).toPath();
+		writeZarr( zlib, "<u2", "{\"id\":\"zlib\",\"level\":1}", ".", new long[] { 1, 2, 1 } );
+		final ChunkedVolume zlibVolume = ChunkedVolume.openZarr( zlib );
+		Assert.assertEquals( ChunkedVolume.Compression.ZLIB, zlibVolume.getCompression() );
+		Assert.assertArrayEquals( new long[] { 7, 5, 9 }, zlibVolume.getDimensions() );
+		// missing chunks are fill value
+		final float[][] expected = copy( sections );
+		for ( int z = 4; z < 8; ++z )
+			for ( int y = 4; y < 5; ++y )
+				for ( int x = 3; x < 6; ++x )
+					expected[ z ][ y * DIMENSIONS[ 0 ] + x ] = 7.0f;
+		assertSlabs( expected, zlibVolume );
+
+		final Path gzip = folder.newFolder( "gzip" ).toPath();
+		writeZarr( gzip, ">f4", "{\"id\":\"gzip\",\"level\":1}", "/", null );
+		assertSlabs( sections, ChunkedVolume.openZarr( gzip ) );
+
+		final Path raw = folder.newFolder( "raw" ).toPath();
+		writeZarr( raw, "<f8", "null", ".", null );
+		assertSlabs( sections, ChunkedVolume.openZarr( raw ) );
+	}
+
+	@Test
+	public void testStreamingNCC() throws IOException, InterruptedException, ExecutionException
+	{
+		// correlated neighbors
+		for ( int z = 1; z < sections.length; ++z )
+			for ( int i = 0; i < sections[ z ].length; ++i )
+				sections[ z ][ i ] = Math.round( 0.5f * sections[ z - 1 ][ i ] + 0.5f * sections[ z ][ i ] );
+
+		final Path path = folder.newFolder( "n5" ).toPath();
+		writeN5( path, "{\"type\":\"gzip\"}", null );
+		final ChunkedVolume volume = ChunkedVolume.openN5( path );
+
+		final int range = 3;
+		final ArrayImg< DoubleType, DoubleArray > strip = StreamingSimilarity.calculateNCCStrip( volume, range, 0.0, 0, es, new Progress() );
+		Assert.assertArrayEquals( new long[] { 2 * range + 1, sections.length }, new long[] { strip.dimension( 0 ), strip.dimension( 1 ) } );
+		final RandomAccess< DoubleType > access = strip.randomAccess();
+		for ( int z = 0; z < sections.length; ++z )
+			for ( int k = z - range; k <= z + range; ++k )
+			{
+				access.setPosition( new int[] { k - z + range, z } );
+				final double actual = access.get().get();
+				if ( k < 0 || k >= sections.length )
+					Assert.assertTrue( Double.isNaN( actual ) );
+				else if ( k == z )
+					Assert.assertEquals( 1.0, actual, 0.0 );
+				else
+					Assert.assertEquals( new RealSumFloatNCC( sections[ z ], sections[ k ] ).call(), actual, 1e-12 );
+			}
+	}
+
+	private void assertSlabs( final float[][] expected, final ChunkedVolume volume ) throws IOException, InterruptedException
+	{
+		Assert.assertEquals( DIMENSIONS[ 0 ], volume.getWidth() );
+		Assert.assertEquals( DIMENSIONS[ 1 ], volume.getHeight() );
+		Assert.assertEquals( DIMENSIONS[ 2 ], volume.getDepth() );
+		// slabs aligned with and across block boundaries
+		for ( final int[] slab : new int[][] { { 0, 4 }, { 4, 8 }, { 8, 9 }, { 2, 7 }, { 0, 9 } } )
+		{
+			final float[][] actual = volume.readSlab( slab[ 0 ], slab[ 1 ], es );
+			Assert.assertEquals( slab[ 1 ] - slab[ 0 ], actual.length );
+			for ( int z = slab[ 0 ]; z < slab[ 1 ]; ++z )
+				Assert.assertArrayEquals( expected[ z ], actual[ z - slab[ 0 ] ], 0.0f );
+		}
+	}
+
+	/**
+	 * Write uint16 N5 dataset with truncated blocks at the border.
+	 */
+	private void writeN5( final Path path, final String compression, final long[] skip ) throws IOException
+	{
+		write( path.resolve( "attributes.json" ), String.format(
+				"{\"dimensions\":[%d,%d,%d],\"blockSize\":[%d,%d,%d],\"dataType\":\"uint16\",\"compression\":%s}",
+				DIMENSIONS[ 0 ], DIMENSIONS[ 1 ], DIMENSIONS[ 2 ], BLOCK_SIZE[ 0 ], BLOCK_SIZE[ 1 ], BLOCK_SIZE[ 2 ], compression ) );
+		for ( final long[] position : gridPositions() )
+		{
+			if ( skip != null && Arrays.equals( position, skip ) )
+				continue;
+			final int[] size = new int[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				size[ d ] = ( int ) Math.min( BLOCK_SIZE[ d ], DIMENSIONS[ d ] - position[ d ] * BLOCK_SIZE[ d ] );
+			final ByteBuffer data = ByteBuffer.allocate( size[ 0 ] * size[ 1 ] * size[ 2 ] * 2 ).order( ByteOrder.BIG_ENDIAN );
+			fill( data, position, size, 2 );
+
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream header = new DataOutputStream( bytes );
+			header.writeShort( 0 );
+			header.writeShort( 3 );
+			for ( final int s : size )
+				header.writeInt( s );
+			header.flush();
+			try (OutputStream os = compression.contains( "gzip" ) ? new GZIPOutputStream( bytes ) : bytes)
+			{
+				os.write( data.array() );
+			}
+			final Path block = path.resolve( position[ 0 ] + "/" + position[ 1 ] + "/" + position[ 2 ] );
+			Files.createDirectories( block.getParent() );
+			Files.write( block, bytes.toByteArray() );
+		}
+	}
+
+	/**
+	 * Write Zarr array with padded chunks at the border.
+	 */
+	private void writeZarr( final Path path, final String dtype, final String compressor, final String separator, final long[] skip ) throws IOException
+	{
+		write( path.resolve( ".zarray" ), String.format(
+				"{\"zarr_format\":2,\"shape\":[%d,%d,%d],\"chunks\":[%d,%d,%d],\"dtype\":\"%s\",\"compressor\":%s,\"fill_value\":7,\"order\":\"C\",\"filters\":null,\"dimension_separator\":\"%s\"}",
+				DIMENSIONS[ 2 ], DIMENSIONS[ 1 ], DIMENSIONS[ 0 ], BLOCK_SIZE[ 2 ], BLOCK_SIZE[ 1 ], BLOCK_SIZE[ 0 ], dtype, compressor, separator ) );
+		final int bytesPerElement = Integer.parseInt( dtype.substring( 2 ) );
+		for ( final long[] position : gridPositions() )
+		{
+			if ( skip != null && Arrays.equals( position, skip ) )
+				continue;
+			final ByteBuffer data = ByteBuffer
+					.allocate( BLOCK_SIZE[ 0 ] * BLOCK_SIZE[ 1 ] * BLOCK_SIZE[ 2 ] * bytesPerElement )
+					.order( dtype.charAt( 0 ) == '>' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN );
+			fill( data, position, BLOCK_SIZE, bytesPerElement );
+
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (OutputStream os = compressor.contains( "zlib" ) ? new DeflaterOutputStream( bytes ) : compressor.contains( "gzip" ) ? new GZIPOutputStream( bytes ) : bytes)
+			{
+				os.write( data.array() );
+			}
+			final Path chunk = path.resolve( position[ 2 ] + separator + position[ 1 ] + separator + position[ 0 ] );
+			Files.createDirectories( chunk.getParent() );
+			Files.write( chunk, bytes.toByteArray() );
+		}
+	}
+
+	private void fill( final ByteBuffer data, final long[] position, final int[] size, final int bytesPerElement )
+	{
+		for ( int z = 0, i = 0; z < size[ 2 ]; ++z )
+			for ( int y = 0; y < size[ 1 ]; ++y )
+				for ( int x = 0; x < size[ 0 ]; ++x, ++i )
+				{
+					final long gx = position[ 0 ] * BLOCK_SIZE[ 0 ] + x;
+					final long gy = position[ 1 ] * BLOCK_SIZE[ 1 ] + y;
+					final long gz = position[ 2 ] * BLOCK_SIZE[ 2 ] + z;
+					// padding outside of the volume
+					final float value = gx < DIMENSIONS[ 0 ] && gy < DIMENSIONS[ 1 ] && gz < DIMENSIONS[ 2 ]
+							? sections[ ( int ) gz ][ ( int ) ( gy * DIMENSIONS[ 0 ] + gx ) ]
+							: 12345.0f;
+					switch ( bytesPerElement )
+					{
+					case 2:
+						data.putShort( 2 * i, ( short ) value );
+						break;
+					case 4:
+						data.putFloat( 4 * i, value );
+						break;
+					default:
+						data.putDouble( 8 * i, value );
+						break;
+					}
+				}
+	}
+
+	private static long[][] gridPositions()
+	{
+		final int nx = ( DIMENSIONS[ 0 ] + BLOCK_SIZE[ 0 ] - 1 ) / BLOCK_SIZE[ 0 ];
+		final int ny = ( DIMENSIONS[ 1 ] + BLOCK_SIZE[ 1 ] - 1 ) / BLOCK_SIZE[ 1 ];
+		final int nz = ( DIMENSIONS[ 2 ] + BLOCK_SIZE[ 2 ] - 1 ) / BLOCK_SIZE[ 2 ];
+		final long[][] positions = new long[ nx * ny * nz ][];
+		for ( int z = 0, i = 0; z < nz; ++z )
+			for ( int y = 0; y < ny; ++y )
+				for ( int x = 0; x < nx; ++x, ++i )
+					positions[ i ] = new long[] { x, y, z };
+		return positions;
+	}
+
+	private static float[][] copy( final float[][] array )
+	{
+		final float[][] copy = new float[ array.length ][];
+		for ( int i = 0; i < array.length; ++i )
+			copy[ i ] = array[ i ].clone();
+		return copy;
+	}
+
+	private static void write( final Path path, final String content ) throws IOException
+	{
+		Files.write( path, content.getBytes( StandardCharsets.UTF_8 ) );
+	}
+
+}
@@ -0,0 +1,163 @@
+package org.janelia.thickness.similarity;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.janelia.thickness.inference.Progress;
+import org.janelia.thickness.plugin.RealSumFloatNCC;
+import org.janelia.thickness.similarity.MappedSliceSource.PixelType;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class MappedSliceSourceTest
+{
+
+	private static final int WIDTH = 13;
+
+	private static final int HEIGHT = 11;
+
+	private static final int DEPTH = 6;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRaw() throws IOException, InterruptedException, ExecutionException
+	{
+		final float[][] sections = createSections( 1 << 16 );
+		final int offset = 17;
+		final int gap = 5;
+		final ByteBuffer data = ByteBuffer.allocate( offset + DEPTH * ( WIDTH * HEIGHT * 2 + gap ) ).order( ByteOrder.LITTLE_ENDIAN );
+		for ( int z = 0; z < DEPTH; ++z )
+			for ( int i = 0; i < WIDTH * HEIGHT; ++i )
+				data.putShort( offset + z * ( WIDTH * HEIGHT * 2 + gap ) + 2 * i, ( short ) sections[ z ][ i ] );
+		final File file = folder.newFile( "stack.raw" );
+		Files.write( file.toPath(), data.array() );
+
+		final MappedSliceSource source = MappedSliceSource.openRaw( file.toPath(), WIDTH, HEIGHT, DEPTH, PixelType.GRAY16, ByteOrder.LITTLE_ENDIAN, offset, gap );
+		assertSource( sections, source, PixelType.GRAY16 );
+	}
+
+	@Test
+	public void testTiff() throws IOException, InterruptedException, ExecutionException
+	{
+		final float[][] bytes = createSections( 1 << 8 );
+		final ImageStack byteStack = new ImageStack( WIDTH, HEIGHT );
+		for ( final float[] section : bytes )
+			byteStack.addSlice( new FloatProcessor( WIDTH, HEIGHT, section.clone() ).convertToByteProcessor( false ) );
+		final File byteFile = new File( folder.getRoot(), "bytes.tif" );
+		Assert.assertTrue( new FileSaver( new ImagePlus( "", byteStack ) ).saveAsTiffStack( byteFile.getAbsolutePath() ) );
+		assertSource( bytes, MappedSliceSource.openTiff( byteFile.toPath() ), PixelType.GRAY8 );
+
+		final float[][] shorts = createSections( 1 << 16 );
+		final ImageStack shortStack = new ImageStack( WIDTH, HEIGHT );
+		for ( final float[] section : shorts )
+			shortStack.addSlice( new FloatProcessor( WIDTH, HEIGHT, section.clone() ).convertToShortProcessor( false ) );
+		final File shortFile = new File( folder.getRoot(), "shorts.tif" );
+		Assert.assertTrue( new FileSaver( new ImagePlus( "", shortStack ) ).saveAsTiffStack( shortFile.getAbsolutePath() ) );
+		assertSource( shorts, MappedSliceSource.openTiff( shortFile.toPath() ), PixelType.GRAY16 );
+
+		final float[][] floats = createSections( 1 << 16 );
+		for ( final float[] section : floats )
+			for ( int i = 0; i < section.length; ++i )
+				section[ i ] *= 1e-3f;
+		floats[ 2 ][ 5 ] = Float.NaN;
+		final ImageStack floatStack = new ImageStack( WIDTH, HEIGHT );
+		for ( final float[] section : floats )
+			floatStack.addSlice( new FloatProcessor( WIDTH, HEIGHT, section.clone() ) );
+		final File floatFile = new File( folder.getRoot(), "floats.tif" );
+		Assert.assertTrue( new FileSaver( new ImagePlus( "", floatStack ) ).saveAsTiffStack( floatFile.getAbsolutePath() ) );
+		assertSource( floats, MappedSliceSource.openTiff( floatFile.toPath() ), PixelType.GRAY32 );
+	}
+
+	@Test
+	public void testSingleImageTiff() throws IOException, InterruptedException, ExecutionException
+	{
+		final float[][] sections = createSections( 1 << 8 );
+		final ImageProcessor ip = new ByteProcessor( WIDTH, HEIGHT );
+		for ( int i = 0; i < WIDTH * HEIGHT; ++i )
+			ip.setf( i, sections[ 0 ][ i ] );
+		final File file = new File( folder.getRoot(), "single.tif" );
+		Assert.assertTrue( new FileSaver( new ImagePlus( "", ip ) ).saveAsTiff( file.getAbsolutePath() ) );
+		final MappedSliceSource source = MappedSliceSource.openTiff( file.toPath() );
+		Assert.assertEquals( 1, source.getDepth() );
+		Assert.assertArrayEquals( sections[ 0 ], source.readSlab( 0, 1, null )[ 0 ], 0.0f );
+	}
+
+	@Test( expected = IOException.class )
+	public void testTruncatedRaw() throws IOException
+	{
+		final File file = folder.newFile( "truncated.raw" );
+		Files.write( file.toPath(), new byte[ WIDTH * HEIGHT * DEPTH - 1 ] );
+		MappedSliceSource.openRaw( file.toPath(), WIDTH, HEIGHT, DEPTH, PixelType.GRAY8, ByteOrder.BIG_ENDIAN, 0, 0 );
+	}
+
+	private static float[][] createSections( final int maxValue )
+	{
+		final Random rng = new Random( 100 );
+		final float[][] sections = new float[ DEPTH ][ WIDTH * HEIGHT ];
+		for ( int i = 0; i < WIDTH * HEIGHT; ++i )
+			sections[ 0 ][ i ] = rng.nextInt( maxValue );
+		// correlated neighbors
+		for ( int z = 1; z < DEPTH; ++z )
+			for ( int i = 0; i < WIDTH * HEIGHT; ++i )
+				sections[ z ][ i ] = ( ( int ) sections[ z - 1 ][ i ] + rng.nextInt( maxValue ) ) / 2;
+		return sections;
+	}
+
+	private static void assertSource( final float[][] sections, final MappedSliceSource source, final PixelType type ) throws InterruptedException, ExecutionException
+	{
+		Assert.assertEquals( type, source.getPixelType() );
+		Assert.assertEquals( WIDTH, source.getWidth() );
+		Assert.assertEquals( HEIGHT, source.getHeight() );
+		Assert.assertEquals( DEPTH, source.getDepth() );
+		final float[][] slab = source.readSlab( 0, DEPTH, null );
+		for ( int z = 0; z < DEPTH; ++z )
+			Assert.assertArrayEquals( sections[ z ], slab[ z ], 0.0f );
+
+		final int range = 2;
+		final ExecutorService es = Executors.newFixedThreadPool( 2 );
+		final ArrayImg< DoubleType, DoubleArray > strip;
+		try
+		{
+			strip = MappedNCC.calculateNCCStrip( source, range, 0.0, 0, es, new Progress() );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+		final RandomAccess< DoubleType > access = strip.randomAccess();
+		for ( int z = 0; z < DEPTH; ++z )
+			for ( int k = Math.max( z - range, 0 ); k <= Math.min( z + range, DEPTH - 1 ); ++k )
+			{
+				access.setPosition( new int[] { k - z + range, z } );
+				final double expected = k == z ? 1.0 : new RealSumFloatNCC( sections[ z ], sections[ k ] ).call();
+				Assert.assertEquals( expected, access.get().get(), 1e-9 );
+			}
+	}
+
+}
@@ -0,0 +1,124 @@
+package org.janelia.thickness.similarity;
+
+import java.util.Random;
+
+import org.janelia.thickness.plugin.RealSumFloatNCC;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class MaskedNCCTest
+{
+
+	// not a multiple of 64
+	private static final int SIZE = 1000;
+
+	@Test
+	public void testMask()
+	{
+		final ValidityMask all = ValidityMask.all( SIZE );
+		Assert.assertEquals( SIZE, all.cardinality() );
+		Assert.assertEquals( ( SIZE + 63 ) / 64, all.getWords().length );
+		Assert.assertEquals( 0, new ValidityMask( SIZE ).cardinality() );
+
+		final ValidityMask mask = new ValidityMask( SIZE );
+		mask.set( 3 );
+		mask.set( 64 );
+		mask.set( SIZE - 1 );
+		Assert.assertTrue( mask.get( 64 ) );
+		Assert.assertFalse( mask.get( 65 ) );
+		mask.clear( 64 );
+		Assert.assertFalse( mask.get( 64 ) );
+		Assert.assertEquals( 2, mask.and( all ).cardinality() );
+		Assert.assertEquals( 2, mask.overlap( all ) );
+		Assert.assertEquals( 0, mask.overlap( new ValidityMask( SIZE ) ) );
+
+		final ValidityMask argb = ValidityMask.fromARGB( new int[] { 0xff102030, 0xff002030, 0xff10ff30, 0x00102030 } );
+		Assert.assertTrue( argb.get( 0 ) );
+		Assert.assertFalse( argb.get( 1 ) );
+		Assert.assertFalse( argb.get( 2 ) );
+		Assert.assertTrue( argb.get( 3 ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testSizeMismatch()
+	{
+		MaskedNCC.ncc( new float[ SIZE ], ValidityMask.all( SIZE ), new float[ SIZE - 1 ], ValidityMask.all( SIZE - 1 ) );
+	}
+
+	@Test
+	public void testMatchesFiltered()
+	{
+		final Random rng = new Random( 100 );
+		final float[] a = new float[ SIZE ];
+		final float[] b = new float[ SIZE ];
+		for ( int i = 0; i < SIZE; ++i )
+		{
+			a[ i ] = rng.nextInt( 256 );
+			b[ i ] = Math.min( ( int ) a[ i ] / 2 + rng.nextInt( 128 ), 255 );
+		}
+
+		// sections with empty, full, and partial blocks
+		final ValidityMask maskA = new ValidityMask( SIZE );
+		final ValidityMask maskB = new ValidityMask( SIZE );
+		for ( int i = 0; i < SIZE; ++i )
+		{
+			if ( i >= 128 && ( i < 640 || rng.nextBoolean() ) )
+				maskA.set( i );
+			if ( i < 900 && ( i < 500 || rng.nextInt( 4 ) > 0 ) )
+				maskB.set( i );
+		}
+
+		final int n = maskA.and( maskB ).cardinality();
+		final float[] filteredA = new float[ n ];
+		final float[] filteredB = new float[ n ];
+		final byte[] bytesA = new byte[ SIZE ];
+		final byte[] bytesB = new byte[ SIZE ];
+		final short[] shortsA = new short[ SIZE ];
+		final short[] shortsB = new short[ SIZE ];
+		for ( int i = 0, k = 0; i < SIZE; ++i )
+		{
+			bytesA[ i ] = ( byte ) a[ i ];
+			bytesB[ i ] = ( byte ) b[ i ];
+			shortsA[ i ] = ( short ) ( 200 * a[ i ] );
+			shortsB[ i ] = ( short ) ( 200 * b[ i ] );
+			if ( maskA.get( i ) && maskB.get( i ) )
+			{
+				filteredA[ k ] = a[ i ];
+				filteredB[ k ] = b[ i ];
+				++k;
+			}
+		}
+		final double expected = new RealSumFloatNCC( filteredA, filteredB ).call();
+		Assert.assertTrue( expected > 0.1 );
+		Assert.assertEquals( expected, MaskedNCC.ncc( a, maskA, b, maskB ), 1e-10 );
+		Assert.assertEquals( expected, MaskedNCC.ncc( bytesA, maskA, bytesB, maskB ), 1e-10 );
+		// unsigned 16 bit beyond the signed range, NCC is invariant to scaling
+		Assert.assertEquals( expected, MaskedNCC.ncc( ( Object ) shortsA, maskA, ( Object ) shortsB, maskB ), 1e-10 );
+	}
+
+	@Test
+	public void testNaN()
+	{
+		final Random rng = new Random( 100 );
+		final float[] a = new float[ SIZE ];
+		final float[] b = new float[ SIZE ];
+		for ( int i = 0; i < SIZE; ++i )
+		{
+			a[ i ] = rng.nextFloat();
+			b[ i ] = 0.3f * a[ i ] + rng.nextFloat();
+			if ( i % 7 == 0 )
+				a[ i ] = Float.NaN;
+			if ( i > 300 && i < 700 )
+				b[ i ] = Float.NaN;
+		}
+		Assert.assertEquals(
+				new RealSumFloatNCC( a, b ).call(),
+				MaskedNCC.ncc( a, ValidityMask.fromFloats( a ), b, ValidityMask.fromFloats( b ) ),
+				1e-10 );
+	}
+
+}
@@ -0,0 +1,178 @@
+package org.janelia.thickness.similarity;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.janelia.thickness.inference.Progress;
+import org.janelia.thickness.plugin.RealSumFloatNCC;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class PhaseCorrelationTest
+{
+
+	private static final int WIDTH = 40;
+
+	private static final int HEIGHT = 30;
+
+	@Test
+	public void testFFT()
+	{
+		final int width = 8;
+		final int height = 4;
+		final Random rng = new Random( 100 );
+		final double[] re = new double[ width * height ];
+		final double[] im = new double[ width * height ];
+		for ( int i = 0; i < re.length; ++i )
+		{
+			re[ i ] = rng.nextGaussian();
+			im[ i ] = rng.nextGaussian();
+		}
+		final double[] re0 = re.clone();
+		final double[] im0 = im.clone();
+
+		final FFT2D fft = new FFT2D( width, height );
+		fft.transform( re, im, false );
+
+		// naive DFT
+		for ( int v = 0; v < height; ++v )
+			for ( int u = 0; u < width; ++u )
+			{
+				double sr = 0, si = 0;
+				for ( int y = 0; y < height; ++y )
+					for ( int x = 0; x < width; ++x )
+					{
+						final double phi = -2 * Math.PI * ( ( double ) u * x / width + ( double ) v * y / height );
+						final int i = y * width + x;
+						sr += re0[ i ] * Math.cos( phi ) - im0[ i ] * Math.sin( phi );
+						si += re0[ i ] * Math.sin( phi ) + im0[ i ] * Math.cos( phi );
+					}
+				Assert.assertEquals( sr, re[ v * width + u ], 1e-10 );
+				Assert.assertEquals( si, im[ v * width + u ], 1e-10 );
+			}
+
+		fft.transform( re, im, true );
+		Assert.assertArrayEquals( re0, re, 1e-12 );
+		Assert.assertArrayEquals( im0, im, 1e-12 );
+
+		Assert.assertEquals( 64, FFT2D.nextPowerOfTwo( 33 ) );
+		Assert.assertEquals( 32, FFT2D.nextPowerOfTwo( 32 ) );
+	}
+
+	@Test
+	public void testShiftRobust()
+	{
+		final Random rng = new Random( 100 );
+		final float[] base = smooth( random( rng, WIDTH + 10, HEIGHT + 10 ), WIDTH + 10, HEIGHT + 10 );
+		final float[] a = crop( base, WIDTH + 10, 5, 5 );
+		final float[] shifted = crop( base, WIDTH + 10, 8, 3 );
+		final float[] unrelated = crop( smooth( random( rng, WIDTH + 10, HEIGHT + 10 ), WIDTH + 10, HEIGHT + 10 ), WIDTH + 10, 5, 5 );
+
+		final PhaseCorrelation pc = new PhaseCorrelation( WIDTH, HEIGHT, 4 );
+		final float[] spectrumA = pc.spectrum( a );
+		final double self = pc.similarity( spectrumA, spectrumA );
+		final double shift = pc.similarity( spectrumA, pc.spectrum( shifted ) );
+		final double noise = pc.similarity( spectrumA, pc.spectrum( unrelated ) );
+
+		Assert.assertEquals( 1.0, self, 0.01 );
+		Assert.assertTrue( shift > 0.2 );
+		Assert.assertTrue( shift > 3 * noise );
+		// aligned NCC does not recognize the shifted section
+		Assert.assertTrue( new RealSumFloatNCC( a, shifted ).call() < 0.5 * shift );
+
+		// beyond the maximum shift
+		Assert.assertTrue( new PhaseCorrelation( WIDTH, HEIGHT, 2 ).similarity( pc.spectrum( a ), pc.spectrum( shifted ) ) < shift );
+	}
+
+	@Test
+	public void testStrip() throws InterruptedException, ExecutionException
+	{
+		final Random rng = new Random( 100 );
+		final int n = 7;
+		final int range = 3;
+		final float[][] sections = new float[ n ][];
+		sections[ 0 ] = random( rng, WIDTH, HEIGHT );
+		for ( int z = 1; z < n; ++z )
+		{
+			sections[ z ] = random( rng, WIDTH, HEIGHT );
+			for ( int i = 0; i < sections[ z ].length; ++i )
+				sections[ z ][ i ] = 0.8f * sections[ z - 1 ][ i ] + 0.2f * sections[ z ][ i ];
+		}
+
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		final ArrayImg< DoubleType, DoubleArray > strip;
+		try
+		{
+			strip = PhaseCorrelation.calculateStrip( n, z -> sections[ z ], WIDTH, HEIGHT, range, 2, es, new Progress() );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+
+		final PhaseCorrelation pc = new PhaseCorrelation( WIDTH, HEIGHT, 2 );
+		final RandomAccess< DoubleType > access = strip.randomAccess();
+		for ( int z = 0; z < n; ++z )
+		{
+			access.setPosition( z, 1 );
+			double previous = 1.0;
+			for ( int k = z; k < Math.min( z + range + 1, n ); ++k )
+			{
+				access.setPosition( k - z + range, 0 );
+				final double value = access.get().get();
+				if ( k > z )
+				{
+					Assert.assertEquals( pc.similarity( pc.spectrum( sections[ z ] ), pc.spectrum( sections[ k ] ) ), value, 1e-12 );
+					// decays with distance
+					Assert.assertTrue( value < previous );
+				}
+				else
+					Assert.assertEquals( 1.0, value, 0.0 );
+				previous = value;
+			}
+		}
+	}
+
+	private static float[] random( final Random rng, final int width, final int height )
+	{
+		final float[] pixels = new float[ width * height ];
+		for ( int i = 0; i < pixels.length; ++i )
+			pixels[ i ] = ( float ) rng.nextGaussian();
+		return pixels;
+	}
+
+	private static float[] smooth( final float[] pixels, final int width, final int height )
+	{
+		final float[] result = new float[ pixels.length ];
+		for ( int y = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x )
+			{
+				float sum = 0;
+				for ( int dy = -1; dy <= 1; ++dy )
+					for ( int dx = -1; dx <= 1; ++dx )
+						sum += pixels[ Math.min( Math.max( y + dy, 0 ), height - 1 ) * width + Math.min( Math.max( x + dx, 0 ), width - 1 ) ];
+				result[ y * width + x ] = sum;
+			}
+		return result;
+	}
+
+	private static float[] crop( final float[] pixels, final int width, final int x0, final int y0 )
+	{
+		final float[] result = new float[ WIDTH * HEIGHT ];
+		for ( int y = 0; y < HEIGHT; ++y )
+			System.arraycopy( pixels, ( y + y0 ) * width + x0, result, y * WIDTH, WIDTH );
+		return result;
+	}
+
+}
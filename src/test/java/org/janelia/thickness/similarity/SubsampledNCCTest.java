@@ -0,0 +1,123 @@
+package org.janelia.thickness.similarity;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.janelia.thickness.inference.Progress;
+import org.janelia.thickness.plugin.RealSumFloatNCC;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Pair;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class SubsampledNCCTest
+{
+
+	private static final int WIDTH = 200;
+
+	private static final int HEIGHT = 150;
+
+	@Test
+	public void testIndices()
+	{
+		final int[] indices = new SubsampledNCC( WIDTH, HEIGHT, 2000 ).getIndices();
+		Assert.assertTrue( indices.length > 1900 );
+		for ( int i = 1; i < indices.length; ++i )
+			Assert.assertTrue( indices[ i ] > indices[ i - 1 ] );
+		Assert.assertTrue( indices[ 0 ] >= 0 && indices[ indices.length - 1 ] < WIDTH * HEIGHT );
+
+		// low discrepancy: every 20 x 15 cell is sampled about equally often
+		final int[] cells = new int[ 100 ];
+		for ( final int index : indices )
+			++cells[ index / WIDTH / 15 * 10 + index % WIDTH / 20 ];
+		for ( final int count : cells )
+			Assert.assertEquals( indices.length / 100.0, count, 6.0 );
+
+		Assert.assertEquals( WIDTH * HEIGHT, new SubsampledNCC( WIDTH, HEIGHT, WIDTH * HEIGHT + 1 ).getIndices().length );
+	}
+
+	@Test
+	public void testEstimate()
+	{
+		final Random rng = new Random( 100 );
+		final float[] a = new float[ WIDTH * HEIGHT ];
+		final float[] b = new float[ WIDTH * HEIGHT ];
+		for ( int i = 0; i < a.length; ++i )
+		{
+			a[ i ] = rng.nextFloat();
+			b[ i ] = 0.5f * a[ i ] + rng.nextFloat();
+		}
+		final double full = new RealSumFloatNCC( a, b ).call();
+
+		final SubsampledNCC all = new SubsampledNCC( WIDTH, HEIGHT, WIDTH * HEIGHT );
+		Assert.assertEquals( full, all.ncc( all.sample( a ), all.sample( b ) ).value, 1e-10 );
+
+		final SubsampledNCC subset = new SubsampledNCC( WIDTH, HEIGHT, 1000 );
+		final SubsampledNCC.Estimate estimate = subset.ncc( subset.sample( a ), subset.sample( b ) );
+		Assert.assertEquals( subset.getIndices().length, estimate.count );
+		Assert.assertTrue( estimate.lower < full && full < estimate.upper );
+		Assert.assertTrue( estimate.lower < estimate.value && estimate.value < estimate.upper );
+		// more samples, higher weight
+		Assert.assertTrue( all.ncc( all.sample( a ), all.sample( b ) ).weight > 10 * estimate.weight );
+
+		// native pixel types
+		final short[] shorts = new short[ a.length ];
+		for ( int i = 0; i < a.length; ++i )
+			shorts[ i ] = ( short ) ( 60000 * a[ i ] );
+		Assert.assertEquals( estimate.value, subset.ncc( subset.sample( shorts ), subset.sample( b ) ).value, 1e-3 );
+
+		Assert.assertEquals( 0.0, SubsampledNCC.estimate( 0.5, 3, SubsampledNCC.Z_95 ).weight, 0.0 );
+		Assert.assertTrue( Double.isFinite( SubsampledNCC.estimate( 1.0, 100, SubsampledNCC.Z_95 ).weight ) );
+	}
+
+	@Test
+	public void testStrips() throws InterruptedException, ExecutionException
+	{
+		final Random rng = new Random( 100 );
+		final int n = 6;
+		final int range = 2;
+		final float[][] sections = new float[ n ][ WIDTH * HEIGHT ];
+		for ( int z = 0; z < n; ++z )
+			for ( int i = 0; i < WIDTH * HEIGHT; ++i )
+				sections[ z ][ i ] = z == 0 ? rng.nextFloat() : 0.6f * sections[ z - 1 ][ i ] + 0.4f * rng.nextFloat();
+
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		final Pair< ArrayImg< DoubleType, DoubleArray >, ArrayImg< DoubleType, DoubleArray > > strips;
+		try
+		{
+			strips = SubsampledNCC.calculateStrips( n, z -> sections[ z ], WIDTH, HEIGHT, 500, range, es, new Progress() );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+
+		final SubsampledNCC ncc = new SubsampledNCC( WIDTH, HEIGHT, 500 );
+		final RandomAccess< DoubleType > access = strips.getA().randomAccess();
+		final RandomAccess< DoubleType > weightAccess = strips.getB().randomAccess();
+		for ( int z = 0; z < n; ++z )
+		{
+			access.setPosition( z, 1 );
+			weightAccess.setPosition( z, 1 );
+			for ( int k = Math.max( z - range, 0 ); k <= Math.min( z + range, n - 1 ); ++k )
+			{
+				access.setPosition( k - z + range, 0 );
+				weightAccess.setPosition( k - z + range, 0 );
+				final SubsampledNCC.Estimate expected = k == z ? null : ncc.ncc( ncc.sample( sections[ z ] ), ncc.sample( sections[ k ] ) );
+				Assert.assertEquals( k == z ? 1.0 : expected.value, access.get().get(), 1e-12 );
+				Assert.assertEquals( k == z ? SubsampledNCC.maxWeight( ncc.getIndices().length ) : expected.weight, weightAccess.get().get(), 1e-6 * weightAccess.get().get() );
+			}
+		}
+	}
+
+}
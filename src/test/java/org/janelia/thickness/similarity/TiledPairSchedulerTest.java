@@ -0,0 +1,110 @@
+package org.janelia.thickness.similarity;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.janelia.thickness.inference.Progress;
+import org.janelia.thickness.plugin.RealSumFloatNCC;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class TiledPairSchedulerTest
+{
+
+	// not a multiple of the tile length
+	private static final int SIZE = 1237;
+
+	@Test
+	public void testMatchesPairwiseNCC() throws InterruptedException, ExecutionException
+	{
+		final Random rng = new Random( 100 );
+		final int n = 11;
+		final float[][] sections = new float[ n ][ SIZE ];
+		for ( int z = 0; z < n; ++z )
+			for ( int i = 0; i < SIZE; ++i )
+			{
+				sections[ z ][ i ] = z == 0 ? rng.nextFloat() : 0.7f * sections[ z - 1 ][ i ] + 0.3f * rng.nextFloat();
+				if ( ( i + z ) % 13 == 0 )
+					sections[ z ][ i ] = Float.NaN;
+			}
+
+		final TiledPairScheduler.TileReader reader = new TiledPairScheduler.TileReader()
+		{
+			@Override
+			public void read( final int z, final int offset, final int length, final float[] target )
+			{
+				System.arraycopy( sections[ z ], offset, target, 0, length );
+			}
+
+			@Override
+			public int getBytesPerPixel()
+			{
+				return 4;
+			}
+		};
+
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		try
+		{
+			// block sizes smaller than, equal to, and larger than range, tiles
+			// of the minimum length
+			for ( final int range : new int[] { 1, 4, 12 } )
+				for ( final int blockSize : new int[] { 0, 1, 3, 5 } )
+				{
+					final TiledPairScheduler scheduler = new TiledPairScheduler( blockSize, 256 );
+					final double[] counts = new double[ ( 2 * range + 1 ) * n ];
+					final ArrayImg< DoubleType, DoubleArray > strip = scheduler.calculateNCCStrip( n, SIZE, reader, range, counts, es, new Progress() );
+					final RandomAccess< DoubleType > access = strip.randomAccess();
+					long pairs = 0;
+					for ( int z = 0; z < n; ++z )
+					{
+						access.setPosition( z, 1 );
+						for ( int k = z - range; k <= z + range; ++k )
+						{
+							access.setPosition( k - z + range, 0 );
+							final double value = access.get().get();
+							if ( k < 0 || k >= n )
+								Assert.assertTrue( Double.isNaN( value ) );
+							else if ( k == z )
+								Assert.assertEquals( 1.0, value, 0.0 );
+							else
+							{
+								Assert.assertEquals( new RealSumFloatNCC( sections[ z ], sections[ k ] ).call(), value, 1e-10 );
+								Assert.assertEquals( validPixels( sections[ z ], sections[ k ] ), counts[ z * ( 2 * range + 1 ) + k - z + range ], 0.0 );
+							}
+							if ( k > z && k < n )
+								++pairs;
+						}
+					}
+					Assert.assertEquals( pairs, scheduler.getNumberOfPairs() );
+					Assert.assertTrue( scheduler.getBytesRead() >= 4l * SIZE * Math.min( n, 2 ) );
+					Assert.assertTrue( scheduler.getBandwidth() > 0 );
+				}
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	private static int validPixels( final float[] a, final float[] b )
+	{
+		int count = 0;
+		for ( int i = 0; i < a.length; ++i )
+			if ( !Float.isNaN( a[ i ] ) && !Float.isNaN( b[ i ] ) )
+				++count;
+		return count;
+	}
+
+}